@@ -0,0 +1,82 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.highlighter;
+
+import java.util.*;
+import java.util.regex.*;
+
+import com.leafdigital.ircui.DisplayBenchmarks;
+
+import leafchat.benchmark.*;
+import leafchat.core.api.XMLTextScanner;
+
+/**
+ * Benchmark for highlighting words in each line displayed, as done by
+ * {@link HighlighterPlugin#highlight(String, String)} apart from reading
+ * preferences.
+ */
+public class HighlightBenchmarks
+{
+	/** Highlight words (the last one stands in for the user's nickname) */
+	private final static String[] WORDS={"server","build","user12"};
+
+	/**
+	 * Creates all benchmarks in this class.
+	 * @param corpus Corpus that drives the benchmarks
+	 * @return List of benchmarks (empty if the corpus has no channel text)
+	 * @throws Exception Any error
+	 */
+	public static List<Benchmark> create(Corpus corpus) throws Exception
+	{
+		List<Benchmark> list=new LinkedList<Benchmark>();
+
+		final String[] lines=DisplayBenchmarks.getLines(corpus);
+		if(lines.length==0)
+		{
+			return list;
+		}
+
+		StringBuffer words=new StringBuffer();
+		for(int i=0;i<WORDS.length;i++)
+		{
+			if(i!=0)
+			{
+				words.append('|');
+			}
+			words.append(Pattern.quote(WORDS[i]));
+		}
+		final Matcher m=HighlighterPlugin.getPattern(words.toString()).matcher("");
+		final XMLTextScanner scanner=new XMLTextScanner();
+		list.add(new Benchmark("highlight")
+		{
+			private int index;
+
+			@Override
+			public int run() throws Exception
+			{
+				String xml=lines[index];
+				index=(index+1)%lines.length;
+
+				String result=HighlighterPlugin.highlight(scanner,m,xml);
+				return result==null ? xml.length() : result.length();
+			}
+		});
+		return list;
+	}
+}
@@ -0,0 +1,451 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import com.leafdigital.irc.api.*;
+
+import leafchat.benchmark.*;
+import leafchat.core.MessageManager;
+import leafchat.core.api.*;
+
+/**
+ * Benchmarks for the receive pipeline up to and including message dispatch:
+ * splitting the stream into lines, parsing lines into messages, evaluating
+ * channel window filters, and dispatching to channel window targets.
+ */
+public class ReceiveBenchmarks
+{
+	/** Number of simulated channel windows */
+	private final static int CHANNELS=50;
+
+	/** Numbers of channel windows for the dispatch scaling benchmarks */
+	private final static int[] DISPATCHCHANNELS={10,100,1000};
+
+	/** Dummy server that all lines come from */
+	private final static Server SERVER=(Server)Proxy.newProxyInstance(
+		ReceiveBenchmarks.class.getClassLoader(),new Class<?>[] {Server.class},
+		new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy,Method method,Object[] args)
+			{
+				String name=method.getName();
+				if(name.equals("equals"))
+				{
+					return proxy==args[0];
+				}
+				if(name.equals("hashCode"))
+				{
+					return System.identityHashCode(proxy);
+				}
+				if(name.equals("getChanTypes"))
+				{
+					return "#&";
+				}
+				if(name.equals("getStatusMsg"))
+				{
+					return "@+";
+				}
+				if(name.equals("getChanModeType"))
+				{
+					char mode=((Character)args[0]).charValue();
+					return (mode=='o' || mode=='v') ? Server.CHANMODE_USERSTATUS
+						: Server.CHANMODE_NOPARAM;
+				}
+				Class<?> type=method.getReturnType();
+				if(type==String.class)
+				{
+					return "irc.example.net";
+				}
+				if(type==boolean.class)
+				{
+					return Boolean.FALSE;
+				}
+				if(type==int.class)
+				{
+					return 0;
+				}
+				return null;
+			}
+		});
+
+	/** Encoding singleton that doesn't need preferences */
+	public static class BenchmarkEncoding extends IRCEncodingSingleton
+	{
+		private EncodingInfo info=new EncodingInfoImp("ISO-8859-1",true,"UTF-8");
+
+		BenchmarkEncoding()
+		{
+			super(null);
+		}
+
+		@Override
+		public EncodingInfo getEncoding(Server s,String chan,IRCUserAddress user)
+		{
+			return info;
+		}
+	}
+
+	private final static IRCEncoding ENCODING=new BenchmarkEncoding();
+
+	/** @return Encoding singleton that doesn't need preferences */
+	public static IRCEncoding getEncoding()
+	{
+		return ENCODING;
+	}
+
+	/** Context that provides only the encoding singleton */
+	private final static PluginContext CONTEXT=(PluginContext)Proxy.newProxyInstance(
+		ReceiveBenchmarks.class.getClassLoader(),new Class<?>[] {PluginContext.class},
+		new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy,Method method,Object[] args)
+			{
+				if(method.getName().equals("getSingle") && args[0]==IRCEncoding.class)
+				{
+					return ENCODING;
+				}
+				return method.getReturnType()==int.class ? Integer.valueOf(0) : null;
+			}
+		});
+
+	/** Collects messages from the parser instead of dispatching them */
+	private static class Collector implements InvocationHandler
+	{
+		private List<IRCMsg> messages=new ArrayList<IRCMsg>();
+		private boolean keep;
+
+		Collector(boolean keep)
+		{
+			this.keep=keep;
+		}
+
+		@Override
+		public Object invoke(Object proxy,Method method,Object[] args)
+		{
+			if(keep && method.getName().startsWith("dispatch"))
+			{
+				messages.add((IRCMsg)args[0]);
+			}
+			return method.getReturnType()==boolean.class ? Boolean.TRUE : null;
+		}
+	}
+
+	/**
+	 * @param collector Collector
+	 * @return Parser that sends messages to the collector
+	 * @throws GeneralException Any error
+	 */
+	private static IRCMessageParser createParser(Collector collector)
+		throws GeneralException
+	{
+		IRCMessageParser parser=new IRCMessageParser(CONTEXT);
+		parser.init((MessageDispatch)Proxy.newProxyInstance(
+			ReceiveBenchmarks.class.getClassLoader(),
+			new Class<?>[] {MessageDispatch.class},collector));
+		return parser;
+	}
+
+	/**
+	 * Parses all lines of a corpus.
+	 * @param corpus Corpus
+	 * @return Messages in order
+	 * @throws GeneralException Any error
+	 */
+	public static List<IRCMsg> parseAll(Corpus corpus) throws GeneralException
+	{
+		Collector collector=new Collector(true);
+		IRCMessageParser parser=createParser(collector);
+		byte[][] lines=corpus.getLines();
+		for(int i=0;i<lines.length;i++)
+		{
+			parser.msg(new ServerLineMsg(SERVER,lines[i],i));
+		}
+		return collector.messages;
+	}
+
+	/** Stand-in for a channel window */
+	public static class ChanTarget
+	{
+		private int count;
+
+		/**
+		 * @param m Message
+		 */
+		public void msg(ChanIRCMsg m)
+		{
+			count++;
+		}
+	}
+
+	/** Stand-in for things that watch all messages from a server */
+	public static class ServerTarget
+	{
+		private int count;
+
+		/**
+		 * @param m Message
+		 */
+		public void msg(IRCMsg m)
+		{
+			count++;
+		}
+	}
+
+	/** Owner for the benchmark's IRC messages (registered once) */
+	private static class Owner implements MsgOwner
+	{
+		private MessageDispatch dispatch;
+		private List<Integer> requests=new LinkedList<Integer>();
+		private List<Object> targets=new LinkedList<Object>();
+
+		/** Channels currently requested */
+		private Collection<String> channels;
+
+		@Override
+		public void init(MessageDispatch dispatch)
+		{
+			this.dispatch=dispatch;
+		}
+
+		@Override
+		public String getFriendlyName()
+		{
+			return "Benchmark IRC messages";
+		}
+
+		@Override
+		public Class<? extends Msg> getMessageClass()
+		{
+			return IRCMsg.class;
+		}
+
+		@Override
+		public boolean registerTarget(Object target,Class<? extends Msg> message,
+			MessageFilter mf,int requestID,int priority)
+		{
+			return true;
+		}
+
+		@Override
+		public void unregisterTarget(Object target,int requestID)
+		{
+		}
+
+		@Override
+		public void manualDispatch(Msg m)
+		{
+		}
+
+		@Override
+		public boolean allowExternalDispatch(Msg m)
+		{
+			return false;
+		}
+
+		/**
+		 * Replaces all requests with ones for the given channels.
+		 * @param channels Channel names
+		 */
+		void setChannels(Collection<String> channels)
+		{
+			if(this.channels==channels)
+			{
+				return;
+			}
+			this.channels=channels;
+			MessageManager mm=MessageManager.get();
+			Iterator<Object> target=targets.iterator();
+			for(Integer request : requests)
+			{
+				Object o=target.next();
+				mm.unrequestMessages(o instanceof ChanTarget ? ChanIRCMsg.class : IRCMsg.class,
+					o,request.intValue());
+			}
+			requests.clear();
+			targets.clear();
+
+			for(String channel : channels)
+			{
+				ChanTarget t=new ChanTarget();
+				targets.add(t);
+				requests.add(mm.requestMessages(ChanIRCMsg.class,t,
+					new ChanAndServerFilter(SERVER,channel),Msg.PRIORITY_NORMAL));
+			}
+			for(int i=0;i<3;i++)
+			{
+				ServerTarget t=new ServerTarget();
+				targets.add(t);
+				requests.add(mm.requestMessages(IRCMsg.class,t,
+					new ServerFilter(SERVER),Msg.PRIORITY_NORMAL));
+			}
+		}
+	}
+
+	private static Owner owner;
+
+	/**
+	 * Creates all benchmarks in this class.
+	 * @param corpus Corpus that drives the benchmarks
+	 * @return List of benchmarks
+	 * @throws Exception Any error
+	 */
+	public static List<Benchmark> create(Corpus corpus) throws Exception
+	{
+		List<Benchmark> list=new LinkedList<Benchmark>();
+		final byte[] stream=corpus.getStream();
+		final byte[][] lines=corpus.getLines();
+		final IRCMsg[] messages=parseAll(corpus).toArray(new IRCMsg[0]);
+
+		Set<String> channels=getChannels(messages,CHANNELS);
+
+		list.add(new Benchmark("lines")
+		{
+			private LineReader reader;
+
+			@Override
+			public int run() throws Exception
+			{
+				byte[] line=reader==null ? null : reader.readLine();
+				if(line==null)
+				{
+					reader=new LineReader(new ByteArrayInputStream(stream));
+					line=reader.readLine();
+				}
+				return line.length;
+			}
+		});
+
+		final Collector collector=new Collector(false);
+		final IRCMessageParser parser=createParser(collector);
+		list.add(new Benchmark("parse")
+		{
+			private int index;
+
+			@Override
+			public int run() throws Exception
+			{
+				byte[] line=lines[index];
+				index=(index+1)%lines.length;
+				parser.msg(new ServerLineMsg(SERVER,line,index));
+				return line.length;
+			}
+		});
+
+		final MessageFilter[] filters=new MessageFilter[channels.size()];
+		int filter=0;
+		for(String channel : channels)
+		{
+			filters[filter++]=new ChanAndServerFilter(SERVER,channel);
+		}
+		list.add(new Benchmark("filters")
+		{
+			private int index;
+
+			@Override
+			public int run()
+			{
+				IRCMsg m=messages[index];
+				index=(index+1)%messages.length;
+				int accepted=0;
+				for(int i=0;i<filters.length;i++)
+				{
+					if(filters[i].accept(m))
+					{
+						accepted++;
+					}
+				}
+				return accepted;
+			}
+		});
+
+		if(owner==null)
+		{
+			owner=new Owner();
+			MessageManager.get().registerOwner(owner);
+		}
+		list.add(createDispatch("dispatch",messages,channels));
+
+		// Dispatch with different numbers of windows, to show how it scales
+		for(int i=0;i<DISPATCHCHANNELS.length;i++)
+		{
+			list.add(createDispatch("dispatch"+DISPATCHCHANNELS[i],messages,
+				getChannels(messages,DISPATCHCHANNELS[i])));
+		}
+
+		return list;
+	}
+
+	/**
+	 * @param messages Parsed messages
+	 * @param count Number of channels required
+	 * @return Channels for simulated windows: those in the messages, then
+	 *   made-up ones
+	 */
+	private static Set<String> getChannels(IRCMsg[] messages,int count)
+	{
+		Set<String> channels=new LinkedHashSet<String>();
+		for(int i=0;i<messages.length && channels.size()<count;i++)
+		{
+			if(messages[i] instanceof ChanIRCMsg)
+			{
+				channels.add(((ChanIRCMsg)messages[i]).getChannel());
+			}
+		}
+		for(int i=0;channels.size()<count;i++)
+		{
+			channels.add("#other"+i);
+		}
+		return channels;
+	}
+
+	/**
+	 * Creates a benchmark that dispatches messages to a window for each of
+	 * the given channels (plus three server-wide targets). The requests are
+	 * made when the benchmark first runs, replacing those of any other
+	 * dispatch benchmark.
+	 * @param stage Stage name
+	 * @param messages Parsed messages
+	 * @param channels Channels
+	 * @return Benchmark
+	 */
+	private static Benchmark createDispatch(String stage,final IRCMsg[] messages,
+		final Set<String> channels)
+	{
+		return new Benchmark(stage)
+		{
+			private int index;
+
+			@Override
+			public int run()
+			{
+				owner.setChannels(channels);
+				IRCMsg m=messages[index];
+				index=(index+1)%messages.length;
+				owner.dispatch.dispatchMessage(m,true);
+				return index;
+			}
+		};
+	}
+}
@@ -0,0 +1,121 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.ircui;
+
+import java.util.*;
+
+import com.leafdigital.irc.ReceiveBenchmarks;
+import com.leafdigital.irc.api.*;
+
+import leafchat.benchmark.*;
+
+/**
+ * Benchmarks for turning received messages into window text. This follows
+ * what ChanWindow and {@link ChatWindow#addLine(String)} do for a channel
+ * message, apart from adding it to the Swing text view.
+ */
+public class DisplayBenchmarks
+{
+	/**
+	 * Creates all benchmarks in this class.
+	 * @param corpus Corpus that drives the benchmarks
+	 * @return List of benchmarks (empty if the corpus has no channel text)
+	 * @throws Exception Any error
+	 */
+	public static List<Benchmark> create(Corpus corpus) throws Exception
+	{
+		List<Benchmark> list=new LinkedList<Benchmark>();
+
+		final ChanMessageIRCMsg[] messages=getMessages(corpus);
+		if(messages.length==0)
+		{
+			return list;
+		}
+
+		final IRCEncoding encoding=ReceiveBenchmarks.getEncoding();
+		list.add(new Benchmark("xml")
+		{
+			private int index;
+
+			@Override
+			public int run()
+			{
+				ChanMessageIRCMsg m=messages[index];
+				index=(index+1)%messages.length;
+				return ("<line>"+toXML(m,encoding)+"</line>").length();
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Converts all channel text in a corpus to the XML that is displayed (and
+	 * logged) for it.
+	 * @param corpus Corpus
+	 * @return XML for each channel message (empty if there are none)
+	 * @throws Exception Any error
+	 */
+	public static String[] getLines(Corpus corpus) throws Exception
+	{
+		ChanMessageIRCMsg[] messages=getMessages(corpus);
+		IRCEncoding encoding=ReceiveBenchmarks.getEncoding();
+		String[] lines=new String[messages.length];
+		for(int i=0;i<messages.length;i++)
+		{
+			lines[i]=toXML(messages[i],encoding);
+		}
+		return lines;
+	}
+
+	/**
+	 * @param corpus Corpus
+	 * @return All channel messages in the corpus
+	 * @throws Exception Any error
+	 */
+	private static ChanMessageIRCMsg[] getMessages(Corpus corpus) throws Exception
+	{
+		List<ChanMessageIRCMsg> text=new ArrayList<ChanMessageIRCMsg>();
+		for(IRCMsg m : ReceiveBenchmarks.parseAll(corpus))
+		{
+			if(m instanceof ChanMessageIRCMsg)
+			{
+				text.add((ChanMessageIRCMsg)m);
+			}
+		}
+		return text.toArray(new ChanMessageIRCMsg[text.size()]);
+	}
+
+	/**
+	 * Converts a channel message to XML.
+	 * @param m Message
+	 * @param encoding Encoding
+	 * @return XML for line (without the line tag)
+	 */
+	private static String toXML(ChanMessageIRCMsg m,IRCEncoding encoding)
+	{
+		// As in ChanWindow.msg(ChanMessageIRCMsg)
+		String s="&lt;<nick>"+ChatWindow.esc(m.getSourceUser().getNick())+
+			"</nick>&gt; "+ChatWindow.esc(m.convertEncoding(m.getText()));
+
+		// As in ChatWindow.processColours and addLine
+		s=encoding.processEscapes(s,true,true);
+		s=s.replaceAll("[\\x00-\\x1f]","");
+		return ChatWindow.linkURLs(s);
+	}
+}
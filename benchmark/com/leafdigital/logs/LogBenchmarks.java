@@ -0,0 +1,88 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.util.*;
+import java.util.regex.Matcher;
+
+import com.leafdigital.ircui.DisplayBenchmarks;
+
+import leafchat.benchmark.*;
+import leafchat.core.api.XMLTextScanner;
+
+/**
+ * Benchmarks for the per-line work done by the logger: finding the words to
+ * index when a line is logged, and marking found words in search summaries.
+ */
+public class LogBenchmarks
+{
+	/** Words marked in search summaries */
+	private final static String[] FOUND={"the","server","leafdigital"};
+
+	/**
+	 * Creates all benchmarks in this class.
+	 * @param corpus Corpus that drives the benchmarks
+	 * @return List of benchmarks (empty if the corpus has no channel text)
+	 * @throws Exception Any error
+	 */
+	public static List<Benchmark> create(Corpus corpus) throws Exception
+	{
+		List<Benchmark> list=new LinkedList<Benchmark>();
+
+		final String[] lines=DisplayBenchmarks.getLines(corpus);
+		if(lines.length==0)
+		{
+			return list;
+		}
+
+		final XMLTextScanner scanner=new XMLTextScanner();
+		list.add(new Benchmark("logwords")
+		{
+			private int index;
+
+			@Override
+			public int run() throws Exception
+			{
+				String xml=lines[index];
+				index=(index+1)%lines.length;
+
+				// As in LoggerImp.index
+				return LoggerImp.extractWords(scanner,xml).length;
+			}
+		});
+
+		final Matcher m=LogSearch.getHighlightPattern(
+			Arrays.asList(FOUND)).matcher("");
+		list.add(new Benchmark("logfound")
+		{
+			private int index;
+
+			@Override
+			public int run()
+			{
+				String xml=lines[index];
+				index=(index+1)%lines.length;
+
+				// As in LogSearch.work
+				return LogSearch.highlight(scanner,m,xml).length();
+			}
+		});
+		return list;
+	}
+}
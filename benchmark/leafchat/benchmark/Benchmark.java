@@ -0,0 +1,50 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package leafchat.benchmark;
+
+/**
+ * A single benchmarked operation. Subclasses do one unit of work (usually
+ * handling one line of IRC traffic) each time {@link #run()} is called.
+ */
+public abstract class Benchmark
+{
+	private String stage;
+
+	/**
+	 * @param stage Name of pipeline stage, used in report
+	 */
+	protected Benchmark(String stage)
+	{
+		this.stage=stage;
+	}
+
+	/** @return Name of pipeline stage */
+	public String getStage()
+	{
+		return stage;
+	}
+
+	/**
+	 * Does one operation.
+	 * @return Any value that depends on the work done (summed by the runner so
+	 *   that the JIT can't discard the work)
+	 * @throws Exception Any error
+	 */
+	public abstract int run() throws Exception;
+}
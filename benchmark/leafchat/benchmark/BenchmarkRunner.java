@@ -0,0 +1,226 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package leafchat.benchmark;
+
+import java.io.File;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.*;
+
+import javax.swing.SwingUtilities;
+
+import com.leafdigital.highlighter.HighlightBenchmarks;
+import com.leafdigital.irc.ReceiveBenchmarks;
+import com.leafdigital.ircui.DisplayBenchmarks;
+import com.leafdigital.logs.LogBenchmarks;
+
+/**
+ * Runs the receive pipeline and line text benchmarks and prints operations
+ * per second and bytes allocated per operation for each stage. Run using the
+ * 'benchmark' Ant target.
+ * <p>
+ * Each benchmark is warmed up, then timed over several fixed-length
+ * iterations. Everything runs on the Swing thread because that is where
+ * message dispatch normally happens.
+ */
+public class BenchmarkRunner
+{
+	/** Warmup time in milliseconds */
+	private final static long WARMUP=2000;
+
+	/** Length of each timed iteration in milliseconds */
+	private final static long ITERATION=1000;
+
+	/** Number of timed iterations */
+	private final static int ITERATIONS=5;
+
+	/** Thread bean, if it can measure allocation */
+	private ThreadMXBean threads;
+
+	/** Method that returns bytes allocated by a thread, or null if not supported */
+	private Method allocatedBytes;
+
+	/** Used to stop the JIT discarding work */
+	private int sink;
+
+	private BenchmarkRunner()
+	{
+		threads=ManagementFactory.getThreadMXBean();
+		try
+		{
+			// Only available in Sun/Oracle JVMs (6u25 and later)
+			allocatedBytes=Class.forName("com.sun.management.ThreadMXBean").
+				getMethod("getThreadAllocatedBytes",long.class);
+			if(!Class.forName("com.sun.management.ThreadMXBean").isInstance(threads))
+			{
+				allocatedBytes=null;
+			}
+		}
+		catch(Exception e)
+		{
+			allocatedBytes=null;
+		}
+	}
+
+	/**
+	 * @return Bytes allocated so far by current thread, or -1 if unknown
+	 */
+	private long getAllocated()
+	{
+		if(allocatedBytes==null)
+		{
+			return -1;
+		}
+		try
+		{
+			return ((Long)allocatedBytes.invoke(threads,
+				Thread.currentThread().getId())).longValue();
+		}
+		catch(Exception e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Runs a benchmark for the given time.
+	 * @param b Benchmark
+	 * @param time Time in milliseconds
+	 * @return Number of operations done
+	 * @throws Exception Any error
+	 */
+	private long runFor(Benchmark b,long time) throws Exception
+	{
+		long end=System.nanoTime()+time*1000000L;
+		long ops=0;
+		while(true)
+		{
+			for(int i=0;i<256;i++)
+			{
+				sink+=b.run();
+			}
+			ops+=256;
+			if(System.nanoTime()>=end)
+			{
+				return ops;
+			}
+		}
+	}
+
+	/**
+	 * Measures a single benchmark and prints the result.
+	 * @param corpus Corpus name
+	 * @param b Benchmark
+	 * @throws Exception Any error
+	 */
+	private void measure(String corpus,Benchmark b) throws Exception
+	{
+		runFor(b,WARMUP);
+
+		double[] rates=new double[ITERATIONS];
+		long totalOps=0,totalAllocated=0;
+		for(int i=0;i<ITERATIONS;i++)
+		{
+			long allocatedBefore=getAllocated();
+			long start=System.nanoTime();
+			long ops=runFor(b,ITERATION);
+			long elapsed=System.nanoTime()-start;
+			long allocatedAfter=getAllocated();
+			rates[i]=ops/(elapsed/1e9);
+			totalOps+=ops;
+			totalAllocated+=allocatedAfter-allocatedBefore;
+		}
+
+		double mean=0;
+		for(int i=0;i<ITERATIONS;i++)
+		{
+			mean+=rates[i];
+		}
+		mean/=ITERATIONS;
+		double variance=0;
+		for(int i=0;i<ITERATIONS;i++)
+		{
+			variance+=(rates[i]-mean)*(rates[i]-mean);
+		}
+		double deviation=Math.sqrt(variance/ITERATIONS);
+
+		String allocation=allocatedBytes==null ? "n/a" :
+			String.format("%.0f",(double)totalAllocated/totalOps);
+		System.out.println(String.format("%-22s %-12s %14.0f %10.0f %10s",
+			corpus,b.getStage(),mean,deviation,allocation));
+	}
+
+	/**
+	 * Runs all benchmarks for a corpus.
+	 * @param corpus Corpus
+	 * @throws Exception Any error
+	 */
+	private void runAll(final Corpus corpus) throws Exception
+	{
+		final List<Benchmark> benchmarks=new LinkedList<Benchmark>();
+		benchmarks.addAll(ReceiveBenchmarks.create(corpus));
+		benchmarks.addAll(DisplayBenchmarks.create(corpus));
+		benchmarks.addAll(HighlightBenchmarks.create(corpus));
+		benchmarks.addAll(LogBenchmarks.create(corpus));
+		final Exception[] error=new Exception[1];
+		SwingUtilities.invokeAndWait(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for(Benchmark b : benchmarks)
+					{
+						measure(corpus.getName(),b);
+					}
+				}
+				catch(Exception e)
+				{
+					error[0]=e;
+				}
+			}
+		});
+		if(error[0]!=null)
+		{
+			throw error[0];
+		}
+	}
+
+	/**
+	 * @param args Path of recorded corpus (e.g. src/com/leafdigital/ircui/fakeserver.txt)
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length!=1)
+		{
+			System.err.println("Usage: BenchmarkRunner <recorded corpus file>");
+			System.exit(1);
+		}
+
+		BenchmarkRunner runner=new BenchmarkRunner();
+		System.out.println(String.format("%-22s %-12s %14s %10s %10s",
+			"corpus","stage","ops/s","stdev","B/op"));
+		runner.runAll(Corpus.load(new File(args[0])));
+		runner.runAll(Corpus.synthetic(20000,50,1));
+		System.out.println("(checksum "+runner.sink+")");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package leafchat.benchmark;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A list of IRC lines (as received from a server) used to drive benchmarks.
+ */
+public class Corpus
+{
+	private String name;
+	private byte[][] lines;
+
+	/**
+	 * @param name Name used in report
+	 * @param lines Lines without CRLF
+	 */
+	public Corpus(String name,byte[][] lines)
+	{
+		this.name=name;
+		this.lines=lines;
+	}
+
+	/** @return Name used in report */
+	public String getName()
+	{
+		return name;
+	}
+
+	/** @return Lines without CRLF */
+	public byte[][] getLines()
+	{
+		return lines;
+	}
+
+	/** @return All lines joined with CRLF, as they arrive from the server */
+	public byte[] getStream()
+	{
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		for(int i=0;i<lines.length;i++)
+		{
+			out.write(lines[i],0,lines[i].length);
+			out.write(13);
+			out.write(10);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Loads a recorded session in the format used by ircui/fakeserver.txt. Only
+	 * the received lines are used.
+	 * @param file File to load
+	 * @return Corpus
+	 * @throws IOException Any error reading file
+	 */
+	public static Corpus load(File file) throws IOException
+	{
+		final String RECEIVED="!!! Received: ";
+		List<byte[]> lines=new ArrayList<byte[]>();
+		BufferedReader reader=new BufferedReader(new InputStreamReader(
+			new FileInputStream(file),"ISO-8859-1"));
+		try
+		{
+			while(true)
+			{
+				String line=reader.readLine();
+				if(line==null)
+				{
+					break;
+				}
+				if(line.startsWith(RECEIVED))
+				{
+					lines.add(line.substring(RECEIVED.length()).getBytes("ISO-8859-1"));
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return new Corpus(file.getName(),lines.toArray(new byte[lines.size()][]));
+	}
+
+	private final static String[] WORDS=
+	{
+		"hello","the","server","is","lagging","again","anyone","seen","that",
+		"new","build","works","for","me","lol","brb","\u00034red\u0003","\u0002bold\u0002",
+		"http://www.example.com/page?id=3","www.leafdigital.com","ok","thanks"
+	};
+
+	/**
+	 * Creates synthetic traffic for busy channels: mostly channel messages,
+	 * with joins, parts, quits, mode changes, actions and numerics mixed in.
+	 * @param count Number of lines
+	 * @param channels Number of channels
+	 * @param seed Random seed (so that runs are comparable)
+	 * @return Corpus
+	 */
+	public static Corpus synthetic(int count,int channels,long seed)
+	{
+		Random random=new Random(seed);
+		byte[][] lines=new byte[count][];
+		for(int i=0;i<count;i++)
+		{
+			int nick=random.nextInt(500);
+			String source=":user"+nick+"!ident"+nick+"@host"+(nick%37)+".example.net";
+			String chan="#chan"+random.nextInt(channels);
+			int kind=random.nextInt(100);
+			String line;
+			if(kind<75)
+			{
+				line=source+" PRIVMSG "+chan+" :"+words(random);
+			}
+			else if(kind<80)
+			{
+				line=source+" PRIVMSG "+chan+" :\u0001ACTION "+words(random)+"\u0001";
+			}
+			else if(kind<86)
+			{
+				line=source+" JOIN :"+chan;
+			}
+			else if(kind<91)
+			{
+				line=source+" PART "+chan+" :"+words(random);
+			}
+			else if(kind<94)
+			{
+				line=source+" QUIT :Ping timeout: 240 seconds";
+			}
+			else if(kind<96)
+			{
+				line=source+" MODE "+chan+" +o user"+random.nextInt(500);
+			}
+			else
+			{
+				line=":irc.example.net 353 me = "+chan+" :@user1 +user2 user3 user4 user5";
+			}
+			try
+			{
+				lines[i]=line.getBytes("ISO-8859-1");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new Error(e);
+			}
+		}
+		return new Corpus("synthetic-"+channels+"chans",lines);
+	}
+
+	private static String words(Random random)
+	{
+		StringBuffer text=new StringBuffer();
+		int count=1+random.nextInt(15);
+		for(int i=0;i<count;i++)
+		{
+			if(i>0)
+			{
+				text.append(' ');
+			}
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return text.toString();
+	}
+}
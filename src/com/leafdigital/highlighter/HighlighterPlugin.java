@@ -19,11 +19,9 @@ Copyright 2012 Samuel Marshall.
 package com.leafdigital.highlighter;
 
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.regex.*;
 
-import org.w3c.dom.*;
-
-import util.xml.*;
+import util.xml.XMLException;
 
 import com.leafdigital.audio.api.*;
 import com.leafdigital.highlighter.api.Highlighter;
@@ -75,6 +73,12 @@ public class HighlighterPlugin implements Plugin, Highlighter
 	private PluginContext context;
 	private long lastSound;
 
+	/** Scanner used for highlighting; synchronize on it */
+	private XMLTextScanner scanner = new XMLTextScanner();
+	/** Last words used and the corresponding pattern */
+	private String lastWords;
+	private Pattern lastPattern;
+
 	@Override
 	public synchronized void init(
 		PluginContext context, PluginLoadReporter reporter) throws GeneralException
@@ -133,12 +137,19 @@ public class HighlighterPlugin implements Plugin, Highlighter
 			return xml;
 		}
 
-		// Parse document and apply highlight
-		Document d = XML.parse("<o>" + xml.replaceAll("xx", "xx ") + "</o>");
-		String patternString = "(^|\\W)(" + words + ")(\\W|$)";
-		Pattern pattern = Pattern.compile(patternString, Pattern.CASE_INSENSITIVE);
-		boolean changed = highlight(d.getDocumentElement(), pattern);
-		if(!changed)
+		// Apply highlight
+		String result;
+		synchronized(scanner)
+		{
+			String wordsString = words.toString();
+			if(!wordsString.equals(lastWords))
+			{
+				lastPattern = getPattern(wordsString);
+				lastWords = wordsString;
+			}
+			result = highlight(scanner, lastPattern.matcher(""), xml);
+		}
+		if(result == null)
 		{
 			return xml;
 		}
@@ -177,43 +188,33 @@ public class HighlighterPlugin implements Plugin, Highlighter
 			}
 		}
 
-		// Save result string and chop outer tag
-		String result = XML.saveString(d);
-		result = result.replaceAll("xxHIGHLIGHT", "<highlight>").replaceAll(
-			"xx/HIGHLIGHT", "</highlight>").replaceAll("xx ", "xx");
-		return result.substring(3, result.length()-4);
+		return result;
 	}
 
-	private boolean highlight(Element parent, Pattern pattern)
+	/**
+	 * Builds the pattern used for highlighting.
+	 * @param words Words in regular expression format, separated by |
+	 * @return Pattern matching any of the words (as a whole word)
+	 */
+	static Pattern getPattern(String words)
 	{
-		boolean result = false;
-		NodeList nl = parent.getChildNodes();
-		for(int i=0; i<nl.getLength(); i++)
-		{
-			Node n = nl.item(i);
-			if(n instanceof Element)
-			{
-				Element e = (Element)n;
-				if(STOP_ELEMENTS.contains(e.getTagName()))
-				{
-					continue;
-				}
-				result = result || highlight(e, pattern);
-			}
-			if(n instanceof Text)
-			{
-				Text t = (Text)n;
-				String text = t.getData();
-				String before = text;
-				text = pattern.matcher(text).replaceAll("$1xxHIGHLIGHT$2xx/HIGHLIGHT$3");
-				if(!before.equals(text))
-				{
-					result = true;
-					t.setData(text);
-				}
-			}
-		}
-		return result;
+		return Pattern.compile("(?<!\\w)(" + words + ")(?!\\w)",
+			Pattern.CASE_INSENSITIVE);
+	}
+
+	/**
+	 * Encloses matching text in &lt;highlight&gt; tags, except within nicknames
+	 * and other stop elements.
+	 * @param scanner Scanner to use
+	 * @param m Matcher for highlight words
+	 * @param xml XML to highlight
+	 * @return Highlighted XML, or null if nothing matched
+	 * @throws XMLException If the XML isn't valid
+	 */
+	static String highlight(XMLTextScanner scanner, Matcher m, String xml)
+		throws XMLException
+	{
+		return scanner.wrapMatches(xml, m, "highlight", STOP_ELEMENTS);
 	}
 
 	@Override
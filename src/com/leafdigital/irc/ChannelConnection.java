@@ -0,0 +1,718 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.LinkedList;
+
+import javax.net.ssl.*;
+
+import util.xml.XML;
+
+import com.leafdigital.irc.api.NetworkException;
+import com.leafdigital.net.api.Network;
+
+/**
+ * A single server connection run by the {@link SelectorEngine}. Apart from
+ * {@link #send(byte[])}, {@link #close()} and the simple accessors, all
+ * methods are only called on the selector thread.
+ */
+class ChannelConnection
+{
+	/** Time allowed for connecting, including SSL handshake */
+	private final static int CONNECT_TIMEOUT=30000;
+
+	/** Delay before trying again without SSL (avoids fast reconnect limits) */
+	private final static int INSECURE_RETRY_DELAY=20000;
+
+	/** Size of buffer used for reading unencrypted connections */
+	private final static int READ_BUFFER=8192;
+
+	/**
+	 * Receives events from the connection. Methods are called on the selector
+	 * thread, so they must not block.
+	 */
+	interface Handler
+	{
+		/**
+		 * Called to report progress while connecting.
+		 * @param xml Text describing progress
+		 */
+		public void channelProgress(String xml);
+
+		/**
+		 * Called once the connection is established (including SSL handshake).
+		 */
+		public void channelConnected();
+
+		/**
+		 * Called when a line is received.
+		 * @param line Line data not including CR/LF
+		 */
+		public void channelLine(byte[] line);
+
+		/**
+		 * Called every 10 seconds when nothing has been received.
+		 * @param tenSecondUnits Number of 10-second periods with no data
+		 * @return False if the connection should be dropped
+		 */
+		public boolean channelQuiet(int tenSecondUnits);
+
+		/**
+		 * Called when the connection closes or fails to connect. This is always
+		 * the last event.
+		 * @param error Error that caused close, or null if closed normally
+		 * @param wasConnected True if channelConnected was called earlier
+		 */
+		public void channelClosed(Throwable error, boolean wasConnected);
+	}
+
+	private final static int
+		STATE_LOOKUP=0,
+		STATE_CONNECTING=1,
+		STATE_HANDSHAKE=2,
+		STATE_CONNECTED=3,
+		STATE_CLOSED=4;
+
+	private SelectorEngine engine;
+	private Network network;
+	private Handler handler;
+	private String host;
+	private int port;
+	private int secureMode;
+
+	private InetAddress address;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine ssl;
+	private volatile int state=STATE_LOOKUP;
+
+	/** Counts connection attempts so that old timeouts can be ignored */
+	private int attempt=0;
+
+	/** Encrypted data read from network (SSL only) */
+	private ByteBuffer netIn;
+	/** Encrypted data waiting to be written to network (SSL only) */
+	private ByteBuffer netOut;
+	/** Decrypted or plain data that has been read */
+	private ByteBuffer appIn;
+
+	private LineReader reader=new LineReader();
+
+	/** Outgoing data (including CRLF), synchronized on the list */
+	private LinkedList<ByteBuffer> outgoing=new LinkedList<ByteBuffer>();
+
+	/** True once close has been requested */
+	private boolean closing=false;
+
+	/** Keepalive tracking */
+	private boolean receivedSinceTick=false;
+	private int quietCount=0;
+
+	/**
+	 * @param engine Engine that runs this connection
+	 * @param network Network singleton
+	 * @param handler Handler that receives events
+	 * @param host Host for connection
+	 * @param port Port for connection
+	 * @param secureMode Network.SECURE_xx constant
+	 */
+	ChannelConnection(SelectorEngine engine, Network network, Handler handler,
+		String host, int port, int secureMode)
+	{
+		this.engine=engine;
+		this.network=network;
+		this.handler=handler;
+		this.host=host;
+		this.port=port;
+		this.secureMode=secureMode;
+	}
+
+	@Override
+	public String toString()
+	{
+		return host+":"+port;
+	}
+
+	/** @return True if the connection has been established and is not closed */
+	boolean isConnected()
+	{
+		return state==STATE_CONNECTED;
+	}
+
+	/** @return True if connected and using SSL */
+	boolean isSecure()
+	{
+		return state==STATE_CONNECTED && ssl!=null;
+	}
+
+	/** @return Local address of connection, or null if not connected */
+	InetAddress getLocalAddress()
+	{
+		SocketChannel current=channel;
+		return current==null ? null : current.socket().getLocalAddress();
+	}
+
+	/**
+	 * Queues data for sending. Can be called from any thread.
+	 * @param data Data including CRLF
+	 */
+	void send(byte[] data)
+	{
+		synchronized(outgoing)
+		{
+			if(closing) return;
+			outgoing.addLast(ByteBuffer.wrap(data));
+		}
+		engine.requestWrite(this);
+	}
+
+	/**
+	 * Closes the connection once any queued data has been sent. Can be called
+	 * from any thread.
+	 */
+	void close()
+	{
+		synchronized(outgoing)
+		{
+			if(closing) return;
+			closing=true;
+		}
+		engine.requestWrite(this);
+	}
+
+	/**
+	 * Called on the lookup thread to find the server address.
+	 */
+	void lookup()
+	{
+		try
+		{
+			handler.channelProgress("Looking up <key>"+XML.esc(host)+"</key>...");
+			address=InetAddress.getByName(host);
+			engine.connectLater(this);
+		}
+		catch(UnknownHostException e)
+		{
+			engine.failLater(this, e);
+		}
+	}
+
+	/** @return Address that was looked up */
+	InetAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * Begins connecting to the server.
+	 * @param selector Selector
+	 */
+	void startConnect(Selector selector)
+	{
+		if(isClosing())
+		{
+			closed(null);
+			return;
+		}
+		try
+		{
+			handler.channelProgress("Connecting to <key>"+address.getHostAddress()+"</key>...");
+			state=STATE_CONNECTING;
+			attempt++;
+			final int thisAttempt=attempt;
+			engine.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if(attempt==thisAttempt && state<STATE_CONNECTED)
+					{
+						failed(new SocketTimeoutException("Connection timed out"));
+					}
+				}
+			}, CONNECT_TIMEOUT);
+
+			channel=network.openChannel(address, port);
+			key=channel.register(selector, SelectionKey.OP_CONNECT, this);
+		}
+		catch(IOException e)
+		{
+			failed(e);
+		}
+	}
+
+	/**
+	 * Called when the channel is ready to finish connecting.
+	 */
+	void connectable()
+	{
+		try
+		{
+			if(!channel.finishConnect())
+			{
+				return;
+			}
+			if(secureMode!=Network.SECURE_NONE)
+			{
+				ssl=network.createSSLEngine(host, port);
+				SSLSession session=ssl.getSession();
+				netIn=ByteBuffer.allocate(session.getPacketBufferSize());
+				netOut=ByteBuffer.allocate(session.getPacketBufferSize());
+				appIn=ByteBuffer.allocate(session.getApplicationBufferSize());
+				state=STATE_HANDSHAKE;
+				key.interestOps(SelectionKey.OP_READ);
+				ssl.beginHandshake();
+				handshake();
+			}
+			else
+			{
+				appIn=ByteBuffer.allocate(READ_BUFFER);
+				connected();
+			}
+		}
+		catch(Throwable t)
+		{
+			failed(t);
+		}
+	}
+
+	/**
+	 * Continues SSL handshake as far as possible without blocking.
+	 * @throws IOException Any network error
+	 * @throws NetworkException If a line is too long
+	 */
+	private void handshake() throws IOException, NetworkException
+	{
+		while(true)
+		{
+			switch(ssl.getHandshakeStatus())
+			{
+			case NEED_TASK:
+				Runnable task;
+				while((task=ssl.getDelegatedTask())!=null)
+				{
+					task.run();
+				}
+				break;
+
+			case NEED_WRAP:
+				if(!writeNet())
+				{
+					return;
+				}
+				ssl.wrap(ByteBuffer.allocate(0), netOut);
+				break;
+
+			case NEED_UNWRAP:
+				netIn.flip();
+				SSLEngineResult result=ssl.unwrap(netIn, appIn);
+				netIn.compact();
+				if(result.getStatus()==SSLEngineResult.Status.BUFFER_UNDERFLOW)
+				{
+					// Wait for more data
+					writeNet();
+					return;
+				}
+				if(result.getStatus()==SSLEngineResult.Status.CLOSED)
+				{
+					throw new SSLException("Connection closed during handshake");
+				}
+				break;
+
+			default:
+				if(!writeNet())
+				{
+					return;
+				}
+				if(state==STATE_HANDSHAKE)
+				{
+					if(ssl.getSession().getCipherSuite().equals("SSL_NULL_WITH_NULL_NULL"))
+					{
+						throw new SSLException("Failed secure connection");
+					}
+					connected();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Called when the connection is fully established.
+	 * @throws IOException Any network error
+	 * @throws NetworkException If a line is too long
+	 */
+	private void connected() throws IOException, NetworkException
+	{
+		state=STATE_CONNECTED;
+		network.reportLocalAddress(channel.socket().getLocalAddress());
+		if(ssl!=null)
+		{
+			handler.channelProgress("<key>Connected! Connection is <key>secure</key>.</key>");
+		}
+		else
+		{
+			handler.channelProgress("<key>Connected! Connection is <key>unencrypted</key>.</key>");
+		}
+		handler.channelConnected();
+
+		// Deal with anything that arrived with the end of the handshake, and
+		// anything that was queued to send meanwhile
+		deliverLines();
+		updateInterest();
+	}
+
+	/**
+	 * Called when the channel has data to read.
+	 */
+	void readable()
+	{
+		try
+		{
+			int read=channel.read(ssl==null ? appIn : netIn);
+			if(read==-1)
+			{
+				if(state==STATE_CONNECTED)
+				{
+					closed(null);
+				}
+				else
+				{
+					failed(new IOException("Connection closed by server"));
+				}
+				return;
+			}
+			if(read>0)
+			{
+				receivedSinceTick=true;
+			}
+
+			if(ssl!=null)
+			{
+				if(state==STATE_HANDSHAKE)
+				{
+					handshake();
+					if(state!=STATE_CONNECTED)
+					{
+						return;
+					}
+				}
+				while(true)
+				{
+					netIn.flip();
+					SSLEngineResult result=ssl.unwrap(netIn, appIn);
+					netIn.compact();
+					if(result.getStatus()==SSLEngineResult.Status.CLOSED)
+					{
+						deliverLines();
+						closed(null);
+						return;
+					}
+					if(result.getHandshakeStatus()!=SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+						result.getHandshakeStatus()!=SSLEngineResult.HandshakeStatus.FINISHED)
+					{
+						// Server requested renegotiation
+						handshake();
+					}
+					if(result.getStatus()!=SSLEngineResult.Status.OK || netIn.position()==0)
+					{
+						break;
+					}
+					deliverLines();
+				}
+			}
+			deliverLines();
+		}
+		catch(Throwable t)
+		{
+			failed(t);
+		}
+	}
+
+	/**
+	 * Passes all complete lines from the read buffer to the handler.
+	 * @throws NetworkException If a line is too long
+	 */
+	private void deliverLines() throws NetworkException
+	{
+		appIn.flip();
+		try
+		{
+			while(true)
+			{
+				byte[] line;
+				while((line=reader.nextLine())!=null)
+				{
+					handler.channelLine(line);
+				}
+				if(!appIn.hasRemaining())
+				{
+					break;
+				}
+				reader.append(appIn);
+			}
+		}
+		finally
+		{
+			appIn.clear();
+		}
+	}
+
+	/**
+	 * Called when the channel is ready for writing, or when new data has been
+	 * queued.
+	 */
+	void writable()
+	{
+		try
+		{
+			if(state==STATE_HANDSHAKE)
+			{
+				handshake();
+			}
+			else if(state==STATE_CONNECTED)
+			{
+				updateInterest();
+			}
+			else if(state==STATE_CONNECTING && isClosing())
+			{
+				closed(null);
+			}
+		}
+		catch(Throwable t)
+		{
+			failed(t);
+		}
+	}
+
+	/** @return True if close has been requested */
+	private boolean isClosing()
+	{
+		synchronized(outgoing)
+		{
+			return closing;
+		}
+	}
+
+	/**
+	 * Writes as much queued data as possible, then sets interest ops depending
+	 * on whether there is still data waiting. Closes the connection if close
+	 * was requested and everything has been sent.
+	 * @throws IOException Any error
+	 */
+	private void updateInterest() throws IOException
+	{
+		boolean done=writeOutgoing();
+		if(done && isClosing())
+		{
+			closed(null);
+			return;
+		}
+		key.interestOps(done ? SelectionKey.OP_READ
+			: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes queued outgoing data.
+	 * @return True if all data was written
+	 * @throws IOException Any error
+	 */
+	private boolean writeOutgoing() throws IOException
+	{
+		while(true)
+		{
+			ByteBuffer next;
+			synchronized(outgoing)
+			{
+				if(outgoing.isEmpty())
+				{
+					break;
+				}
+				next=outgoing.getFirst();
+			}
+			if(ssl!=null)
+			{
+				if(!writeNet())
+				{
+					return false;
+				}
+				ssl.wrap(next, netOut);
+			}
+			else
+			{
+				channel.write(next);
+			}
+			if(next.hasRemaining())
+			{
+				if(ssl==null)
+				{
+					return false;
+				}
+				continue;
+			}
+			synchronized(outgoing)
+			{
+				outgoing.removeFirst();
+			}
+		}
+		return ssl==null || writeNet();
+	}
+
+	/**
+	 * Writes pending encrypted data.
+	 * @return True if it was all written
+	 * @throws IOException Any error
+	 */
+	private boolean writeNet() throws IOException
+	{
+		netOut.flip();
+		try
+		{
+			channel.write(netOut);
+			if(netOut.hasRemaining())
+			{
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return false;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			return true;
+		}
+		finally
+		{
+			netOut.compact();
+		}
+	}
+
+	/**
+	 * Called every 10 seconds while connected, to handle keepalive.
+	 */
+	void tick()
+	{
+		if(state!=STATE_CONNECTED)
+		{
+			return;
+		}
+		if(receivedSinceTick)
+		{
+			receivedSinceTick=false;
+			quietCount=0;
+			return;
+		}
+		quietCount++;
+		if(!handler.channelQuiet(quietCount))
+		{
+			failed(new SocketTimeoutException("Server not responding"));
+		}
+	}
+
+	/**
+	 * Called if an error occurs. If connecting with optional SSL, this may
+	 * retry without.
+	 * @param t Error
+	 */
+	void failed(Throwable t)
+	{
+		if(state==STATE_CLOSED)
+		{
+			return;
+		}
+		if(state<STATE_CONNECTED && secureMode==Network.SECURE_OPTIONAL &&
+			channel!=null && !isClosing())
+		{
+			// Retry without SSL after a delay, as Network.connect does
+			closeChannel();
+			secureMode=Network.SECURE_NONE;
+			ssl=null;
+			state=STATE_CONNECTING;
+			attempt++;
+			engine.schedule(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					engine.connectLater(ChannelConnection.this);
+				}
+			}, INSECURE_RETRY_DELAY);
+			return;
+		}
+		if(state<STATE_CONNECTED && secureMode==Network.SECURE_REQUIRED &&
+			(t instanceof SSLException))
+		{
+			t=new IOException("Secure connection requested but not available");
+		}
+		closed(t);
+	}
+
+	/**
+	 * Closes the channel and informs the handler.
+	 * @param error Error or null if none
+	 */
+	private void closed(Throwable error)
+	{
+		if(state==STATE_CLOSED)
+		{
+			return;
+		}
+		boolean wasConnected=state==STATE_CONNECTED;
+		if(wasConnected && ssl!=null && error==null)
+		{
+			try
+			{
+				ssl.closeOutbound();
+				ssl.wrap(ByteBuffer.allocate(0), netOut);
+				writeNet();
+			}
+			catch(IOException e)
+			{
+				// Ignore errors sending close notification
+			}
+		}
+		closeChannel();
+		state=STATE_CLOSED;
+		engine.removed(this);
+		handler.channelClosed(error, wasConnected);
+	}
+
+	/**
+	 * Closes the underlying channel, ignoring errors.
+	 */
+	private void closeChannel()
+	{
+		if(key!=null)
+		{
+			key.cancel();
+			key=null;
+		}
+		if(channel!=null)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e)
+			{
+			}
+			channel=null;
+		}
+	}
+}
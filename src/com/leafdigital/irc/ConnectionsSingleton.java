@@ -23,7 +23,7 @@ import java.util.*;
 import util.TimeUtils;
 
 import com.leafdigital.irc.api.*;
-import com.leafdigital.prefs.api.PreferencesGroup;
+import com.leafdigital.prefs.api.*;
 
 import leafchat.core.api.*;
 
@@ -40,6 +40,12 @@ public class ConnectionsSingleton implements Connections,MsgOwner
 
 	private int messageSequence=0;
 
+	/** Engine used for connections that share a thread (created when needed) */
+	private SelectorEngine selectorEngine;
+
+	/** Scheduler for lines held back by send buffers */
+	private SendScheduler sendScheduler=new SendScheduler();
+
 	/**
 	 * Obtains the default message display handler (which must be set outside
 	 * the plugin).
@@ -57,6 +63,28 @@ public class ConnectionsSingleton implements Connections,MsgOwner
 		this.context=context;
 		this.p=p;
 		context.registerMessageOwner(this);
+
+		// Server preferences are looked up by host and by network suffix
+		PreferencesGroup serverPrefs=context.getSingle(Preferences.class).
+			getGroup(p).getChild("servers");
+		serverPrefs.addIndex(IRCPrefs.PREF_HOST);
+		serverPrefs.addIndex(IRCPrefs.PREF_NETWORKSUFFIX);
+	}
+
+	/** @return Engine that runs connections from a single thread */
+	synchronized SelectorEngine getSelectorEngine()
+	{
+		if(selectorEngine==null)
+		{
+			selectorEngine=new SelectorEngine(context);
+		}
+		return selectorEngine;
+	}
+
+	/** @return Scheduler shared by all send buffers */
+	SendScheduler getSendScheduler()
+	{
+		return sendScheduler;
 	}
 
 	@Override
@@ -76,6 +104,18 @@ public class ConnectionsSingleton implements Connections,MsgOwner
 		{
 			serverArray[i].disconnectGracefully();
 		}
+
+		// Also close connections that are still being made, so that the
+		// selector thread exits
+		SelectorEngine engine;
+		synchronized(this)
+		{
+			engine=selectorEngine;
+		}
+		if(engine!=null)
+		{
+			engine.closeAll();
+		}
 	}
 
 	synchronized void informConnected(final ServerConnection sc)
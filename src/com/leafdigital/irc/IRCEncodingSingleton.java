@@ -18,28 +18,69 @@ Copyright 2011 Samuel Marshall.
 */
 package com.leafdigital.irc;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
+import java.util.*;
 
 import com.leafdigital.irc.api.*;
 import com.leafdigital.prefs.api.*;
 
 import leafchat.core.api.*;
 
-/** Singleton for encoding/decoding IRC messages. */
+/**
+ * Singleton for encoding/decoding IRC messages. Encoding settings are read
+ * from preferences into a table of rules, which is discarded whenever
+ * preferences change; results for each server, channel and user are cached
+ * in that table.
+ */
 public class IRCEncodingSingleton implements IRCEncoding
 {
+	/** Number of user addresses for which results are remembered */
+	private final static int USERCACHE=1024;
+
+	/** Strict UTF-8 decoder for each thread */
+	private final static ThreadLocal<CharsetDecoder> utf8Decoder=
+		new ThreadLocal<CharsetDecoder>()
+		{
+			@Override
+			protected CharsetDecoder initialValue()
+			{
+				return Charset.forName("UTF-8").newDecoder().
+					onMalformedInput(CodingErrorAction.REPORT).
+					onUnmappableCharacter(CodingErrorAction.REPORT);
+			}
+		};
+
+	private final static Charset UTF8=Charset.forName("UTF-8");
+
 	static class EncodingInfoImp implements EncodingInfo
 	{
 		private String encoding;
 		private String outgoing;
 		private boolean utf8;
 
+		/** Charsets for encoding and outgoing (null if not supported) */
+		private Charset encodingCharset,outgoingCharset;
+
 		public EncodingInfoImp(String encoding,boolean utf8,String outgoing)
 		{
 			this.encoding=encoding;
 			this.utf8=utf8;
 			this.outgoing=outgoing;
+			encodingCharset=getCharset(encoding);
+			outgoingCharset=getCharset(outgoing);
+		}
+
+		private static Charset getCharset(String name)
+		{
+			try
+			{
+				return Charset.forName(name);
+			}
+			catch(IllegalArgumentException e)
+			{
+				return null;
+			}
 		}
 
 		@Override
@@ -63,104 +104,295 @@ public class IRCEncodingSingleton implements IRCEncoding
 		@Override
 		public String convertIncoming(byte[] data)
 		{
-			try
+			if(utf8)
 			{
-				if(utf8)
+				try
+				{
+					return utf8Decoder.get().decode(ByteBuffer.wrap(data)).toString();
+				}
+				catch(CharacterCodingException e)
 				{
-					String s=new String(data,"UTF-8");
-					if(Arrays.equals(s.getBytes("UTF-8"),data)) return s;
+					// Not valid UTF-8, use the normal encoding
 				}
-				return new String(data,encoding);
 			}
-			catch(UnsupportedEncodingException e)
+			if(encodingCharset==null)
 			{
-				throw new Error("Missing expected character encoding",e);
+				throw new Error("Missing expected character encoding");
 			}
+			return encodingCharset.decode(ByteBuffer.wrap(data)).toString();
 		}
 
 		@Override
 		public byte[] convertOutgoing(String text)
 		{
-			try
+			if(outgoingCharset==null)
 			{
-				// Convert text and check it's OK
-				byte[] converted=text.getBytes(outgoing);
-				if(text.equals(new String(converted,outgoing)))
-					return converted;
+				throw new BugException("Couldn't find expected character encoding");
+			}
+
+			// Convert text and check it's OK
+			byte[] converted=getBytes(outgoingCharset.encode(text));
+			if(text.equals(outgoingCharset.decode(ByteBuffer.wrap(converted)).toString()))
+				return converted;
+
+			// Not OK? Use UTF-8
+			return getBytes(UTF8.encode(text));
+		}
+
+		/**
+		 * @param buffer Encoded text
+		 * @return Bytes remaining in buffer
+		 */
+		private static byte[] getBytes(ByteBuffer buffer)
+		{
+			byte[] bytes=new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+	}
+
+	/** Encoding for a server, and the host it was found for */
+	private static class ServerEncoding
+	{
+		private String host;
+		/** Encoding, or null to use the default */
+		private EncodingInfoImp encoding;
 
-				// Not OK? Use UTF-8
-				return text.getBytes("UTF-8");
+		ServerEncoding(String host,EncodingInfoImp encoding)
+		{
+			this.host=host;
+			this.encoding=encoding;
+		}
+	}
+
+	/** Encoding rules read from preferences, plus cached results */
+	private class Rules
+	{
+		/** By-user masks and encodings */
+		private UserMaskSet<EncodingInfoImp> userMasks=
+			new UserMaskSet<EncodingInfoImp>();
+
+		/** Map from lower-case channel name to encoding */
+		private Map<String, EncodingInfoImp> channels=
+			new HashMap<String, EncodingInfoImp>();
+
+		/** Global default */
+		private EncodingInfoImp defaultEncoding;
+
+		/** Cached user results (NONE if no rule matches) */
+		private Map<String, EncodingInfoImp> users=
+			new LinkedHashMap<String, EncodingInfoImp>(16,0.75f,true)
+			{
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, EncodingInfoImp> eldest)
+				{
+					return size()>USERCACHE;
+				}
+			};
+
+		/** Cached server results */
+		private Map<Server, ServerEncoding> servers=
+			new WeakHashMap<Server, ServerEncoding>();
+
+		Rules()
+		{
+			Preferences p=pc.getSingle(Preferences.class);
+			PreferencesGroup encoding=p.getGroup(pc.getPlugin()).getChild(IRCPrefs.PREFGROUP_ENCODING);
+
+			PreferencesGroup[] userGroups=encoding.getChild(IRCPrefs.PREFGROUP_BYUSER).getAnon();
+			for(int i=0;i<userGroups.length;i++)
+			{
+				// First matching group wins
+				IRCUserAddress mask=
+					new IRCUserAddress(userGroups[i].get(IRCPrefs.PREF_BYUSER_MASK),true);
+				if(userMasks.get(mask)==null)
+				{
+					userMasks.add(mask,new EncodingInfoImp(
+						userGroups[i].get(IRCPrefs.PREF_BYUSER_ENCODING),
+						p.toBoolean(userGroups[i].get(IRCPrefs.PREF_BYUSER_UTF8)),
+						userGroups[i].get(IRCPrefs.PREF_BYUSER_OUTGOING)));
+				}
 			}
-			catch(UnsupportedEncodingException e)
+
+			PreferencesGroup[] chanGroups=encoding.getChild(IRCPrefs.PREFGROUP_BYCHAN).getAnon();
+			for(int i=0;i<chanGroups.length;i++)
 			{
-				throw new BugException("Couldn't find expected character encoding",e);
+				// First matching group wins
+				String name=FilterIndex.caseInsensitiveKey(
+					chanGroups[i].get(IRCPrefs.PREF_BYCHAN_NAME));
+				if(!channels.containsKey(name))
+				{
+					channels.put(name,new EncodingInfoImp(
+						chanGroups[i].get(IRCPrefs.PREF_BYCHAN_ENCODING),
+						p.toBoolean(chanGroups[i].get(IRCPrefs.PREF_BYCHAN_UTF8)),
+						chanGroups[i].get(IRCPrefs.PREF_BYCHAN_OUTGOING)));
+				}
 			}
+
+			defaultEncoding=new EncodingInfoImp(
+				encoding.get(IRCPrefs.PREF_ENCODING,IRCPrefs.PREFDEFAULT_ENCODING),
+				p.toBoolean(encoding.get(IRCPrefs.PREF_UTF8,IRCPrefs.PREFDEFAULT_UTF8)),
+				encoding.get(IRCPrefs.PREF_OUTGOING,IRCPrefs.PREFDEFAULT_OUTGOING));
+		}
+
+		/**
+		 * @param user User address
+		 * @return Encoding for user, or null if no rule matches
+		 */
+		EncodingInfoImp getUser(IRCUserAddress user)
+		{
+			String key=user.toString();
+			synchronized(this)
+			{
+				EncodingInfoImp result=users.get(key);
+				if(result!=null)
+				{
+					return result==NONE ? null : result;
+				}
+			}
+
+			EncodingInfoImp result=userMasks.findFirst(user);
+			if(result==null)
+			{
+				result=NONE;
+			}
+			synchronized(this)
+			{
+				users.put(key,result);
+			}
+			return result==NONE ? null : result;
+		}
+
+		/**
+		 * @param chan Channel name
+		 * @return Encoding for channel, or null if no rule matches
+		 */
+		EncodingInfoImp getChannel(String chan)
+		{
+			return channels.get(FilterIndex.caseInsensitiveKey(chan));
+		}
+
+		/**
+		 * @param s Server
+		 * @return Encoding for server, or null if it doesn't have one
+		 */
+		EncodingInfoImp getServer(Server s)
+		{
+			// The preferences group depends on the server's host
+			String host=s.getReportedOrConnectedHost();
+			synchronized(this)
+			{
+				ServerEncoding existing=servers.get(s);
+				if(existing!=null && existing.host.equals(host))
+				{
+					return existing.encoding;
+				}
+			}
+
+			EncodingInfoImp result=null;
+			PreferencesGroup serverPrefs=s.getPreferences();
+			String serverEncoding=
+				serverPrefs.getAnonHierarchical(IRCPrefs.PREF_ENCODING,null);
+			if(serverEncoding!=null)
+			{
+				Preferences p=pc.getSingle(Preferences.class);
+				result=new EncodingInfoImp(serverEncoding,
+					p.toBoolean(	serverPrefs.getAnonHierarchical(IRCPrefs.PREF_UTF8)),
+					serverPrefs.getAnonHierarchical(IRCPrefs.PREF_OUTGOING));
+			}
+			synchronized(this)
+			{
+				servers.put(s,new ServerEncoding(host,result));
+			}
+			return result;
 		}
 	}
 
+	/** Marks a cached user with no matching rule */
+	private final static EncodingInfoImp NONE=new EncodingInfoImp("UTF-8",true,"UTF-8");
+
 	private PluginContext pc;
 
+	/** Current rules (null when they need reading again) */
+	private volatile Rules rules;
+
+	/** Incremented each time preferences change */
+	private int generation;
+
 	IRCEncodingSingleton(PluginContext pc)
 	{
 		this.pc=pc;
 	}
 
+	/**
+	 * Message: preferences changed. Discards the rules so they will be read
+	 * again when next needed.
+	 * @param msg Message
+	 */
+	public void msg(PreferencesChangeMsg msg)
+	{
+		synchronized(this)
+		{
+			generation++;
+			rules=null;
+		}
+	}
+
+	/** @return Current rules, reading them from preferences if necessary */
+	private Rules getRules()
+	{
+		Rules current=rules;
+		if(current!=null)
+		{
+			return current;
+		}
+
+		// Preferences are read without holding the lock, so don't keep the result
+		// if they changed meanwhile
+		int before;
+		synchronized(this)
+		{
+			before=generation;
+		}
+		current=new Rules();
+		synchronized(this)
+		{
+			if(generation==before)
+			{
+				rules=current;
+			}
+		}
+		return current;
+	}
+
 	@Override
 	public EncodingInfo getEncoding(Server s,String chan,IRCUserAddress user)
 	{
-		Preferences p=pc.getSingle(Preferences.class);
-		PreferencesGroup encoding=p.getGroup(pc.getPlugin()).getChild(IRCPrefs.PREFGROUP_ENCODING);
+		Rules current=getRules();
 
 		// User address takes priority
 		if(user!=null)
 		{
-			PreferencesGroup[] users=encoding.getChild(IRCPrefs.PREFGROUP_BYUSER).getAnon();
-			for(int i=0;i<users.length;i++)
-			{
-				if(user.matches(new IRCUserAddress(users[i].get(IRCPrefs.PREF_BYUSER_MASK),true)))
-				{
-					return new EncodingInfoImp(
-						users[i].get(IRCPrefs.PREF_BYUSER_ENCODING),
-						p.toBoolean(users[i].get(IRCPrefs.PREF_BYUSER_UTF8)),
-						users[i].get(IRCPrefs.PREF_BYUSER_OUTGOING));
-				}
-			}
+			EncodingInfoImp result=current.getUser(user);
+			if(result!=null) return result;
 		}
 
 		// Then channel
 		if(chan!=null)
 		{
-			PreferencesGroup[] chans=encoding.getChild(IRCPrefs.PREFGROUP_BYCHAN).getAnon();
-			for(int i=0;i<chans.length;i++)
-			{
-				if(chan.equalsIgnoreCase(chans[i].get(IRCPrefs.PREF_BYCHAN_NAME)))
-				{
-					return new EncodingInfoImp(
-						chans[i].get(IRCPrefs.PREF_BYCHAN_ENCODING),
-						p.toBoolean(chans[i].get(IRCPrefs.PREF_BYCHAN_UTF8)),
-						chans[i].get(IRCPrefs.PREF_BYCHAN_OUTGOING));
-				}
-			}
+			EncodingInfoImp result=current.getChannel(chan);
+			if(result!=null) return result;
 		}
 
 		// Then server
 		if(s!=null)
 		{
-			String serverEncoding=
-				s.getPreferences().getAnonHierarchical(IRCPrefs.PREF_ENCODING,null);
-			if(serverEncoding!=null)
-			{
-				return new EncodingInfoImp(serverEncoding,
-					p.toBoolean(	s.getPreferences().getAnonHierarchical(IRCPrefs.PREF_UTF8)),
-					s.getPreferences().getAnonHierarchical(IRCPrefs.PREF_OUTGOING));
-			}
+			EncodingInfoImp result=current.getServer(s);
+			if(result!=null) return result;
 		}
 
 		// Then global default
-		return new EncodingInfoImp(
-			encoding.get(IRCPrefs.PREF_ENCODING,IRCPrefs.PREFDEFAULT_ENCODING),
-			p.toBoolean(encoding.get(IRCPrefs.PREF_UTF8,IRCPrefs.PREFDEFAULT_UTF8)),
-			encoding.get(IRCPrefs.PREF_OUTGOING,IRCPrefs.PREFDEFAULT_OUTGOING));
+		return current.defaultEncoding;
 	}
 
 	@Override
@@ -78,6 +78,98 @@ public class IRCMessageParser implements MsgOwner
 		context.requestMessages(ServerLineMsg.class, this);
 	}
 
+	/** Commands handled by the parser; index matches COMMAND_xx constants */
+	private final static String[] COMMANDS =
+	{
+		"NOTICE", "PRIVMSG", "NICK", "QUIT", "SILENCE", "MODE", "INVITE", "JOIN",
+		"PART", "TOPIC", "KICK", "PING", "ERROR"
+	};
+	private final static int COMMAND_NOTICE = 0, COMMAND_PRIVMSG = 1,
+		COMMAND_NICK = 2, COMMAND_QUIT = 3, COMMAND_SILENCE = 4, COMMAND_MODE = 5,
+		COMMAND_INVITE = 6, COMMAND_JOIN = 7, COMMAND_PART = 8, COMMAND_TOPIC = 9,
+		COMMAND_KICK = 10, COMMAND_PING = 11, COMMAND_ERROR = 12;
+	/** Returned by {@link #lookupCommand(byte[], int, int)} for other commands */
+	private final static int COMMAND_UNKNOWN = -1;
+	/** Returned by {@link #lookupCommand(byte[], int, int)} for numerics */
+	private final static int COMMAND_NUMERIC = -2;
+
+	/** Size of command hash table (must be a power of two) */
+	private final static int TABLESIZE = 64;
+	/** Command hash table: bytes of command, or null for empty slot */
+	private final static byte[][] TABLEBYTES = new byte[TABLESIZE][];
+	/** Command hash table: index in COMMANDS */
+	private final static int[] TABLEINDEX = new int[TABLESIZE];
+	static
+	{
+		for(int i=0; i<COMMANDS.length; i++)
+		{
+			byte[] bytes = IRCMsg.constructBytes(COMMANDS[i]);
+			int slot = hash(bytes, 0, bytes.length);
+			while(TABLEBYTES[slot] != null)
+			{
+				slot = (slot+1) & (TABLESIZE-1);
+			}
+			TABLEBYTES[slot] = bytes;
+			TABLEINDEX[slot] = i;
+		}
+	}
+
+	/**
+	 * @param data Data
+	 * @param start Start of command
+	 * @param end End of command (exclusive)
+	 * @return Hash table slot for command
+	 */
+	private static int hash(byte[] data, int start, int end)
+	{
+		int hash = end-start;
+		for(int i=start; i<end; i++)
+		{
+			hash = hash*31 + data[i];
+		}
+		return hash & (TABLESIZE-1);
+	}
+
+	/**
+	 * Works out which command a line contains, without creating a string.
+	 * @param data Line data
+	 * @param start Start of command
+	 * @param end End of command (exclusive)
+	 * @return COMMAND_xx constant; COMMAND_NUMERIC for a three-digit numeric
+	 */
+	private static int lookupCommand(byte[] data, int start, int end)
+	{
+		if(end-start == 3 && isDigit(data[start]) && isDigit(data[start+1]) &&
+			isDigit(data[start+2]))
+		{
+			return COMMAND_NUMERIC;
+		}
+		for(int slot = hash(data, start, end); TABLEBYTES[slot] != null;
+			slot = (slot+1) & (TABLESIZE-1))
+		{
+			byte[] bytes = TABLEBYTES[slot];
+			if(bytes.length != end-start)
+			{
+				continue;
+			}
+			int i = 0;
+			while(i < bytes.length && bytes[i] == data[start+i])
+			{
+				i++;
+			}
+			if(i == bytes.length)
+			{
+				return TABLEINDEX[slot];
+			}
+		}
+		return COMMAND_UNKNOWN;
+	}
+
+	private static boolean isDigit(byte b)
+	{
+		return b >= '0' && b <= '9';
+	}
+
 	private static int find(byte b, byte[] bytes, int start)
 	{
 		for(int i=start; i<bytes.length; i++)
@@ -105,8 +197,13 @@ public class IRCMessageParser implements MsgOwner
 		msg.markHandled();
 		int space;
 
+		// Positions of prefix, command, and params (room for 15 params, which
+		// is the RFC maximum, but this grows if there are more)
+		int[] bounds = new int[34];
+		bounds[0] = -1;
+		bounds[1] = -1;
+
 		// Get prefix if provided
-		byte[] prefix = null;
 		int pos = 0;
 		if(line[0] == ':')
 		{
@@ -120,8 +217,8 @@ public class IRCMessageParser implements MsgOwner
 				return;
 			}
 
-			prefix = new byte[space-1];
-			System.arraycopy(line, 1, prefix, 0, space-1);
+			bounds[0] = 1;
+			bounds[1] = space;
 			pos = space+1;
 		}
 
@@ -131,111 +228,111 @@ public class IRCMessageParser implements MsgOwner
 		{
 			space = line.length;
 		}
-		byte[] command = new byte[space-pos];
-		System.arraycopy(line, pos, command, 0, command.length);
+		bounds[2] = pos;
+		bounds[3] = space;
 		pos = space+1;
 
 		// Get params
 		boolean includesPostfix = false;
-		List<byte[]> params = new LinkedList<byte[]>();
+		int paramCount = 0;
 		while(pos < line.length)
 		{
+			int end;
 			if(line[pos] == ':') // Final parameter begins with : to include spaces
 			{
-				byte[] param = new byte[line.length-pos-1];
-				System.arraycopy(line, pos+1, param, 0, param.length);
-				params.add(param);
-				pos = line.length;
+				pos++;
+				end = line.length;
 				includesPostfix = true;
 			}
 			else
 			{
-				space = find((byte)' ', line, pos);
-				if(space == -1) space = line.length;
+				end = find((byte)' ', line, pos);
+				if(end == -1) end = line.length;
+			}
 
-				byte[] param = new byte[space-pos];
-				System.arraycopy(line, pos, param, 0, param.length);
-				params.add(param);
-				pos = space+1;
+			int index = 4 + paramCount*2;
+			if(index == bounds.length)
+			{
+				int[] larger = new int[bounds.length*2];
+				System.arraycopy(bounds, 0, larger, 0, bounds.length);
+				bounds = larger;
 			}
+			bounds[index] = pos;
+			bounds[index+1] = end;
+			paramCount++;
+			pos = end+1;
 		}
-		byte[][] paramsArray = params.toArray(new byte[0][]);
 
 		IRCMsg base = new IRCMsg();
-		base.init(msg.getServer(), line, prefix, command, paramsArray, includesPostfix);
+		base.init(msg.getServer(), line, bounds, paramCount, includesPostfix);
 		base.setSequence(msg);
-		generateMessage(base);
+		int command = lookupCommand(line, bounds[2], bounds[3]);
+		int numeric = 0;
+		if(command == COMMAND_NUMERIC)
+		{
+			numeric = (line[bounds[2]]-'0')*100 + (line[bounds[2]+1]-'0')*10 +
+				(line[bounds[2]+2]-'0');
+		}
+		generateMessage(base, command, numeric);
 	}
 
 	/**
 	 * Generates and dispatches an IRC message of specific subclass,  based on
 	 * the parameters in the given base message.
 	 * @param base Base message containing all the parameters
+	 * @param command COMMAND_xx constant for message
+	 * @param numeric Numeric value (only used for COMMAND_NUMERIC)
 	 */
-	private void generateMessage(IRCMsg base)
+	private void generateMessage(IRCMsg base, int command, int numeric)
 	{
 		IRCMsg msg;
 		try
 		{
-			String sCommand = base.getCommand();
-			if(sCommand.matches("[0-9]{3}"))
-			{
-				msg = genNumeric(base);
-			}
-			else if(sCommand.equals("NOTICE"))
+			switch(command)
 			{
+			case COMMAND_NUMERIC:
+				msg = genNumeric(base, numeric);
+				break;
+			case COMMAND_NOTICE:
 				msg = genNotice(base);
-			}
-			else if(sCommand.equals("PRIVMSG"))
-			{
+				break;
+			case COMMAND_PRIVMSG:
 				msg = genPrivMsg(base);
-			}
-			else if(sCommand.equals("NICK"))
-			{
+				break;
+			case COMMAND_NICK:
 				msg = genNick(base);
-			}
-			else if(sCommand.equals("QUIT"))
-			{
+				break;
+			case COMMAND_QUIT:
 				msg = genQuit(base);
-			}
-			else if(sCommand.equals("SILENCE"))
-			{
+				break;
+			case COMMAND_SILENCE:
 				msg = genSilence(base);
-			}
-			else if(sCommand.equals("MODE"))
-			{
+				break;
+			case COMMAND_MODE:
 				msg = genMode(base);
-			}
-			else if(sCommand.equals("INVITE"))
-			{
+				break;
+			case COMMAND_INVITE:
 				msg = genInvite(base);
-			}
-			else if(sCommand.equals("JOIN"))
-			{
+				break;
+			case COMMAND_JOIN:
 				msg = genJoin(base);
-			}
-			else if(sCommand.equals("PART"))
-			{
+				break;
+			case COMMAND_PART:
 				msg = genPart(base);
-			}
-			else if(sCommand.equals("TOPIC"))
-			{
+				break;
+			case COMMAND_TOPIC:
 				msg = genTopic(base);
-			}
-			else if(sCommand.equals("KICK"))
-			{
+				break;
+			case COMMAND_KICK:
 				msg = genKick(base);
-			}
-			else if(sCommand.equals("PING"))
-			{
+				break;
+			case COMMAND_PING:
 				msg = genPing(base);
-			}
-			else if(sCommand.equals("ERROR"))
-			{
+				break;
+			case COMMAND_ERROR:
 				msg = genError(base);
-			}
-			else
-			{
+				break;
+			default:
 				throw new InvalidMessageException("Failed to recognise command");
 			}
 		}
@@ -273,26 +370,24 @@ public class IRCMessageParser implements MsgOwner
 		msg.setEncoding(ei);
 	}
 
-	private IRCMsg genNumeric(IRCMsg base) throws InvalidMessageException
+	private IRCMsg genNumeric(IRCMsg base, int numeric) throws InvalidMessageException
 	{
 		checkPrefix(base);
 
-		byte[][] params = base.getParams();
-		if(params.length<1)
+		if(base.getParamCount()<1)
 		{
 			throw new InvalidMessageException("Missing target for server numeric");
 		}
-		String target = IRCMsg.convertISO(params[0]);
+		String target = base.getParamISO(0);
 
-		int numeric = Integer.parseInt(base.getCommand());
 		IRCMsg similar = null;
 		switch(numeric)
 		{
 		case NumericIRCMsg.RPL_CHANNELMODEIS:
-			if(params.length >= 3)
+			if(base.getParamCount() >= 3)
 			{
 				similar = genChanMode(
-					base.getServer(), null, params, IRCMsg.convertISO(params[1]), 1);
+					base, null, base.getParamISO(1), 1);
 			}
 			break;
 		}
@@ -306,27 +401,26 @@ public class IRCMessageParser implements MsgOwner
 	{
 		checkPrefix(base);
 
-		byte[][] params = base.getParams();
-		if(params.length<1)
+		if(base.getParamCount()<1)
 		{
 			throw new InvalidMessageException("Missing nick change");
 		}
 
 		return new NickIRCMsg(
 			new IRCUserAddress(base.getPrefix(),  false),
-			IRCMsg.convertISO(params[0]));
+			base.getParamISO(0));
 	}
 
 	private IRCMsg genSilence(IRCMsg base) throws InvalidMessageException
 	{
 		checkPrefix(base);
 
-		byte[][] params = base.getParams();
-		if(params.length<1 || params[0].length<2)
+		String mask = base.getParamCount()<1 ? "" : base.getParamISO(0);
+		if(mask.length()<2)
 		{
 			throw new InvalidMessageException("Missing silence mask");
 		}
-		char flag = (char)params[0][0];
+		char flag = mask.charAt(0);
 		boolean positive = (flag == '+');
 		if(!positive && flag != '-')
 		{
@@ -335,15 +429,14 @@ public class IRCMessageParser implements MsgOwner
 		return new SilenceIRCMsg(
 			new IRCUserAddress(base.getPrefix(),  false),
 			positive,
-			IRCMsg.convertISO(params[0]).substring(1));
+			mask.substring(1));
 	}
 
 	private IRCMsg genQuit(IRCMsg base) throws InvalidMessageException
 	{
 		checkPrefix(base);
 
-		byte[][] params = base.getParams();
-		byte[] message = (params.length<1) ? null : params[0];
+		byte[] message = (base.getParamCount()<1) ? null : base.getParamBytes(0);
 
 		return new QuitIRCMsg(
 			new IRCUserAddress(base.getPrefix(),  false), message);
@@ -352,13 +445,12 @@ public class IRCMessageParser implements MsgOwner
 	private IRCMsg genNotice(IRCMsg base) throws InvalidMessageException
 	{
 		String prefix = base.getPrefix();
-		byte[][] params = base.getParams();
-		if(params.length<2)
+		if(base.getParamCount()<2)
 		{
 			throw new InvalidMessageException("Wrong number of params for NOTICE");
 		}
-		String target = IRCMsg.convertISO(params[0]);
-		byte[] text = params[1];
+		String target = base.getParamISO(0);
+		byte[] text = base.getParamBytes(1);
 
 		if(prefix == null || prefix.indexOf('!') == -1)
 		{
@@ -402,11 +494,10 @@ public class IRCMessageParser implements MsgOwner
 		checkPrefix(base);
 
 		String prefix = base.getPrefix();
-		byte[][] params = base.getParams();
-		if(params.length<2)
+		if(base.getParamCount()<2)
 			throw new InvalidMessageException("Wrong number of params for PRIVMSG");
-		String target = IRCMsg.convertISO(params[0]);
-		byte[] text = params[1];
+		String target = base.getParamISO(0);
+		byte[] text = base.getParamBytes(1);
 
 		IRCUserAddress source = new IRCUserAddress(prefix,  false);
 
@@ -492,46 +583,45 @@ public class IRCMessageParser implements MsgOwner
 		checkPrefix(base);
 
 		IRCUserAddress source = new IRCUserAddress(base.getPrefix(),  false);
-		byte[][] params = base.getParams();
-		if(params.length<2)
+		if(base.getParamCount()<2)
 		{
 			throw new InvalidMessageException("Wrong number of params for MODE");
 		}
-		String target = IRCMsg.convertISO(params[0]);
+		String target = base.getParamISO(0);
 
 		// Channel modes
 		if(target.length() >= 1 && base.getServer().getChanTypes().indexOf(target.charAt(0)) != -1)
 		{
-			return genChanMode(base.getServer(), source, params, target, 0);
+			return genChanMode(base, source, target, 0);
 		}
 		// User modes
 		else
 		{
-			String modes = IRCMsg.convertISO(params[1]);
+			String modes = base.getParamISO(1);
 			return new UserModeIRCMsg(source, target, modes);
 		}
 	}
 
 	/**
-	 * @param s Server for message
+	 * @param base Base message containing params
 	 * @param source Source user (or null for the numeric type)
-	 * @param params Message params
 	 * @param chan Target channel
 	 * @param offset 0 for a usual message,  1 for the numeric (has an extra param)
 	 * @return Message
 	 */
-	private IRCMsg genChanMode(Server s, IRCUserAddress source, byte[][] params, String chan, int offset)
+	private IRCMsg genChanMode(IRCMsg base, IRCUserAddress source, String chan, int offset)
 	{
-		String[] modeParams = new String[params.length-(2+offset)];
+		Server s = base.getServer();
+		String[] modeParams = new String[base.getParamCount()-(2+offset)];
 		for(int i = 0;i<modeParams.length;i++)
 		{
-			modeParams[i] = IRCMsg.convertISO(params[i+(2+offset)]);
+			modeParams[i] = base.getParamISO(i+(2+offset));
 		}
 
 		boolean positive = true;
 		int nextParam = 0;
 		List<ChanModeIRCMsg.ModeChange> l = new LinkedList<ChanModeIRCMsg.ModeChange>();
-		String modes = IRCMsg.convertISO(params[1+offset]);
+		String modes = base.getParamISO(1+offset);
 		for(int i=0;i<modes.length();i++)
 		{
 			char c = modes.charAt(i);
@@ -581,16 +671,15 @@ public class IRCMessageParser implements MsgOwner
 	{
 		checkPrefix(base);
 
-		byte[][] params = base.getParams();
-		if(params.length<2)
+		if(base.getParamCount()<2)
 		{
 			throw new InvalidMessageException("Wrong number of params for INVITE");
 		}
 
 		return new InviteIRCMsg(
 			new IRCUserAddress(base.getPrefix(),  false),
-			IRCMsg.convertISO(params[0]),
-			IRCMsg.convertISO(params[1]));
+			base.getParamISO(0),
+			base.getParamISO(1));
 	}
 
 	private IRCMsg genJoin(IRCMsg base) throws InvalidMessageException
@@ -598,12 +687,11 @@ public class IRCMessageParser implements MsgOwner
 		checkPrefix(base);
 		IRCUserAddress source = new IRCUserAddress(base.getPrefix(),  false);
 
-		byte[][] params = base.getParams();
-		if(params.length<1)
+		if(base.getParamCount()<1)
 		{
 			throw new InvalidMessageException("Wrong number of params for JOIN");
 		}
-		String target = IRCMsg.convertISO(params[0]);
+		String target = base.getParamISO(0);
 
 		return new JoinIRCMsg(source, target);
 	}
@@ -613,13 +701,12 @@ public class IRCMessageParser implements MsgOwner
 		checkPrefix(base);
 		IRCUserAddress source = new IRCUserAddress(base.getPrefix(),  false);
 
-		byte[][] params = base.getParams();
-		if(params.length<1)
+		if(base.getParamCount()<1)
 		{
 			throw new InvalidMessageException("Wrong number of params for PART");
 		}
-		String target = IRCMsg.convertISO(params[0]);
-		byte[] text = params.length >= 2 ? params[1] : null;
+		String target = base.getParamISO(0);
+		byte[] text = base.getParamCount() >= 2 ? base.getParamBytes(1) : null;
 
 		// Channel messages
 		return new PartIRCMsg(source, target, text);
@@ -630,13 +717,12 @@ public class IRCMessageParser implements MsgOwner
 		checkPrefix(base);
 		IRCUserAddress source = new IRCUserAddress(base.getPrefix(),  false);
 
-		byte[][] params = base.getParams();
-		if(params.length<1)
+		if(base.getParamCount()<1)
 		{
 			throw new InvalidMessageException("Wrong number of params for TOPIC");
 		}
-		String target = IRCMsg.convertISO(params[0]);
-		byte[] text = params.length >= 2 ? params[1] : new byte[0];
+		String target = base.getParamISO(0);
+		byte[] text = base.getParamCount() >= 2 ? base.getParamBytes(1) : new byte[0];
 
 		// Channel messages
 		return new TopicIRCMsg(source, target, text);
@@ -647,14 +733,13 @@ public class IRCMessageParser implements MsgOwner
 		checkPrefix(base);
 		IRCUserAddress source = new IRCUserAddress(base.getPrefix(),  false);
 
-		byte[][] params = base.getParams();
-		if(params.length<2)
+		if(base.getParamCount()<2)
 		{
 			throw new InvalidMessageException("Wrong number of params for KICK");
 		}
-		String target = IRCMsg.convertISO(params[0]);
-		String sVictim = IRCMsg.convertISO(params[1]);
-		byte[] text = params.length >= 3 ? params[2] : null;
+		String target = base.getParamISO(0);
+		String sVictim = base.getParamISO(1);
+		byte[] text = base.getParamCount() >= 3 ? base.getParamBytes(2) : null;
 
 		// Channel messages
 		return new KickIRCMsg(source, target, sVictim, text);
@@ -662,20 +747,18 @@ public class IRCMessageParser implements MsgOwner
 
 	private IRCMsg genPing(IRCMsg base) throws InvalidMessageException
 	{
-		byte[][] params = base.getParams();
-		String sCode = params.length >= 1 ? IRCMsg.convertISO(params[0]) : null;
+		String sCode = base.getParamCount() >= 1 ? base.getParamISO(0) : null;
 
 		return new PingIRCMsg(sCode);
 	}
 
 	private IRCMsg genError(IRCMsg base) throws InvalidMessageException
 	{
-		byte[][] params = base.getParams();
-		if(params.length<1)
+		if(base.getParamCount()<1)
 		{
 			throw new InvalidMessageException("Wrong number of params for ERROR");
 		}
-		return new ErrorIRCMsg(IRCMsg.convertISO(params[0]));
+		return new ErrorIRCMsg(base.getParamISO(0));
 	}
 
 	/**
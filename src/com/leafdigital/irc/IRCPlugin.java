@@ -55,6 +55,7 @@ public class IRCPlugin implements Plugin, IRCPrefs
 		context.registerSingleton(WatchList.class, watchList);
 		ircEncoding = new IRCEncodingSingleton(context);
 		context.registerSingleton(IRCEncoding.class, ircEncoding);
+		context.requestMessages(PreferencesChangeMsg.class, ircEncoding);
 
 		basicCommands = new BasicCommands(context);
 
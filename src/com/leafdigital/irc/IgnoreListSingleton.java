@@ -35,6 +35,9 @@ public class IgnoreListSingleton implements IgnoreList,MsgOwner
 	private PluginContext context;
 	private Map<IRCUserAddress, PreferencesGroup> ignore =
 		new HashMap<IRCUserAddress, PreferencesGroup>();
+	/** Same masks as ignore, indexed for matching */
+	private UserMaskSet<IRCUserAddress> ignoreMatcher =
+		new UserMaskSet<IRCUserAddress>();
 
 	/**
 	 * @param pc Context
@@ -50,11 +53,13 @@ public class IgnoreListSingleton implements IgnoreList,MsgOwner
 		PreferencesGroup[] ignoreGroups=pg.getChild(IRCPrefs.PREFGROUP_IGNORE).getAnon();
 		for(int i=0;i<ignoreGroups.length;i++)
 		{
-			ignore.put(new IRCUserAddress(
+			IRCUserAddress mask=new IRCUserAddress(
 				ignoreGroups[i].get(IRCPrefs.PREF_IGNORE_NICK),
 				ignoreGroups[i].get(IRCPrefs.PREF_IGNORE_USER),
 				ignoreGroups[i].get(IRCPrefs.PREF_IGNORE_HOST)
-				),ignoreGroups[i]);
+				);
+			ignore.put(mask,ignoreGroups[i]);
+			ignoreMatcher.add(mask,mask);
 		}
 
 		pc.registerMessageOwner(this);
@@ -145,6 +150,7 @@ public class IgnoreListSingleton implements IgnoreList,MsgOwner
 		newGroup.set(IRCPrefs.PREF_IGNORE_HOST,mask.getHost());
 
 		ignore.put(mask,newGroup);
+		ignoreMatcher.add(mask,mask);
 		md.dispatchMessage(new IgnoreListChangeMsg(),false);
 
 		return true;
@@ -159,6 +165,7 @@ public class IgnoreListSingleton implements IgnoreList,MsgOwner
 		ignore.get(mask).remove();
 
 		ignore.remove(mask);
+		ignoreMatcher.remove(mask);
 
 		Server[] connected=context.getSingle(Connections.class).getConnected();
 		for(int i=0;i<connected.length;i++)
@@ -184,14 +191,15 @@ public class IgnoreListSingleton implements IgnoreList,MsgOwner
 	 */
 	public void msg(UserSourceIRCMsg msg)
 	{
-		for(IRCUserAddress pattern : ignore.keySet())
+		IRCUserAddress pattern;
+		synchronized(this)
 		{
-			if(msg.getSourceUser().matches(pattern))
-			{
-				msg.markHandled(); // System will process as needed, but it won't get displayed
-				msg.getServer().silence(pattern.toString());
-				break;
-			}
+			pattern=ignoreMatcher.findFirst(msg.getSourceUser());
+		}
+		if(pattern!=null)
+		{
+			msg.markHandled(); // System will process as needed, but it won't get displayed
+			msg.getServer().silence(pattern.toString());
 		}
 	}
 
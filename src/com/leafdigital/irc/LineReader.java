@@ -0,0 +1,165 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import com.leafdigital.irc.api.NetworkException;
+
+/**
+ * Splits the data from a server connection into IRC lines. Data is read from
+ * the stream in large chunks and scanned for CR/LF, rather than one byte at a
+ * time. Partial lines are kept between calls, so it is safe to call
+ * {@link #readLine()} again after it throws a timeout exception.
+ * <p>
+ * The reader can also be used without a stream, by passing data in with
+ * {@link #append(ByteBuffer)} and taking lines out with {@link #nextLine()}.
+ */
+class LineReader
+{
+	/** Maximum length of a line, not including CRLF (from RFC 1459) */
+	final static int MAXLINE=510;
+
+	/** Size of read buffer */
+	private final static int BUFFERSIZE=8192;
+
+	private InputStream input;
+
+	/** Data that has been read from the stream but not yet returned */
+	private byte[] buffer=new byte[BUFFERSIZE];
+
+	/** Position of first unconsumed byte in buffer */
+	private int start=0;
+
+	/** Position up to which buffer has already been scanned for line ends */
+	private int scan=0;
+
+	/** Position after the last valid byte in buffer */
+	private int end=0;
+
+	/**
+	 * @param input Stream to read from
+	 */
+	LineReader(InputStream input)
+	{
+		this.input=input;
+	}
+
+	/**
+	 * Constructs a reader with no stream. Data must be supplied using
+	 * {@link #append(ByteBuffer)}.
+	 */
+	LineReader()
+	{
+		this(null);
+	}
+
+	/**
+	 * Reads the next non-empty line. Blank lines (e.g. between the CR and LF of
+	 * a CRLF) are skipped.
+	 * @return Line data not including CR/LF, or null if the stream ended
+	 * @throws SocketTimeoutException If the read timed out; any partial line is
+	 *   retained for the next call
+	 * @throws NetworkException If the server sent a line that was too long
+	 * @throws IOException Any other error reading the stream
+	 */
+	byte[] readLine() throws IOException, NetworkException
+	{
+		while(true)
+		{
+			byte[] line=nextLine();
+			if(line!=null)
+			{
+				return line;
+			}
+
+			// No complete line, so read more
+			compact();
+			int read=input.read(buffer,end,buffer.length-end);
+			if(read==-1)
+			{
+				return null;
+			}
+			end+=read;
+		}
+	}
+
+	/**
+	 * Returns the next non-empty line from data that has already been read.
+	 * @return Line data not including CR/LF, or null if there is no complete
+	 *   line yet
+	 * @throws NetworkException If the server sent a line that was too long
+	 */
+	byte[] nextLine() throws NetworkException
+	{
+		for(;scan<end;scan++)
+		{
+			byte b=buffer[scan];
+			if(b==10 || b==13)
+			{
+				if(scan>start)
+				{
+					byte[] line=new byte[scan-start];
+					System.arraycopy(buffer,start,line,0,line.length);
+					scan++;
+					start=scan;
+					return line;
+				}
+				// Skip blank line
+				start=scan+1;
+			}
+			else if(scan-start>=MAXLINE)
+			{
+				throw new NetworkException("IRC server sent a line longer than "+
+					MAXLINE+" bytes (rogue server?)");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds data to the buffer. Not all the data will be taken if there isn't
+	 * room, so the caller should alternate between this and {@link #nextLine()}
+	 * until the source buffer is empty.
+	 * @param source Buffer containing data (will be advanced past the data
+	 *   that was taken)
+	 */
+	void append(ByteBuffer source)
+	{
+		compact();
+		int length=Math.min(source.remaining(),buffer.length-end);
+		source.get(buffer,end,length);
+		end+=length;
+	}
+
+	/**
+	 * Moves any partial line to the start of the buffer.
+	 */
+	private void compact()
+	{
+		if(start>0)
+		{
+			System.arraycopy(buffer,start,buffer,0,end-start);
+			end-=start;
+			scan-=start;
+			start=0;
+		}
+	}
+}
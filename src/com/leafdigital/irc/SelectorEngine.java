@@ -0,0 +1,402 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.*;
+
+import com.leafdigital.net.api.Network;
+
+import leafchat.core.api.PluginContext;
+
+/**
+ * Runs any number of server connections from a single thread using a
+ * selector. Host name lookups, which cannot be done without blocking, happen
+ * on one additional thread. Both threads are started when the first
+ * connection is made and exit when there are no connections left.
+ * <p>
+ * The engine also provides a simple timer (see {@link #schedule(Runnable, long)})
+ * which runs tasks on the selector thread; this is used for connection
+ * timeouts, keepalive, and the send buffer.
+ */
+class SelectorEngine
+{
+	/** How often connections are checked for keepalive */
+	private final static long TICK_INTERVAL=10000;
+
+	private PluginContext context;
+
+	/** Selector (null when the thread is not running) */
+	private Selector selector;
+
+	/** Selector thread (null when not running) */
+	private Thread selectorThread;
+
+	/** Lookup thread (null when not running) */
+	private Thread lookupThread;
+
+	/** All connections that have not yet closed */
+	private Set<ChannelConnection> connections=new HashSet<ChannelConnection>();
+
+	/** Connections waiting for lookup */
+	private LinkedList<ChannelConnection> lookups=new LinkedList<ChannelConnection>();
+
+	/** Tasks that need to run on the selector thread as soon as possible */
+	private LinkedList<Runnable> tasks=new LinkedList<Runnable>();
+
+	/** Timed tasks */
+	private PriorityQueue<TimedTask> timed=new PriorityQueue<TimedTask>();
+
+	/** Used to keep timed tasks in order when times are equal */
+	private long timedSequence=0;
+
+	/** Time of next keepalive tick */
+	private long nextTick;
+
+	/** A task scheduled to run at a particular time */
+	private static class TimedTask implements Comparable<TimedTask>
+	{
+		private long time,sequence;
+		private Runnable task;
+
+		TimedTask(long time,long sequence,Runnable task)
+		{
+			this.time=time;
+			this.sequence=sequence;
+			this.task=task;
+		}
+
+		@Override
+		public int compareTo(TimedTask other)
+		{
+			if(time!=other.time)
+			{
+				return time<other.time ? -1 : 1;
+			}
+			return sequence<other.sequence ? -1 : sequence==other.sequence ? 0 : 1;
+		}
+	}
+
+	/**
+	 * @param context Plugin context
+	 */
+	SelectorEngine(PluginContext context)
+	{
+		this.context=context;
+	}
+
+	/**
+	 * Starts a new connection.
+	 * @param handler Handler that receives events for the connection
+	 * @param host Host for connection
+	 * @param port Port for connection
+	 * @param secureMode Network.SECURE_xx constant
+	 * @return New connection (which will be looking up the host)
+	 * @throws IOException If the selector cannot be opened
+	 */
+	synchronized ChannelConnection connect(ChannelConnection.Handler handler,
+		String host,int port,int secureMode) throws IOException
+	{
+		if(selectorThread==null)
+		{
+			selector=Selector.open();
+			nextTick=System.currentTimeMillis()+TICK_INTERVAL;
+			selectorThread=new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runSelector();
+				}
+			},"Server selector");
+			selectorThread.start();
+		}
+
+		ChannelConnection connection=new ChannelConnection(this,
+			context.getSingle(Network.class),handler,host,port,secureMode);
+		connections.add(connection);
+		lookups.addLast(connection);
+		if(lookupThread==null)
+		{
+			lookupThread=new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runLookups();
+				}
+			},"Server lookup");
+			lookupThread.start();
+		}
+		else
+		{
+			notifyAll();
+		}
+		return connection;
+	}
+
+	/**
+	 * Runs a task on the selector thread after the given delay.
+	 * @param task Task to run
+	 * @param delay Delay in milliseconds
+	 */
+	synchronized void schedule(Runnable task,long delay)
+	{
+		timed.add(new TimedTask(System.currentTimeMillis()+delay,timedSequence++,task));
+		wakeup();
+	}
+
+	/**
+	 * Runs a task on the selector thread as soon as possible.
+	 * @param task Task to run
+	 */
+	private synchronized void runLater(Runnable task)
+	{
+		tasks.addLast(task);
+		wakeup();
+	}
+
+	/** Wakes the selector, if running. Must be called while synchronized. */
+	private void wakeup()
+	{
+		if(selector!=null)
+		{
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Called (from any thread) when a connection has new data to write or
+	 * has been asked to close.
+	 * @param connection Connection
+	 */
+	void requestWrite(final ChannelConnection connection)
+	{
+		runLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				connection.writable();
+			}
+		});
+	}
+
+	/**
+	 * Called from the lookup thread when the address is known.
+	 * @param connection Connection
+	 */
+	void connectLater(final ChannelConnection connection)
+	{
+		runLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				connection.startConnect(selector);
+			}
+		});
+	}
+
+	/**
+	 * Called from the lookup thread when lookup fails.
+	 * @param connection Connection
+	 * @param t Error
+	 */
+	void failLater(final ChannelConnection connection,final Throwable t)
+	{
+		runLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				connection.failed(t);
+			}
+		});
+	}
+
+	/**
+	 * Called (on the selector thread) when a connection has closed.
+	 * @param connection Connection
+	 */
+	synchronized void removed(ChannelConnection connection)
+	{
+		connections.remove(connection);
+	}
+
+	/**
+	 * Lookup thread: resolves addresses one at a time.
+	 */
+	private void runLookups()
+	{
+		while(true)
+		{
+			ChannelConnection next;
+			synchronized(this)
+			{
+				while(lookups.isEmpty())
+				{
+					if(connections.isEmpty())
+					{
+						lookupThread=null;
+						return;
+					}
+					try
+					{
+						wait(TICK_INTERVAL);
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+				next=lookups.removeFirst();
+			}
+			next.lookup();
+		}
+	}
+
+	/**
+	 * Selector thread: handles all network events and timed tasks.
+	 */
+	private void runSelector()
+	{
+		while(true)
+		{
+			// Run any pending tasks
+			List<Runnable> run=new LinkedList<Runnable>();
+			long wait;
+			synchronized(this)
+			{
+				run.addAll(tasks);
+				tasks.clear();
+				long now=System.currentTimeMillis();
+				while(!timed.isEmpty() && timed.peek().time<=now)
+				{
+					run.add(timed.poll().task);
+				}
+				if(run.isEmpty() && connections.isEmpty() && timed.isEmpty())
+				{
+					// Nothing left to do, so stop
+					try
+					{
+						selector.close();
+					}
+					catch(IOException e)
+					{
+					}
+					selector=null;
+					selectorThread=null;
+					return;
+				}
+				wait=nextTick-now;
+				if(!timed.isEmpty())
+				{
+					wait=Math.min(wait,timed.peek().time-now);
+				}
+			}
+			for(Runnable task : run)
+			{
+				try
+				{
+					task.run();
+				}
+				catch(Throwable t)
+				{
+					context.log("Error in server selector task",t);
+				}
+			}
+			if(!run.isEmpty())
+			{
+				// Tasks may have added more tasks, so go round again first
+				wait=Math.min(wait,1);
+			}
+
+			// Keepalive
+			long now=System.currentTimeMillis();
+			if(now>=nextTick)
+			{
+				nextTick=now+TICK_INTERVAL;
+				ChannelConnection[] all;
+				synchronized(this)
+				{
+					all=connections.toArray(new ChannelConnection[connections.size()]);
+				}
+				for(int i=0;i<all.length;i++)
+				{
+					all[i].tick();
+				}
+				continue;
+			}
+
+			// Wait for network events
+			try
+			{
+				selector.select(Math.max(1,wait));
+			}
+			catch(IOException e)
+			{
+				context.log("Error in server selector",e);
+				continue;
+			}
+			Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+			while(keys.hasNext())
+			{
+				SelectionKey key=keys.next();
+				keys.remove();
+				ChannelConnection connection=(ChannelConnection)key.attachment();
+				if(!key.isValid())
+				{
+					continue;
+				}
+				if(key.isConnectable())
+				{
+					connection.connectable();
+				}
+				else
+				{
+					if(key.isValid() && key.isReadable())
+					{
+						connection.readable();
+					}
+					if(key.isValid() && key.isWritable())
+					{
+						connection.writable();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Requests all connections to close. The threads exit once they have.
+	 */
+	void closeAll()
+	{
+		ChannelConnection[] all;
+		synchronized(this)
+		{
+			all=connections.toArray(new ChannelConnection[connections.size()]);
+		}
+		for(int i=0;i<all.length;i++)
+		{
+			all[i].close();
+		}
+	}
+}
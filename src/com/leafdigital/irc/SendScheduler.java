@@ -0,0 +1,140 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import java.util.*;
+
+import leafchat.core.api.ErrorMsg;
+
+/**
+ * Runs delayed sends for every server connection from a single thread. A
+ * connection with lines waiting (because it has used up its send allowance)
+ * asks to be called back at the time its next line can go. The thread starts
+ * when the first callback is requested and exits when there are none left.
+ */
+class SendScheduler
+{
+	/** Something that sends lines when called back */
+	interface Sender
+	{
+		/**
+		 * Called when a callback is due. Sends at most one line.
+		 * @param now Current time
+		 * @return Time of next callback, or 0 if nothing is waiting
+		 */
+		long sendDue(long now);
+	}
+
+	/** Map from sender -> time it is due */
+	private Map<Sender, Long> due=new HashMap<Sender, Long>();
+
+	/** Scheduler thread (null when not running) */
+	private Thread thread;
+
+	/**
+	 * Requests a callback. If the sender already has a callback due, the
+	 * earlier of the two times is kept.
+	 * @param sender Sender
+	 * @param time Time of callback
+	 */
+	synchronized void schedule(Sender sender,long time)
+	{
+		Long existing=due.get(sender);
+		if(existing!=null && existing<=time) return;
+		due.put(sender,time);
+		if(thread==null)
+		{
+			thread=new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runScheduler();
+				}
+			},"Send scheduler");
+			thread.start();
+		}
+		else
+		{
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Scheduler thread: makes callbacks as they become due.
+	 */
+	private void runScheduler()
+	{
+		List<Sender> ready=new LinkedList<Sender>();
+		while(true)
+		{
+			long now;
+			synchronized(this)
+			{
+				while(true)
+				{
+					if(due.isEmpty())
+					{
+						thread=null;
+						return;
+					}
+					now=System.currentTimeMillis();
+					long next=Long.MAX_VALUE;
+					for(Iterator<Map.Entry<Sender, Long>> i=due.entrySet().iterator();i.hasNext();)
+					{
+						Map.Entry<Sender, Long> me=i.next();
+						if(me.getValue()<=now)
+						{
+							ready.add(me.getKey());
+							i.remove();
+						}
+						else
+						{
+							next=Math.min(next,me.getValue());
+						}
+					}
+					if(!ready.isEmpty()) break;
+					try
+					{
+						wait(next-now);
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+			}
+
+			// Callbacks happen without holding the lock
+			for(Sender sender : ready)
+			{
+				try
+				{
+					long next=sender.sendDue(now);
+					if(next!=0) schedule(sender,next);
+				}
+				catch(RuntimeException e)
+				{
+					// Keep going for other connections
+					ErrorMsg.report("Error sending to server",e);
+				}
+			}
+			ready.clear();
+		}
+	}
+}
@@ -48,6 +48,8 @@ public class ServerConnection implements Server, IRCPrefs
 
 	private PluginContext context;
 	private Socket s=null;
+	/** Connection used instead of the socket when using the selector engine */
+	private ChannelConnection channel=null;
 	private InputStream input;
 	private OutputStream output;
 	private String host, address;
@@ -95,6 +97,7 @@ public class ServerConnection implements Server, IRCPrefs
 	{
 		this.host = host;
 		this.port = port;
+		buffer.updateRate();
 		if(!getPreferences().exists(PREF_SECUREMODE))
 		{
 			// When secure mode is not set, autodetect unless using a standard port
@@ -116,13 +119,38 @@ public class ServerConnection implements Server, IRCPrefs
 		{
 			secureMode = Network.SECURE_OPTIONAL;
 		}
+		if(useSelectorEngine())
+		{
+			try
+			{
+				synchronized(this)
+				{
+					channel=connections.getSelectorEngine().connect(
+						new ChannelHandler(cp), host, port, secureMode);
+				}
+				return;
+			}
+			catch(IOException e)
+			{
+				context.log("Unable to use selector engine", e);
+			}
+		}
 		new ServerThread(cp);
 	}
 
+	/** @return True if this connection should be run by the selector engine */
+	private boolean useSelectorEngine()
+	{
+		Preferences p=context.getSingle(Preferences.class);
+		return p.toBoolean(p.getGroup(context.getPlugin()).get(
+			PREF_SELECTORENGINE,PREFDEFAULT_SELECTORENGINE)) &&
+			context.getSingle(Network.class).supportsChannels();
+	}
+
 	@Override
 	public boolean isConnected()
 	{
-		return s!=null;
+		return s!=null || (channel!=null && channel.isConnected());
 	}
 
 	@Override
@@ -289,83 +317,430 @@ public class ServerConnection implements Server, IRCPrefs
 		}
 
 		// Send
-		buffer.send(line);
+		buffer.send(line,command.toUpperCase());
 
 		return getTrackingNumber(command);
 	}
 
-	/** Buffer used to keep send rate safe */
-	class SendBuffer implements Runnable
+	/**
+	 * Buffer used to keep send rate safe. Sending a line uses up allowance,
+	 * which builds up again over time to a limit that permits a short burst.
+	 * When there isn't enough, lines wait and are sent later by the shared
+	 * send scheduler; waiting lines go in order of priority (server pings and
+	 * pongs, then ordinary commands, then bulk queries such as WHO).
+	 */
+	class SendBuffer implements SendScheduler.Sender
 	{
 		private final static int
-			MILLISECONDS_PER_LINE=2000,
-			BURST_SIZE=5;
+			PRIORITY_PROTOCOL=0,
+			PRIORITY_USER=1,
+			PRIORITY_BULK=2,
+			PRIORITY_COUNT=3;
+
+		/**
+		 * A line of this many bytes (plus overhead) uses exactly the line delay;
+		 * other lengths are charged in proportion
+		 */
+		private final static int TYPICAL_LINE=240;
+
+		/** Overhead charged for every line, in bytes */
+		private final static int LINE_OVERHEAD=120;
+
+		/** Allowance used by a typical line, in milliseconds */
+		private long lineDelay=Integer.parseInt(PREFDEFAULT_SENDDELAY);
 
-		private LinkedList<byte[]> backlog=null;
-		private long lastSend=0;
-		private int sendCount=0;
+		/** Maximum allowance, in milliseconds */
+		private long capacity=lineDelay*Integer.parseInt(PREFDEFAULT_SENDBURST);
 
-		synchronized void send(byte[] line)
+		/** Current allowance, in milliseconds */
+		private long allowance=capacity;
+
+		/** Time allowance was last updated */
+		private long lastUpdate=System.currentTimeMillis();
+
+		/** Waiting lines for each priority */
+		private List<LinkedList<byte[]>> lanes=new ArrayList<LinkedList<byte[]>>();
+
+		/** Total number of waiting lines */
+		private int waiting;
+
+		/** True while a line is being sent outside the lock */
+		private boolean sending;
+
+		SendBuffer()
 		{
-			// If there's anything in the send buffer, just add this line
-			if(backlog!=null)
+			for(int i=0;i<PRIORITY_COUNT;i++)
 			{
-				backlog.addLast(line);
+				lanes.add(new LinkedList<byte[]>());
+			}
+		}
+
+		/**
+		 * Reads the send rate from server (or network) preferences.
+		 */
+		void updateRate()
+		{
+			PreferencesGroup pg=getPreferences();
+			int delay,burst;
+			try
+			{
+				delay=Integer.parseInt(
+					pg.getAnonHierarchical(PREF_SENDDELAY,PREFDEFAULT_SENDDELAY));
+				burst=Integer.parseInt(
+					pg.getAnonHierarchical(PREF_SENDBURST,PREFDEFAULT_SENDBURST));
+			}
+			catch(NumberFormatException e)
+			{
+				context.log("Invalid send rate for "+getReportedOrConnectedHost(),e);
 				return;
 			}
+			synchronized(this)
+			{
+				lineDelay=Math.max(0,delay);
+				capacity=lineDelay*Math.max(1,burst);
+				allowance=Math.min(allowance,capacity);
+			}
+		}
 
-			// Waiting 2N seconds reduces your send count by N
-			long now=System.currentTimeMillis();
-			if(sendCount>0)
+		/**
+		 * Sends a line, or queues it if the send rate doesn't allow it yet.
+		 * @param line Line
+		 * @param command Command (upper-case)
+		 */
+		void send(byte[] line,String command)
+		{
+			long due;
+			synchronized(this)
 			{
-				long secondsDelay=(now-lastSend)/MILLISECONDS_PER_LINE;
-				sendCount-=secondsDelay;
-				if(sendCount<0) sendCount=0;
+				long now=System.currentTimeMillis();
+				refill(now);
+				long cost=getCost(line);
+				if(waiting==0 && !sending && allowance>=cost)
+				{
+					allowance-=cost;
+					sending=true;
+					due=0;
+				}
+				else
+				{
+					LinkedList<byte[]> lane=lanes.get(getPriority(line,command));
+					byte[] merged=lane.isEmpty() ? null
+						: coalesce(lane.getLast(),line,command);
+					if(merged!=null)
+					{
+						lane.removeLast();
+						lane.addLast(merged);
+					}
+					else
+					{
+						lane.addLast(line);
+						waiting++;
+					}
+					due=getNextDue(now);
+				}
 			}
 
-			// Now increment send count for this message
-			sendCount++;
-			if(sendCount>BURST_SIZE)
+			if(due!=0)
 			{
-				backlog = new LinkedList<byte[]>();
-				backlog.addLast(line);
-				(new Thread(this,"Send buffer")).start();
+				// A line that jumps the queue may bring the next send forward
+				connections.getSendScheduler().schedule(this,due);
+				return;
 			}
-			else
+
+			try
 			{
-				lastSend=now;
 				connections.informSend(ServerConnection.this,line);
 			}
+			finally
+			{
+				finishedSending();
+			}
 		}
 
 		@Override
-		public void run()
+		public long sendDue(long now)
 		{
-			while(true)
+			byte[] line;
+			synchronized(this)
+			{
+				// When a line is being sent, that thread reschedules afterwards
+				if(sending || waiting==0)
+				{
+					return 0;
+				}
+				refill(now);
+				LinkedList<byte[]> lane=getFirstLane();
+				long cost=getCost(lane.getFirst());
+				if(allowance<cost)
+				{
+					return now+(cost-allowance);
+				}
+				line=lane.removeFirst();
+				waiting--;
+				allowance-=cost;
+				sending=true;
+			}
+
+			try
+			{
+				connections.informSend(ServerConnection.this,line);
+			}
+			catch(RuntimeException e)
+			{
+				// Report it but carry on, so that lines behind it still get sent
+				ErrorMsg.report("Error sending to server",e);
+			}
+			finally
 			{
-				byte[] nextLine;
 				synchronized(this)
 				{
-					if(backlog.size()==0)
-					{
-						backlog=null;
-						return;
-					}
-					nextLine=backlog.removeFirst();
+					sending=false;
 				}
+			}
 
-				try
+			synchronized(this)
+			{
+				if(waiting==0)
+				{
+					return 0;
+				}
+				return getNextDue(System.currentTimeMillis());
+			}
+		}
+
+		/**
+		 * Called after sending a line directly; arranges to send any lines that
+		 * arrived meanwhile.
+		 */
+		private void finishedSending()
+		{
+			long due;
+			synchronized(this)
+			{
+				sending=false;
+				if(waiting==0)
+				{
+					return;
+				}
+				due=getNextDue(System.currentTimeMillis());
+			}
+			connections.getSendScheduler().schedule(this,due);
+		}
+
+		/**
+		 * Adds allowance for time passed since the last update.
+		 * @param now Current time
+		 */
+		private void refill(long now)
+		{
+			if(now>lastUpdate)
+			{
+				allowance=Math.min(capacity,allowance+(now-lastUpdate));
+			}
+			lastUpdate=now;
+		}
+
+		/**
+		 * @param now Current time (allowance must be up to date)
+		 * @return Time at which the first waiting line can be sent
+		 */
+		private long getNextDue(long now)
+		{
+			long cost=getCost(getFirstLane().getFirst());
+			return now+Math.max(0,cost-allowance);
+		}
+
+		/** @return Highest-priority lane that has lines waiting */
+		private LinkedList<byte[]> getFirstLane()
+		{
+			for(LinkedList<byte[]> lane : lanes)
+			{
+				if(!lane.isEmpty())
 				{
-					Thread.sleep(MILLISECONDS_PER_LINE);
+					return lane;
 				}
-				catch(InterruptedException ie)
+			}
+			throw new BugException("No lines waiting");
+		}
+
+		/**
+		 * @param line Line
+		 * @return Allowance used by sending the line, in milliseconds
+		 */
+		private long getCost(byte[] line)
+		{
+			return Math.min(capacity,
+				lineDelay*(LINE_OVERHEAD+line.length)/TYPICAL_LINE);
+		}
+
+		/**
+		 * Combines a waiting line with a new one, if both are JOIN commands or
+		 * both are changes to modes that take parameters on the same target,
+		 * within the limits the server advertises.
+		 * @param previous Line waiting at the end of its lane
+		 * @param line New line
+		 * @param command Command of new line (upper-case)
+		 * @return Combined line, or null if they can't be combined
+		 */
+		private byte[] coalesce(byte[] previous,byte[] line,String command)
+		{
+			if(!command.equals("JOIN") && !command.equals("MODE"))
+			{
+				return null;
+			}
+			String[] before,after;
+			try
+			{
+				before=new String(previous,"ISO-8859-1").trim().split(" +");
+				after=new String(line,"ISO-8859-1").trim().split(" +");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new BugException(e);
+			}
+			if(!before[0].equalsIgnoreCase(command))
+			{
+				return null;
+			}
+
+			String result=command.equals("JOIN")
+				? coalesceJoin(before,after) : coalesceMode(before,after);
+			if(result==null || result.length()>LineReader.MAXLINE)
+			{
+				return null;
+			}
+			return IRCMsg.constructBytes(result);
+		}
+
+		/**
+		 * @param before Words of earlier JOIN
+		 * @param after Words of later JOIN
+		 * @return Combined JOIN or null if not possible
+		 */
+		private String coalesceJoin(String[] before,String[] after)
+		{
+			if(before.length<2 || before.length>3 || after.length<2 ||
+				after.length>3 || before[1].equals("0") || after[1].equals("0"))
+			{
+				return null;
+			}
+			int beforeChans=before[1].split(",").length,
+				beforeKeys=before.length==3 ? before[2].split(",").length : 0,
+				afterChans=after[1].split(",").length;
+			if(beforeChans+afterChans>getMaxTargets("JOIN"))
+			{
+				return null;
+			}
+
+			// Keys apply to channels in order, so a key can only be added if every
+			// earlier channel has one
+			if(after.length==3 && beforeKeys!=beforeChans)
+			{
+				return null;
+			}
+			String keys=before.length==3 ? before[2] : "";
+			if(after.length==3)
+			{
+				keys+=","+after[2];
+			}
+			return "JOIN "+before[1]+","+after[1]+(keys.length()>0 ? " "+keys : "");
+		}
+
+		/**
+		 * @param before Words of earlier MODE
+		 * @param after Words of later MODE
+		 * @return Combined MODE or null if not possible
+		 */
+		private String coalesceMode(String[] before,String[] after)
+		{
+			// Only combine changes where every mode has a parameter, so that
+			// there's no need to know which modes take parameters
+			int beforeParams=getModeParams(before),afterParams=getModeParams(after);
+			if(beforeParams==-1 || afterParams==-1 ||
+				!before[1].equalsIgnoreCase(after[1]) ||
+				beforeParams+afterParams>getMaxModeParams())
+			{
+				return null;
+			}
+
+			StringBuilder result=new StringBuilder("MODE ");
+			result.append(before[1]);
+			result.append(' ');
+			result.append(before[2]);
+			char sign='+';
+			for(char c : before[2].toCharArray())
+			{
+				if(c=='+' || c=='-')
 				{
+					sign=c;
 				}
+			}
+			result.append(after[2].charAt(0)==sign ? after[2].substring(1) : after[2]);
+			for(int i=3;i<before.length;i++)
+			{
+				result.append(' ');
+				result.append(before[i]);
+			}
+			for(int i=3;i<after.length;i++)
+			{
+				result.append(' ');
+				result.append(after[i]);
+			}
+			return result.toString();
+		}
 
-				connections.informSend(ServerConnection.this,nextLine);
-				lastSend=System.currentTimeMillis();
+		/**
+		 * @param words Words of MODE command
+		 * @return Number of mode parameters, or -1 unless it is a change in which
+		 *   every mode has a parameter
+		 */
+		private int getModeParams(String[] words)
+		{
+			if(words.length<4 || !words[2].matches("([+-][A-Za-z]+)+"))
+			{
+				return -1;
+			}
+			int modes=words[2].replaceAll("[+-]","").length();
+			return modes==words.length-3 ? modes : -1;
+		}
+
+		/**
+		 * @param line Line
+		 * @param command Command (upper-case)
+		 * @return Priority lane for the line
+		 */
+		private int getPriority(byte[] line,String command)
+		{
+			if(command.equals("PING") || command.equals("PONG"))
+			{
+				return PRIORITY_PROTOCOL;
+			}
+			if(command.equals("WHO") || command.equals("ISON") || command.equals("USERHOST") ||
+				command.equals("NAMES") || command.equals("LIST"))
+			{
+				return PRIORITY_BULK;
 			}
-	  }
+			if(command.equals("MODE"))
+			{
+				// Mode queries (target only, or a list mode with no parameter) are
+				// bulk; mode changes are not
+				String[] params;
+				try
+				{
+					params=new String(line,"ISO-8859-1").trim().split(" +");
+				}
+				catch(UnsupportedEncodingException e)
+				{
+					throw new BugException(e);
+				}
+				if(params.length==2 ||
+					(params.length==3 && params[2].matches("[+]?[bIe]")))
+				{
+					return PRIORITY_BULK;
+				}
+			}
+			return PRIORITY_USER;
+		}
 	}
 
 	SendBuffer buffer=new SendBuffer();
@@ -378,19 +753,25 @@ public class ServerConnection implements Server, IRCPrefs
 	public synchronized void msg(ServerSendMsg msg) throws NetworkException
 	{
 		if(msg.isHandled()) return;
-		if(s!=null) internalSend(msg.getLine(),false);
+		if(isConnected()) internalSend(msg.getLine(),false);
 		msg.markHandled();
 	}
 
 	private synchronized void internalSend(byte[] abLine,boolean bFlush) throws NetworkException
 	{
-		if(s==null) throw new NetworkException("Not connected");
+		if(!isConnected()) throw new NetworkException("Not connected");
 		try
 		{
 			byte[] complete=new byte[abLine.length+2];
 			System.arraycopy(abLine,0,complete,0,abLine.length);
 			complete[abLine.length]=13; // CR
 			complete[abLine.length+1]=10; // LF
+			if(channel!=null)
+			{
+				channel.send(complete);
+				if(TRACECOMMS) System.err.println(">> "+new String(abLine));
+				return;
+			}
 			output.write(complete);
 			if(bFlush) output.flush();
 			if(TRACECOMMS) System.err.println(">> "+new String(abLine));
@@ -407,6 +788,12 @@ public class ServerConnection implements Server, IRCPrefs
 	{
 		synchronized(this)
 		{
+			if(channel!=null)
+			{
+				// Channel closes itself once queued data has been sent
+				channel.close();
+				return;
+			}
 			if(s==null) return;
 			try
 			{
@@ -448,6 +835,7 @@ public class ServerConnection implements Server, IRCPrefs
 	@Override
 	public synchronized boolean isSecureConnection()
 	{
+		if(channel!=null) return channel.isSecure();
 		return s!=null && (s instanceof SSLSocket);
 	}
 
@@ -492,99 +880,34 @@ public class ServerConnection implements Server, IRCPrefs
 				error=t;
 			}
 
-			try
-			{
-				// Start listening for server send messages
-				ServerFilter sf=new ServerFilter(ServerConnection.this);
-				connections.getPluginContext().requestMessages(
-					ServerSendMsg.class,ServerConnection.this,
-					sf,Msg.PRIORITY_NORMAL);
-
-				// To track nickname send
-				connections.getPluginContext().requestMessages(
-					NumericIRCMsg.class,ServerConnection.this,sf,Msg.PRIORITY_FIRST);
-				connections.getPluginContext().requestMessages(
-					UserSourceIRCMsg.class,ServerConnection.this,sf,Msg.PRIORITY_FIRST); // Includes nick
-				connections.getPluginContext().requestMessages(
-					ServerConnectionFinishedMsg.class,ServerConnection.this,sf,Msg.PRIORITY_FIRST);
-			}
-			catch(Throwable t)
-			{
-				try
-				{
-					s.close();
-				}
-				catch(IOException e1)
-				{
-				}
-				s=null;
-				error=t;
-			}
-
 			// Connection is over, so no need for progress
 			cp=null;
 
-			// Notify that either connection or error occurred
-			synchronized(ServerConnection.this)
-			{
-				ServerConnection.this.notifyAll();
-				if(error!=null) return;
-			}
-
-			// OK we're connected, inform (now guaranteed to send disconnected too)
-			connections.informConnected(ServerConnection.this);
+			if(!connectionOpened()) return;
 
 			try
 			{
 				// Repeatedly read server data
-				byte[] abBuffer=new byte[510];
-				int iPos=0;
+				LineReader reader=new LineReader(input);
 				int delayCount=0;
 				while(true)
 				{
-					// Keep reading bytes until we get a CR or LF
+					// Read the next complete line
 					try
 					{
-						int iByte=input.read();
-						if(iByte==-1 || s==null) break;
+						byte[] abLine=reader.readLine();
+						if(abLine==null || s==null) break;
 						delayCount=0;
 
-						if(iByte==10 || iByte==13)
-						{
-							if(iPos>0)
-							{
-								byte[] abLine=new byte[iPos];
-								System.arraycopy(abBuffer,0,abLine,0,iPos);
-								lastLineTime=System.currentTimeMillis();
-								connections.informLine(ServerConnection.this,abLine);
-								if(TRACECOMMS) System.err.println("<< "+new String(abLine));
-								iPos=0;
-							}
-						}
-						else
-						{
-							if(iPos>=abBuffer.length)
-								throw new NetworkException("IRC server sent a line longer than 510 bytes (rogue server?)");
-							abBuffer[iPos++]=(byte)iByte;
-						}
+						lastLineTime=System.currentTimeMillis();
+						connections.informLine(ServerConnection.this,abLine);
+						if(TRACECOMMS) System.err.println("<< "+new String(abLine));
 					}
 					catch(SocketTimeoutException e)
 					{
 						delayCount++;
-						int target=getServerPingFrequency();
-						if(delayCount==target)
-						{
-							// Hrm, looks like we haven't received anything in 100 seconds
-							// (more than most server ping timeouts). Let's send a TIME,
-							// supposing the server is still around.
-							synchronized(ServerConnection.this)
-							{
-								if(s==null) break;
-								waitingTimes++;
-								internalSend(IRCMsg.constructBytes("TIME"),true);
-							}
-						}
-						else if(delayCount>=target+2)
+						if(s==null) break;
+						if(!keepAlive(delayCount))
 						{
 							// Still not got anything? That's bad. Let's drop the connection
 							throw e;
@@ -598,24 +921,189 @@ public class ServerConnection implements Server, IRCPrefs
 			}
 			finally
 			{
+				connectionClosed();
+			}
+		}
+	}
+
+	/**
+	 * Receives events from the selector engine. These are called on the
+	 * selector thread, in place of the code in {@link ServerThread}.
+	 */
+	private class ChannelHandler implements ChannelConnection.Handler
+	{
+		private ConnectionProgress cp;
+
+		ChannelHandler(Server.ConnectionProgress cp)
+		{
+			this.cp=cp;
+		}
+
+		@Override
+		public void channelProgress(String xml)
+		{
+			ConnectionProgress current=cp;
+			if(current!=null) current.progress(xml);
+		}
+
+		@Override
+		public void channelConnected()
+		{
+			synchronized(ServerConnection.this)
+			{
+				// Wait for beginConnect to finish setting up the channel
+				address=channel.getAddress().getHostAddress();
+			}
+			cp=null;
+			connectionOpened();
+		}
+
+		@Override
+		public void channelLine(byte[] line)
+		{
+			lineReceived(line);
+		}
+
+		@Override
+		public boolean channelQuiet(int tenSecondUnits)
+		{
+			try
+			{
+				return keepAlive(tenSecondUnits);
+			}
+			catch(NetworkException e)
+			{
+				return false;
+			}
+		}
+
+		@Override
+		public void channelClosed(Throwable t, boolean wasConnected)
+		{
+			if(t!=null) error=t;
+			if(wasConnected)
+			{
+				connectionClosed();
+			}
+			else
+			{
+				// Failed to connect
+				cp=null;
 				synchronized(ServerConnection.this)
 				{
-					try
-					{
-						if(s!=null) s.close();
-					}
-					catch(IOException e)
-					{
-					}
-					s=null;
+					if(error==null) error=new NetworkException("Connection cancelled");
+					ServerConnection.this.notifyAll();
 				}
-				connections.informDisconnected(ServerConnection.this,error);
-				connections.getPluginContext().unrequestMessages(
-					null,ServerConnection.this,PluginContext.ALLREQUESTS);
 			}
 		}
 	}
 
+	/**
+	 * Called once the connection to the server is made (or fails). Requests
+	 * messages, wakes anyone waiting in beginConnect, and informs other
+	 * plugins.
+	 * @return True if connected, false if there was an error
+	 */
+	private boolean connectionOpened()
+	{
+		if(error==null)
+		{
+			try
+			{
+				// Start listening for server send messages
+				ServerFilter sf=new ServerFilter(ServerConnection.this);
+				connections.getPluginContext().requestMessages(
+					ServerSendMsg.class,ServerConnection.this,
+					sf,Msg.PRIORITY_NORMAL);
+
+				// To track nickname send
+				connections.getPluginContext().requestMessages(
+					NumericIRCMsg.class,ServerConnection.this,sf,Msg.PRIORITY_FIRST);
+				connections.getPluginContext().requestMessages(
+					UserSourceIRCMsg.class,ServerConnection.this,sf,Msg.PRIORITY_FIRST); // Includes nick
+				connections.getPluginContext().requestMessages(
+					ServerConnectionFinishedMsg.class,ServerConnection.this,sf,Msg.PRIORITY_FIRST);
+			}
+			catch(Throwable t)
+			{
+				closeConnection();
+				error=t;
+			}
+		}
+
+		// Notify that either connection or error occurred
+		synchronized(this)
+		{
+			notifyAll();
+			if(error!=null) return false;
+		}
+
+		// OK we're connected, inform (now guaranteed to send disconnected too)
+		connections.informConnected(this);
+		return true;
+	}
+
+	/**
+	 * Called when a line is received from the server.
+	 * @param line Line data not including CR/LF
+	 */
+	private void lineReceived(byte[] line)
+	{
+		lastLineTime=System.currentTimeMillis();
+		connections.informLine(this,line);
+		if(TRACECOMMS) System.err.println("<< "+new String(line));
+	}
+
+	/**
+	 * Called every 10 seconds while nothing is being received from the server.
+	 * @param delayCount Number of 10-second periods without data
+	 * @return False if the connection should be dropped
+	 * @throws NetworkException If there is an error sending
+	 */
+	private boolean keepAlive(int delayCount) throws NetworkException
+	{
+		int target=getServerPingFrequency();
+		if(delayCount==target)
+		{
+			// Hrm, looks like we haven't received anything in 100 seconds
+			// (more than most server ping timeouts). Let's send a TIME,
+			// supposing the server is still around.
+			synchronized(this)
+			{
+				if(!isConnected()) return true;
+				waitingTimes++;
+				internalSend(IRCMsg.constructBytes("TIME"),true);
+			}
+		}
+		return delayCount<target+2;
+	}
+
+	/**
+	 * Called when the connection ends, after it was successfully opened.
+	 */
+	private void connectionClosed()
+	{
+		closeConnection();
+		connections.informDisconnected(this,error);
+		connections.getPluginContext().unrequestMessages(
+			null,this,PluginContext.ALLREQUESTS);
+	}
+
+	/**
+	 * Closes the socket immediately, if there is one.
+	 */
+	private synchronized void closeConnection()
+	{
+		try
+		{
+			if(s!=null) s.close();
+		}
+		catch(IOException e)
+		{
+		}
+		s=null;
+	}
+
 	@Override
 	public PreferencesGroup getPreferences()
 	{
@@ -888,7 +1376,7 @@ public class ServerConnection implements Server, IRCPrefs
 	}
 
 	/**
-	 * Recursively searches for server with the given suffix.
+	 * Searches for server with the given suffix.
 	 * @param parent Parent (start by calling with 'servers' root)
 	 * @param suffix Suffix to match (not case-sensitive)
 	 * @param exclude Exclude this group from consideration
@@ -897,25 +1385,25 @@ public class ServerConnection implements Server, IRCPrefs
 	private static PreferencesGroup findMatchingServer(
 		PreferencesGroup parent,String suffix,PreferencesGroup exclude)
 	{
-		// If it isn't the exclude one, and matches, and isn't in a network, and
-		// hasn't refused the network
-		if(parent != exclude &&
-			parent.exists(PREF_HOST) &&
-			parent.get(PREF_HOST).toLowerCase().endsWith(suffix.toLowerCase()) &&
-			parent.getAnonHierarchical(PREF_NETWORK, null) == null &&
-			parent.get(PREF_REFUSEDNETWORK, "no").equals("no"))
+		// Try parent, then children (in order)
+		List<PreferencesGroup> candidates = new LinkedList<PreferencesGroup>();
+		if(parent.exists(PREF_HOST) &&
+			parent.get(PREF_HOST).toLowerCase().endsWith(suffix.toLowerCase()))
 		{
-			return parent;
+			candidates.add(parent);
 		}
+		candidates.addAll(Arrays.asList(parent.findAnonGroups(
+			PREF_HOST, suffix, PreferencesGroup.MATCH_ENDSWITH)));
 
-		// Try children too
-		PreferencesGroup[] children = parent.getAnon();
-		for(int i=0; i<children.length; i++)
+		// If it isn't the exclude one, and isn't in a network, and hasn't refused
+		// the network
+		for(PreferencesGroup candidate : candidates)
 		{
-			PreferencesGroup found = findMatchingServer(children[i], suffix, exclude);
-			if(found != null)
+			if(candidate != exclude &&
+				candidate.getAnonHierarchical(PREF_NETWORK, null) == null &&
+				candidate.get(PREF_REFUSEDNETWORK, "no").equals("no"))
 			{
-				return found;
+				return candidate;
 			}
 		}
 
@@ -923,7 +1411,7 @@ public class ServerConnection implements Server, IRCPrefs
 	}
 
 	/**
-	 * Recursively searches for a network that matches the given host.
+	 * Searches for a network that matches the given host.
 	 * @param pgParent Parent start by calling with 'servers' root)
 	 * @param sHost Hostname to match (not case-sensitive)
 	 * @return Prefs for matching network, or null if none
@@ -936,13 +1424,10 @@ public class ServerConnection implements Server, IRCPrefs
 			pgParent.get(PREF_NETWORKSUFFIX,"!fail").toLowerCase()))
 			return pgParent;
 
-		// Otherwise try children
-		PreferencesGroup[] apgChildren=pgParent.getAnon();
-		for(int i=0;i<apgChildren.length;i++)
-		{
-			PreferencesGroup pgFound=findMatchingNetwork(apgChildren[i],sHost);
-			if(pgFound!=null) return pgFound;
-		}
+		// Otherwise use the first matching child
+		PreferencesGroup[] apgFound=pgParent.findAnonGroups(
+			PREF_NETWORKSUFFIX,sHost,PreferencesGroup.MATCH_SUFFIXOF);
+		if(apgFound.length>0) return apgFound[0];
 
 		// Nope, wasn't herre
 		return null;
@@ -1292,6 +1777,7 @@ public class ServerConnection implements Server, IRCPrefs
 				claimedHost = context.getSingle(IRCEncoding.class).
 					processEscapes(claimedHost, false, false);
 			  setReportedHost(claimedHost);
+			  buffer.updateRate();
 			}
 		  break;
 		case NumericIRCMsg.RPL_ENDOFMOTD:
@@ -1663,6 +2149,7 @@ public class ServerConnection implements Server, IRCPrefs
 	@Override
 	public InetAddress getLocalAddress()
 	{
+		if(channel!=null) return channel.getLocalAddress();
 		return s.getLocalAddress();
 	}
 
@@ -1680,6 +2167,35 @@ public class ServerConnection implements Server, IRCPrefs
 		return 3;
 	}
 
+	/**
+	 * @param command Command
+	 * @return Maximum number of targets the server accepts for the command
+	 *   (from ISUPPORT TARGMAX), or Integer.MAX_VALUE if no limit is given
+	 */
+	private int getMaxTargets(String command)
+	{
+		String targMax=getISupport("TARGMAX");
+		if(targMax!=null)
+		{
+			for(String entry : targMax.split(","))
+			{
+				int colon=entry.indexOf(':');
+				if(colon!=-1 && entry.substring(0,colon).equalsIgnoreCase(command) &&
+					colon<entry.length()-1)
+				{
+					try
+					{
+						return Integer.parseInt(entry.substring(colon+1));
+					}
+					catch(NumberFormatException nfe)
+					{
+					}
+				}
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
 	@Override
 	public boolean wasQuitRequested()
 	{
@@ -0,0 +1,151 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import com.leafdigital.irc.api.IRCUserAddress;
+
+/**
+ * A nick!user@host mask prepared for repeated matching. Matches the same
+ * addresses as {@link IRCUserAddress#matches(IRCUserAddress)}: * stands for
+ * any sequence of characters, everything else must match exactly
+ * (including case).
+ */
+class UserMask
+{
+	private IRCUserAddress address;
+	private Part nick,user,host;
+
+	/** One part of a mask */
+	static class Part
+	{
+		/** Literal text between * wildcards (just one if there are none) */
+		private String[] segments;
+
+		/** Total length of literal text */
+		private int literalLength;
+
+		/**
+		 * @param pattern Pattern with * wildcards
+		 */
+		Part(String pattern)
+		{
+			segments=pattern.split("\\*",-1);
+			for(int i=0;i<segments.length;i++)
+			{
+				literalLength+=segments[i].length();
+			}
+		}
+
+		/** @return Text that matching strings must start with */
+		String getPrefix()
+		{
+			return segments[0];
+		}
+
+		/** @return Text that matching strings must end with */
+		String getSuffix()
+		{
+			return segments[segments.length-1];
+		}
+
+		/**
+		 * @param text Text
+		 * @return True if text matches this part
+		 */
+		boolean matches(String text)
+		{
+			if(segments.length==1)
+			{
+				return text.equals(segments[0]);
+			}
+			if(text.length()<literalLength)
+			{
+				return false;
+			}
+			String prefix=segments[0],suffix=segments[segments.length-1];
+			if(!text.startsWith(prefix) || !text.endsWith(suffix))
+			{
+				return false;
+			}
+
+			// Find each middle segment as early as possible
+			int pos=prefix.length(),end=text.length()-suffix.length();
+			for(int i=1;i<segments.length-1;i++)
+			{
+				String segment=segments[i];
+				if(segment.length()==0)
+				{
+					continue;
+				}
+				int found=text.indexOf(segment,pos);
+				if(found==-1 || found+segment.length()>end)
+				{
+					return false;
+				}
+				pos=found+segment.length();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @param address Mask
+	 */
+	UserMask(IRCUserAddress address)
+	{
+		this.address=address;
+		nick=new Part(address.getNick());
+		user=new Part(address.getUser());
+		host=new Part(address.getHost());
+	}
+
+	/** @return Mask */
+	IRCUserAddress getAddress()
+	{
+		return address;
+	}
+
+	/** @return Nick part of mask */
+	Part getNick()
+	{
+		return nick;
+	}
+
+	/** @return User part of mask */
+	Part getUser()
+	{
+		return user;
+	}
+
+	/** @return Host part of mask */
+	Part getHost()
+	{
+		return host;
+	}
+
+	/**
+	 * @param ua User address
+	 * @return True if the address matches this mask
+	 */
+	boolean matches(IRCUserAddress ua)
+	{
+		return host.matches(ua.getHost()) && nick.matches(ua.getNick()) &&
+			user.matches(ua.getUser());
+	}
+}
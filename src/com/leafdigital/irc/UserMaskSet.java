@@ -0,0 +1,283 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.irc;
+
+import java.util.*;
+
+import com.leafdigital.irc.api.IRCUserAddress;
+
+/**
+ * A set of user masks, each with a value, that can quickly find the masks
+ * matching an address. Each mask is indexed by its longest fixed text at the
+ * start or end of the nick, username or host (as in *!*@*.example.com).
+ * Finding matches walks those indexes along the address, so the
+ * time taken depends on the address length and the number of masks that
+ * nearly match, not on the total number of masks.
+ * <p>
+ * Not synchronized; callers must synchronize if the set changes while it is
+ * being searched.
+ * @param <T> Type of value
+ */
+class UserMaskSet<T>
+{
+	private final static int
+		INDEX_HOSTSUFFIX=0,
+		INDEX_HOSTPREFIX=1,
+		INDEX_NICKPREFIX=2,
+		INDEX_NICKSUFFIX=3,
+		INDEX_USERPREFIX=4,
+		INDEX_USERSUFFIX=5,
+		INDEX_COUNT=6;
+
+	/** True for indexes that run from the end of the text */
+	private final static boolean[] INDEX_REVERSE={true,false,false,true,false,true};
+
+	/** A mask in the set */
+	private static class Entry<T>
+	{
+		private UserMask mask;
+		private T value;
+		/** Used to return matches in the order they were added */
+		private long order;
+		/** Index node holding this entry */
+		private Node<T> node;
+	}
+
+	/** A node in an index, holding entries whose fixed text ends here */
+	private static class Node<T>
+	{
+		private char[] keys=new char[0];
+		private List<Node<T>> children=new ArrayList<Node<T>>(1);
+		private List<Entry<T>> entries=new LinkedList<Entry<T>>();
+
+		/**
+		 * @param c Character
+		 * @param create True to create the child if it doesn't exist
+		 * @return Child node, or null if none
+		 */
+		Node<T> getChild(char c,boolean create)
+		{
+			for(int i=0;i<keys.length;i++)
+			{
+				if(keys[i]==c)
+				{
+					return children.get(i);
+				}
+			}
+			if(!create)
+			{
+				return null;
+			}
+			char[] newKeys=new char[keys.length+1];
+			System.arraycopy(keys,0,newKeys,0,keys.length);
+			newKeys[keys.length]=c;
+			keys=newKeys;
+			Node<T> child=new Node<T>();
+			children.add(child);
+			return child;
+		}
+	}
+
+	/** Root of each index; masks with no fixed text are in the host suffix root */
+	private List<Node<T>> roots=new ArrayList<Node<T>>(INDEX_COUNT);
+
+	/** Entries by mask */
+	private Map<IRCUserAddress, Entry<T>> entries=new HashMap<IRCUserAddress, Entry<T>>();
+
+	private long nextOrder;
+
+	UserMaskSet()
+	{
+		for(int i=0;i<INDEX_COUNT;i++)
+		{
+			roots.add(new Node<T>());
+		}
+	}
+
+	/**
+	 * Adds a mask, replacing any existing equal mask.
+	 * @param mask Mask
+	 * @param value Value
+	 */
+	void add(IRCUserAddress mask,T value)
+	{
+		remove(mask);
+
+		Entry<T> entry=new Entry<T>();
+		entry.mask=new UserMask(mask);
+		entry.value=value;
+		entry.order=nextOrder++;
+
+		// Pick the longest fixed text to index on
+		String[] keys=
+		{
+			entry.mask.getHost().getSuffix(),
+			entry.mask.getHost().getPrefix(),
+			entry.mask.getNick().getPrefix(),
+			entry.mask.getNick().getSuffix(),
+			entry.mask.getUser().getPrefix(),
+			entry.mask.getUser().getSuffix()
+		};
+		int best=INDEX_HOSTSUFFIX;
+		for(int i=1;i<INDEX_COUNT;i++)
+		{
+			if(keys[i].length()>keys[best].length())
+			{
+				best=i;
+			}
+		}
+
+		Node<T> node=roots.get(best);
+		String key=keys[best];
+		for(int i=0;i<key.length();i++)
+		{
+			node=node.getChild(
+				key.charAt(INDEX_REVERSE[best] ? key.length()-1-i : i),true);
+		}
+		node.entries.add(entry);
+		entry.node=node;
+		entries.put(mask,entry);
+	}
+
+	/**
+	 * @param mask Mask
+	 * @return True if the mask was in the set and has been removed
+	 */
+	boolean remove(IRCUserAddress mask)
+	{
+		Entry<T> entry=entries.remove(mask);
+		if(entry==null)
+		{
+			return false;
+		}
+		entry.node.entries.remove(entry);
+		return true;
+	}
+
+	/**
+	 * @param mask Mask
+	 * @return Value for mask, or null if not in set
+	 */
+	T get(IRCUserAddress mask)
+	{
+		Entry<T> entry=entries.get(mask);
+		return entry==null ? null : entry.value;
+	}
+
+	/** @return Number of masks */
+	int size()
+	{
+		return entries.size();
+	}
+
+	/** @return All masks, in no particular order */
+	Set<IRCUserAddress> getMasks()
+	{
+		return entries.keySet();
+	}
+
+	/**
+	 * @param ua User address
+	 * @return Value of the earliest-added mask that matches, or null if none
+	 */
+	T findFirst(IRCUserAddress ua)
+	{
+		Entry<T> first=null;
+		for(Entry<T> entry : findEntries(ua))
+		{
+			if(first==null || entry.order<first.order)
+			{
+				first=entry;
+			}
+		}
+		return first==null ? null : first.value;
+	}
+
+	/**
+	 * @param ua User address
+	 * @return Values of all matching masks, in the order they were added
+	 */
+	List<T> findAll(IRCUserAddress ua)
+	{
+		List<Entry<T>> found=findEntries(ua);
+		Collections.sort(found,new Comparator<Entry<T>>()
+		{
+			@Override
+			public int compare(Entry<T> a,Entry<T> b)
+			{
+				return a.order<b.order ? -1 : a.order>b.order ? 1 : 0;
+			}
+		});
+		List<T> result=new ArrayList<T>(found.size());
+		for(Entry<T> entry : found)
+		{
+			result.add(entry.value);
+		}
+		return result;
+	}
+
+	/**
+	 * @param ua User address
+	 * @return All matching entries
+	 */
+	private List<Entry<T>> findEntries(IRCUserAddress ua)
+	{
+		List<Entry<T>> found=new LinkedList<Entry<T>>();
+		if(entries.isEmpty())
+		{
+			return found;
+		}
+		for(int i=0;i<INDEX_COUNT;i++)
+		{
+			String text=i<=INDEX_HOSTPREFIX ? ua.getHost()
+				: i<=INDEX_NICKSUFFIX ? ua.getNick() : ua.getUser();
+			findEntries(ua,roots.get(i),text,INDEX_REVERSE[i],found);
+		}
+		return found;
+	}
+
+	/**
+	 * Walks one index along part of the address, checking each entry found on
+	 * the way.
+	 * @param ua User address
+	 * @param node Root of index
+	 * @param text Part of address that the index uses
+	 * @param reverse True to walk from the end of the text
+	 * @param found Receives matching entries
+	 */
+	private void findEntries(IRCUserAddress ua,Node<T> node,String text,
+		boolean reverse,List<Entry<T>> found)
+	{
+		for(int i=0;node!=null;i++)
+		{
+			for(Entry<T> entry : node.entries)
+			{
+				if(entry.mask.matches(ua))
+				{
+					found.add(entry);
+				}
+			}
+			if(i==text.length())
+			{
+				break;
+			}
+			node=node.getChild(text.charAt(reverse ? text.length()-1-i : i),false);
+		}
+	}
+}
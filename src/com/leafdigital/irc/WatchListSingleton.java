@@ -90,9 +90,9 @@ public class WatchListSingleton implements WatchList
 		/** Set of IRCUserAddress that needs ISON */
 		Set<IRCUserAddress> ison = new HashSet<IRCUserAddress>();
 
-		/** Map of all lower-case nicks that are being watched in some manner => IRCUserAddress mask */
-		Map<String, IRCUserAddress> actualNicks =
-			new HashMap<String, IRCUserAddress>();
+		/** Map of all lower-case nicks that are being watched in some manner => mask */
+		Map<String, UserMask> actualNicks =
+			new HashMap<String, UserMask>();
 
 		/** Time at which we last did ISON */
 		long lastIsonTime;
@@ -144,7 +144,7 @@ public class WatchListSingleton implements WatchList
 				{
 					ison.add(mask);
 				}
-				actualNicks.put(mask.getNick().toLowerCase(),mask);
+				actualNicks.put(mask.getNick().toLowerCase(),new UserMask(mask));
 			}
 			if(watchCommand.length()>5)
 			{
@@ -198,7 +198,7 @@ public class WatchListSingleton implements WatchList
 				s.sendLine(IRCMsg.constructBytes(isonCommand)); // So we get immediate notification
 				pendingISON.addLast(isonCommand);
 			}
-			actualNicks.put(mask.getNick().toLowerCase(),mask);
+			actualNicks.put(mask.getNick().toLowerCase(),new UserMask(mask));
 		}
 
 		void removePerm(final IRCUserAddress mask)
@@ -399,8 +399,8 @@ public class WatchListSingleton implements WatchList
 			}
 			// Only send it if they are in the watch list/ISON list
 			String lcNick=ua.getNick().toLowerCase();
-			IRCUserAddress mask=actualNicks.get(lcNick);
-			if(mask!=null && ua.matches(mask))
+			UserMask mask=actualNicks.get(lcNick);
+			if(mask!=null && mask.matches(ua))
 				markOnline(ua);
 		}
 
@@ -425,8 +425,8 @@ public class WatchListSingleton implements WatchList
 			}
 			// Only send it if we previously thought they were online
 			String lcNick=ua.getNick().toLowerCase();
-			IRCUserAddress mask=actualNicks.get(lcNick);
-			if(mask!=null && ua.matches(mask))
+			UserMask mask=actualNicks.get(lcNick);
+			if(mask!=null && mask.matches(ua))
 				markOffline(ua);
 		}
 
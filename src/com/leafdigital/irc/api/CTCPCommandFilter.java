@@ -21,10 +21,29 @@ package com.leafdigital.irc.api;
 import leafchat.core.api.*;
 
 /** Filters messages based on their source server and channel */
-public class CTCPCommandFilter implements MessageFilter
+public class CTCPCommandFilter implements IndexedFilter
 {
 	private String command;
 
+	/** Index of CTCP messages by CTCP command (not case-sensitive) */
+	public final static FilterIndex INDEX=new FilterIndex("ctcp")
+	{
+		@Override
+		public Object getKey(Msg m)
+		{
+			String command;
+			if(m instanceof ChanCTCPRequestIRCMsg)
+				command=((ChanCTCPRequestIRCMsg)m).getCommand();
+			else if(m instanceof UserCTCPRequestIRCMsg)
+				command=((UserCTCPRequestIRCMsg)m).getCommand();
+			else if(m instanceof UserCTCPResponseIRCMsg)
+				command=((UserCTCPResponseIRCMsg)m).getCommand();
+			else
+				return null;
+			return caseInsensitiveKey(command);
+		}
+	};
+
 	/**
    * @param command CTCP command (not case-sensitive)
 	 */
@@ -54,6 +73,18 @@ public class CTCPCommandFilter implements MessageFilter
 		}
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		return INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return FilterIndex.caseInsensitiveKey(command);
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info=new FilterInfo(CTCPCommandFilter.class,"CTCP command")
 	{
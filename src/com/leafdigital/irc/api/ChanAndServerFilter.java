@@ -18,7 +18,7 @@ Copyright 2011 Samuel Marshall.
 */
 package com.leafdigital.irc.api;
 
-import leafchat.core.api.Msg;
+import leafchat.core.api.*;
 
 /** Filters messages based on their source server and channel */
 public class ChanAndServerFilter extends ServerFilter
@@ -42,4 +42,17 @@ public class ChanAndServerFilter extends ServerFilter
 		if(!(m instanceof ChanIRCMsg)) return false;
 		return ((ChanIRCMsg)m).getChannel().equalsIgnoreCase(chan);
 	}
+
+	@Override
+	public FilterIndex getIndex()
+	{
+		// Channel is more selective than server
+		return ChanFilter.INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return FilterIndex.caseInsensitiveKey(chan);
+	}
 }
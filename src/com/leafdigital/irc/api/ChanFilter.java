@@ -21,10 +21,21 @@ package com.leafdigital.irc.api;
 import leafchat.core.api.*;
 
 /** Filters messages based on their source server and channel */
-public class ChanFilter implements MessageFilter
+public class ChanFilter implements IndexedFilter
 {
 	private String chan;
 
+	/** Index of messages by channel (not case-sensitive) */
+	public final static FilterIndex INDEX=new FilterIndex("channel")
+	{
+		@Override
+		public Object getKey(Msg m)
+		{
+			if(!(m instanceof ChanIRCMsg)) return null;
+			return caseInsensitiveKey(((ChanIRCMsg)m).getChannel());
+		}
+	};
+
 	/**
    * @param chan Channel messages must be intended for
 	 */
@@ -40,6 +51,18 @@ public class ChanFilter implements MessageFilter
 		return ((ChanIRCMsg)m).getChannel().equalsIgnoreCase(chan);
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		return INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return FilterIndex.caseInsensitiveKey(chan);
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info = new FilterInfo(ChanFilter.class,"Channel")
 	{
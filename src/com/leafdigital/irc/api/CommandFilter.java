@@ -21,10 +21,21 @@ package com.leafdigital.irc.api;
 import leafchat.core.api.*;
 
 /** Filters user command messages based on the command */
-public class CommandFilter implements MessageFilter
+public class CommandFilter implements IndexedFilter
 {
 	private String command;
 
+	/** Index of user command messages by command (not case-sensitive) */
+	public final static FilterIndex INDEX=new FilterIndex("command")
+	{
+		@Override
+		public Object getKey(Msg m)
+		{
+			if(!(m instanceof UserCommandMsg)) return null;
+			return caseInsensitiveKey(((UserCommandMsg)m).getCommand());
+		}
+	};
+
 	/**
 	 * @param command Desired command (not case-sensitive)
 	 */
@@ -40,6 +51,18 @@ public class CommandFilter implements MessageFilter
 		return command.equalsIgnoreCase(((UserCommandMsg)m).getCommand());
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		return INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return FilterIndex.caseInsensitiveKey(command);
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info=new FilterInfo(CommandFilter.class)
 	{
@@ -42,6 +42,20 @@ public class IRCMsg extends Msg
 	/** Whether or not last param was a postfix type */
 	private boolean includesPostfix;
 
+	/**
+	 * If the message was initialised from positions within the line, this
+	 * holds start and end of prefix (-1 if none), start and end of command,
+	 * then start and end of each parameter. The byte arrays above are only
+	 * created when somebody asks for them. Null if not used.
+	 */
+	private int[] bounds = null;
+	/** Number of parameters in bounds */
+	private int paramCount;
+	/** Parameters created so far from bounds (null until first needed) */
+	private byte[][] paramSlices;
+	/** Cached prefix and command strings */
+	private String prefixString, commandString;
+
 	/** Encoding set by user for this type of message */
 	private EncodingInfo encoding;
 
@@ -67,6 +81,37 @@ public class IRCMsg extends Msg
 		}
 	}
 
+	/**
+	 * Converts part of an array using ISO 8859-1.
+	 * @param data Bytes
+	 * @param start Start position
+	 * @param end End position (exclusive)
+	 * @return String
+	 */
+	private static String convertISO(byte[] data, int start, int end)
+	{
+		try
+		{
+			return new String(data, start, end-start, "ISO-8859-1");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("Missing basic character encodings",e);
+		}
+	}
+
+	/**
+	 * @param start Start position
+	 * @param end End position (exclusive)
+	 * @return Copy of that part of the line
+	 */
+	private byte[] slice(int start, int end)
+	{
+		byte[] result = new byte[end-start];
+		System.arraycopy(line, start, result, 0, result.length);
+		return result;
+	}
+
 	/**
 	 * @param data Bytes from this message
 	 * @return Message converted into a string as per user's encoding preferences
@@ -193,6 +238,11 @@ public class IRCMsg extends Msg
 		this.command = base.command;
 		this.params = base.params;
 		this.includesPostfix = base.includesPostfix;
+		this.bounds = base.bounds;
+		this.paramCount = base.paramCount;
+		this.paramSlices = base.paramSlices;
+		this.prefixString = base.prefixString;
+		this.commandString = base.commandString;
 		setSequence(base);
 	}
 
@@ -214,6 +264,37 @@ public class IRCMsg extends Msg
 		this.command = command;
 		this.params = params;
 		this.includesPostfix = includesPostfix;
+		this.bounds = null;
+		this.paramSlices = null;
+		this.prefixString = null;
+		this.commandString = null;
+	}
+
+	/**
+	 * Init with positions of each part within the line. Parts are only copied
+	 * out of the line if they are requested.
+	 * @param s Server
+	 * @param line Original line
+	 * @param bounds Start and end (exclusive) of prefix (both -1 if none),
+	 *   then of command, then of each parameter. The array may be longer
+	 *   than needed, and must not be changed afterwards
+	 * @param paramCount Number of parameters in bounds
+	 * @param includesPostfix Whether or not the last param was a postfix type
+	 */
+	public void init(Server s,
+		byte[] line, int[] bounds, int paramCount, boolean includesPostfix)
+	{
+		this.s = s;
+		this.line = line;
+		this.bounds = bounds;
+		this.paramCount = paramCount;
+		this.includesPostfix = includesPostfix;
+		this.prefix = null;
+		this.command = null;
+		this.params = null;
+		this.paramSlices = null;
+		this.prefixString = null;
+		this.commandString = null;
 	}
 
 	/** @return Server that sent the message */
@@ -223,23 +304,118 @@ public class IRCMsg extends Msg
 	/** @return Entire line as string */
 	public String getLineISO() { return convertISO(line); }
 	/** @return Prefix (may be null) */
-	public byte[] getPrefixBytes() { return prefix; }
+	public byte[] getPrefixBytes()
+	{
+		if(prefix == null && bounds != null && bounds[0] != -1)
+		{
+			prefix = slice(bounds[0], bounds[1]);
+		}
+		return prefix;
+	}
 	/** @return Prefix (may be null) */
-	public String getPrefix() { return convertISO(prefix); }
+	public String getPrefix()
+	{
+		if(prefixString == null)
+		{
+			if(bounds != null)
+			{
+				if(bounds[0] == -1)
+				{
+					return null;
+				}
+				prefixString = convertISO(line, bounds[0], bounds[1]);
+			}
+			else
+			{
+				prefixString = convertISO(prefix);
+			}
+		}
+		return prefixString;
+	}
 	/** @return Command */
-	public byte[] getCommandBytes() { return command; }
+	public byte[] getCommandBytes()
+	{
+		if(command == null && bounds != null)
+		{
+			command = slice(bounds[2], bounds[3]);
+		}
+		return command;
+	}
 	/** @return Command */
-	public String getCommand() { return convertISO(command); }
+	public String getCommand()
+	{
+		if(commandString == null)
+		{
+			commandString = bounds != null
+				? convertISO(line, bounds[2], bounds[3]) : convertISO(command);
+		}
+		return commandString;
+	}
 	/** @return Parameters */
-	public byte[][] getParams() { return params; }
+	public byte[][] getParams()
+	{
+		if(params == null)
+		{
+			byte[][] all = new byte[paramCount][];
+			for(int i=0; i<paramCount; i++)
+			{
+				all[i] = getParamBytes(i);
+			}
+			params = all;
+		}
+		return params;
+	}
+
+	/** @return Number of parameters */
+	public int getParamCount()
+	{
+		return bounds != null ? paramCount : params.length;
+	}
+
+	/**
+	 * @param index Parameter index
+	 * @return Parameter data
+	 * @throws ArrayIndexOutOfBoundsException If there aren't that many
+	 */
+	public byte[] getParamBytes(int index)
+	{
+		if(params != null)
+		{
+			return params[index];
+		}
+		if(index < 0 || index >= paramCount)
+		{
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		byte[][] slices = paramSlices;
+		if(slices == null)
+		{
+			slices = new byte[paramCount][];
+			paramSlices = slices;
+		}
+		if(slices[index] == null)
+		{
+			slices[index] = slice(bounds[4 + index*2], bounds[5 + index*2]);
+		}
+		return slices[index];
+	}
 
 	/**
 	 * @param index Parameter index
 	 * @return ISO-converted string
+	 * @throws ArrayIndexOutOfBoundsException If there aren't that many
 	 */
 	public String getParamISO(int index)
 	{
-		return convertISO(getParams()[index]);
+		if(params != null)
+		{
+			return convertISO(params[index]);
+		}
+		if(index < 0 || index >= paramCount)
+		{
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		return convertISO(line, bounds[4 + index*2], bounds[5 + index*2]);
 	}
 
 	/**
@@ -272,6 +448,7 @@ public class IRCMsg extends Msg
 			+ "  Line: "+convertISO(line) + "\n"
 			+ "  Prefix: "+getPrefix() + "\n"
 			+ "  Command: "+getCommand() + "\n";
+		byte[][] params = getParams();
 		for(int i=0;i<params.length;i++)
 		{
 			value+="  Param: "+convertISO(params[i])+
@@ -187,6 +187,24 @@ public interface IRCPrefs
 	/** Default frequent ping */
 	public static final String PREFDEFAULT_FREQUENTPINGS="f";
 
+	/** Run all server connections from a single network thread */
+	public static final String PREF_SELECTORENGINE="selector-engine";
+	/** Default selector engine */
+	public static final String PREFDEFAULT_SELECTORENGINE="f";
+
+	/**
+	 * Milliseconds of send allowance used by a typical line (server or network;
+	 * longer lines use proportionally more)
+	 */
+	public static final String PREF_SENDDELAY="send-line-delay";
+	/** Default send line delay */
+	public static final String PREFDEFAULT_SENDDELAY="2000";
+
+	/** Number of typical lines that can be sent at once (server or network) */
+	public static final String PREF_SENDBURST="send-burst";
+	/** Default send burst */
+	public static final String PREFDEFAULT_SENDBURST="5";
+
 	/** Auto-reconnect */
 	public static final String PREF_AUTORECONNECT = "auto-reconnect";
 	/** Default auto-reconnect */
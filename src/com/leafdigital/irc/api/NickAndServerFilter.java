@@ -43,6 +43,19 @@ public class NickAndServerFilter extends ServerFilter
 		return ((UserSourceIRCMsg)m).getSourceUser().getNick().equalsIgnoreCase(nick);
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		// Nickname is more selective than server
+		return NickFilter.INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return FilterIndex.caseInsensitiveKey(nick);
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info=new FilterInfo(NickAndServerFilter.class)
 	{
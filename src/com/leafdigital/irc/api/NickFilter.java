@@ -22,10 +22,25 @@ import util.StringUtils;
 import leafchat.core.api.*;
 
 /** Filters messages based on their source user nickname */
-public class NickFilter implements MessageFilter
+public class NickFilter implements IndexedFilter
 {
 	private String nick;
 
+	/** Index of messages by source nickname (not case-sensitive) */
+	public final static FilterIndex INDEX=new FilterIndex("nick")
+	{
+		@Override
+		public Object getKey(Msg m)
+		{
+			if(m instanceof UserSourceIRCMsg)
+				return caseInsensitiveKey(((UserSourceIRCMsg)m).getSourceUser().getNick());
+			else if(m instanceof WatchMsg)
+				return caseInsensitiveKey(((WatchMsg)m).getNick());
+			else
+				return null;
+		}
+	};
+
 	/**
 	 * @param nick Nickname (not case-sensitive) from which messages are accepted;
 	 *   may include wildcard *
@@ -49,6 +64,19 @@ public class NickFilter implements MessageFilter
 			StringUtils.matchWildcard(	nick,thisNick.toLowerCase());
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		// Wildcard filters can't be indexed
+		return nick.indexOf('*')==-1 ? INDEX : null;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return FilterIndex.caseInsensitiveKey(nick);
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info=new FilterInfo(NickFilter.class,"Nickname")
 	{
@@ -21,10 +21,21 @@ package com.leafdigital.irc.api;
 import leafchat.core.api.*;
 
 /** Filters messages based on their server numeric */
-public class NumericFilter implements MessageFilter
+public class NumericFilter implements IndexedFilter
 {
 	private int numeric;
 
+	/** Index of messages by numeric */
+	public final static FilterIndex INDEX=new FilterIndex("numeric")
+	{
+		@Override
+		public Object getKey(Msg m)
+		{
+			if(!(m instanceof NumericIRCMsg)) return null;
+			return ((NumericIRCMsg)m).getNumeric();
+		}
+	};
+
 	/**
    * @param numeric Numeric of interest
 	 */
@@ -40,6 +51,18 @@ public class NumericFilter implements MessageFilter
 		return ((NumericIRCMsg)m).getNumeric()==numeric;
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		return INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return numeric;
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info=new FilterInfo(NumericFilter.class,"Numeric")
 	{
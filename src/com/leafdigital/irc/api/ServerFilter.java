@@ -21,10 +21,28 @@ package com.leafdigital.irc.api;
 import leafchat.core.api.*;
 
 /** Filters messages based on their source server */
-public class ServerFilter implements MessageFilter
+public class ServerFilter implements IndexedFilter
 {
 	private Server s;
 
+	/** Index of messages by server */
+	public final static FilterIndex INDEX=new FilterIndex("server")
+	{
+		@Override
+		public Object getKey(Msg m)
+		{
+			if(m instanceof ServerMsg)
+			{
+				return ((ServerMsg)m).getServer();
+			}
+			else if(m instanceof IRCMsg)
+			{
+				return ((IRCMsg)m).getServer();
+			}
+			return null;
+		}
+	};
+
 	/**
 	 * @param s Filter accepts all messages from this server
 	 */
@@ -47,6 +65,18 @@ public class ServerFilter implements MessageFilter
 		return false;
 	}
 
+	@Override
+	public FilterIndex getIndex()
+	{
+		return INDEX;
+	}
+
+	@Override
+	public Object getIndexKey()
+	{
+		return s;
+	}
+
 	/** Scripting filter information. */
 	public static FilterInfo info=new FilterInfo(ServerFilter.class)
 	{
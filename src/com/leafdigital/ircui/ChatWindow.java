@@ -379,6 +379,55 @@ public abstract class ChatWindow implements MessageDisplay,TextView.MenuHandler
 	private final static Pattern PATTERN_URL=
 		Pattern.compile("(\\b)((http(s)?://[^<]*?|www\\.[a-zA-Z0-9-]+\\.[a-zA-Z0-9.-]+(?:/[^<]*?)?))(<|, | |\\.$|\\. |\\)|$)");
 
+	/**
+	 * Wraps URLs in text with &lt;url&gt; tags.
+	 * @param safe Text (XML) with colours already processed
+	 * @return Text with url tags added
+	 */
+	static String linkURLs(String safe)
+	{
+		StringBuffer output=new StringBuffer();
+		Matcher m=PATTERN_URL.matcher(safe);
+		while(m.find())
+		{
+			String replace=m.group(1)+"<url>"+m.group(2)+"</url>"+m.group(5);
+			try
+			{
+				// Same logic used in TextViewImp to allow urls without http
+				String url=m.group(2);
+				if(!(url.startsWith("http://") || url.startsWith("https://")))
+					url="http://"+url;
+				new URL(url);
+			}
+			catch(MalformedURLException e)
+			{
+				// Don't put the url tags in
+				replace=m.group(1)+m.group(2)+m.group(5);
+			}
+			// Replace \ with \\.
+			for(int pos=0;;)
+			{
+				int backslash=replace.indexOf('\\',pos);
+				if(backslash==-1) break;
+				replace=replace.substring(0,backslash)+"\\\\"+replace.substring(backslash+1);
+				pos=backslash+2;
+			}
+			// Replace $ with \$. I can't get it to do this with a regexp replace
+			for(int pos=0;;)
+			{
+				int dollar=replace.indexOf('$',pos);
+				if(dollar==-1) break;
+				replace=replace.substring(0,dollar)+"\\$"+replace.substring(dollar+1);
+				pos=dollar+2;
+			}
+
+			// OK it's good, let's replace it
+			m.appendReplacement(output,replace);
+		}
+		m.appendTail(output);
+		return output.toString();
+	}
+
 	/**
 	 * Processes colours in text then removes 'unsafe' characters not permitted
 	 * in XML; normally called by addLine, but can be used by other things too.
@@ -411,46 +460,7 @@ public abstract class ChatWindow implements MessageDisplay,TextView.MenuHandler
 			String safe = processColours(s);
 
 			// Replace URL
-			StringBuffer output=new StringBuffer();
-			Matcher m=PATTERN_URL.matcher(safe);
-			while(m.find())
-			{
-				String replace=m.group(1)+"<url>"+m.group(2)+"</url>"+m.group(5);
-				try
-				{
-					// Same logic used in TextViewImp to allow urls without http
-					String url=m.group(2);
-					if(!(url.startsWith("http://") || url.startsWith("https://")))
-						url="http://"+url;
-					new URL(url);
-				}
-				catch(MalformedURLException e)
-				{
-					// Don't put the url tags in
-					replace=m.group(1)+m.group(2)+m.group(5);
-				}
-				// Replace \ with \\.
-				for(int pos=0;;)
-				{
-					int backslash=replace.indexOf('\\',pos);
-					if(backslash==-1) break;
-					replace=replace.substring(0,backslash)+"\\\\"+replace.substring(backslash+1);
-					pos=backslash+2;
-				}
-				// Replace $ with \$. I can't get it to do this with a regexp replace
-				for(int pos=0;;)
-				{
-					int dollar=replace.indexOf('$',pos);
-					if(dollar==-1) break;
-					replace=replace.substring(0,dollar)+"\\$"+replace.substring(dollar+1);
-					pos=dollar+2;
-				}
-
-				// OK it's good, let's replace it
-				m.appendReplacement(output,replace);
-			}
-			m.appendTail(output);
-			safe=output.toString();
+			safe=linkURLs(safe);
 
 			// Highlighter
 			try
@@ -59,7 +59,8 @@ public class KnownUsers
 	KnownUsers(PluginContext context)
 	{
 		context.requestMessages(ServerDisconnectedMsg.class,this,Msg.PRIORITY_EARLY);
-		context.requestMessages(MinuteMsg.class,this,new MinuteFilter(60));
+		context.requestMessages(MinuteMsg.class,this,new MinuteFilter(60),
+			Msg.PRIORITY_NORMAL,Msg.LANE_BACKGROUND);
 	}
 
 	private Map<String, UserChannel> findUser(Server s,IRCUserAddress ua)
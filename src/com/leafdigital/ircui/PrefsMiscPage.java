@@ -38,6 +38,8 @@ public class PrefsMiscPage
 	public CheckBox frequentPingsUI;
 	/** Checkbox: automatically reconnect to server on disconnect. */
 	public CheckBox autoReconnectUI;
+	/** Checkbox: run all connections from a single thread. */
+	public CheckBox selectorEngineUI;
 
 	private Preferences prefs;
 	private PreferencesGroup group;
@@ -56,6 +58,8 @@ public class PrefsMiscPage
 			group.get(IRCPrefs.PREF_FREQUENTPINGS, IRCPrefs.PREFDEFAULT_FREQUENTPINGS)));
 		autoReconnectUI.setChecked(prefs.toBoolean(
 			group.get(IRCPrefs.PREF_AUTORECONNECT, IRCPrefs.PREFDEFAULT_AUTORECONNECT)));
+		selectorEngineUI.setChecked(prefs.toBoolean(
+			group.get(IRCPrefs.PREF_SELECTORENGINE, IRCPrefs.PREFDEFAULT_SELECTORENGINE)));
 	}
 
 	Page getPage()
@@ -95,4 +99,14 @@ public class PrefsMiscPage
 		group.set(IRCPrefs.PREF_AUTORECONNECT, prefs.fromBoolean(autoReconnectUI.isChecked()),
 			IRCPrefs.PREFDEFAULT_AUTORECONNECT);
 	}
+
+	/**
+	 * Action: User changes shared network thread option.
+	 */
+	@UIAction
+	public void changeSelectorEngine()
+	{
+		group.set(IRCPrefs.PREF_SELECTORENGINE, prefs.fromBoolean(selectorEngineUI.isChecked()),
+			IRCPrefs.PREFDEFAULT_SELECTORENGINE);
+	}
 }
@@ -0,0 +1,177 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+
+/**
+ * Write-ahead journal for the log index. Each change to the index is
+ * appended here before it is applied to the in-memory buffer, so that after
+ * a crash the buffer can be rebuilt by replaying the journal rather than by
+ * reading and parsing the log files again.
+ * <p>
+ * Records are written together when the journal is flushed (see
+ * {@link RecordJournal}), so the journal never gets ahead of the log files
+ * as long as it is flushed after them. Once the buffered lines have been
+ * written to a segment (a checkpoint), the journal is started again from
+ * empty.
+ */
+class IndexJournal
+{
+	private final static String FILENAME="index.journal";
+
+	private final static int MAGIC=0x6c636a6e; // 'lcjn'
+	private final static int VERSION=1;
+
+	private final static byte RECORD_LINE=1,RECORD_REMOVE=2;
+
+	private RecordJournal journal;
+
+	/** Receives changes when the journal is replayed */
+	interface Handler
+	{
+		/**
+		 * @param name Log file name
+		 * @param offset Byte offset of line in file
+		 * @param end Byte offset after end of line
+		 * @param words Words in line
+		 * @throws IOException Error applying change
+		 */
+		void addLine(String name,long offset,long end,String[] words)
+			throws IOException;
+
+		/**
+		 * @param name Log file name
+		 * @throws IOException Error applying change
+		 */
+		void removeFile(String name) throws IOException;
+	}
+
+	/**
+	 * @param folder Log folder
+	 */
+	IndexJournal(File folder)
+	{
+		journal=new RecordJournal(new File(folder,FILENAME),MAGIC,VERSION);
+	}
+
+	/**
+	 * Replays the journal left by an earlier run, if any. Replay stops at
+	 * the first record that is incomplete or damaged.
+	 * @param handler Handler that receives changes
+	 * @return Number of records replayed
+	 * @throws IOException Error reading journal or applying changes
+	 */
+	int replay(final Handler handler) throws IOException
+	{
+		return journal.replay(new RecordJournal.Reader()
+		{
+			@Override
+			public boolean read(DataInputStream in) throws IOException
+			{
+				byte type=in.readByte();
+				String name=in.readUTF();
+				if(type==RECORD_LINE)
+				{
+					long offset=in.readLong(),end=in.readLong();
+					String[] words=new String[in.readInt()];
+					for(int i=0;i<words.length;i++)
+					{
+						words[i]=in.readUTF();
+					}
+					handler.addLine(name,offset,end,words);
+				}
+				else if(type==RECORD_REMOVE)
+				{
+					handler.removeFile(name);
+				}
+				else
+				{
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Starts a new, empty journal, discarding the current one.
+	 * @throws IOException Error writing file
+	 */
+	void start() throws IOException
+	{
+		journal.start();
+	}
+
+	/**
+	 * Records a line added to the index.
+	 * @param name Log file name
+	 * @param offset Byte offset of line in file
+	 * @param end Byte offset after end of line
+	 * @param words Words in line
+	 * @throws IOException Error writing journal
+	 */
+	void addLine(String name,long offset,long end,String[] words)
+		throws IOException
+	{
+		DataOutputStream record=journal.beginRecord();
+		record.writeByte(RECORD_LINE);
+		record.writeUTF(name);
+		record.writeLong(offset);
+		record.writeLong(end);
+		record.writeInt(words.length);
+		for(int i=0;i<words.length;i++)
+		{
+			record.writeUTF(words[i]);
+		}
+		journal.endRecord();
+	}
+
+	/**
+	 * Records a file removed from the index.
+	 * @param name Log file name
+	 * @throws IOException Error writing journal
+	 */
+	void removeFile(String name) throws IOException
+	{
+		DataOutputStream record=journal.beginRecord();
+		record.writeByte(RECORD_REMOVE);
+		record.writeUTF(name);
+		journal.endRecord();
+	}
+
+	/**
+	 * Writes all records collected since the last flush.
+	 * @throws IOException Error writing journal
+	 */
+	void flush() throws IOException
+	{
+		journal.flush();
+	}
+
+	/**
+	 * Closes the journal and deletes it. Only call once everything in the
+	 * journal has been checkpointed.
+	 * @throws IOException Error closing file
+	 */
+	void close() throws IOException
+	{
+		journal.close();
+	}
+}
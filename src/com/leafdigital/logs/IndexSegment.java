@@ -0,0 +1,567 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A single immutable segment of the full-text log index. The file contains
+ * the encoded postings for each term, followed by a dictionary of terms
+ * (sorted), followed by an index of dictionary blocks and a footer.
+ * <p>
+ * The dictionary is split into blocks of {@link #BLOCKSIZE} terms. Within a
+ * block, each term is stored as the number of bytes it shares with the
+ * previous term plus the remaining bytes, and the location of its postings
+ * is implied by the lengths of the postings before it. The dictionary is
+ * memory-mapped and searched in place, so the only per-term data kept on the
+ * heap is a small cache of recently-used terms.
+ * <p>
+ * Segments are reference-counted so that a search can carry on reading a
+ * segment after it has been replaced by a merge; the file is deleted once
+ * the last reference is released.
+ */
+class IndexSegment
+{
+	private final static int MAGIC=0x6c637367; // 'lcsg'
+	private final static int VERSION=2;
+
+	/** Number of terms in each dictionary block */
+	private final static int BLOCKSIZE=32;
+
+	/** Number of terms whose locations are cached */
+	private final static int CACHESIZE=256;
+
+	/** Size of footer: dictionary position, block index position, counts */
+	private final static int FOOTERSIZE=24;
+
+	/** Cache value for terms that aren't in this segment */
+	private final static long[] NOTFOUND=new long[0];
+
+	private int id;
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	/** Mapped dictionary and block index */
+	private ByteBuffer dictionary;
+	/** Position of block index within mapped dictionary */
+	private int blockIndexPos;
+	private int termCount,blockCount;
+
+	/** Map from term to {offset, length} (or NOTFOUND), in access order */
+	private Map<String, long[]> cache=new LinkedHashMap<String, long[]>(
+		CACHESIZE, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest)
+		{
+			return size()>CACHESIZE;
+		}
+	};
+
+	private int references=1;
+	private boolean retired;
+
+	/**
+	 * Opens an existing segment.
+	 * @param id Segment ID
+	 * @param file Segment file
+	 * @throws IOException If the file can't be read or is invalid
+	 */
+	IndexSegment(int id,File file) throws IOException
+	{
+		this.id=id;
+		this.file=file;
+		raf=new RandomAccessFile(file,"r");
+		channel=raf.getChannel();
+		try
+		{
+			long length=raf.length();
+			if(length<8+FOOTERSIZE) throw new IOException("Index segment truncated: "+file);
+			raf.seek(0);
+			if(raf.readInt()!=MAGIC || raf.readInt()!=VERSION)
+				throw new IOException("Index segment not recognised: "+file);
+			raf.seek(length-FOOTERSIZE);
+			long dictionaryPos=raf.readLong();
+			long blockIndex=raf.readLong();
+			termCount=raf.readInt();
+			blockCount=raf.readInt();
+
+			dictionary=channel.map(FileChannel.MapMode.READ_ONLY,dictionaryPos,
+				length-FOOTERSIZE-dictionaryPos);
+			blockIndexPos=(int)(blockIndex-dictionaryPos);
+		}
+		catch(IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/** @return Segment ID */
+	int getID()
+	{
+		return id;
+	}
+
+	/** @return Size of segment file in bytes */
+	long getSize()
+	{
+		return file.length();
+	}
+
+	/** @return Number of terms */
+	int getTermCount()
+	{
+		return termCount;
+	}
+
+	/**
+	 * Finds a term.
+	 * @param term Term
+	 * @return Array of {postings offset, postings length}, or null if not present
+	 */
+	long[] find(String term)
+	{
+		synchronized(cache)
+		{
+			long[] cached=cache.get(term);
+			if(cached!=null) return cached==NOTFOUND ? null : cached;
+		}
+
+		long[] result=null;
+
+		// Find last block whose first term is not after the search term
+		int low=0,high=blockCount-1,block=-1;
+		while(low<=high)
+		{
+			int mid=(low+high)>>>1;
+			int compare=getFirstTerm(mid).compareTo(term);
+			if(compare<=0)
+			{
+				block=mid;
+				if(compare==0) break;
+				low=mid+1;
+			}
+			else
+			{
+				high=mid-1;
+			}
+		}
+
+		// Scan that block
+		if(block!=-1)
+		{
+			TermIterator terms=new TermIterator(block);
+			for(int i=0;i<BLOCKSIZE && terms.next();i++)
+			{
+				int compare=terms.getTerm().compareTo(term);
+				if(compare==0)
+				{
+					result=new long[] { terms.getOffset(), terms.getLength() };
+					break;
+				}
+				if(compare>0) break;
+			}
+		}
+
+		synchronized(cache)
+		{
+			cache.put(term,result==null ? NOTFOUND : result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param block Block index
+	 * @return Position of block within dictionary
+	 */
+	private int getBlockPos(int block)
+	{
+		return (int)dictionary.getLong(blockIndexPos+block*8);
+	}
+
+	/**
+	 * @param block Block index
+	 * @return First term in block
+	 */
+	private String getFirstTerm(int block)
+	{
+		int[] cursor=new int[] { getBlockPos(block)+8 };
+		readVarint(dictionary,cursor); // Shared length, always 0
+		int length=(int)readVarint(dictionary,cursor);
+		byte[] bytes=new byte[length];
+		for(int i=0;i<length;i++)
+		{
+			bytes[i]=dictionary.get(cursor[0]+i);
+		}
+		return decode(bytes,length);
+	}
+
+	private static String decode(byte[] bytes,int length)
+	{
+		try
+		{
+			return new String(bytes,0,length,"UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Reads a varint from a buffer without changing its position.
+	 * @param buffer Buffer
+	 * @param cursor Single-element array holding position; updated
+	 * @return Value
+	 */
+	private static long readVarint(ByteBuffer buffer,int[] cursor)
+	{
+		long value=0;
+		int shift=0;
+		while(true)
+		{
+			int b=buffer.get(cursor[0]++);
+			value|=(long)(b & 0x7f) << shift;
+			if((b & 0x80)==0) return value;
+			shift+=7;
+		}
+	}
+
+	/** Reads terms in order, starting at the beginning of a block */
+	private class TermIterator
+	{
+		private int[] cursor;
+		private int index;
+		private byte[] bytes=new byte[64];
+		private int length;
+		private long offset;
+		private int postingsLength;
+		private String term;
+
+		/**
+		 * @param block Block to start from
+		 */
+		TermIterator(int block)
+		{
+			index=block*BLOCKSIZE;
+			cursor=new int[] { block<blockCount ? getBlockPos(block) : 0 };
+		}
+
+		/**
+		 * Moves to the next term.
+		 * @return False if there are no more terms
+		 */
+		boolean next()
+		{
+			if(index>=termCount) return false;
+			if(index%BLOCKSIZE==0)
+			{
+				offset=dictionary.getLong(cursor[0]);
+				cursor[0]+=8;
+			}
+			else
+			{
+				offset+=postingsLength;
+			}
+			int shared=(int)readVarint(dictionary,cursor);
+			int suffix=(int)readVarint(dictionary,cursor);
+			length=shared+suffix;
+			if(length>bytes.length)
+			{
+				byte[] newBytes=new byte[Math.max(length,bytes.length*2)];
+				System.arraycopy(bytes,0,newBytes,0,shared);
+				bytes=newBytes;
+			}
+			for(int i=0;i<suffix;i++)
+			{
+				bytes[shared+i]=dictionary.get(cursor[0]+i);
+			}
+			cursor[0]+=suffix;
+			postingsLength=(int)readVarint(dictionary,cursor);
+			term=null;
+			index++;
+			return true;
+		}
+
+		/** @return Current term */
+		String getTerm()
+		{
+			if(term==null) term=decode(bytes,length);
+			return term;
+		}
+
+		/** @return Position of postings for current term */
+		long getOffset()
+		{
+			return offset;
+		}
+
+		/** @return Length of postings for current term */
+		int getLength()
+		{
+			return postingsLength;
+		}
+	}
+
+	/**
+	 * Adds postings for a term to a builder.
+	 * @param location Location from {@link #find(String)}
+	 * @param builder Builder
+	 * @param files Files to include (null = all)
+	 * @throws IOException Error reading file
+	 */
+	void read(long[] location,Postings.Builder builder,Postings.FileSet files)
+		throws IOException
+	{
+		read(location[0],(int)location[1],builder,files);
+	}
+
+	private void read(long pos,int length,Postings.Builder builder,
+		Postings.FileSet files) throws IOException
+	{
+		byte[] data=new byte[length];
+		ByteBuffer buffer=ByteBuffer.wrap(data);
+		while(buffer.hasRemaining())
+		{
+			int read=channel.read(buffer,pos+buffer.position());
+			if(read==-1) throw new EOFException("Index segment truncated: "+file);
+		}
+		Postings.decode(data,0,builder,files);
+	}
+
+	/**
+	 * Obtains a reference that must later be released.
+	 */
+	synchronized void retain()
+	{
+		references++;
+	}
+
+	/**
+	 * Releases a reference. If the segment has been retired and this was the
+	 * last reference, the segment is closed and its file deleted.
+	 */
+	void release()
+	{
+		synchronized(this)
+		{
+			references--;
+			if(references>0 || !retired) return;
+		}
+		close();
+		file.delete();
+	}
+
+	/**
+	 * Marks the segment as no longer part of the index and releases the
+	 * index's own reference.
+	 */
+	void retire()
+	{
+		synchronized(this)
+		{
+			retired=true;
+		}
+		release();
+	}
+
+	/**
+	 * Closes the file. (The mapped dictionary is released when it is garbage
+	 * collected; until then some platforms won't delete the file, in which
+	 * case it is cleaned up next time the index is opened.)
+	 */
+	void close()
+	{
+		try
+		{
+			raf.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Writes a new segment file.
+	 * @param file Target file
+	 * @param source Source of terms and postings
+	 * @throws IOException Error writing file
+	 */
+	static void write(File file,TermSource source) throws IOException
+	{
+		FileOutputStream fos=new FileOutputStream(file);
+		CountingOutputStream counter=new CountingOutputStream(
+			new BufferedOutputStream(fos));
+		DataOutputStream dos=new DataOutputStream(counter);
+		boolean ok=false;
+		try
+		{
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+
+			// Write postings, building dictionary in memory
+			Postings.ByteBuilder dictionary=new Postings.ByteBuilder();
+			List<Integer> blocks=new ArrayList<Integer>();
+			Postings.ByteBuilder buffer=new Postings.ByteBuilder();
+			byte[] previous=new byte[0];
+			int terms=0;
+			while(true)
+			{
+				buffer.clear();
+				String term=source.next(buffer);
+				if(term==null) break;
+				if(buffer.length()==0) continue;
+
+				byte[] bytes=term.getBytes("UTF-8");
+				int shared=0;
+				if(terms%BLOCKSIZE==0)
+				{
+					blocks.add(dictionary.length());
+					dictionary.writeLong(counter.count);
+				}
+				else
+				{
+					int max=Math.min(bytes.length,previous.length);
+					while(shared<max && bytes[shared]==previous[shared]) shared++;
+				}
+				dictionary.writeVarint(shared);
+				dictionary.writeVarint(bytes.length-shared);
+				dictionary.write(bytes,shared,bytes.length-shared);
+				dictionary.writeVarint(buffer.length());
+				previous=bytes;
+				terms++;
+
+				dos.write(buffer.getData(),0,buffer.length());
+			}
+
+			long dictionaryPos=counter.count;
+			dos.write(dictionary.getData(),0,dictionary.length());
+			long blockIndexPos=counter.count;
+			for(int block : blocks)
+			{
+				dos.writeLong(block);
+			}
+			dos.writeLong(dictionaryPos);
+			dos.writeLong(blockIndexPos);
+			dos.writeInt(terms);
+			dos.writeInt(blocks.size());
+
+			// Must be on disk before a manifest refers to it
+			dos.flush();
+			fos.getFD().sync();
+			ok=true;
+		}
+		finally
+		{
+			dos.close();
+			if(!ok) file.delete();
+		}
+	}
+
+	/** Provides terms in sorted order for a new segment */
+	interface TermSource
+	{
+		/**
+		 * @param postings Buffer that receives encoded postings for the term;
+		 *   if left empty, the term is skipped
+		 * @return Next term or null if there are no more
+		 * @throws IOException Error obtaining data
+		 */
+		String next(Postings.ByteBuilder postings) throws IOException;
+	}
+
+	/**
+	 * Creates a term source that merges existing segments.
+	 * @param segments Segments to merge
+	 * @param files Only postings for these files are kept
+	 * @return Term source
+	 */
+	static TermSource merge(final IndexSegment[] segments,final Postings.FileSet files)
+	{
+		final TermIterator[] iterators=new TermIterator[segments.length];
+		final boolean[] more=new boolean[segments.length];
+		for(int i=0;i<segments.length;i++)
+		{
+			iterators[i]=segments[i].new TermIterator(0);
+			more[i]=iterators[i].next();
+		}
+		return new TermSource()
+		{
+			@Override
+			public String next(Postings.ByteBuilder postings) throws IOException
+			{
+				// Find lowest term
+				String term=null;
+				for(int i=0;i<segments.length;i++)
+				{
+					if(more[i])
+					{
+						String candidate=iterators[i].getTerm();
+						if(term==null || candidate.compareTo(term)<0) term=candidate;
+					}
+				}
+				if(term==null) return null;
+
+				// Combine postings from each segment that has it
+				Postings.Builder builder=new Postings.Builder();
+				for(int i=0;i<segments.length;i++)
+				{
+					if(more[i] && iterators[i].getTerm().equals(term))
+					{
+						segments[i].read(iterators[i].getOffset(),iterators[i].getLength(),
+							builder,files);
+						more[i]=iterators[i].next();
+					}
+				}
+				if(builder.size()>0) builder.build().encode(postings);
+				return term;
+			}
+		};
+	}
+
+	/** Output stream that counts bytes written */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		long count;
+
+		CountingOutputStream(OutputStream out)
+		{
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b,int off,int len) throws IOException
+		{
+			out.write(b,off,len);
+			count+=len;
+		}
+	}
+}
@@ -0,0 +1,534 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.util.*;
+
+import com.leafdigital.logs.LoggerImp.LogFileInfo;
+
+import leafchat.core.api.GeneralException;
+
+/**
+ * Catalog of all log files, with details of each file. Files are listed by
+ * date and by item so that the logs window can fill in its lists without
+ * looking at every file. The catalog is updated as lines are logged. Changed
+ * entries are appended to a small journal each time the logs are flushed,
+ * and the whole catalog is only rewritten occasionally and on close; when it
+ * is loaded, the journal is replayed and the logger brings it up to date
+ * with any lines written since.
+ */
+class LogCatalog
+{
+	private final static String FILENAME="catalog";
+
+	private final static int MAGIC=0x6c636374; // 'lcct'
+	private final static int VERSION=1;
+
+	private final static String JOURNALFILENAME="catalog.journal";
+	private final static int JOURNALMAGIC=0x6c63636a; // 'lccj'
+
+	private final static byte RECORD_ENTRY=1,RECORD_REMOVE=2;
+
+	/** Time between full saves while logging */
+	private final static long SAVEINTERVAL=10*60*1000;
+
+	/** Details of a single log file */
+	static class Entry
+	{
+		private LogFileInfo info;
+		private long size,firstTime,lastTime;
+		private int lines;
+
+		/**
+		 * @param info File information
+		 */
+		private Entry(LogFileInfo info)
+		{
+			this.info=info;
+		}
+
+		/** @return Copy of this entry */
+		private Entry copy()
+		{
+			Entry copy=new Entry(info);
+			copy.size=size;
+			copy.lines=lines;
+			copy.firstTime=firstTime;
+			copy.lastTime=lastTime;
+			return copy;
+		}
+
+		/** @return File information (name, date, server, etc.) */
+		LogFileInfo getInfo()
+		{
+			return info;
+		}
+
+		/** @return Size of file in bytes (complete lines only) */
+		long getSize()
+		{
+			return size;
+		}
+
+		/** @return Number of lines in file */
+		int getLines()
+		{
+			return lines;
+		}
+
+		/** @return Time of first line, or 0 if none */
+		long getFirstTime()
+		{
+			return firstTime;
+		}
+
+		/** @return Time of last line, or 0 if none */
+		long getLastTime()
+		{
+			return lastTime;
+		}
+	}
+
+	private File file;
+
+	private Map<String, Entry> byName=new HashMap<String, Entry>();
+	private SortedMap<String, List<Entry>> byDate=new TreeMap<String, List<Entry>>();
+	/** Map from upper-case item name to entries */
+	private SortedMap<String, List<Entry>> byItem=new TreeMap<String, List<Entry>>();
+
+	/** True if there are changes since the last full save */
+	private boolean dirty;
+
+	/** Names of files that changed since the journal was last written */
+	private Set<String> changed=new HashSet<String>();
+
+	/** Journal of changes since the last full save */
+	private RecordJournal journal;
+
+	/** Time of last full save */
+	private long lastSave;
+
+	/**
+	 * @param folder Log folder
+	 */
+	LogCatalog(File folder)
+	{
+		file=new File(folder,FILENAME);
+		journal=new RecordJournal(new File(folder,JOURNALFILENAME),
+			JOURNALMAGIC,VERSION);
+	}
+
+	/**
+	 * Loads the catalog from disk.
+	 * @return True if loaded, false if there isn't a (current) catalog, in
+	 *   which case it is empty
+	 * @throws IOException Error reading catalog
+	 */
+	synchronized boolean load() throws IOException
+	{
+		// Finish off an interrupted save
+		File oldFile=new File(file.getPath()+".old");
+		if(!file.exists() && oldFile.exists()) oldFile.renameTo(file);
+		if(!file.exists()) return false;
+		File folder=file.getParentFile();
+		DataInputStream dis=new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+		try
+		{
+			if(dis.readInt()!=MAGIC)
+				throw new IOException("Log catalog not recognised");
+			if(dis.readInt()!=VERSION) return false;
+			int count=dis.readInt();
+			for(int i=0;i<count;i++)
+			{
+				String name=dis.readUTF();
+				Entry entry;
+				try
+				{
+					entry=new Entry(new LogFileInfo(new File(folder,name)));
+				}
+				catch(GeneralException e)
+				{
+					throw new IOException("Log catalog contains invalid name: "+name);
+				}
+				entry.size=dis.readLong();
+				entry.lines=dis.readInt();
+				entry.firstTime=dis.readLong();
+				entry.lastTime=dis.readLong();
+				add(entry);
+			}
+		}
+		finally
+		{
+			dis.close();
+		}
+		dirty=replayJournal(folder)>0;
+		changed.clear();
+		return true;
+	}
+
+	/**
+	 * Applies changes from the journal left by an earlier run, if any. Replay
+	 * stops at the first record that is incomplete or damaged. Records hold
+	 * complete entries, so replaying a journal that is older than the catalog
+	 * only winds entries back, and the logger then rescans those files.
+	 * @param folder Log folder
+	 * @return Number of records replayed
+	 * @throws IOException Error reading journal
+	 */
+	private int replayJournal(final File folder) throws IOException
+	{
+		return journal.replay(new RecordJournal.Reader()
+		{
+			@Override
+			public boolean read(DataInputStream in) throws IOException
+			{
+				byte type=in.readByte();
+				String name=in.readUTF();
+				if(type==RECORD_ENTRY)
+				{
+					Entry entry=byName.get(name);
+					if(entry==null)
+					{
+						try
+						{
+							entry=new Entry(new LogFileInfo(new File(folder,name)));
+						}
+						catch(GeneralException e)
+						{
+							throw new IOException("Log catalog journal contains invalid name: "+name);
+						}
+						add(entry);
+					}
+					entry.size=in.readLong();
+					entry.lines=in.readInt();
+					entry.firstTime=in.readLong();
+					entry.lastTime=in.readLong();
+				}
+				else if(type==RECORD_REMOVE)
+				{
+					removeEntry(name);
+				}
+				else
+				{
+					return false;
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Appends entries that have changed to the journal, or saves the whole
+	 * catalog if it hasn't been saved for a while. Call after the log files
+	 * have been flushed, so the catalog doesn't get ahead of them.
+	 * @throws IOException Error writing journal or catalog
+	 */
+	synchronized void sync() throws IOException
+	{
+		if(!journal.isStarted() ||
+			System.currentTimeMillis()-lastSave >= SAVEINTERVAL)
+		{
+			save();
+			return;
+		}
+		if(changed.isEmpty()) return;
+
+		for(String name : changed)
+		{
+			DataOutputStream record=journal.beginRecord();
+			Entry entry=byName.get(name);
+			if(entry==null)
+			{
+				record.writeByte(RECORD_REMOVE);
+				record.writeUTF(name);
+			}
+			else
+			{
+				record.writeByte(RECORD_ENTRY);
+				record.writeUTF(name);
+				record.writeLong(entry.size);
+				record.writeInt(entry.lines);
+				record.writeLong(entry.firstTime);
+				record.writeLong(entry.lastTime);
+			}
+			journal.endRecord();
+		}
+		journal.flush();
+		changed.clear();
+	}
+
+	/**
+	 * Saves the whole catalog if it has changed, and starts a new, empty
+	 * journal.
+	 * @throws IOException Error writing catalog
+	 */
+	synchronized void save() throws IOException
+	{
+		lastSave=System.currentTimeMillis();
+		if(dirty)
+		{
+			write();
+		}
+		else if(journal.isStarted())
+		{
+			return;
+		}
+
+		journal.start();
+		changed.clear();
+	}
+
+	/**
+	 * Saves the catalog and closes the journal.
+	 * @throws IOException Error writing catalog
+	 */
+	synchronized void close() throws IOException
+	{
+		if(dirty) write();
+		journal.close();
+		changed.clear();
+	}
+
+	/**
+	 * Writes the whole catalog, replacing it safely.
+	 * @throws IOException Error writing catalog
+	 */
+	private void write() throws IOException
+	{
+		File newFile=new File(file.getPath()+".new");
+		FileOutputStream fos=new FileOutputStream(newFile);
+		DataOutputStream dos=new DataOutputStream(new BufferedOutputStream(fos));
+		try
+		{
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(byName.size());
+			for(Entry entry : byName.values())
+			{
+				dos.writeUTF(entry.info.getFile().getName());
+				dos.writeLong(entry.size);
+				dos.writeInt(entry.lines);
+				dos.writeLong(entry.firstTime);
+				dos.writeLong(entry.lastTime);
+			}
+			// Must be on disk before the journal that it replaces is discarded
+			dos.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			dos.close();
+		}
+
+		File oldFile=new File(file.getPath()+".old");
+		if(oldFile.exists() && !oldFile.delete())
+			throw new IOException("Failed to delete old log catalog "+oldFile);
+		if(file.exists() && !file.renameTo(oldFile))
+			throw new IOException("Failed to rename old log catalog "+file);
+		if(!newFile.renameTo(file))
+			throw new IOException("Failed to rename new log catalog "+newFile);
+		oldFile.delete();
+		dirty=false;
+	}
+
+	/**
+	 * @param entry Entry to add to maps
+	 */
+	private void add(Entry entry)
+	{
+		byName.put(entry.info.getFile().getName(),entry);
+		addToList(byDate,entry.info.getDate(),entry);
+		addToList(byItem,entry.info.getItem().toUpperCase(),entry);
+	}
+
+	private static void addToList(Map<String, List<Entry>> map,String key,Entry entry)
+	{
+		List<Entry> list=map.get(key);
+		if(list==null)
+		{
+			list=new ArrayList<Entry>();
+			map.put(key,list);
+		}
+		list.add(entry);
+	}
+
+	private static void removeFromList(Map<String, List<Entry>> map,String key,Entry entry)
+	{
+		List<Entry> list=map.get(key);
+		list.remove(entry);
+		if(list.isEmpty()) map.remove(key);
+	}
+
+	/**
+	 * @return Names of all files in catalog
+	 */
+	synchronized String[] getNames()
+	{
+		return byName.keySet().toArray(new String[byName.size()]);
+	}
+
+	/**
+	 * @param name File name
+	 * @return Size of file covered by catalog, or -1 if it isn't in the catalog
+	 */
+	synchronized long getSize(String name)
+	{
+		Entry entry=byName.get(name);
+		return entry==null ? -1 : entry.size;
+	}
+
+	/**
+	 * Records a line that has been added to a log file, adding the file if
+	 * necessary.
+	 * @param f Log file
+	 * @param time Time of line (0 if not known)
+	 * @param end Size of file after line
+	 * @throws GeneralException If the file isn't a log file
+	 */
+	synchronized void addLine(File f,long time,long end) throws GeneralException
+	{
+		Entry entry=byName.get(f.getName());
+		if(entry==null)
+		{
+			entry=new Entry(new LogFileInfo(f));
+			add(entry);
+		}
+		if(time>0)
+		{
+			if(entry.firstTime==0) entry.firstTime=time;
+			entry.lastTime=time;
+		}
+		entry.lines++;
+		entry.size=end;
+		dirty=true;
+		changed.add(f.getName());
+	}
+
+	/**
+	 * Removes a file from the catalog.
+	 * @param name File name
+	 */
+	synchronized void remove(String name)
+	{
+		if(!removeEntry(name)) return;
+		dirty=true;
+		changed.add(name);
+	}
+
+	/**
+	 * @param name File name
+	 * @return True if the entry was removed, false if there wasn't one
+	 */
+	private boolean removeEntry(String name)
+	{
+		Entry entry=byName.remove(name);
+		if(entry==null) return false;
+		removeFromList(byDate,entry.info.getDate(),entry);
+		removeFromList(byItem,entry.info.getItem().toUpperCase(),entry);
+		return true;
+	}
+
+	/**
+	 * @return All dates that have logs, in order
+	 */
+	synchronized String[] getDates()
+	{
+		return byDate.keySet().toArray(new String[byDate.size()]);
+	}
+
+	/**
+	 * @param items Upper-case item names
+	 * @return Dates that have logs for any of the items, in order
+	 */
+	synchronized String[] getDates(Collection<String> items)
+	{
+		SortedSet<String> dates=new TreeSet<String>();
+		for(String item : items)
+		{
+			List<Entry> list=byItem.get(item);
+			if(list==null) continue;
+			for(Entry entry : list)
+			{
+				dates.add(entry.info.getDate());
+			}
+		}
+		return dates.toArray(new String[dates.size()]);
+	}
+
+	/**
+	 * @return All items that have logs (one name for each upper-case name)
+	 */
+	synchronized String[] getItems()
+	{
+		String[] items=new String[byItem.size()];
+		int i=0;
+		for(List<Entry> list : byItem.values())
+		{
+			items[i++]=list.get(0).info.getItem();
+		}
+		return items;
+	}
+
+	/**
+	 * @param dates Dates
+	 * @return Items that have logs on any of the dates
+	 */
+	synchronized String[] getItems(Collection<String> dates)
+	{
+		Map<String, String> items=new HashMap<String, String>();
+		for(String date : dates)
+		{
+			List<Entry> list=byDate.get(date);
+			if(list==null) continue;
+			for(Entry entry : list)
+			{
+				String item=entry.info.getItem();
+				String key=item.toUpperCase();
+				if(!items.containsKey(key)) items.put(key,item);
+			}
+		}
+		return items.values().toArray(new String[items.size()]);
+	}
+
+	/**
+	 * @param dates Dates
+	 * @param items Upper-case item names
+	 * @return Copies of entries for files on any of the dates and for any of
+	 *   the items
+	 */
+	synchronized Entry[] getEntries(Collection<String> dates,Collection<String> items)
+	{
+		List<Entry> result=new LinkedList<Entry>();
+		for(String date : dates)
+		{
+			List<Entry> list=byDate.get(date);
+			if(list==null) continue;
+			for(Entry entry : list)
+			{
+				if(items.contains(entry.info.getItem().toUpperCase()))
+				{
+					result.add(entry.copy());
+				}
+			}
+		}
+		return result.toArray(new Entry[result.size()]);
+	}
+}
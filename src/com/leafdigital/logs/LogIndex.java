@@ -0,0 +1,651 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.util.*;
+
+import leafchat.core.api.ErrorMsg;
+
+/**
+ * Full-text index of log files. Stores, for every term, the lines (and word
+ * positions within those lines) where it appears.
+ * <p>
+ * New lines are held in memory and written out as a new {@link IndexSegment}
+ * when there are enough of them. The manifest file lists the current
+ * segments and, for each log file, how much of it is covered by those
+ * segments. Lines in the buffer are also recorded in an
+ * {@link IndexJournal}, which is replayed after a crash; writing a segment
+ * is the checkpoint after which the journal starts again. When there are
+ * too many segments, the smallest are merged by {@link #compact}, which
+ * runs in the background; searches carry on using the old segments until
+ * the merged one replaces them.
+ */
+class LogIndex
+{
+	private final static String MANIFEST="index.manifest";
+	private final static String LOCK="index.lock";
+	private final static String SEGMENTPREFIX="index-",SEGMENTSUFFIX=".seg";
+
+	private final static int MAGIC=0x6c636978; // 'lcix'
+	private final static int VERSION=2;
+
+	/** Terms are cropped to this many characters */
+	final static int MAXTERMLENGTH=255;
+
+	/** Number of buffered occurrences at which a new segment is written */
+	private final static int BUFFER_MAXPENDING=262144;
+
+	/** Once there are more than this many segments, some are merged */
+	private final static int MAXSEGMENTS=10;
+
+	/** Number of segments that are merged at once */
+	private final static int MERGEFACTOR=4;
+
+	/** Number of terms merged between maintenance checkpoints */
+	private final static int MERGESTEP=1024;
+
+	private File folder;
+
+	/** Lock file (kept open so that two copies can't use the index at once) */
+	private RandomAccessFile lockFile;
+
+	private int nextSegmentID=1,nextFileID=1;
+
+	/** Information about one log file */
+	private static class FileEntry
+	{
+		int id;
+		String name;
+		/** Length of file covered by segments on disk */
+		long indexedLength;
+		/** Length of file covered by segments and buffer */
+		long bufferedLength;
+	}
+
+	private Map<Integer, FileEntry> filesByID=new HashMap<Integer, FileEntry>();
+	private Map<String, FileEntry> filesByName=new HashMap<String, FileEntry>();
+
+	/** Current segments, oldest first; replaced (not modified) on change */
+	private IndexSegment[] segments=new IndexSegment[0];
+
+	/** Occurrences not yet written to a segment */
+	private Map<String, Postings.Builder> buffer=new HashMap<String, Postings.Builder>();
+	private int bufferSize;
+
+	/** Journal of changes not yet written to a segment */
+	private IndexJournal journal;
+
+	/**
+	 * Set of files currently in the index (synchronized so that it can be used
+	 * while reading segments without holding the index lock)
+	 */
+	private final Postings.FileSet liveFiles=new Postings.FileSet()
+	{
+		@Override
+		public boolean contains(int file)
+		{
+			synchronized(LogIndex.this)
+			{
+				return filesByID.containsKey(file);
+			}
+		}
+	};
+
+	/**
+	 * @param folder Log folder
+	 */
+	LogIndex(File folder)
+	{
+		this.folder=folder;
+	}
+
+	/**
+	 * Opens the index, loading the manifest and segments.
+	 * @throws IOException If the index is in use or can't be read
+	 */
+	synchronized void open() throws IOException
+	{
+		lockFile=new RandomAccessFile(new File(folder,LOCK),"rw");
+		if(lockFile.getChannel().tryLock()==null)
+		{
+			lockFile.close();
+			throw new IOException("Log index in use");
+		}
+
+		List<IndexSegment> loaded=new LinkedList<IndexSegment>();
+		Set<String> segmentNames=new HashSet<String>();
+		File
+			manifest=new File(folder,MANIFEST),
+			oldManifest=new File(folder,MANIFEST+".old"),
+			newManifest=new File(folder,MANIFEST+".new");
+		if(!manifest.exists() && oldManifest.exists())
+		{
+			// Finish off an interrupted replace. The new manifest was complete
+			// before the old one was moved aside, so prefer it
+			if(!newManifest.exists() || !newManifest.renameTo(manifest))
+				oldManifest.renameTo(manifest);
+		}
+		oldManifest.delete();
+		newManifest.delete();
+		boolean read;
+		try
+		{
+			read=manifest.exists() && readManifest(manifest,loaded,segmentNames);
+		}
+		catch(IOException e)
+		{
+			// Damaged manifest or segment; start again, as below
+			ErrorMsg.report("Log index is damaged, rebuilding",e);
+			for(IndexSegment segment : loaded)
+			{
+				segment.close();
+			}
+			loaded.clear();
+			segmentNames.clear();
+			filesByID.clear();
+			filesByName.clear();
+			nextSegmentID=1;
+			nextFileID=1;
+			read=false;
+		}
+		if(!read)
+		{
+			// Earlier format or damaged; start again (the index is rebuilt from
+			// the logs)
+			manifest.delete();
+		}
+		segments=loaded.toArray(new IndexSegment[loaded.size()]);
+
+		// Delete segments left over from an interrupted write or merge
+		File[] all=folder.listFiles();
+		for(int i=0;all!=null && i<all.length;i++)
+		{
+			String name=all[i].getName();
+			if(name.startsWith(SEGMENTPREFIX) && !segmentNames.contains(name))
+			{
+				all[i].delete();
+			}
+		}
+
+		// Recover changes that hadn't reached a segment, then checkpoint them
+		journal=new IndexJournal(folder);
+		int replayed=journal.replay(new IndexJournal.Handler()
+		{
+			@Override
+			public void addLine(String name,long offset,long end,String[] words)
+			{
+				FileEntry entry=filesByName.get(name);
+				if(entry!=null && end<=entry.bufferedLength)
+				{
+					// Already in a segment (checkpoint finished but journal not reset)
+					return;
+				}
+				bufferLine(name,offset,end,words);
+			}
+
+			@Override
+			public void removeFile(String name)
+			{
+				FileEntry entry=filesByName.remove(name);
+				if(entry!=null) filesByID.remove(entry.id);
+			}
+		});
+		if(replayed>0)
+		{
+			if(bufferSize>0)
+				commit();
+			else
+				writeManifest();
+		}
+		journal.start();
+	}
+
+	/**
+	 * Reads the manifest file, opening all segments.
+	 * @param manifest Manifest file
+	 * @param loaded List that receives segments
+	 * @param segmentNames Set that receives segment filenames
+	 * @return False if the manifest is from a different version
+	 * @throws IOException Error reading manifest or segments
+	 */
+	private boolean readManifest(File manifest,List<IndexSegment> loaded,
+		Set<String> segmentNames) throws IOException
+	{
+		DataInputStream dis=new DataInputStream(new BufferedInputStream(
+			new FileInputStream(manifest)));
+		try
+		{
+			if(dis.readInt()!=MAGIC)
+				throw new IOException("Log index manifest not recognised");
+			if(dis.readInt()!=VERSION) return false;
+			nextSegmentID=dis.readInt();
+			nextFileID=dis.readInt();
+			int segmentCount=dis.readInt();
+			for(int i=0;i<segmentCount;i++)
+			{
+				int id=dis.readInt();
+				File f=getSegmentFile(id);
+				loaded.add(new IndexSegment(id,f));
+				segmentNames.add(f.getName());
+			}
+			int fileCount=dis.readInt();
+			for(int i=0;i<fileCount;i++)
+			{
+				FileEntry entry=new FileEntry();
+				entry.id=dis.readInt();
+				entry.name=dis.readUTF();
+				entry.indexedLength=dis.readLong();
+				entry.bufferedLength=entry.indexedLength;
+				filesByID.put(entry.id,entry);
+				filesByName.put(entry.name,entry);
+			}
+		}
+		finally
+		{
+			dis.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the index, writing any buffered data first.
+	 * @throws IOException Error writing data
+	 */
+	synchronized void close() throws IOException
+	{
+		boolean ok=false;
+		try
+		{
+			commit();
+			ok=true;
+		}
+		finally
+		{
+			if(ok)
+			{
+				journal.close();
+			}
+			else
+			{
+				journal.flush();
+			}
+			for(int i=0;i<segments.length;i++)
+			{
+				segments[i].close();
+			}
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * @param id Segment ID
+	 * @return File for segment
+	 */
+	private File getSegmentFile(int id)
+	{
+		return new File(folder,SEGMENTPREFIX+id+SEGMENTSUFFIX);
+	}
+
+	/**
+	 * @param term Word (already lower-case)
+	 * @return Term as stored in the index
+	 */
+	static String getTerm(String term)
+	{
+		return term.length()>MAXTERMLENGTH ? term.substring(0,MAXTERMLENGTH) : term;
+	}
+
+	/** @return Names of all files in the index */
+	synchronized String[] getFileNames()
+	{
+		return filesByName.keySet().toArray(new String[filesByName.size()]);
+	}
+
+	/**
+	 * @param id File ID
+	 * @return Name of file, or null if it is not in the index
+	 */
+	synchronized String getFileName(int id)
+	{
+		FileEntry entry=filesByID.get(id);
+		return entry==null ? null : entry.name;
+	}
+
+	/**
+	 * @param name File name
+	 * @return Length of file that has been indexed (0 if none)
+	 */
+	synchronized long getIndexedLength(String name)
+	{
+		FileEntry entry=filesByName.get(name);
+		return entry==null ? 0 : entry.bufferedLength;
+	}
+
+	/**
+	 * Adds a line to the index.
+	 * @param name Log file name
+	 * @param offset Byte offset of line in file
+	 * @param end Byte offset after end of line
+	 * @param words Words in line
+	 * @throws IOException Error writing a new segment
+	 */
+	synchronized void addLine(String name,long offset,long end,String[] words)
+		throws IOException
+	{
+		journal.addLine(name,offset,end,words);
+		bufferLine(name,offset,end,words);
+
+		if(bufferSize>=BUFFER_MAXPENDING)
+		{
+			commit();
+		}
+	}
+
+	/**
+	 * Adds a line to the in-memory buffer.
+	 * @param name Log file name
+	 * @param offset Byte offset of line in file
+	 * @param end Byte offset after end of line
+	 * @param words Words in line
+	 */
+	private void bufferLine(String name,long offset,long end,String[] words)
+	{
+		FileEntry entry=filesByName.get(name);
+		if(entry==null)
+		{
+			entry=new FileEntry();
+			entry.id=nextFileID++;
+			entry.name=name;
+			filesByID.put(entry.id,entry);
+			filesByName.put(name,entry);
+		}
+		for(int i=0;i<words.length;i++)
+		{
+			String term=getTerm(words[i]);
+			Postings.Builder builder=buffer.get(term);
+			if(builder==null)
+			{
+				builder=new Postings.Builder();
+				buffer.put(term,builder);
+			}
+			builder.add(entry.id,offset,i);
+		}
+		bufferSize+=words.length;
+		entry.bufferedLength=Math.max(entry.bufferedLength,end);
+	}
+
+	/**
+	 * Writes journal records for lines added since the last call, so that
+	 * they survive a crash. Call after the lines themselves have been written
+	 * to the log files.
+	 * @throws IOException Error writing journal
+	 */
+	synchronized void sync() throws IOException
+	{
+		journal.flush();
+	}
+
+	/**
+	 * Removes files from the index. Their postings are dropped the next time
+	 * the segments containing them are merged.
+	 * @param names File names
+	 * @throws IOException Error writing manifest
+	 */
+	synchronized void removeFiles(String[] names) throws IOException
+	{
+		for(int i=0;i<names.length;i++)
+		{
+			FileEntry entry=filesByName.remove(names[i]);
+			if(entry!=null)
+			{
+				filesByID.remove(entry.id);
+				journal.removeFile(names[i]);
+			}
+		}
+		journal.flush();
+		writeManifest();
+	}
+
+	/**
+	 * Writes buffered lines to a new segment.
+	 * @throws IOException Error writing data
+	 */
+	synchronized void commit() throws IOException
+	{
+		if(bufferSize>0)
+		{
+			final String[] terms=buffer.keySet().toArray(new String[buffer.size()]);
+			Arrays.sort(terms);
+			int id=nextSegmentID++;
+			File f=getSegmentFile(id);
+			IndexSegment.write(f,new IndexSegment.TermSource()
+			{
+				private int next=0;
+
+				@Override
+				public String next(Postings.ByteBuilder postings)
+				{
+					if(next==terms.length) return null;
+					String term=terms[next++];
+					Postings.Builder builder=new Postings.Builder();
+					builder.addAll(buffer.get(term),liveFiles);
+					if(builder.size()>0) builder.build().encode(postings);
+					return term;
+				}
+			});
+			addSegment(new IndexSegment(id,f));
+
+			buffer.clear();
+			bufferSize=0;
+			for(FileEntry entry : filesByID.values())
+			{
+				entry.indexedLength=entry.bufferedLength;
+			}
+			writeManifest();
+			journal.start();
+		}
+	}
+
+	/** @return True if there are enough segments that some should be merged */
+	synchronized boolean needsCompaction()
+	{
+		return segments.length>MAXSEGMENTS;
+	}
+
+	/**
+	 * Merges the smallest segments into one, if there are too many. The index
+	 * is only locked while choosing segments and while replacing them with the
+	 * result, so lines can be added and searched during the merge.
+	 * @param maintenance Maintenance object (for checkpoints)
+	 * @return True if segments were merged, false if there was no need
+	 * @throws IOException Error writing data, or maintenance stopped
+	 */
+	boolean compact(final LogMaintenance maintenance) throws IOException
+	{
+		IndexSegment[] merging=new IndexSegment[MERGEFACTOR];
+		int id;
+		synchronized(this)
+		{
+			if(segments.length<=MAXSEGMENTS) return false;
+			IndexSegment[] bySize=segments.clone();
+			Arrays.sort(bySize,new Comparator<IndexSegment>()
+			{
+				@Override
+				public int compare(IndexSegment a,IndexSegment b)
+				{
+					long sizeA=a.getSize(),sizeB=b.getSize();
+					return sizeA<sizeB ? -1 : sizeA==sizeB ? 0 : 1;
+				}
+			});
+			System.arraycopy(bySize,0,merging,0,MERGEFACTOR);
+			for(int i=0;i<merging.length;i++)
+			{
+				merging[i].retain();
+			}
+			id=nextSegmentID++;
+		}
+
+		File f=getSegmentFile(id);
+		try
+		{
+			final IndexSegment.TermSource source=IndexSegment.merge(merging,liveFiles);
+			IndexSegment.write(f,new IndexSegment.TermSource()
+			{
+				private int count=0;
+
+				@Override
+				public String next(Postings.ByteBuilder postings) throws IOException
+				{
+					if(++count%MERGESTEP==0) maintenance.checkpoint();
+					return source.next(postings);
+				}
+			});
+
+			synchronized(this)
+			{
+				List<IndexSegment> remaining=new LinkedList<IndexSegment>(Arrays.asList(segments));
+				remaining.removeAll(Arrays.asList(merging));
+				remaining.add(new IndexSegment(id,f));
+				segments=remaining.toArray(new IndexSegment[remaining.size()]);
+				writeManifest();
+			}
+		}
+		finally
+		{
+			for(int i=0;i<merging.length;i++)
+			{
+				merging[i].release();
+			}
+		}
+
+		for(int i=0;i<merging.length;i++)
+		{
+			merging[i].retire();
+		}
+		return true;
+	}
+
+	/**
+	 * @param segment New segment to add to end of list
+	 */
+	private void addSegment(IndexSegment segment)
+	{
+		IndexSegment[] newSegments=new IndexSegment[segments.length+1];
+		System.arraycopy(segments,0,newSegments,0,segments.length);
+		newSegments[segments.length]=segment;
+		segments=newSegments;
+	}
+
+	/**
+	 * Writes the manifest file, replacing it safely.
+	 * @throws IOException Error writing file
+	 */
+	private void writeManifest() throws IOException
+	{
+		File newManifest=new File(folder,MANIFEST+".new");
+		FileOutputStream fos=new FileOutputStream(newManifest);
+		DataOutputStream dos=new DataOutputStream(new BufferedOutputStream(fos));
+		try
+		{
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(nextSegmentID);
+			dos.writeInt(nextFileID);
+			dos.writeInt(segments.length);
+			for(int i=0;i<segments.length;i++)
+			{
+				dos.writeInt(segments[i].getID());
+			}
+			dos.writeInt(filesByID.size());
+			for(FileEntry entry : filesByID.values())
+			{
+				dos.writeInt(entry.id);
+				dos.writeUTF(entry.name);
+				dos.writeLong(entry.indexedLength);
+			}
+			// Must be on disk before the old manifest is moved aside
+			dos.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			dos.close();
+		}
+
+		File
+			manifest=new File(folder,MANIFEST),
+			oldManifest=new File(folder,MANIFEST+".old");
+		if(oldManifest.exists())
+		{
+			if(!oldManifest.delete()) throw new IOException(
+				"Failed to delete old log index manifest "+oldManifest);
+		}
+		if(manifest.exists() && !manifest.renameTo(oldManifest))
+			throw new IOException("Failed to rename old log index manifest "+manifest);
+		if(!newManifest.renameTo(manifest))
+			throw new IOException("Failed to rename new log index manifest "+newManifest);
+		oldManifest.delete();
+	}
+
+	/**
+	 * Obtains all occurrences of a term in files that are still in the index.
+	 * @param word Word (lower-case)
+	 * @return Postings
+	 * @throws IOException Error reading index
+	 */
+	Postings getPostings(String word) throws IOException
+	{
+		String term=getTerm(word);
+		Postings.Builder builder=new Postings.Builder();
+		IndexSegment[] current;
+		synchronized(this)
+		{
+			current=segments;
+			for(int i=0;i<current.length;i++)
+			{
+				current[i].retain();
+			}
+			Postings.Builder buffered=buffer.get(term);
+			if(buffered!=null)
+			{
+				builder.addAll(buffered,liveFiles);
+			}
+		}
+		try
+		{
+			for(int i=0;i<current.length;i++)
+			{
+				long[] location=current[i].find(term);
+				if(location!=null)
+				{
+					current[i].read(location,builder,liveFiles);
+				}
+			}
+		}
+		finally
+		{
+			for(int i=0;i<current.length;i++)
+			{
+				current[i].release();
+			}
+		}
+		return builder.size()==0 ? Postings.EMPTY : builder.build();
+	}
+}
@@ -0,0 +1,183 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.util.LinkedList;
+
+import leafchat.core.api.ErrorMsg;
+
+/**
+ * Runs slow log housekeeping (expiring old logs, compressing logs, merging
+ * index segments) on a low-priority background thread, so that it doesn't
+ * hold up startup or logging. Tasks work in small steps and call
+ * {@link #checkpoint()} between them, which waits while maintenance is
+ * paused (for example during a search) and stops the task when the logger
+ * is closed. Stopped tasks leave everything in a consistent state and are
+ * repeated next time.
+ */
+class LogMaintenance implements Runnable
+{
+	/** A job for the maintenance thread */
+	interface Task
+	{
+		/** @return Description of task, for error messages */
+		String getName();
+
+		/**
+		 * Does the work.
+		 * @param maintenance Maintenance object (for checkpoints)
+		 * @throws IOException Error (or {@link InterruptedIOException} if stopped)
+		 */
+		void run(LogMaintenance maintenance) throws IOException;
+	}
+
+	private Thread thread;
+
+	/** Tasks waiting to run */
+	private LinkedList<Task> tasks=new LinkedList<Task>();
+
+	/** Number of callers that have paused maintenance */
+	private int pauses;
+
+	private boolean stopping;
+
+	/**
+	 * Starts the maintenance thread.
+	 */
+	LogMaintenance()
+	{
+		thread=new Thread(this,"Log maintenance");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Adds a task, unless it is already waiting to run.
+	 * @param task Task
+	 */
+	synchronized void add(Task task)
+	{
+		if(stopping || tasks.contains(task)) return;
+		tasks.addLast(task);
+		notifyAll();
+	}
+
+	/**
+	 * Pauses maintenance at the next checkpoint. Each call must be followed by
+	 * a call to {@link #resume()}.
+	 */
+	synchronized void pause()
+	{
+		pauses++;
+	}
+
+	/**
+	 * Resumes maintenance, once every caller that paused it has resumed.
+	 */
+	synchronized void resume()
+	{
+		pauses--;
+		notifyAll();
+	}
+
+	/**
+	 * Called by tasks between steps. Waits while maintenance is paused.
+	 * @throws InterruptedIOException If maintenance is being stopped
+	 */
+	synchronized void checkpoint() throws InterruptedIOException
+	{
+		while(pauses>0 && !stopping)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+		if(stopping) throw new InterruptedIOException("Log maintenance stopped");
+	}
+
+	/**
+	 * Stops the current task at its next checkpoint, discards any others, and
+	 * waits for the thread to exit.
+	 */
+	void stop()
+	{
+		synchronized(this)
+		{
+			stopping=true;
+			tasks.clear();
+			notifyAll();
+		}
+		while(thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			Task task;
+			synchronized(this)
+			{
+				while(tasks.isEmpty() && !stopping)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+				if(stopping) return;
+				task=tasks.removeFirst();
+			}
+			try
+			{
+				task.run(this);
+			}
+			catch(InterruptedIOException e)
+			{
+				return;
+			}
+			catch(IOException e)
+			{
+				ErrorMsg.report("Error during log maintenance ("+task.getName()+")",e);
+			}
+			catch(RuntimeException e)
+			{
+				// Don't let one broken task stop the others
+				ErrorMsg.report("Error during log maintenance ("+task.getName()+")",e);
+			}
+		}
+	}
+}
@@ -0,0 +1,488 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * A compressed container holding several log files. The files are joined
+ * together and split into blocks of {@link #BLOCKSIZE} bytes, which are
+ * compressed separately, so that reading part of a file only needs the
+ * blocks containing it. A table at the end of the container gives the
+ * location of each block and the start and length of each file.
+ * <p>
+ * Packs are written once (using {@link Writer}) and never modified; to
+ * change a pack, write a new one and replace it.
+ */
+class LogPack
+{
+	private final static int MAGIC=0x6c63706b; // 'lcpk'
+	private final static int VERSION=1;
+
+	/** Extension for pack files */
+	final static String EXTENSION=".lcpack";
+
+	/** Uncompressed size of each block (except the last) */
+	private final static int BLOCKSIZE=65536;
+
+	/** Size of footer: table position, magic number */
+	private final static int FOOTERSIZE=12;
+
+	private File file;
+
+	/** Position of each block within the pack file */
+	private long[] blockOffsets;
+	/** Compressed and uncompressed size of each block */
+	private int[] blockLengths,blockSizes;
+
+	/** Map from file name to {start, length} within the joined data */
+	private Map<String, long[]> files=new LinkedHashMap<String, long[]>();
+
+	/** Number of streams currently open */
+	private int openStreams;
+
+	/**
+	 * Opens an existing pack and reads its tables.
+	 * @param file Pack file
+	 * @throws IOException If the file can't be read or is invalid
+	 */
+	LogPack(File file) throws IOException
+	{
+		this.file=file;
+		RandomAccessFile raf=new RandomAccessFile(file,"r");
+		try
+		{
+			long length=raf.length();
+			if(length<8+FOOTERSIZE) throw new IOException("Log pack truncated: "+file);
+			raf.seek(0);
+			if(raf.readInt()!=MAGIC || raf.readInt()!=VERSION)
+				throw new IOException("Log pack not recognised: "+file);
+			raf.seek(length-FOOTERSIZE);
+			long tablePos=raf.readLong();
+			if(raf.readInt()!=MAGIC || tablePos<8 || tablePos>length-FOOTERSIZE)
+				throw new IOException("Log pack incomplete: "+file);
+
+			byte[] table=new byte[(int)(length-FOOTERSIZE-tablePos)];
+			raf.seek(tablePos);
+			raf.readFully(table);
+			DataInputStream dis=new DataInputStream(new ByteArrayInputStream(table));
+			int blockCount=dis.readInt();
+			blockOffsets=new long[blockCount];
+			blockLengths=new int[blockCount];
+			blockSizes=new int[blockCount];
+			for(int i=0;i<blockCount;i++)
+			{
+				blockOffsets[i]=dis.readLong();
+				blockLengths[i]=dis.readInt();
+				blockSizes[i]=dis.readInt();
+			}
+			int fileCount=dis.readInt();
+			for(int i=0;i<fileCount;i++)
+			{
+				String name=dis.readUTF();
+				files.put(name,new long[] {dis.readLong(),dis.readLong()});
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/** @return Pack file */
+	File getFile()
+	{
+		return file;
+	}
+
+	/** @return Names of files in pack, in the order they were added */
+	String[] getNames()
+	{
+		return files.keySet().toArray(new String[files.size()]);
+	}
+
+	/**
+	 * @param name File name
+	 * @return True if the pack contains that file
+	 */
+	boolean contains(String name)
+	{
+		return files.containsKey(name);
+	}
+
+	/**
+	 * @param name File name
+	 * @return Length of file in bytes
+	 * @throws FileNotFoundException If the pack doesn't contain the file
+	 */
+	long getLength(String name) throws FileNotFoundException
+	{
+		return getLocation(name)[1];
+	}
+
+	/**
+	 * Opens a file from the pack. The stream must be closed after use.
+	 * @param name File name
+	 * @param from Byte offset within file to start reading from
+	 * @return Stream that reads the file from that offset
+	 * @throws IOException If the pack can't be opened or doesn't contain the file
+	 */
+	InputStream open(String name,long from) throws IOException
+	{
+		long[] location=getLocation(name);
+		from=Math.min(from,location[1]);
+		return new PackInputStream(location[0]+from,location[1]-from);
+	}
+
+	/**
+	 * @param name File name
+	 * @return {start, length} of file
+	 * @throws FileNotFoundException If the pack doesn't contain the file
+	 */
+	private long[] getLocation(String name) throws FileNotFoundException
+	{
+		long[] location=files.get(name);
+		if(location==null) throw new FileNotFoundException(
+			"Log pack "+file+" does not contain "+name);
+		return location;
+	}
+
+	/**
+	 * Waits until every stream opened from this pack has been closed. Used
+	 * before the pack is replaced.
+	 * @throws InterruptedIOException If interrupted while waiting
+	 */
+	synchronized void waitForStreams() throws InterruptedIOException
+	{
+		while(openStreams>0)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted waiting for log pack: "+file);
+			}
+		}
+	}
+
+	/** Reads part of the joined data, decompressing blocks as needed */
+	private class PackInputStream extends InputStream
+	{
+		private RandomAccessFile raf;
+		private Inflater inflater=new Inflater();
+		private byte[] compressed=new byte[0];
+
+		/** Current block (uncompressed) */
+		private byte[] block=new byte[0];
+		private int blockIndex,blockPos,blockSize;
+
+		/** Bytes left to read */
+		private long remaining;
+
+		/**
+		 * @param start Start position within joined data
+		 * @param length Number of bytes to read
+		 * @throws IOException Error opening pack
+		 */
+		PackInputStream(long start,long length) throws IOException
+		{
+			raf=new RandomAccessFile(file,"r");
+			synchronized(LogPack.this)
+			{
+				openStreams++;
+			}
+			blockIndex=(int)(start/BLOCKSIZE)-1;
+			blockPos=(int)(start%BLOCKSIZE);
+			remaining=length;
+			if(remaining>0)
+			{
+				int skip=blockPos;
+				try
+				{
+					nextBlock();
+				}
+				catch(IOException e)
+				{
+					close();
+					throw e;
+				}
+				blockPos=skip;
+			}
+		}
+
+		/**
+		 * Reads and decompresses the next block.
+		 * @throws IOException Error reading or decompressing block
+		 */
+		private void nextBlock() throws IOException
+		{
+			blockIndex++;
+			if(blockIndex>=blockOffsets.length)
+				throw new EOFException("Log pack data truncated: "+file);
+			int length=blockLengths[blockIndex];
+			if(compressed.length<length) compressed=new byte[length];
+			raf.seek(blockOffsets[blockIndex]);
+			raf.readFully(compressed,0,length);
+
+			blockSize=blockSizes[blockIndex];
+			if(block.length<blockSize) block=new byte[blockSize];
+			inflater.reset();
+			inflater.setInput(compressed,0,length);
+			try
+			{
+				int done=0;
+				while(done<blockSize && !inflater.finished())
+				{
+					int inflated=inflater.inflate(block,done,blockSize-done);
+					if(inflated==0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					done+=inflated;
+				}
+				if(done!=blockSize)
+					throw new IOException("Log pack block corrupt: "+file);
+			}
+			catch(DataFormatException e)
+			{
+				IOException ioe=new IOException("Log pack block corrupt: "+file);
+				ioe.initCause(e);
+				throw ioe;
+			}
+			blockPos=0;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one=new byte[1];
+			return read(one,0,1)==-1 ? -1 : one[0]&0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer,int offset,int length) throws IOException
+		{
+			if(remaining==0) return -1;
+			if(length==0) return 0;
+			if(blockPos==blockSize) nextBlock();
+			int count=(int)Math.min(Math.min(length,blockSize-blockPos),remaining);
+			System.arraycopy(block,blockPos,buffer,offset,count);
+			blockPos+=count;
+			remaining-=count;
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if(raf==null) return;
+			inflater.end();
+			try
+			{
+				raf.close();
+			}
+			finally
+			{
+				raf=null;
+				synchronized(LogPack.this)
+				{
+					openStreams--;
+					LogPack.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a new pack. Files are added one at a time; the pack is written to
+	 * a temporary file and only replaces any existing pack when
+	 * {@link #finish()} is called.
+	 */
+	static class Writer
+	{
+		private File target,temp;
+		private FileOutputStream fos;
+		private DataOutputStream out;
+		private Deflater deflater=new Deflater(Deflater.BEST_COMPRESSION);
+
+		/** Current (uncompressed) block */
+		private byte[] block=new byte[BLOCKSIZE];
+		private int blockPos;
+		private byte[] compressed=new byte[BLOCKSIZE];
+
+		/** Position in pack file */
+		private long position;
+		/** Total bytes of file data added */
+		private long total;
+
+		private List<long[]> blocks=new ArrayList<long[]>();
+		private Map<String, long[]> files=new LinkedHashMap<String, long[]>();
+
+		/**
+		 * @param target Pack file to create or replace
+		 * @throws IOException Error creating file
+		 */
+		Writer(File target) throws IOException
+		{
+			this.target=target;
+			temp=new File(target.getPath()+".new");
+			fos=new FileOutputStream(temp);
+			out=new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			position=8;
+		}
+
+		/**
+		 * @param name File name
+		 * @return True if a file with that name has been added
+		 */
+		boolean contains(String name)
+		{
+			return files.containsKey(name);
+		}
+
+		/** @return Pack file that will be created or replaced */
+		File getTarget()
+		{
+			return target;
+		}
+
+		/** @return True if no files have been added */
+		boolean isEmpty()
+		{
+			return files.isEmpty();
+		}
+
+		/**
+		 * Adds a file to the pack.
+		 * @param name File name
+		 * @param in Stream containing file data (read to the end, not closed)
+		 * @throws IOException Error reading or writing data
+		 */
+		void add(String name,InputStream in) throws IOException
+		{
+			if(files.containsKey(name))
+				throw new IOException("Log pack already contains "+name);
+			long start=total;
+			while(true)
+			{
+				if(blockPos==BLOCKSIZE) writeBlock();
+				int read=in.read(block,blockPos,BLOCKSIZE-blockPos);
+				if(read==-1) break;
+				blockPos+=read;
+				total+=read;
+			}
+			files.put(name,new long[] {start,total-start});
+		}
+
+		/**
+		 * Compresses and writes the current block.
+		 * @throws IOException Error writing data
+		 */
+		private void writeBlock() throws IOException
+		{
+			deflater.reset();
+			deflater.setInput(block,0,blockPos);
+			deflater.finish();
+			int length=0;
+			while(!deflater.finished())
+			{
+				if(length==compressed.length)
+				{
+					byte[] bigger=new byte[compressed.length*2];
+					System.arraycopy(compressed,0,bigger,0,length);
+					compressed=bigger;
+				}
+				length+=deflater.deflate(compressed,length,compressed.length-length);
+			}
+			out.write(compressed,0,length);
+			blocks.add(new long[] {position,length,blockPos});
+			position+=length;
+			blockPos=0;
+		}
+
+		/**
+		 * Writes the tables and replaces any existing pack.
+		 * @throws IOException Error writing data
+		 */
+		void finish() throws IOException
+		{
+			try
+			{
+				if(blockPos>0) writeBlock();
+				long tablePos=position;
+				out.writeInt(blocks.size());
+				for(long[] b : blocks)
+				{
+					out.writeLong(b[0]);
+					out.writeInt((int)b[1]);
+					out.writeInt((int)b[2]);
+				}
+				out.writeInt(files.size());
+				for(Map.Entry<String, long[]> me : files.entrySet())
+				{
+					out.writeUTF(me.getKey());
+					out.writeLong(me.getValue()[0]);
+					out.writeLong(me.getValue()[1]);
+				}
+				out.writeLong(tablePos);
+				out.writeInt(MAGIC);
+
+				// Must be on disk before it replaces anything, as the source files
+				// are deleted once it is in place
+				out.flush();
+				fos.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+				deflater.end();
+			}
+
+			File old=new File(target.getPath()+".old");
+			if(old.exists() && !old.delete())
+				throw new IOException("Failed to delete old log pack "+old);
+			if(target.exists() && !target.renameTo(old))
+				throw new IOException("Failed to rename old log pack "+target);
+			if(!temp.renameTo(target))
+				throw new IOException("Failed to rename new log pack "+temp);
+			old.delete();
+		}
+
+		/**
+		 * Abandons the pack, deleting the temporary file.
+		 */
+		void abort()
+		{
+			try
+			{
+				out.close();
+			}
+			catch(IOException e)
+			{
+				// Ignore exception on close
+			}
+			deflater.end();
+			temp.delete();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+/**
+ * Bounded ring buffer of lines waiting to be written by the logger thread.
+ * Callers add lines without touching the disk or the index; when the buffer
+ * is full, the overflow policy decides whether the caller waits or a line is
+ * discarded.
+ */
+class LogQueue
+{
+	/** Overflow policy: caller waits until there is space */
+	final static int OVERFLOW_BLOCK=0;
+	/** Overflow policy: the new line is discarded */
+	final static int OVERFLOW_DROPNEWEST=1;
+	/** Overflow policy: the oldest waiting line is discarded */
+	final static int OVERFLOW_DROPOLDEST=2;
+
+	/** A single line waiting to be logged */
+	static class Entry
+	{
+		final long time;
+		final String source,category,item,type,xml;
+
+		Entry(long time,String source,String category,String item,String type,
+			String xml)
+		{
+			this.time=time;
+			this.source=source;
+			this.category=category;
+			this.item=item;
+			this.type=type;
+			this.xml=xml;
+		}
+	}
+
+	private Entry[] ring;
+	private int head,count;
+	private int policy;
+
+	/** Number of lines ever added, and number written or discarded */
+	private long added,processed;
+
+	/** Number of lines discarded since last call to {@link #takeDropped()} */
+	private int dropped;
+
+	private boolean closed;
+
+	/**
+	 * @param capacity Maximum number of waiting lines
+	 * @param policy OVERFLOW_xx constant
+	 */
+	LogQueue(int capacity,int policy)
+	{
+		ring=new Entry[Math.max(1,capacity)];
+		this.policy=policy;
+	}
+
+	/**
+	 * Adds a line to the queue.
+	 * @param e Line
+	 * @return False if the line was discarded
+	 */
+	synchronized boolean add(Entry e)
+	{
+		if(closed) return false;
+		if(count==ring.length)
+		{
+			switch(policy)
+			{
+			case OVERFLOW_DROPNEWEST:
+				dropped++;
+				return false;
+
+			case OVERFLOW_DROPOLDEST:
+				ring[head]=null;
+				head=(head+1)%ring.length;
+				count--;
+				dropped++;
+				processed++;
+				break;
+
+			default:
+				while(count==ring.length && !closed)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException ie)
+					{
+					}
+				}
+				if(closed) return false;
+				break;
+			}
+		}
+		ring[(head+count)%ring.length]=e;
+		count++;
+		added++;
+		if(count==1) notifyAll();
+		return true;
+	}
+
+	/**
+	 * Removes waiting lines, waiting for some to arrive if there are none.
+	 * Lines taken must be passed to {@link #done(int)} once written.
+	 * @param batch Array to receive lines
+	 * @param timeout Maximum time to wait (milliseconds)
+	 * @return Number of lines taken, or -1 if the queue is closed and empty
+	 */
+	synchronized int take(Entry[] batch,long timeout)
+	{
+		if(count==0 && !closed && timeout>0)
+		{
+			try
+			{
+				wait(timeout);
+			}
+			catch(InterruptedException ie)
+			{
+			}
+		}
+		if(count==0)
+		{
+			return closed ? -1 : 0;
+		}
+		boolean wasFull=count==ring.length;
+		int taken=Math.min(count,batch.length);
+		for(int i=0;i<taken;i++)
+		{
+			batch[i]=ring[head];
+			ring[head]=null;
+			head=(head+1)%ring.length;
+		}
+		count-=taken;
+		if(wasFull) notifyAll();
+		return taken;
+	}
+
+	/**
+	 * Marks lines from {@link #take(Entry[], long)} as written.
+	 * @param lines Number of lines
+	 */
+	synchronized void done(int lines)
+	{
+		processed+=lines;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every line added before this call has been written (or the
+	 * queue is closed, or the timeout expires).
+	 * @param timeout Maximum time to wait (milliseconds)
+	 */
+	synchronized void flush(long timeout)
+	{
+		long target=added,until=System.currentTimeMillis()+timeout;
+		while(processed<target && !closed)
+		{
+			long wait=until-System.currentTimeMillis();
+			if(wait<=0)
+			{
+				return;
+			}
+			try
+			{
+				wait(wait);
+			}
+			catch(InterruptedException ie)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting lines. Lines already waiting can still be taken.
+	 */
+	synchronized void close()
+	{
+		closed=true;
+		notifyAll();
+	}
+
+	/** @return Number of lines discarded since the last call */
+	synchronized int takeDropped()
+	{
+		int result=dropped;
+		dropped=0;
+		return result;
+	}
+}
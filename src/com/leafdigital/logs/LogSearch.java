@@ -0,0 +1,482 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.*;
+
+import util.xml.XMLException;
+
+import com.leafdigital.logs.LoggerImp.LogFileInfo;
+
+import leafchat.core.api.*;
+
+/**
+ * A single log search. Matching files are found from the index; the summary
+ * for each file is then read by several worker threads at once. Results are
+ * passed to the handler in display order as soon as each one (and all those
+ * before it) is ready.
+ */
+class LogSearch
+{
+	/** Number of threads that read summaries */
+	private final static int WORKERS=
+		Math.max(2,Math.min(4,Runtime.getRuntime().availableProcessors()));
+
+	/** Matches the entry tags around a line */
+	private final static Pattern ENTRYTAG=Pattern.compile("(^<e[^>]+>)|(</e>$)");
+
+	/**
+	 * Receives search results. Calls come from background threads and may
+	 * still arrive briefly after the search is cancelled, so the handler
+	 * should check which search they are for.
+	 */
+	interface Handler
+	{
+		/**
+		 * Called once the matching files are known, before any results.
+		 * @param search Search
+		 * @param files Number of matching files
+		 * @throws GeneralException Any error
+		 */
+		void found(LogSearch search,int files) throws GeneralException;
+
+		/**
+		 * Called with each result, in display order.
+		 * @param search Search
+		 * @param result Result
+		 * @throws GeneralException Any error (stops the search)
+		 */
+		void result(LogSearch search,Result result) throws GeneralException;
+
+		/**
+		 * Called when the search has finished (not if it was cancelled).
+		 * @param search Search
+		 * @param results Number of results
+		 * @throws GeneralException Any error
+		 */
+		void finished(LogSearch search,int results) throws GeneralException;
+	}
+
+	/** A matching file and summary */
+	static class Result implements Comparable<Result>
+	{
+		private LogFileInfo lfi;
+		private long offset;
+		private String[] lines;
+
+		private Result(LogFileInfo lfi,long offset)
+		{
+			this.lfi=lfi;
+			this.offset=offset;
+		}
+
+		/** @return Information about file */
+		LogFileInfo getFileInfo()
+		{
+			return lfi;
+		}
+
+		/** @return Summary lines as XML, with matching words in &lt;found&gt; */
+		String getXML()
+		{
+			StringBuffer sb=new StringBuffer();
+			for(int i=0;i<lines.length;i++)
+			{
+				if(lines[i]!=null)
+					sb.append("<line>"+lines[i]+"</line>");
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public int compareTo(Result other)
+		{
+			int i=other.lfi.getDate().compareTo(lfi.getDate());
+			if(i!=0) return i;
+			i=lfi.getCategory().compareTo(other.lfi.getCategory());
+			if(i!=0) return i;
+			i=lfi.getItem().compareTo(other.lfi.getItem());
+			if(i!=0) return i;
+			i=lfi.getServer().compareTo(other.lfi.getServer());
+			return i;
+		}
+	}
+
+	private LoggerImp logger;
+	private Set<String> positiveWords,negativeWords;
+	private String[][] positivePhrases,negativePhrases;
+	private Handler handler;
+
+	private volatile boolean cancelled;
+
+	/** Matches any positive word (shared; each worker has its own matcher) */
+	private Pattern highlight;
+
+	/** Results in display order; summaries are filled in by workers */
+	private Result[] results;
+	/** Set when a worker has finished with the corresponding result */
+	private boolean[] done;
+	/** Next result for a worker to take, and next to pass to handler */
+	private int nextWork,nextResult;
+
+	/** First error from a worker or handler */
+	private GeneralException error;
+
+	/**
+	 * @param logger Logger
+	 * @param positiveWords Words that must exist
+	 * @param negativeWords Words that must not exist
+	 * @param positivePhrases Phrases that must exist
+	 * @param negativePhrases Phrases that must not exist
+	 * @param handler Handler for results
+	 */
+	LogSearch(LoggerImp logger,Set<String> positiveWords,Set<String> negativeWords,
+		String[][] positivePhrases,String[][] negativePhrases,Handler handler)
+	{
+		this.logger=logger;
+		this.positiveWords=positiveWords;
+		this.negativeWords=negativeWords;
+		this.positivePhrases=positivePhrases;
+		this.negativePhrases=negativePhrases;
+		this.handler=handler;
+
+		highlight=getHighlightPattern(positiveWords);
+	}
+
+	/**
+	 * Builds the pattern used to mark words in summaries.
+	 * @param words Words to match
+	 * @return Pattern matching any of the words (as a whole word)
+	 */
+	static Pattern getHighlightPattern(Collection<String> words)
+	{
+		// Longest words first so that they win over shorter ones
+		String[] sorted=words.toArray(new String[words.size()]);
+		Arrays.sort(sorted,new Comparator<String>()
+		{
+			@Override
+			public int compare(String a,String b)
+			{
+				return b.length()-a.length();
+			}
+		});
+		StringBuffer pattern=new StringBuffer("(?<![\\p{L}\\p{Nd}'])(");
+		for(int i=0;i<sorted.length;i++)
+		{
+			if(i>0) pattern.append('|');
+			pattern.append(Pattern.quote(sorted[i]));
+		}
+		pattern.append(")(?![\\p{L}\\p{Nd}'])");
+		return Pattern.compile(pattern.toString(),
+			Pattern.CASE_INSENSITIVE|Pattern.UNICODE_CASE);
+	}
+
+	/**
+	 * Stops the search. No more results are passed to the handler.
+	 */
+	void cancel()
+	{
+		cancelled=true;
+	}
+
+	/**
+	 * Runs the search on the current thread and additional worker threads,
+	 * returning when it is complete or cancelled. Background log maintenance
+	 * is paused meanwhile.
+	 * @throws GeneralException Error reading index or log files
+	 */
+	void run() throws GeneralException
+	{
+		logger.pauseMaintenance();
+		try
+		{
+			runSearch();
+		}
+		finally
+		{
+			logger.resumeMaintenance();
+		}
+	}
+
+	/**
+	 * Does the search for {@link #run()}.
+	 * @throws GeneralException Error reading index or log files
+	 */
+	private void runSearch() throws GeneralException
+	{
+		results=find();
+		if(cancelled) return;
+		done=new boolean[results.length];
+		handler.found(this,results.length);
+
+		// Read summaries
+		Thread[] workers=new Thread[Math.max(0,Math.min(WORKERS,results.length)-1)];
+		for(int i=0;i<workers.length;i++)
+		{
+			workers[i]=new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					work();
+				}
+			},"Log search worker "+(i+1));
+			workers[i].start();
+		}
+		work();
+		for(int i=0;i<workers.length;i++)
+		{
+			try
+			{
+				workers[i].join();
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+
+		if(error!=null) throw error;
+		if(!cancelled) handler.finished(this,nextResult);
+	}
+
+	/**
+	 * Finds matching files using the index, and the best line in each.
+	 * @return Results (without summary lines) in display order
+	 * @throws GeneralException Error reading index
+	 */
+	private Result[] find() throws GeneralException
+	{
+		Map<String, Postings> postings=new HashMap<String, Postings>();
+		Set<Integer> totalFound=null;
+		for(String positiveWord : positiveWords)
+		{
+			Set<Integer> found=toSet(getPostings(postings,positiveWord).getFiles());
+			if(totalFound==null)
+			{
+				totalFound=found;
+			}
+			else
+			{
+				totalFound.retainAll(found);
+			}
+		}
+
+		// totalFound now includes all files with the positive words, let's
+		// chuck out the negative...
+		for(String negativeWord : negativeWords)
+		{
+			totalFound.removeAll(toSet(getPostings(postings,negativeWord).getFiles()));
+		}
+
+		// ...and check phrases using word positions
+		for(int i=0;i<negativePhrases.length && !totalFound.isEmpty();i++)
+		{
+			totalFound.removeAll(toSet(Postings.findPhraseFiles(
+				getPostings(postings,negativePhrases[i]))));
+		}
+		for(int i=0;i<positivePhrases.length && !totalFound.isEmpty();i++)
+		{
+			totalFound.retainAll(toSet(Postings.findPhraseFiles(
+				getPostings(postings,positivePhrases[i]))));
+		}
+
+		// Score lines in each file to pick the best one
+		Map<Integer, Map<Long, Integer>> lineScores =
+			new HashMap<Integer, Map<Long, Integer>>();
+		for(String positiveWord : positiveWords)
+		{
+			if(cancelled) break;
+			Postings p=postings.get(positiveWord);
+			for(int line=0;line<p.getLineCount();line++)
+			{
+				Integer file=p.getFile(line);
+				if(!totalFound.contains(file)) continue;
+				Map<Long, Integer> scores=lineScores.get(file);
+				if(scores==null)
+				{
+					scores=new HashMap<Long, Integer>();
+					lineScores.put(file,scores);
+				}
+				Long offset=p.getOffset(line);
+				Integer existing=scores.get(offset);
+				scores.put(offset,(existing==null ? 0 : existing) +
+					p.getPositionCount(line)*(10+positiveWord.length()));
+			}
+		}
+
+		List<Result> found=new ArrayList<Result>();
+		for(Map.Entry<Integer, Map<Long, Integer>> file : lineScores.entrySet())
+		{
+			File f=logger.getLogFile(file.getKey());
+			if(f==null) continue;
+			long bestOffset=0;
+			int bestScore=-1;
+			for(Map.Entry<Long, Integer> me : file.getValue().entrySet())
+			{
+				int score=me.getValue();
+				long offset=me.getKey();
+				if(score>bestScore || (score==bestScore && offset<bestOffset))
+				{
+					bestScore=score;
+					bestOffset=offset;
+				}
+			}
+			found.add(new Result(new LogFileInfo(f),bestOffset));
+		}
+		Collections.sort(found);
+		return found.toArray(new Result[found.size()]);
+	}
+
+	/**
+	 * Worker: reads summaries until there are none left.
+	 */
+	private void work()
+	{
+		Matcher m=highlight.matcher("");
+		XMLTextScanner scanner=new XMLTextScanner();
+		while(true)
+		{
+			int index;
+			synchronized(this)
+			{
+				if(cancelled || nextWork==results.length) return;
+				index=nextWork++;
+			}
+
+			Result result=results[index];
+			try
+			{
+				String[] lines=logger.readLinesAround(result.lfi.getFile(),result.offset);
+				for(int i=0;i<lines.length;i++)
+				{
+					if(lines[i]!=null)
+					{
+						lines[i]=highlight(scanner,m,ENTRYTAG.matcher(lines[i]).replaceAll(""));
+					}
+				}
+				result.lines=lines;
+			}
+			catch(GeneralException e)
+			{
+				failed(e);
+			}
+
+			// Pass on any results that are now ready, in order
+			synchronized(this)
+			{
+				done[index]=true;
+				while(nextResult<results.length && done[nextResult] && !cancelled)
+				{
+					if(results[nextResult].lines!=null)
+					{
+						try
+						{
+							handler.result(LogSearch.this,results[nextResult]);
+						}
+						catch(GeneralException e)
+						{
+							failed(e);
+							cancelled=true;
+						}
+					}
+					nextResult++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records an error, which is thrown from {@link #run()} at the end.
+	 * @param e Error
+	 */
+	private synchronized void failed(GeneralException e)
+	{
+		if(error==null) error=e;
+	}
+
+	/**
+	 * Marks positive words in the text of a line.
+	 * @param scanner Scanner to use
+	 * @param m Matcher for positive words
+	 * @param line Line XML
+	 * @return Line with words enclosed in &lt;found&gt; (unchanged if the line
+	 *   isn't valid XML)
+	 */
+	static String highlight(XMLTextScanner scanner,Matcher m,String line)
+	{
+		try
+		{
+			String result=scanner.wrapMatches(line,m,"found",null);
+			return result==null ? line : result;
+		}
+		catch(XMLException e)
+		{
+			return line;
+		}
+	}
+
+	/**
+	 * Obtains postings for a word, reusing them if already obtained.
+	 * @param postings Map of postings already obtained
+	 * @param word Word
+	 * @return Postings
+	 * @throws GeneralException Error reading index
+	 */
+	private Postings getPostings(Map<String, Postings> postings,String word)
+		throws GeneralException
+	{
+		Postings p=postings.get(word);
+		if(p==null)
+		{
+			p=logger.getPostings(word);
+			postings.put(word,p);
+		}
+		return p;
+	}
+
+	/**
+	 * Obtains postings for each word in a phrase.
+	 * @param postings Map of postings already obtained
+	 * @param phrase Words
+	 * @return Postings in same order as words
+	 * @throws GeneralException Error reading index
+	 */
+	private Postings[] getPostings(Map<String, Postings> postings,String[] phrase)
+		throws GeneralException
+	{
+		Postings[] result=new Postings[phrase.length];
+		for(int i=0;i<phrase.length;i++)
+		{
+			result[i]=getPostings(postings,phrase[i]);
+		}
+		return result;
+	}
+
+	private static Set<Integer> toSet(int[] values)
+	{
+		Set<Integer> result=new HashSet<Integer>();
+		for(int i=0;i<values.length;i++)
+		{
+			result.add(values[i]);
+		}
+		return result;
+	}
+}
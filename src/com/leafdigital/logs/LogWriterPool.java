@@ -0,0 +1,224 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Appends lines to log files using a limited number of open files and
+ * buffers. Lines are encoded straight into a direct buffer for each file,
+ * taken from a shared pool; a buffer is written to the file in one go when
+ * it fills up or the file is flushed, and then goes back to the pool. When
+ * every buffer is in use, the one for the least recently written file is
+ * written out and reused. Files are opened only to write a buffer, and
+ * kept open (up to a limit, least recently used closed first) in case
+ * they are needed again.
+ * <p>
+ * Not synchronized.
+ */
+class LogWriterPool
+{
+	/** Maximum number of files open at once */
+	private final static int MAXOPEN=32;
+
+	/** Size of each buffer */
+	private final static int BUFFERSIZE=16384;
+
+	/** Maximum number of buffers */
+	private final static int MAXBUFFERS=32;
+
+	/** Open files, least recently used first */
+	private LinkedHashMap<File, FileChannel> open=
+		new LinkedHashMap<File, FileChannel>(MAXOPEN*2,0.75f,true);
+
+	/** Buffers holding data not yet written, least recently used first */
+	private LinkedHashMap<File, ByteBuffer> pending=
+		new LinkedHashMap<File, ByteBuffer>(MAXBUFFERS*2,0.75f,true);
+
+	/** Buffers not in use */
+	private LinkedList<ByteBuffer> free=new LinkedList<ByteBuffer>();
+
+	/** Number of buffers created */
+	private int buffers;
+
+	/** Encoder (unpaired surrogates become '?', as with OutputStreamWriter) */
+	private CharsetEncoder encoder=Charset.forName("UTF-8").newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * Adds text to the end of a file. It may not be written until the file
+	 * is flushed.
+	 * @param f File
+	 * @param text Text to add
+	 * @throws IOException Error writing data
+	 */
+	void write(File f,String text) throws IOException
+	{
+		ByteBuffer buffer=pending.get(f);
+		if(buffer==null)
+		{
+			buffer=getBuffer();
+			pending.put(f,buffer);
+		}
+
+		CharBuffer in=CharBuffer.wrap(text);
+		encoder.reset();
+		while(true)
+		{
+			CoderResult result=encoder.encode(in,buffer,true);
+			if(result.isOverflow())
+			{
+				writeBuffer(f,buffer);
+				continue;
+			}
+			if(result.isError()) result.throwException();
+			break;
+		}
+		while(encoder.flush(buffer).isOverflow())
+		{
+			writeBuffer(f,buffer);
+		}
+	}
+
+	/**
+	 * Writes any data waiting for a file, and releases its buffer.
+	 * @param f File
+	 * @throws IOException Error writing data (the data is discarded)
+	 */
+	void flush(File f) throws IOException
+	{
+		ByteBuffer buffer=pending.remove(f);
+		if(buffer==null) return;
+		try
+		{
+			writeBuffer(f,buffer);
+		}
+		finally
+		{
+			buffer.clear();
+			free.add(buffer);
+		}
+	}
+
+	/**
+	 * Writes any data waiting for a file, and closes it.
+	 * @param f File
+	 * @throws IOException Error writing data or closing file
+	 */
+	void close(File f) throws IOException
+	{
+		try
+		{
+			flush(f);
+		}
+		finally
+		{
+			FileChannel channel=open.remove(f);
+			if(channel!=null) channel.close();
+		}
+	}
+
+	/**
+	 * Writes all waiting data and closes all files.
+	 * @throws IOException Error writing data or closing files (all files are
+	 *   closed anyway)
+	 */
+	void closeAll() throws IOException
+	{
+		Set<File> files=new HashSet<File>(pending.keySet());
+		files.addAll(open.keySet());
+		IOException error=null;
+		for(File f : files)
+		{
+			try
+			{
+				close(f);
+			}
+			catch(IOException e)
+			{
+				if(error==null) error=e;
+			}
+		}
+		if(error!=null) throw error;
+	}
+
+	/**
+	 * @return A buffer (cleared) from the pool, or a new one, or (if there are
+	 *   already as many as allowed) the least recently used buffer after
+	 *   writing its data
+	 * @throws IOException Error writing data
+	 */
+	private ByteBuffer getBuffer() throws IOException
+	{
+		if(!free.isEmpty())
+		{
+			return free.removeFirst();
+		}
+		if(buffers<MAXBUFFERS)
+		{
+			buffers++;
+			return ByteBuffer.allocateDirect(BUFFERSIZE);
+		}
+		Map.Entry<File, ByteBuffer> eldest=pending.entrySet().iterator().next();
+		File f=eldest.getKey();
+		flush(f);
+		return free.removeFirst();
+	}
+
+	/**
+	 * Appends the contents of a buffer to a file and clears it.
+	 * @param f File
+	 * @param buffer Buffer
+	 * @throws IOException Error writing data
+	 */
+	private void writeBuffer(File f,ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		try
+		{
+			if(!buffer.hasRemaining()) return;
+			FileChannel channel=open.get(f);
+			if(channel==null)
+			{
+				if(open.size()>=MAXOPEN)
+				{
+					Iterator<FileChannel> eldest=open.values().iterator();
+					FileChannel closing=eldest.next();
+					eldest.remove();
+					closing.close();
+				}
+				channel=new FileOutputStream(f,true).getChannel();
+				open.put(f,channel);
+			}
+			while(buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+		finally
+		{
+			buffer.clear();
+		}
+	}
+}
@@ -24,9 +24,7 @@ import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
-import org.w3c.dom.*;
-
-import util.xml.*;
+import util.xml.XMLException;
 
 import com.leafdigital.logs.api.Logger;
 
@@ -38,298 +36,322 @@ class LoggerImp implements Logger,Runnable
 
 	private final static int DEBUGLEVEL=20;
 
-	private static final String INDEX_FILES="index.files";
-	private static final String INDEX_WORDS="index.words";
-	/** Max. number of bytes stored for a word in the index */
-	private static final int INDEX_WORDBYTES=8;
-	/** Max. number of files stored in a single index entry */
-	private static final int INDEX_FILESPERENTRY=6;
-	/** Number of bytes per entry as consequence */
-	private static final int INDEX_BYTESPERENTRY=INDEX_WORDBYTES+INDEX_FILESPERENTRY*4;
-
-	/** How many updates we can cache before flushing */
-	private static final int UPDATES_MAXPENDING=16384;
-
 	/** How frequently all logs are flushed */
 	private static final int FILEFLUSHTIME=5*1000;
 
 	/** How long before an unused logfile is discarded */
 	private static final int FILECLOSETIME=60*1000;
 
+	/** Longest time a reader waits for queued lines to be written */
+	private static final int FLUSHWAITTIME=2*1000;
+
+	/** Maximum number of lines the logger thread writes in one go */
+	private static final int WRITEBATCH=256;
+
+	/** Maximum number of bytes to look back for the start of a previous line */
+	private static final int SEARCHBACK=16384;
+
+	/** Folder (within log folder) for expired logs, if archiving */
+	private static final String ARCHIVEFOLDER="archive";
+
 	/** Log folder */
 	private File folder;
 
 	/** Context */
 	private PluginContext context;
 
-	/** Index file */
-	private RandomAccessFile indexFile;
+	/** Full-text index */
+	private LogIndex index;
+
+	/** Scanner used to find words in lines being indexed */
+	private XMLTextScanner scanner=new XMLTextScanner();
 
-	/** Position at end of file */
-	private int fileEndPos;
+	/**
+	 * Map from file name -> pack, for log files that have been compressed.
+	 * Replaced (not modified) when packs change.
+	 */
+	private volatile Map<String, LogPack> packed=new HashMap<String, LogPack>();
+
+	/** Held while opening a pack, and while replacing one */
+	private final Object packLock=new Object();
+
+	/** Background thread for expiry, compression and index merges */
+	private LogMaintenance maintenance;
 
-	/** File list from index, sorted by ID->name */
-	private Map<Integer, String> filesIDToName = new HashMap<Integer, String>();
+	/** Task that merges index segments */
+	private final LogMaintenance.Task compactTask=new LogMaintenance.Task()
+	{
+		@Override
+		public String getName()
+		{
+			return "merging index";
+		}
 
-	/** File list from index, sorted by name->ID */
-	private Map<String, Integer> filesNameToID=new HashMap<String, Integer>();
+		@Override
+		public void run(LogMaintenance m) throws IOException
+		{
+			while(true)
+			{
+				m.checkpoint();
+				long startTime=System.currentTimeMillis();
+				if(!index.compact(m)) break;
+				debugLog(10,"Merged log index segments: "+
+					(System.currentTimeMillis()-startTime)+"ms");
+			}
+		}
+	};
 
-	/** Word data from index */
-	private Map<String, IndexEntry[]> words = new HashMap<String, IndexEntry[]>();
+	/** Catalog of all log files */
+	private LogCatalog catalog;
 
 	/** Map from log file (File) -> LogStream */
 	private Map<File, LogStream> currentStreams = new HashMap<File, LogStream>();
 
-	/** Buffered list of updates to index file */
-	private SortedSet<IndexUpdate> indexUpdates = new TreeSet<IndexUpdate>();
+	/** Files and buffers used to write log files */
+	private LogWriterPool writers=new LogWriterPool();
 
 	/** Regular expression matching files */
 	private final static Pattern LOGFILENAME=Pattern.compile(
 		"([0-9]{4}-[0-9]{2}-[0-9]{2})_([^_]+)_([^_]+)_([^_]+).lclog");
 
-	/**
-	 * Maximum number of blank entries to remember the location of (so we don't
-	 * waste memory storing too many of them)
-	 */
-	private final static int INDEX_MAXBLANKENTRIES=4096;
-
-	/**
-	 * There must be at least 8 times as many real entries as blank ones, otherwise
-	 * the file will be compacted.
-	 */
-	private final static int INDEX_COMPACTTHRESHOLD=8;
-
-	/**
-	 * List of Integer storing file positions that are available for reuse
-	 */
-	private LinkedList<Integer> blankEntrySpaces = new LinkedList<Integer>();
-
-	private static boolean DEBUG_REBUILD_INDEX = false;
-	private static boolean DEBUG_ANALYSE_INDEX = false;
-
-	/** If bClose is true, closes down log and sets bClosed */
-	private boolean close,closed;
+	/** Files used by the old (word-prefix) index format, deleted if present */
+	private final static String[] OLDINDEXFILES={"index.files","index.words"};
 
+	/** Lines waiting to be written by the logger thread */
+	private LogQueue queue;
 
-	private void addIndexUpdate(IndexUpdate iu) throws IOException
-	{
-		indexUpdates.add(iu);
-		if(indexUpdates.size() >= UPDATES_MAXPENDING)
-			applyIndexChanges();
-	}
+	/** Set by the logger thread once it has closed all files */
+	private boolean closed;
 
-	/** Stores a currently-open log file stream */
+	/** Stores details of a log file currently being written */
 	private static class LogStream
 	{
-		Writer w;
 		boolean dirty;
 		long lastUsed;
-	}
-
-	/** One entry from the index file */
-	private static class IndexEntry
-	{
-		/** Position in file for random updates */
-		int filePos;
-		/** List of file IDs stored */
-		int[] files=new int[INDEX_FILESPERENTRY];
-	}
-
-	/** Stores a random-access update to the index file */
-	private class IndexUpdate implements Comparable<IndexUpdate>
-	{
-		private int pos;
-		private ByteArrayOutputStream outputBytes=new ByteArrayOutputStream();
-		private DataOutputStream outputData=new DataOutputStream(outputBytes);
-
-		IndexUpdate(int iPos)
-		{
-			this.pos=iPos;
-		}
-
-		void writeBytes(byte[] ab) throws IOException
-		{
-			outputData.write(ab);
-		}
-		void writeInt(int i) throws IOException
-		{
-			outputData.writeInt(i);
-		}
-		void writeByte(int i) throws IOException
-		{
-			outputData.writeByte(i);
-		}
-
-		void apply() throws IOException
-		{
-			indexFile.seek(pos);
-			indexFile.write(outputBytes.toByteArray());
-		}
-
-		// Allow sort by file position in the hope that this will
-		// reduce HD seek time when making a change batch
-		@Override
-		public int compareTo(IndexUpdate otherUpdate)
-		{
-			if(otherUpdate == this) return 0;
-			else if(pos < otherUpdate.pos) return -1;
-			else if(pos > otherUpdate.pos) return 1;
-			// Because of the way writes work (we either write an entire new block,
-			// or else a single entry inside a block which will be indexed at least
-			// by 12 bytes), we should never try to write to the same position more
-			// than once.
-			throw new Error("Index writes inconsistent");
-		}
+		/** Length of file in bytes, including data not yet flushed */
+		long length;
 	}
 
 	LoggerImp(PluginContext context,PluginLoadReporter plr,File folder) throws GeneralException
 	{
 		this.folder=folder;
 		this.context=context;
+		maintenance=new LogMaintenance();
 		try
 		{
 			loadIndex(plr);
 		}
 		catch(IOException ioe)
 		{
+			maintenance.stop();
 			throw new GeneralException("Failed to initialise log index. Are you running "+
 				"two copies of the program at once? That isn't supported.",ioe);
 		}
+		catch(GeneralException ge)
+		{
+			maintenance.stop();
+			throw ge;
+		}
+
+		LogsPlugin plugin=(LogsPlugin)context.getPlugin();
+		queue=new LogQueue(plugin.getQueueSize(),plugin.getOverflowPolicy());
 
 		Thread t=new Thread(this,"Logger thread");
 		t.setPriority(Thread.MIN_PRIORITY);
 		t.start();
 		}
 
-	/** Handles thread that flushes logs etc. */
+	/**
+	 * Handles thread that writes queued lines, flushes logs etc. Lines are
+	 * taken from the queue in batches so that the index lock is only obtained
+	 * once per batch.
+	 */
 	@Override
-	public synchronized void run()
+	public void run()
 	{
+		LogQueue.Entry[] batch=new LogQueue.Entry[WRITEBATCH];
+		long nextFlush=System.currentTimeMillis()+FILEFLUSHTIME;
 		try
 		{
 			while(true)
 			{
-				try
-				{
-					wait(FILEFLUSHTIME);
-				}
-				catch(InterruptedException ie)
-				{
-				}
-				if(close) return;
-
-				// Flush and/or close filehandles
-				long now=System.currentTimeMillis();
-				for(Iterator<Map.Entry<File, LogStream>> i =
-					currentStreams.entrySet().iterator();i.hasNext();)
+				int count=queue.take(batch,
+					Math.max(1,nextFlush-System.currentTimeMillis()));
+				if(count==-1) return;
+				if(count>0)
 				{
-					Map.Entry<File, LogStream> me = i.next();
-					LogStream ls=me.getValue();
-					// Write dirty files each time around this loop (5 seconds)
-					if(ls.dirty)
+					synchronized(this)
 					{
-						try
-						{
-							ls.w.flush();
-						}
-						catch(IOException ioe)
+						for(int i=0;i<count;i++)
 						{
-							// Close it, ignoring close errors
-							try	{	ls.w.close();	}	catch(IOException ioe2)	{}
-							i.remove();
-							ErrorMsg.report(
-								"Error writing to log file "+me.getKey(),ioe);
-							continue;
+							try
+							{
+								write(batch[i]);
+							}
+							catch(RuntimeException e)
+							{
+								// Don't let one bad line stop logging for the session
+								ErrorMsg.report("Error logging data",e);
+							}
+							batch[i]=null;
 						}
-						ls.dirty=false;
 					}
-					// Chuck files away if they haven't been written to for a minute
-					if(ls.lastUsed + FILECLOSETIME < now)
+					queue.done(count);
+				}
+
+				long now=System.currentTimeMillis();
+				if(now>=nextFlush)
+				{
+					flushStreams(now);
+					nextFlush=now+FILEFLUSHTIME;
+					if(index.needsCompaction()) maintenance.add(compactTask);
+
+					int dropped=queue.takeDropped();
+					if(dropped>0)
 					{
-						try	{	ls.w.close();	}	catch(IOException ioe)	{}
-						i.remove();
+						ErrorMsg.report("Logging could not keep up; "+dropped+
+							" lines were not written to the logs",null);
 					}
 				}
+			}
+		}
+		finally
+		{
+			// If the thread is ending because of an error, callers must not wait
+			// for it
+			queue.close();
+			synchronized(this)
+			{
+				try	{	writers.closeAll();	}	catch(IOException ioe)	{}
+				currentStreams.clear();
 
-				// Do index changes
 				try
 				{
-					applyIndexChanges();
+					index.close();
 				}
 				catch(IOException ioe)
 				{
 					ErrorMsg.report("Error writing to log index ",ioe);
 				}
-			}
-		}
-		finally
-		{
-			for(Iterator<LogStream> i=currentStreams.values().iterator();i.hasNext();)
-			{
-				LogStream ls = i.next();
-				try	{	ls.w.close();	}	catch(IOException ioe)	{}
-				i.remove();
-			}
+				try
+				{
+					catalog.close();
+				}
+				catch(IOException ioe)
+				{
+					ErrorMsg.report("Error writing log catalog",ioe);
+				}
 
-			try
-			{
-				applyIndexChanges();
-			}
-			catch(IOException ioe)
-			{
-				ErrorMsg.report("Error writing to log index ",ioe);
+				closed=true;
+				notifyAll();
 			}
-
-			closed=true;
-			notifyAll();
 		}
 	}
 
-	/** Closes the thread and all files. */
-	synchronized void close()
+	/**
+	 * Flushes dirty log files and closes unused ones.
+	 * @param now Current time
+	 */
+	private synchronized void flushStreams(long now)
 	{
-		close=true;
-		notifyAll();
-		while(!closed)
+		for(Iterator<Map.Entry<File, LogStream>> i =
+			currentStreams.entrySet().iterator();i.hasNext();)
 		{
-			try
+			Map.Entry<File, LogStream> me = i.next();
+			LogStream ls=me.getValue();
+			// Write dirty files each time around this loop (5 seconds)
+			if(ls.dirty)
 			{
-				wait();
+				try
+				{
+					writers.flush(me.getKey());
+				}
+				catch(IOException ioe)
+				{
+					// Close it, ignoring close errors
+					try	{	writers.close(me.getKey());	}	catch(IOException ioe2)	{}
+					i.remove();
+					ErrorMsg.report(
+						"Error writing to log file "+me.getKey(),ioe);
+					continue;
+				}
+				ls.dirty=false;
 			}
-			catch(InterruptedException ie)
+			// Chuck files away if they haven't been written to for a minute
+			if(ls.lastUsed + FILECLOSETIME < now)
 			{
+				try	{	writers.close(me.getKey());	}	catch(IOException ioe)	{}
+				i.remove();
 			}
 		}
+
+		// Index journal and catalog only cover data that has now been flushed
+		try
+		{
+			index.sync();
+		}
+		catch(IOException ioe)
+		{
+			ErrorMsg.report("Error writing to log index",ioe);
+		}
 		try
 		{
-			indexFile.close();
+			catalog.sync();
 		}
 		catch(IOException ioe)
 		{
+			ErrorMsg.report("Error writing log catalog",ioe);
 		}
-		debugLog(10,"Log files closed");
 	}
 
 	/**
-	 * @return Array containing information about all log files
+	 * Closes the thread and all files. Lines that were already queued are
+	 * written first; background maintenance is stopped part-way if necessary.
 	 */
-	LogFileInfo[] getAllLogs()
+	void close()
 	{
-		List<LogFileInfo> logInfo = new LinkedList<LogFileInfo>();
-		File[] logFiles=folder.listFiles();
-		if(logFiles==null) logFiles=new File[0];
-		for(int i=0;i<logFiles.length;i++)
+		// Stop maintenance first (it may need this object's lock to finish)
+		maintenance.stop();
+		synchronized(this)
 		{
-			try
-			{
-				logInfo.add(new LogFileInfo(logFiles[i]));
-			}
-			catch(GeneralException ge)
+			queue.close();
+			while(!closed)
 			{
-				// OK, so it wasn't a logfile
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException ie)
+				{
+				}
 			}
 		}
-		return logInfo.toArray(new LogFileInfo[logInfo.size()]);
+		debugLog(10,"Log files closed");
+	}
+
+	/**
+	 * Pauses background maintenance, so that it doesn't compete for the disk
+	 * with a search. Must be followed by {@link #resumeMaintenance()}.
+	 */
+	void pauseMaintenance()
+	{
+		maintenance.pause();
+	}
+
+	/**
+	 * Resumes background maintenance after {@link #pauseMaintenance()}.
+	 */
+	void resumeMaintenance()
+	{
+		maintenance.resume();
+	}
+
+	/**
+	 * @return Catalog of all log files
+	 */
+	LogCatalog getCatalog()
+	{
+		return catalog;
 	}
 
 	/** Holds parsed information about a logfile */
@@ -489,83 +511,62 @@ class LoggerImp implements Logger,Runnable
 
 	/**
 	 * Extracts words from an XML string.
+	 * @param scanner Scanner to use
 	 * @param xml XML string
 	 * @return Array of words
 	 * @throws XMLException If string can't be parsed
 	 */
-	static String[] extractWords(String xml) throws XMLException
-	{
-		Document d=XML.parse("<root>"+xml+"</root>");
-
-		List<String> l = new LinkedList<String>();
-		extractWords(d.getDocumentElement(),l);
-		return l.toArray(new String[l.size()]);
-	}
-
-	private static void extractWords(Node n, List<String> l)
+	static String[] extractWords(XMLTextScanner scanner,String xml) throws XMLException
 	{
-		if(n instanceof Text)
+		List<String> l=new ArrayList<String>();
+		scanner.reset(xml);
+		int type;
+		while((type=scanner.next())!=XMLTextScanner.END)
 		{
-			splitWords(n.getNodeValue(),l);
-		}
-		else
-		{
-			for(Node child=n.getFirstChild();child!=null;child=child.getNextSibling())
+			if(type==XMLTextScanner.TEXT)
 			{
-				extractWords(child,l);
+				splitWords(scanner.getText(),0,scanner.getTextLength(),l);
 			}
 		}
+		return l.toArray(new String[l.size()]);
 	}
 
 	static void splitWords(String s, List<String> l)
 	{
-		StringBuffer current=new StringBuffer();
-		for(int i=0;i<s.length();i++)
+		splitWords(s.toCharArray(),0,s.length(),l);
+	}
+
+	static void splitWords(char[] text, int start, int length, List<String> l)
+	{
+		int end=start+length,wordStart=-1;
+		for(int i=start;i<end;i++)
 		{
-			char c=s.charAt(i);
+			char c=text[i];
 
 			// Note: This is not the official way of splitting words, as per Unicode
 			// standard appendix 29, which is hideously complicated. This only supports
 			// English and similar languages and (sketchily) Japanese
 			if(Character.isLetterOrDigit(c) || c=='\'')
 			{
-				current.append(c);
+				if(wordStart==-1) wordStart=i;
 			}
 			else
 			{
 				// Add any current data
-				if(current.length()>0) l.add(current.toString().toLowerCase());
-				current.setLength(0);
+				if(wordStart!=-1) l.add(new String(text,wordStart,i-wordStart).toLowerCase());
+				wordStart=-1;
 
 				// Some characters get treated as single entries
 				UnicodeBlock ub=UnicodeBlock.of(c);
 				if(ub==UnicodeBlock.HIRAGANA || ub==UnicodeBlock.KATAKANA ||
 					ub==UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS)
 				{
-					l.add((c+"").toLowerCase());
+					l.add(String.valueOf(c).toLowerCase());
 				}
 			}
 		}
 		// Add any current data
-		if(current.length()>0) l.add(current.toString().toLowerCase());
-	}
-
-	/**
-	 * Does all the saved-up index changes
-	 * @throws IOException If there is an error writing the index data
-	 */
-	private synchronized void applyIndexChanges() throws IOException
-	{
-		int count=indexUpdates.size();
-		long start=System.currentTimeMillis();
-		for(Iterator<IndexUpdate> i=indexUpdates.iterator();i.hasNext();)
-		{
-			IndexUpdate iu =i.next();
-			debugLog(40,"Saving changes @ "+iu.pos+" ("+iu.outputBytes.size()+" bytes)");
-			iu.apply();
-			i.remove();
-		}
-		if(count>0) debugLog(25,"Saved "+count+" index changes ("+(System.currentTimeMillis()-start)+" ms)");
+		if(wordStart!=-1) l.add(new String(text,wordStart,end-wordStart).toLowerCase());
 	}
 
 	private void debugLog(int iLevel,String sText)
@@ -581,7 +582,10 @@ class LoggerImp implements Logger,Runnable
 	}
 
 	/**
-	 * Loads the index from disk.
+	 * Opens the index, removes expired files from it, and indexes any lines
+	 * that are not yet in the index (for example on first use). Deleting or
+	 * archiving expired files, compressing old logs, and merging the index
+	 * are left to the maintenance thread.
 	 * @param plr Reporter for information on load progress
 	 * @throws IOException File error loading index
 	 * @throws GeneralException Other error loading index
@@ -592,657 +596,892 @@ class LoggerImp implements Logger,Runnable
 
 		if(!folder.exists()) folder.mkdirs();
 
-		// Clear existing data (if any; only needed after a compact run)
-		filesIDToName.clear();
-		filesNameToID.clear();
-		blankEntrySpaces.clear();
-		words.clear();
-
 		long startTime=System.currentTimeMillis();
-
-		// Read file list
-		List<File> expireFiles = new LinkedList<File>();
-		File fileIndex=new File(folder,INDEX_FILES);
-		if(!fileIndex.exists())
+		index=new LogIndex(folder);
+		index.open();
+		loadPacks();
+
+		// Check file expiry, for everything in the index or on disk (files that
+		// expired last time may not have been deleted yet)
+		Set<String> names=new HashSet<String>(Arrays.asList(index.getFileNames()));
+		names.addAll(packed.keySet());
+		File[] logFiles=folder.listFiles();
+		if(logFiles==null) logFiles=new File[0];
+		for(int i=0;i<logFiles.length;i++)
 		{
-			new FileOutputStream(fileIndex).close();
+			if(LOGFILENAME.matcher(logFiles[i].getName()).matches())
+				names.add(logFiles[i].getName());
 		}
-		DataInputStream dis=new DataInputStream(
-			new BufferedInputStream(new FileInputStream(fileIndex)));
-		try
+		List<String> removeNames=new LinkedList<String>();
+		final List<File> expireFiles=new LinkedList<File>();
+		for(String name : names)
 		{
-			while(true)
+			try
 			{
-				int number = dis.readInt();
-				String name = dis.readUTF();
-				Integer key = number;
-				filesIDToName.put(key,name);
-				filesNameToID.put(name,key);
+				File f=new File(folder,name);
 
-				// Check file expiry
-				try
+				// Is this file due for expiry yet? OR does it not exist?
+				if(!f.exists() && !packed.containsKey(name))
 				{
-					File f=new File(folder,name);
-
-					// Is this file due for expiry yet? OR does it not exist?
-					if(!f.exists())
-						expireFiles.add(f);
-					else
-					{
-						LogFileInfo lfi=new LogFileInfo(f);
-						if(((LogsPlugin)context.getPlugin()).shouldExpire(lfi.date,lfi.category,lfi.item))
-							expireFiles.add(f);
-					}
+					removeNames.add(name);
 				}
-				catch(GeneralException e)
+				else
 				{
-					// Shouldn't happen. Ignore for now.
-					System.err.println("Problem loading log "+name+" ("+e.getMessage()+")");
+					LogFileInfo lfi=new LogFileInfo(f);
+					if(((LogsPlugin)context.getPlugin()).shouldExpire(lfi.date,lfi.category,lfi.item))
+					{
+						removeNames.add(name);
+						expireFiles.add(f);
+					}
 				}
 			}
+			catch(GeneralException e)
+			{
+				// Shouldn't happen. Ignore for now.
+				System.err.println("Problem loading log "+name+" ("+e.getMessage()+")");
+			}
+		}
+		if(!removeNames.isEmpty())
+		{
+			index.removeFiles(removeNames.toArray(new String[removeNames.size()]));
 		}
-		catch(EOFException eof)
+		Set<String> expired=new HashSet<String>();
+		for(File f : expireFiles)
 		{
+			expired.add(f.getName());
 		}
-		dis.close();
 
-		debugLog(10,"File index loaded with "+
-			filesIDToName.keySet().size()+" files: "+(System.currentTimeMillis()-startTime)+"ms");
-		startTime=System.currentTimeMillis();
+		debugLog(10,"Log index loaded with "+
+			index.getFileNames().length+" files: "+(System.currentTimeMillis()-startTime)+"ms");
 
-		// Read main index
-		File wordsIndex=new File(folder,INDEX_WORDS);
-		if(!wordsIndex.exists())
+		// Index anything that was written but not indexed, including files that
+		// were packed before the index caught up with them
+		startTime=System.currentTimeMillis();
+		Set<String> unindexed=new TreeSet<String>(packed.keySet());
+		for(int i=0;i<logFiles.length;i++)
 		{
-			new FileOutputStream(wordsIndex).close();
+			if(LOGFILENAME.matcher(logFiles[i].getName()).matches())
+				unindexed.add(logFiles[i].getName());
 		}
-		dis=new DataInputStream(
-			new BufferedInputStream(new FileInputStream(wordsIndex)));
-		byte[] wordBuffer=new byte[INDEX_WORDBYTES];
-		int filePos=0,blank=0;
-		try
+		unindexed.removeAll(expired);
+		int updated=0;
+		for(String name : unindexed)
 		{
-			while(true)
+			File f=new File(folder,name);
+			long length=f.exists() ? f.length() : packed.get(name).getLength(name);
+			long from=index.getIndexedLength(name);
+			if(from < length)
 			{
-				// Read 8-character max word
-				String word;
-				dis.readFully(wordBuffer);
-				int length=INDEX_WORDBYTES;
-				for(;length>0 && wordBuffer[length-1]==0;length--) ;
-
-				if(length<INDEX_WORDBYTES)
-				{
-					byte[] shortWord=new byte[length];
-					System.arraycopy(wordBuffer,0,shortWord,0,length);
-					word=new String(shortWord,"UTF-8");;
-				}
-				else
-				{
-					word=new String(wordBuffer,"UTF-8");
-				}
-
-				// Read 6 * int file IDs that contain word
-				boolean blankEntry=true;
-				IndexEntry thisEntry=new IndexEntry();
-				for(int i=0;i<INDEX_FILESPERENTRY;i++)
-				{
-					int fileID=dis.readInt();
-					thisEntry.files[i]=fileID;
-					if(fileID!=0) blankEntry=false;
-				}
-				blankEntry|=word.length()==0;
-
-				if(blankEntry)
-				{
-					// Remember blank entries for later reuse
-					if(blankEntrySpaces.size() < INDEX_MAXBLANKENTRIES)
-					{
-						blankEntrySpaces.addLast(filePos);
-					}
-					blank++;
-				}
-				else
-				{
-					// Find existing entries for that word
-					IndexEntry[] aie=words.get(word);
-					int newPos;
-					if(aie==null) // No existing entries, start new array
-					{
-						aie=new IndexEntry[1];
-						words.put(word,aie);
-						newPos=0;
-					}
-					else // Reallocate array to add entry
-					{
-						IndexEntry[] aieNew=new IndexEntry[aie.length+1];
-						System.arraycopy(aie,0,aieNew,0,aie.length);
-						aie=aieNew;
-						words.put(word,aie);
-						newPos=aie.length-1;
-					}
-					thisEntry.filePos=filePos;
-					aie[newPos]=thisEntry;
-				}
-
-				filePos+=INDEX_BYTESPERENTRY;
+				if(updated==0) plr.reportProgress("Updating full-text log index...");
+				reindex(f,from);
+				updated++;
 			}
 		}
-		catch(EOFException eof)
+		if(updated>0)
 		{
+			index.commit();
+			debugLog(10,"Indexed new data in "+updated+" log files: "+
+				(System.currentTimeMillis()-startTime)+"ms");
 		}
-		dis.close();
-		fileEndPos=filePos;
-
-		int totalEntries=filePos/INDEX_BYTESPERENTRY;
 
-		debugLog(10,"Word index loaded with "+
-			words.keySet().size()+" words in "+totalEntries+" entries ("+
-			(filePos / 1024)+"KB), of which "+blank+" blank: "+(System.currentTimeMillis()-startTime)+"ms");
-
-		if(blank>0 && (totalEntries / blank < INDEX_COMPACTTHRESHOLD))
+		// Remove the old index format, which has been replaced by the above
+		for(int i=0;i<OLDINDEXFILES.length;i++)
 		{
-			compactWordIndex(plr);
-			loadIndex(plr);
+			new File(folder,OLDINDEXFILES[i]).delete();
 		}
 
-		// Open file now (and keep it open so that we can't end up with two
-		// clients writing to it at once, which would be bad)
-		indexFile=new RandomAccessFile(wordsIndex,"rw");
+		loadCatalog(plr,expired);
 
-		// Expire files
+		// Leave the slow parts for later
 		if(!expireFiles.isEmpty())
 		{
-			File[] expired=expireFiles.toArray(new File[expireFiles.size()]);
-
-			boolean archive=((LogsPlugin)context.getPlugin()).shouldArchive();
-			plr.reportProgress((archive ? "Archiving ": "Deleting ")+
-				expired.length+" old log files...");
-
-			startTime=System.currentTimeMillis();
-			removeFiles(expired);
-
-			if(archive)
+			maintenance.add(new LogMaintenance.Task()
 			{
-				File archiveFolder=new File(folder,"archive");
-				if(!archiveFolder.exists()) archiveFolder.mkdirs();
+				@Override
+				public String getName()
+				{
+					return "expiring old logs";
+				}
 
-				for(int i=0;i<expired.length;i++)
+				@Override
+				public void run(LogMaintenance m) throws IOException
 				{
-					if(!expired[i].exists()) continue;
-					if(!expired[i].renameTo(new File(archiveFolder,expired[i].getName())))
-						throw new IOException("Failed to move log into archive: "+expired[i]);
+					expireLogs(expireFiles.toArray(new File[expireFiles.size()]),m);
 				}
-			}
-			else
+			});
+		}
+		if(((LogsPlugin)context.getPlugin()).shouldPack())
+		{
+			maintenance.add(new LogMaintenance.Task()
 			{
-				for(int i=0;i<expired.length;i++)
+				@Override
+				public String getName()
 				{
-					if(!expired[i].exists()) continue;
-					if(!expired[i].delete())
-						throw new IOException("Failed to delete log: "+expired[i]);
+					return "compressing old logs";
 				}
-			}
 
-			debugLog(10,(archive ? "Archived " : "Deleted ")+expired.length+
-				" old logs: "+(System.currentTimeMillis()-startTime)+"ms");
+				@Override
+				public void run(LogMaintenance m) throws IOException
+				{
+					packLogs(m);
+				}
+			});
+		}
+		if(index.needsCompaction())
+		{
+			maintenance.add(compactTask);
 		}
-
-		// Uncomment to rebuild index (should probably clear it first)
-		if(DEBUG_REBUILD_INDEX) regenerateWordIndex();
-
-		// Uncomment to obtain stats about index
-		if(DEBUG_ANALYSE_INDEX) analyseIndex();
 	}
 
 	/**
-	 * Compacts the word index, removing any unused entries from the file's disk
-	 * footprint.
-	 * @param plr
-	 * @throws IOException
+	 * Archives (if enabled) and deletes expired logs. They have already been
+	 * removed from the index and catalog.
+	 * @param expired Expired log files
+	 * @param m Maintenance object (for checkpoints)
+	 * @throws IOException Error, or maintenance stopped
 	 */
-	private synchronized void compactWordIndex(PluginLoadReporter plr) throws IOException
+	private void expireLogs(File[] expired,LogMaintenance m) throws IOException
 	{
-		plr.reportProgress("Compacting full-text log index...");
-		long startTime=System.currentTimeMillis();
-
-		// New file
-		File newWordsIndex=new File(folder,INDEX_WORDS+".new");
-	  DataOutputStream dos=new DataOutputStream(
-	  		new BufferedOutputStream(new FileOutputStream(newWordsIndex)));
-
-		// Go through each word...
-	  int totalEntries=0,writtenEntries=0;
-		for(Map.Entry<String, IndexEntry[]> me : words.entrySet())
-		{
-			boolean writtenStart=false;
-			int entryPos=0;
-			String word = me.getKey();
-			IndexEntry[] aie = me.getValue();
-			for(int entry=0;entry<aie.length;entry++)
-			{
-				totalEntries++;
-				for(int file=0;file<INDEX_FILESPERENTRY;file++)
-				{
-					int fileID=aie[entry].files[file];
-					if(fileID!=0)
-					{
-						if(!writtenStart)
-						{
-							// Write word, zero-padded
-							byte[] abWord=word.getBytes("UTF-8");
-							dos.write(abWord);
-							for(int i=0;i<INDEX_WORDBYTES-abWord.length;i++)
-								dos.write(0);
-							writtenStart=true;
-							writtenEntries++;
-						}
-						dos.writeInt(fileID);
-						entryPos++;
-						if(entryPos==INDEX_FILESPERENTRY)
-						{
-							writtenStart=false;
-							entryPos=0;
-						}
-					}
-				}
-			}
-			if(writtenStart)
-			{
-				for(;entryPos<INDEX_FILESPERENTRY;entryPos++)
-					dos.writeInt(0);
-			}
-		}
-		dos.close();
+		boolean archive=((LogsPlugin)context.getPlugin()).shouldArchive();
+		debugLog(10,(archive ? "Archiving ": "Deleting ")+
+			expired.length+" old log files");
 
-		// Rename files
-		File
-			wordsIndex=new File(folder,INDEX_WORDS),
-			oldWordsIndex=new File(folder,INDEX_FILES+".old");
-		if(oldWordsIndex.exists())
+		long startTime=System.currentTimeMillis();
+		if(archive)
 		{
-			if(!oldWordsIndex.delete()) throw new IOException(
-				"Failed to delete old log file index "+oldWordsIndex);
+			archiveLogs(expired,m);
 		}
-		if(!wordsIndex.renameTo(oldWordsIndex))
-			throw new IOException("Failed to rename old log file index "+wordsIndex);
-		if(!newWordsIndex.renameTo(wordsIndex))
-			throw new IOException("Failed to rename new log file index "+newWordsIndex);
-		oldWordsIndex.delete();
+		removeLogs(expired,m);
 
-		debugLog(10,"Word index compacted from "+totalEntries+" to "+writtenEntries+
-			" entries: "+
-			(System.currentTimeMillis()-startTime)+"ms");
+		debugLog(10,(archive ? "Archived " : "Deleted ")+expired.length+
+			" old logs: "+(System.currentTimeMillis()-startTime)+"ms");
 	}
 
-	private synchronized void regenerateWordIndex() throws IOException,XMLException,GeneralException
-	{
-		for(String name : filesNameToID.keySet())
+	/**
+	 * Loads the catalog and brings it up to date with the log files (and
+	 * packs) that actually exist. Files that were written since the catalog
+	 * was saved are scanned from the point it reached; if the catalog is
+	 * missing, every file is scanned.
+	 * @param plr Reporter for information on load progress
+	 * @param expired Names of expired files, which are left out
+	 * @throws IOException Error reading log files
+	 * @throws GeneralException Other error
+	 */
+	private void loadCatalog(PluginLoadReporter plr,Set<String> expired) throws IOException,GeneralException
+	{
+		long startTime=System.currentTimeMillis();
+		catalog=new LogCatalog(folder);
+		boolean loaded;
+		try
+		{
+			loaded=catalog.load();
+		}
+		catch(IOException ioe)
+		{
+			ErrorMsg.report("Log catalog is corrupt, rebuilding",ioe);
+			catalog=new LogCatalog(folder);
+			loaded=false;
+		}
+		if(!loaded)
+		{
+			plr.reportProgress("Building log catalog...");
+		}
+
+		// Find all log files, whether loose or packed
+		Set<String> names=new HashSet<String>(packed.keySet());
+		File[] logFiles=folder.listFiles();
+		if(logFiles==null) logFiles=new File[0];
+		for(int i=0;i<logFiles.length;i++)
+		{
+			if(LOGFILENAME.matcher(logFiles[i].getName()).matches())
+				names.add(logFiles[i].getName());
+		}
+		names.removeAll(expired);
+
+		// Drop anything that has gone
+		String[] catalogued=catalog.getNames();
+		for(int i=0;i<catalogued.length;i++)
+		{
+			if(!names.contains(catalogued[i])) catalog.remove(catalogued[i]);
+		}
+
+		// Scan anything new or changed
+		int updated=0;
+		for(String name : names)
 		{
 			File f=new File(folder,name);
-			debugLog(10,"Regenerating index for "+name);
-			reindex(f);
+			long length=f.exists() ? f.length() : packed.get(name).getLength(name);
+			long size=catalog.getSize(name);
+			if(size > length)
+			{
+				// File has been replaced with something shorter; start again
+				catalog.remove(name);
+				size=-1;
+			}
+			if(size < length)
+			{
+				scanLines(f,Math.max(0,size));
+				updated++;
+			}
+		}
+		catalog.save();
+
+		if(updated>0)
+		{
+			debugLog(10,"Catalogued new data in "+updated+" log files: "+
+				(System.currentTimeMillis()-startTime)+"ms");
 		}
 	}
 
-	private void analyseIndex()
+	/**
+	 * Adds lines from a log file to the catalog.
+	 * @param f File
+	 * @param from Byte offset of first line to add
+	 * @throws IOException Error reading file
+	 * @throws GeneralException Invalid file name
+	 */
+	private void scanLines(File f,long from) throws IOException,GeneralException
 	{
-		Map<Integer, Integer> mResults = new TreeMap<Integer, Integer>();
-
-		int iUsedWordFiles=0;
-		int allocatedWordFiles=0,wastedEntries=0;
-
-		for(Map.Entry<String, IndexEntry[]> me : words.entrySet())
+		InputStream input=openLog(f,from);
+		try
 		{
-			int count=0;
-			IndexEntry[] aie = me.getValue();
-			for(int entry=0;entry<aie.length;entry++)
+			// Only the start of each line is needed, for its time
+			byte[] prefix=new byte[32];
+			int prefixLength=0;
+			long pos=from;
+			while(true)
 			{
-				for(int file=0;file<aie[entry].files.length;file++)
+				int b=input.read();
+				if(b==-1) break;
+				pos++;
+				if(b=='\n')
 				{
-					if(aie[entry].files[file]!=0) count++;
+					catalog.addLine(f,getLineTime(prefix,prefixLength),pos);
+					prefixLength=0;
+				}
+				else if(prefixLength<prefix.length)
+				{
+					prefix[prefixLength++]=(byte)b;
 				}
 			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
 
-			allocatedWordFiles+=INDEX_FILESPERENTRY*aie.length;
-			int fullEntryEquivs=(( (count-1) / INDEX_FILESPERENTRY )+1);
-			if(fullEntryEquivs < aie.length)
-			{
-				System.err.println("Wasted entries: <"+me.getKey()+"> (wanted "+count+" files, using "+aie.length+" entries)");
-			}
-			wastedEntries+=aie.length - fullEntryEquivs;
+	/** Start of each line in a log file, followed by its time */
+	private final static byte[] LINESTART={'<','e',' ','t','i','m','e','=','\''};
 
-			Integer key = count;
-			Integer existing=mResults.get(key);
-			if(existing==null)
-				mResults.put(key,1);
-			else
-				mResults.put(key,existing + 1);
-			iUsedWordFiles+=count;
+	/**
+	 * @param prefix Bytes from start of line
+	 * @param length Number of bytes available
+	 * @return Time from line, or 0 if it doesn't have one
+	 */
+	static long getLineTime(byte[] prefix,int length)
+	{
+		if(length<=LINESTART.length) return 0;
+		for(int i=0;i<LINESTART.length;i++)
+		{
+			if(prefix[i]!=LINESTART[i]) return 0;
 		}
-		System.out.println("Total file/word references: "+iUsedWordFiles);
-		System.out.println("          out of allocated: "+allocatedWordFiles);
-		System.out.println("     Wasted entire entries: "+wastedEntries);
+		long time=0;
+		int i=LINESTART.length;
+		for(;i<length && prefix[i]>='0' && prefix[i]<='9';i++)
+		{
+			time=time*10+(prefix[i]-'0');
+		}
+		if(i==LINESTART.length || i==length || prefix[i]!='\'') return 0;
+		return time;
+	}
 
-		int MINFILES=1,MAXFILES=9;
-		int[] aiSize=new int[MAXFILES];
-		for(Map.Entry<Integer, Integer> me : mResults.entrySet())
+	/**
+	 * Opens all packs in the log folder, first tidying up after any pack that
+	 * was only partly replaced. Packs that can't be read are reported and
+	 * skipped.
+	 */
+	private void loadPacks()
+	{
+		File[] files=folder.listFiles();
+		if(files==null) return;
+		for(int i=0;i<files.length;i++)
 		{
-			int iUsage = me.getKey();
-			int iNumber = me.getValue();
-			for(int iBlockSize=MINFILES;iBlockSize<MAXFILES;iBlockSize++)
+			String name=files[i].getName();
+			if(name.endsWith(LogPack.EXTENSION+".new"))
 			{
-				// Work out how many blocks it's taking per instance of this many words
-				// being full.
-				int iBlocks=((iUsage-1)/iBlockSize)+1;
-				// OK now multiply by number of instances and size of block
-				aiSize[iBlockSize]+=iBlocks*iNumber*(iBlockSize*4+INDEX_WORDBYTES);
+				files[i].delete();
+			}
+			else if(name.endsWith(LogPack.EXTENSION+".old"))
+			{
+				File pack=new File(folder,name.substring(0,name.length()-4));
+				if(pack.exists())
+					files[i].delete();
+				else
+					files[i].renameTo(pack);
 			}
 		}
 
-		for(int i=MINFILES;i<MAXFILES;i++)
+		Map<String, LogPack> loaded=new HashMap<String, LogPack>();
+		files=folder.listFiles();
+		for(int i=0;i<files.length;i++)
 		{
-			System.out.println(i+": "+(aiSize[i]/1024)+"KB");
+			if(!files[i].getName().endsWith(LogPack.EXTENSION)) continue;
+			LogPack pack;
+			try
+			{
+				pack=new LogPack(files[i]);
+			}
+			catch(IOException e)
+			{
+				// Leave the file alone in case it can be recovered by hand, but carry
+				// on without it
+				ErrorMsg.report("Unable to read log pack "+files[i].getName(),e);
+				continue;
+			}
+			String[] names=pack.getNames();
+			for(int j=0;j<names.length;j++)
+			{
+				loaded.put(names[j],pack);
+			}
 		}
-
-		System.exit(0);
+		packed=loaded;
 	}
 
 	/**
-	 * Find all files that contain a word.
-	 * @param s Word being searched
-	 * @return Set of File objects
+	 * Compresses log files from before today into one pack per date. The
+	 * files must already be indexed; the index refers to them by name, so
+	 * it doesn't need to change. Each file is deleted once its pack is in
+	 * place, unless it has been written to in the meantime.
+	 * @param m Maintenance object (for checkpoints)
+	 * @throws IOException Error, or maintenance stopped
 	 */
-	synchronized Set<File> findWord(String s)
+	private void packLogs(LogMaintenance m) throws IOException
 	{
-		Set<File> files=new HashSet<File>();
-		IndexEntry[] entries=words.get(getCroppedString(s));
-		if(entries!=null)
+		String today=convertTime(System.currentTimeMillis());
+		Map<String, List<File>> byDate=new TreeMap<String, List<File>>();
+		File[] logFiles=folder.listFiles();
+		if(logFiles==null) return;
+		int count=0;
+		for(int i=0;i<logFiles.length;i++)
 		{
-			for(int iEntry=0;iEntry<entries.length;iEntry++)
+			Matcher matcher=LOGFILENAME.matcher(logFiles[i].getName());
+			if(!matcher.matches() || matcher.group(1).compareTo(today)>=0) continue;
+			List<File> list=byDate.get(matcher.group(1));
+			if(list==null)
 			{
-				for(int iFile=0;iFile<entries[iEntry].files.length;iFile++)
+				list=new LinkedList<File>();
+				byDate.put(matcher.group(1),list);
+			}
+			list.add(logFiles[i]);
+			count++;
+		}
+		if(count==0) return;
+
+		debugLog(10,"Compressing "+count+" old log files");
+		long startTime=System.currentTimeMillis();
+		int done=0;
+		for(Map.Entry<String, List<File>> me : byDate.entrySet())
+		{
+			File target=new File(folder,me.getKey()+LogPack.EXTENSION);
+			LogPack existing=getPack(target);
+			if(existing==null && target.exists())
+			{
+				// Pack couldn't be read at startup; don't overwrite it
+				continue;
+			}
+			LogPack pack=installPack(writePack(target,me.getValue(),existing,
+				new HashSet<String>(),m),existing);
+
+			// Delete files, unless they changed after being packed
+			synchronized(this)
+			{
+				for(File f : me.getValue())
 				{
-					int iFileID=entries[iEntry].files[iFile];
-					if(iFileID!=0)
+					if(!currentStreams.containsKey(f) &&
+						f.length()==pack.getLength(f.getName()))
 					{
-						// Look up in file list
-						files.add(new File(folder,filesIDToName.get(iFileID)));
+						f.delete();
 					}
 				}
 			}
+
+			done+=me.getValue().size();
+			debugLog(10,"Compressed "+done+"/"+count+" old log files");
 		}
-		return files;
+		debugLog(10,"Compressed "+count+" old logs: "+
+			(System.currentTimeMillis()-startTime)+"ms");
 	}
 
 	/**
-	 * Gets ID for the given file. If necessary, adds a new file to the file index.
-	 * @param f File to find or add
-	 * @return ID of requested file
-	 * @throws IOException Any problem updating file index
+	 * Copies logs into the archive, which holds a pack for each date.
+	 * @param logs Logs to archive (missing files are ignored)
+	 * @param m Maintenance object (for checkpoints)
+	 * @throws IOException Error writing archive, or maintenance stopped
 	 */
-	synchronized private int getFileID(File f) throws IOException
+	private void archiveLogs(File[] logs,LogMaintenance m) throws IOException
 	{
-		// Look for existing file
-		String file=f.getName();
-		Integer id=filesNameToID.get(file);
-		if(id!=null)
+		File archiveFolder=new File(folder,ARCHIVEFOLDER);
+		if(!archiveFolder.exists()) archiveFolder.mkdirs();
+
+		Map<String, List<File>> byDate=new TreeMap<String, List<File>>();
+		for(int i=0;i<logs.length;i++)
 		{
-			debugLog(50,"File "+id+" ("+file+"): already indexed");
-			return id.intValue();
+			Matcher matcher=LOGFILENAME.matcher(logs[i].getName());
+			if(!matcher.matches() || (!logs[i].exists() && !packed.containsKey(logs[i].getName())))
+				continue;
+			List<File> list=byDate.get(matcher.group(1));
+			if(list==null)
+			{
+				list=new LinkedList<File>();
+				byDate.put(matcher.group(1),list);
+			}
+			list.add(logs[i]);
 		}
 
-		// OK, add new file. Begin by finding max ID of existing files
-		int max=0;
-		for(Integer i : filesIDToName.keySet())
+		for(Map.Entry<String, List<File>> me : byDate.entrySet())
 		{
-			max = Math.max(max, i);
+			File target=new File(archiveFolder,me.getKey()+LogPack.EXTENSION);
+			writePack(target,me.getValue(),
+				target.exists() ? new LogPack(target) : null,new HashSet<String>(),m).finish();
 		}
-
-		// All good, so add that file to the end of the index on disk...
-		DataOutputStream dos=new DataOutputStream(
-			new FileOutputStream(new File(folder,INDEX_FILES),true));
-		dos.writeInt(max+1);
-		dos.writeUTF(file);
-		dos.close();
-
-		// ...and to the in-memory index
-		Integer key = max + 1;
-		filesIDToName.put(key,file);
-		filesNameToID.put(file,key);
-
-		debugLog(20,"File "+key+" ("+file+"): Added to index");
-
-		return max+1;
 	}
 
-	synchronized private void removeFiles(File[] files) throws IOException,GeneralException
+	/**
+	 * Deletes logs, removing them from packs if necessary.
+	 * @param logs Logs to delete (missing files are ignored)
+	 * @param m Maintenance object (for checkpoints)
+	 * @throws IOException Error deleting files or rewriting packs, or
+	 *   maintenance stopped
+	 */
+	private void removeLogs(File[] logs,LogMaintenance m) throws IOException
 	{
-		// Find IDs for files and remove from memory maps
-		Set<Integer> allIDs = new HashSet<Integer>();
-		int[] ids=new int[files.length];
-		for(int i=0;i<files.length;i++)
+		Map<LogPack, Set<String>> fromPacks=new HashMap<LogPack, Set<String>>();
+		for(int i=0;i<logs.length;i++)
 		{
-			Integer idInt=filesNameToID.get(files[i].getName());
-			if(idInt==null) throw new GeneralException("Log file "+files[i]+" not found in index");
-			allIDs.add(idInt);
-			ids[i]=idInt.intValue();
+			if(logs[i].exists() && !logs[i].delete())
+				throw new IOException("Failed to delete log: "+logs[i]);
+
+			LogPack pack=packed.get(logs[i].getName());
+			if(pack!=null)
+			{
+				Set<String> names=fromPacks.get(pack);
+				if(names==null)
+				{
+					names=new HashSet<String>();
+					fromPacks.put(pack,names);
+				}
+				names.add(logs[i].getName());
+			}
 		}
-		for(int i=0;i<files.length;i++)
+
+		for(Map.Entry<LogPack, Set<String>> me : fromPacks.entrySet())
 		{
-			filesIDToName.remove(ids[i]);
-			filesNameToID.remove(files[i].getName());
+			installPack(writePack(me.getKey().getFile(),new LinkedList<File>(),
+				me.getKey(),me.getValue(),m),me.getKey());
 		}
+	}
 
-		// Rewrite file index
-		File newFileIndex=new File(folder,INDEX_FILES+".new");
-		DataOutputStream dos=new DataOutputStream(
-			new FileOutputStream(newFileIndex));
-		for(Map.Entry<Integer, String> me : filesIDToName.entrySet())
+	/**
+	 * @param target Pack file
+	 * @return Pack currently in use for that file, or null if none
+	 */
+	private LogPack getPack(File target)
+	{
+		for(LogPack pack : packed.values())
 		{
-			int id=me.getKey().intValue();
-			dos.writeInt(id);
-			dos.writeUTF(me.getValue());
+			if(pack.getFile().equals(target)) return pack;
 		}
-		dos.close();
+		return null;
+	}
 
-		// Now the time-consuming bit! Scan entire word index...
-		for(Map.Entry<String, IndexEntry[]> me : words.entrySet())
+	/**
+	 * Writes a pack containing log files and, optionally, files from an
+	 * existing pack. The pack isn't in place until the writer is finished
+	 * (see {@link #installPack(LogPack.Writer, LogPack)}).
+	 * @param target Pack file to create or replace
+	 * @param logs Log files to include (loose or already packed)
+	 * @param existing Existing pack to include files from, or null
+	 * @param exclude Names of files not to include from the existing pack
+	 * @param m Maintenance object (for checkpoints)
+	 * @return Writer, ready to finish (or abort if empty)
+	 * @throws IOException Error reading logs or writing pack, or maintenance
+	 *   stopped
+	 */
+	private LogPack.Writer writePack(File target,List<File> logs,LogPack existing,
+		Set<String> exclude,LogMaintenance m) throws IOException
+	{
+		LogPack.Writer writer=new LogPack.Writer(target);
+		boolean ok=false;
+		try
 		{
-			IndexEntry[] aie = me.getValue();
-			for(int entry=0;entry<aie.length;entry++)
+			for(File f : logs)
 			{
-				IndexEntry currentEntry=aie[entry];
-				for(int entryFile=0;entryFile<INDEX_FILESPERENTRY;entryFile++)
+				m.checkpoint();
+				InputStream in=openLog(f,0);
+				try
 				{
-					int compare=currentEntry.files[entryFile];
-					if(compare==0) continue;
-
-					if(allIDs.contains(compare))
+					writer.add(f.getName(),in);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			if(existing!=null)
+			{
+				String[] names=existing.getNames();
+				for(int i=0;i<names.length;i++)
+				{
+					if(exclude.contains(names[i]) || writer.contains(names[i])) continue;
+					m.checkpoint();
+					InputStream in=existing.open(names[i],0);
+					try
 					{
-						// Squash this one...
-						currentEntry.files[entryFile]=0;
-
-						// Save the change...
-						IndexUpdate iu=new IndexUpdate(currentEntry.filePos+INDEX_WORDBYTES+entryFile*4);
-						iu.writeInt(0);
-						addIndexUpdate(iu);
+						writer.add(names[i],in);
+					}
+					finally
+					{
+						in.close();
 					}
 				}
 			}
+			ok=true;
 		}
-
-		// Switch new index for old
-		File
-			fileIndex=new File(folder,INDEX_FILES),
-			oldFileIndex=new File(folder,INDEX_FILES+".old");
-		if(oldFileIndex.exists())
+		finally
 		{
-			if(!oldFileIndex.delete()) throw new IOException(
-				"Failed to delete old log file index "+oldFileIndex);
+			if(!ok) writer.abort();
 		}
-		if(!fileIndex.renameTo(oldFileIndex))
-			throw new IOException("Failed to rename old log file index "+fileIndex);
-		if(!newFileIndex.renameTo(fileIndex))
-			throw new IOException("Failed to rename new log file index "+newFileIndex);
-		oldFileIndex.delete();
-
-		// Must apply all index changes now as these aren't compatible with normal
-		// writing (they can write to the same place, which causes a
-		// consistency-check error later on)
-		applyIndexChanges();
+		return writer;
 	}
 
 	/**
-	 * Adds a word to the index if necessary, updating in memory and on disk.
-	 * @param fileID Log file that contains the given word
-	 * @param s Word in question
-	 * @throws IOException If there's any error writing the index changes
+	 * Puts a newly-written pack in place of the existing one (if any), so
+	 * that log files are read from it. Reading is held up while this happens,
+	 * and any streams already open on the existing pack are allowed to finish
+	 * first.
+	 * @param writer Writer for new pack, which is finished (or aborted and
+	 *   the pack deleted, if there is nothing in it)
+	 * @param existing Pack being replaced, or null
+	 * @return New pack, or null if it had no files
+	 * @throws IOException Error replacing pack
 	 */
-	synchronized private void addWord(int fileID,String s) throws IOException
+	private LogPack installPack(LogPack.Writer writer,LogPack existing)
+		throws IOException
 	{
-		String cropped=getCroppedString(s);
-		assert(cropped.length()>0);
-
-		IndexEntry[] entries=words.get(cropped);
-		if(entries!=null)
+		synchronized(packLock)
 		{
-			// We already have entries for this word. See if one of them matches
-			// the file in question; otherwise, look for a blank space
-			int blankEntry=-1,iBlankFile=-1;
-			for(int entry=0;entry<entries.length;entry++)
+			if(existing!=null)
 			{
-				for(int file=0;file<INDEX_FILESPERENTRY;file++)
-				{
-					int thisFileID=entries[entry].files[file];
-					if(thisFileID==0 && blankEntry==-1)
-					{
-						blankEntry=entry;
-						iBlankFile=file;
-					}
+				existing.waitForStreams();
+			}
+			LogPack pack=null;
+			if(writer.isEmpty())
+			{
+				writer.abort();
+				File target=writer.getTarget();
+				if(target.exists() && !target.delete())
+					throw new IOException("Failed to delete empty log pack: "+target);
+			}
+			else
+			{
+				writer.finish();
+				pack=new LogPack(writer.getTarget());
+			}
 
-					if(fileID==thisFileID)
-					{
-						debugLog(50,"Word entry '"+cropped+"': already exists");
-						return; // Yay! No need to do anything.
-					}
+			Map<String, LogPack> newPacked=new HashMap<String, LogPack>(packed);
+			if(existing!=null)
+			{
+				String[] names=existing.getNames();
+				for(int i=0;i<names.length;i++)
+				{
+					if(newPacked.get(names[i])==existing) newPacked.remove(names[i]);
 				}
 			}
-
-			// Did we find a blank space? If so, use it
-			if(blankEntry!=-1)
+			if(pack!=null)
 			{
-				// Store in memory...
-				entries[blankEntry].files[iBlankFile]=fileID;
-				// ...and on disk
-				IndexUpdate iu=new IndexUpdate(entries[blankEntry].filePos+INDEX_WORDBYTES+4*iBlankFile);
-				iu.writeInt(fileID);
-				addIndexUpdate(iu);
-				// and we're done
-				debugLog(30,"Word entry '"+cropped+"': adding to existing entry");
-				return;
+				String[] names=pack.getNames();
+				for(int i=0;i<names.length;i++)
+				{
+					newPacked.put(names[i],pack);
+				}
 			}
+			packed=newPacked;
+			return pack;
 		}
+	}
 
-		// Need to add a new entry in memory...
-		int newPos;
-		if(entries==null) // No existing entries, start new array
+	/**
+	 * Opens a log file for reading, whether it's a normal file or has been
+	 * compressed into a pack.
+	 * @param f Log file
+	 * @param from Byte offset to start reading from
+	 * @return Buffered stream, which must be closed after use
+	 * @throws IOException If the file doesn't exist or can't be read
+	 */
+	private InputStream openLog(File f,long from) throws IOException
+	{
+		if(f.exists())
 		{
-			entries=new IndexEntry[1];
-			words.put(cropped,entries);
-			newPos=0;
-			debugLog(30,"Word entry '"+cropped+"': creating first entry");
+			try
+			{
+				return openLooseLog(f,from);
+			}
+			catch(FileNotFoundException e)
+			{
+				// Deleted after being packed, so read it from the pack instead
+			}
 		}
-		else // Reallocate array to add entry
+		synchronized(packLock)
 		{
-			IndexEntry[] newEntries=new IndexEntry[entries.length+1];
-			System.arraycopy(entries,0,newEntries,0,entries.length);
-			entries=newEntries;
-			words.put(cropped,entries);
-			newPos=entries.length-1;
-			debugLog(30,"Word entry '"+cropped+"': creating additional entry");
+			LogPack pack=packed.get(f.getName());
+			if(pack!=null)
+			{
+				return new BufferedInputStream(pack.open(f.getName(),from));
+			}
 		}
-		entries[newPos]=new IndexEntry();
+		return openLooseLog(f,from);
+	}
 
-		// If there's a blank space, add it there instead of at the end
-		if(!blankEntrySpaces.isEmpty())
+	/**
+	 * Opens a log file that is not in a pack.
+	 * @param f Log file
+	 * @param from Byte offset to start reading from
+	 * @return Buffered stream, which must be closed after use
+	 * @throws IOException If the file doesn't exist or can't be read
+	 */
+	private static InputStream openLooseLog(File f,long from) throws IOException
+	{
+		FileInputStream input=new FileInputStream(f);
+		try
 		{
-			Integer i=blankEntrySpaces.getFirst();
-			blankEntrySpaces.removeFirst();
-			entries[newPos].filePos=i.intValue();
+			long skip=from;
+			while(skip>0)
+			{
+				long skipped=input.skip(skip);
+				if(skipped<=0) break;
+				skip-=skipped;
+			}
 		}
-		else
+		catch(IOException e)
 		{
-			entries[newPos].filePos=fileEndPos;
-			fileEndPos+=INDEX_BYTESPERENTRY;
-		}
-
-		entries[newPos].files[0]=fileID;
-		IndexUpdate iu=new IndexUpdate(entries[newPos].filePos);
-		byte[] word=cropped.getBytes("UTF-8");
-		// Write word, zero-padded
-		iu.writeBytes(word);
-		for(int i=0;i<INDEX_WORDBYTES-word.length;i++)
-			iu.writeByte(0);
-		// Write this file ID and the blank spaces
-		iu.writeInt(fileID);
-		for(int i=0;i<INDEX_FILESPERENTRY-1;i++) iu.writeInt(0);
-		addIndexUpdate(iu);
+			input.close();
+			throw e;
+		}
+		return new BufferedInputStream(input);
 	}
 
 	/**
-	 * Crops a string to no more than 8 bytes in UTF-8.
-	 * @param s The string
-	 * @return Cropped string
+	 * Extracts a log file from its pack so that more lines can be added. This
+	 * only happens if the clock or rollover time changes; the next time the
+	 * logs are loaded, the pack is updated.
+	 * @param f Log file
+	 * @throws IOException Error extracting file
 	 */
-	private String getCroppedString(String s)
+	private void unpack(File f) throws IOException
 	{
-		int end=s.length();
-		for(;end>0;end--)
+		File temp=new File(f.getPath()+".new");
+		InputStream in=openLog(f,0);
+		try
 		{
-			byte[] ab;
+			OutputStream out=new FileOutputStream(temp);
 			try
 			{
-				ab=s.substring(0,end).getBytes("UTF-8");
-				if(ab.length<=8) return s.substring(0,end);
+				byte[] buffer=new byte[8192];
+				while(true)
+				{
+					int read=in.read(buffer);
+					if(read==-1) break;
+					out.write(buffer,0,read);
+				}
 			}
-			catch(UnsupportedEncodingException e)
+			finally
 			{
-				throw new Error(e);
+				out.close();
 			}
 		}
-		throw new Error("Word could not be limited to 8 bytes");
+		finally
+		{
+			in.close();
+		}
+		if(!temp.renameTo(f))
+			throw new IOException("Failed to extract log from pack: "+f);
+	}
+
+	/**
+	 * Finds every occurrence of a word.
+	 * @param word Word being searched (lower-case)
+	 * @return Postings for that word
+	 * @throws GeneralException If the index can't be read
+	 */
+	Postings getPostings(String word) throws GeneralException
+	{
+		try
+		{
+			return index.getPostings(word);
+		}
+		catch(IOException e)
+		{
+			throw new GeneralException("Failed to read log index",e);
+		}
+	}
+
+	/**
+	 * @param fileID File ID from postings
+	 * @return Log file, or null if it has been removed from the index
+	 */
+	File getLogFile(int fileID)
+	{
+		String name=index.getFileName(fileID);
+		return name==null ? null : new File(folder,name);
 	}
 
 	/**
-	 * Reindexes a particular file (if the index may have been damaged)
-	 * @param f File to reindex
-	 * @throws GeneralException Any problem reading file
-	 * @throws IOException Index write error
-	 * @throws XMLException Line not valid XML.
+	 * Indexes part of a file.
+	 * @param f File to index
+	 * @param from Byte offset of first line to index
+	 * @throws IOException Error reading file or writing index
 	 */
-	private void reindex(File f) throws GeneralException, XMLException, IOException
+	private void reindex(File f,long from) throws IOException
 	{
-		for(String line : readFileLines(f))
+		InputStream input=openLog(f,from);
+		try
+		{
+			ByteArrayOutputStream line=new ByteArrayOutputStream();
+			long offset=from;
+			while(true)
+			{
+				int b=input.read();
+				if(b==-1) break;
+				if(b!='\n')
+				{
+					line.write(b);
+					continue;
+				}
+
+				// Complete line
+				long end=offset+line.size()+1;
+				String xml=line.toString("UTF-8").replaceAll("^<e[^>]*>(.*)</e>$","$1");
+				try
+				{
+					index(f,xml,offset,end);
+				}
+				catch(XMLException e)
+				{
+					// Skip any lines that aren't valid
+				}
+				line.reset();
+				offset=end;
+			}
+		}
+		finally
 		{
-			line=line.replaceAll("^<e[^>]*>(.*)</e>","$1");
-			index(f,line);
+			input.close();
 		}
 	}
 
 	/**
-	 * Adds information about a particular file to the index.
+	 * Adds a line to the index.
 	 * @param f File in question
 	 * @param xml Some XML
-	 * @throws IOException If addWord gives an error
+	 * @param offset Byte offset of line within file
+	 * @param end Byte offset after end of line
+	 * @throws IOException If the index can't be written
 	 * @throws XMLException IF the string isn't valid XML
 	 */
-	private void index(File f,String xml) throws IOException,XMLException
+	private void index(File f,String xml,long offset,long end) throws IOException,XMLException
+	{
+		index.addLine(f.getName(),offset,end,extractWords(scanner,xml));
+	}
+
+	/**
+	 * Reads a line from a log file along with the lines before and after it.
+	 * @param f File to read
+	 * @param offset Byte offset of line
+	 * @return Array of previous line, line, and next line (the first and last
+	 *   may be null)
+	 * @throws GeneralException If there's a problem reading the file
+	 */
+	public String[] readLinesAround(File f,long offset)
+		throws GeneralException
 	{
-		int fileID=getFileID(f);
-		String[] words=extractWords(xml);
-		for(int i=0;i<words.length;i++)
+		InputStream input=null;
+		try
 		{
-			if(words[i].length()>0) addWord(fileID,words[i]);
+			// Only need to synchronize while making sure the file is up to date;
+			// several searches can then read at once
+			synchronized(this)
+			{
+				LogStream ls=currentStreams.get(f);
+				if(ls!=null && ls.dirty)
+				{
+					writers.flush(f);
+				}
+			}
+
+			int before=(int)Math.min(offset,SEARCHBACK);
+			input=openLog(f,offset-before);
+			String[] result=new String[3];
+
+			// Look back for start of previous line
+			if(offset>0)
+			{
+				byte[] data=new byte[before];
+				new DataInputStream(input).readFully(data);
+				// Last byte is the newline at the end of the previous line
+				int start=before-1;
+				while(start>0 && data[start-1]!='\n') start--;
+				if(start>0 || before==offset)
+				{
+					result[0]=new String(data,start,before-1-start,"UTF-8");
+				}
+			}
+
+			result[1]=readLine(input);
+			result[2]=readLine(input);
+			return result;
+		}
+		catch(IOException ioe)
+		{
+			throw new GeneralException("Failed to load log file",ioe);
+		}
+		finally
+		{
+			try
+			{
+				if(input!=null)
+				{
+					input.close();
+				}
+			}
+			catch(IOException ioe)
+			{
+				// Ignore exception on close
+			}
+		}
+	}
+
+	/**
+	 * Reads a UTF-8 line from a stream.
+	 * @param input Stream (should be buffered)
+	 * @return Line (without newline) or null if at end of stream
+	 * @throws IOException Error reading file
+	 */
+	private static String readLine(InputStream input) throws IOException
+	{
+		ByteArrayOutputStream line=new ByteArrayOutputStream();
+		while(true)
+		{
+			int b=input.read();
+			if(b==-1)
+			{
+				return line.size()==0 ? null : line.toString("UTF-8");
+			}
+			if(b=='\n')
+			{
+				return line.toString("UTF-8");
+			}
+			line.write(b);
 		}
 	}
 
@@ -1254,15 +1493,31 @@ class LoggerImp implements Logger,Runnable
 	 * @return List of all lines in file
 	 * @throws GeneralException If there's a problem loading the file
 	 */
-	public synchronized LinkedList<String> readFileLines(File f)
+	public LinkedList<String> readFileLines(File f)
+		throws GeneralException
+	{
+		// Make sure lines that are still queued are included (but don't hold up
+		// the caller for long if the logger is busy)
+		queue.flush(FLUSHWAITTIME);
+		synchronized(this)
+		{
+			return readFileLinesInner(f);
+		}
+	}
+
+	private LinkedList<String> readFileLinesInner(File f)
 		throws GeneralException
 	{
 		BufferedReader br = null;
 		LinkedList<String> results = new LinkedList<String>();
 		try
 		{
-			br = new BufferedReader(
-				new InputStreamReader(new FileInputStream(f),"UTF-8"));
+			LogStream ls=currentStreams.get(f);
+			if(ls!=null && ls.dirty)
+			{
+				writers.flush(f);
+			}
+			br = new BufferedReader(new InputStreamReader(openLog(f,0),"UTF-8"));
 			while(true)
 			{
 				String line = br.readLine();
@@ -1291,40 +1546,102 @@ class LoggerImp implements Logger,Runnable
 		}
 	}
 
+	/**
+	 * Queues a line for the logger thread. This does not access the disk or
+	 * the index, but may wait if the queue is full (depending on preferences).
+	 */
 	@Override
-	public synchronized void log(String source,String category,String item,String type,String displayXML)
+	public void log(String source,String category,String item,String type,String displayXML)
+	{
+		if(!((LogsPlugin)context.getPlugin()).shouldLog(category,item)) return;
+
+		queue.add(new LogQueue.Entry(System.currentTimeMillis(),
+			source,category,item,type,displayXML));
+	}
+
+	/**
+	 * Writes a queued line. Called on the logger thread.
+	 * @param e Line
+	 */
+	private synchronized void write(LogQueue.Entry e)
 	{
-		if(close) return;
 		try
 		{
-			if(!((LogsPlugin)context.getPlugin()).shouldLog(category,item)) return;
-
-			// Pick current time and find file for it
-			long time=System.currentTimeMillis();
-			File f=getFile(time,source,category,item);
+			// Find file for the time it was logged
+			long time=e.time;
+			File f=getFile(time,e.source,e.category,e.item);
 
 			// Do we have a stream for that already? If not, make one
 			LogStream ls=currentStreams.get(f);
 			if(ls==null)
 			{
+				if(!f.exists() && packed.containsKey(f.getName()))
+				{
+					unpack(f);
+				}
 				ls=new LogStream();
-				ls.w=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f,true),"UTF-8"));
+				ls.length=f.length();
 				currentStreams.put(f,ls);
 			}
 
+			String line="<e time='"+time+"' type='"+e.type+"'>"+e.xml+"</e>\n";
+			long end=ls.length+getUTF8Length(line);
+
 			// Index data (note: this checks it's valid XML so do it first)
-			index(f,displayXML);
+			index(f,e.xml,ls.length,end);
 
 			// Write data
-			ls.w.write(
-				"<e time='"+time+"' type='"+type+"'>"+displayXML+"</e>\n"
-				);
+			writers.write(f,line);
+			ls.length=end;
 			ls.dirty=true;
 			ls.lastUsed=time;
+
+			catalog.addLine(f,time,end);
 		}
 		catch(IOException ioe)
 		{
 			ErrorMsg.report("Error logging data",ioe);
 		}
+		catch(GeneralException ge)
+		{
+			ErrorMsg.report("Error updating log catalog",ge);
+		}
+	}
+
+	/**
+	 * @param s String
+	 * @return Number of bytes the string takes up when written as UTF-8
+	 */
+	private static int getUTF8Length(String s)
+	{
+		int length=0;
+		for(int i=0;i<s.length();i++)
+		{
+			char c=s.charAt(i);
+			if(c<0x80)
+			{
+				length++;
+			}
+			else if(c<0x800)
+			{
+				length+=2;
+			}
+			else if(Character.isHighSurrogate(c) && i+1<s.length() &&
+				Character.isLowSurrogate(s.charAt(i+1)))
+			{
+				length+=4;
+				i++;
+			}
+			else if(c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE)
+			{
+				// Unpaired surrogates are written as '?'
+				length++;
+			}
+			else
+			{
+				length+=3;
+			}
+		}
+		return length;
 	}
 }
@@ -38,6 +38,9 @@ public class LogsPlugin implements Plugin
 		PREFGROUP_SELECTED="selected",PREFGROUP_DONOTLOG="donotlog",PREFGROUP_NEVERDELETE="neverdelete",PREF_ITEM="item",
 		PREF_RETENTION="retention",PREF_RETENTION_DEFAULT="30"	,
 		PREF_ARCHIVE="archive",PREF_ARCHIVE_DEFAULT="f",
+		PREF_PACK="pack",PREF_PACK_DEFAULT="t",
+		PREF_QUEUESIZE="queuesize",PREF_QUEUESIZE_DEFAULT="4096",
+		PREF_OVERFLOW="overflow",PREF_OVERFLOW_DEFAULT="block",
 		PREF_DONOTLOG_INITED="donotlog-inited";
 
 	final static String[] PREF_DONOTLOG_DEFAULTS=
@@ -63,6 +66,37 @@ public class LogsPlugin implements Plugin
 		return p.toBoolean(p.getGroup(this).get(PREF_ARCHIVE,PREF_ARCHIVE_DEFAULT));
 	}
 
+	/**
+	 * @return True if logs from previous days should be compressed
+	 */
+	boolean shouldPack()
+	{
+		Preferences p=pc.getSingle(Preferences.class);
+		return p.toBoolean(p.getGroup(this).get(PREF_PACK,PREF_PACK_DEFAULT));
+	}
+
+	int getQueueSize()
+	{
+		Preferences p=pc.getSingle(Preferences.class);
+		return p.toInt(p.getGroup(this).get(PREF_QUEUESIZE,PREF_QUEUESIZE_DEFAULT));
+	}
+
+	/**
+	 * @return What to do when lines arrive faster than they can be logged;
+	 *   a LogQueue.OVERFLOW_xx constant
+	 */
+	int getOverflowPolicy()
+	{
+		Preferences p=pc.getSingle(Preferences.class);
+		String value=p.getGroup(this).get(PREF_OVERFLOW,PREF_OVERFLOW_DEFAULT);
+		if(value.equals("dropnewest"))
+			return LogQueue.OVERFLOW_DROPNEWEST;
+		else if(value.equals("dropoldest"))
+			return LogQueue.OVERFLOW_DROPOLDEST;
+		else
+			return LogQueue.OVERFLOW_BLOCK;
+	}
+
 	private void initDoNotLog()
 	{
 		Preferences p=pc.getSingle(Preferences.class);
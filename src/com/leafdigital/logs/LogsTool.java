@@ -100,7 +100,8 @@ public class LogsTool implements SimpleTool
 
 	private File startFolder;
 
-	private boolean searchCancelled;
+	/** Search in progress, if any */
+	private LogSearch currentSearch;
 
 	private File displayedFile = null;
 	private File[] others = null;
@@ -156,8 +157,6 @@ public class LogsTool implements SimpleTool
 		}
 	}
 
-	private LoggerImp.LogFileInfo[] logFileInfo;
-
 	private void initWindow() throws GeneralException
 	{
 		logWindow.setRemember("tool","logs");
@@ -165,19 +164,14 @@ public class LogsTool implements SimpleTool
 		LoggerImp li=(LoggerImp)context.getSingle(Logger.class);
 
 		// Fill date and item boxes
-		logFileInfo=li.getAllLogs();
-		Set<String> dates = new TreeSet<String>();
+		LogCatalog catalog=li.getCatalog();
 		Set<String> items = new TreeSet<String>(new IgnoreCaseComparator());
-		for(int i=0;i<logFileInfo.length;i++)
-		{
-			dates.add(logFileInfo[i].getDate());
-			items.add(logFileInfo[i].getItem());
-		}
+		items.addAll(Arrays.asList(catalog.getItems()));
 		for(String item : items)
 		{
 			itemsUI.addItem(item);
 		}
-		String[] dateStrings=dates.toArray(new String[dates.size()]);
+		String[] dateStrings=catalog.getDates();
 		for(int i=dateStrings.length-1;i>=0;i--)
 		{
 			datesUI.addItem(li.displayDate(dateStrings[i]),dateStrings[i]);
@@ -302,15 +296,26 @@ public class LogsTool implements SimpleTool
 		}
 	}
 
+	/** @return Dates currently selected in the dates list */
+	private Set<String> getSelectedDates()
+	{
+		Set<String> selected=new HashSet<String>();
+		for(Object data : datesUI.getMultiSelectedData())
+		{
+			selected.add((String)data);
+		}
+		return selected;
+	}
+
 	private void selectionChanged() throws GeneralException
 	{
 		actionCancelSearch();
 
 		LoggerImp li=(LoggerImp)context.getSingle(Logger.class);
+		LogCatalog catalog=li.getCatalog();
 
 		// Get required content of items list filtered by selected dates
-		Set<Object> selectedDates =
-			new HashSet<Object>(Arrays.asList(datesUI.getMultiSelectedData()));
+		Set<String> selectedDates=getSelectedDates();
 		Set<String> selectedItems = new HashSet<String>();
 		String[] selectedItemsArray=itemsUI.getMultiSelected();
 		for(int i=0;i<selectedItemsArray.length;i++)
@@ -321,18 +326,11 @@ public class LogsTool implements SimpleTool
 			new TreeSet<String>(new IgnoreCaseComparator());
 		if(selectedDates.size()==0)
 		{
-			for(int i=0;i<logFileInfo.length;i++)
-			{
-				filteredItemsSet.add(logFileInfo[i].getItem());
-			}
+			filteredItemsSet.addAll(Arrays.asList(catalog.getItems()));
 		}
 		else
 		{
-			for(int i=0;i<logFileInfo.length;i++)
-			{
-				if(selectedDates.contains(logFileInfo[i].getDate()))
-					filteredItemsSet.add(logFileInfo[i].getItem());
-			}
+			filteredItemsSet.addAll(Arrays.asList(catalog.getItems(selectedDates)));
 		}
 		String[] filteredItems=filteredItemsSet.toArray(new String[filteredItemsSet.size()]);
 
@@ -361,18 +359,11 @@ public class LogsTool implements SimpleTool
 		Set<String> filteredDatesSet = new TreeSet<String>();
 		if(selectedItems.size()==0)
 		{
-			for(int i=0;i<logFileInfo.length;i++)
-			{
-				filteredDatesSet.add(logFileInfo[i].getDate());
-			}
+			filteredDatesSet.addAll(Arrays.asList(catalog.getDates()));
 		}
 		else
 		{
-			for(int i=0;i<logFileInfo.length;i++)
-			{
-				if(selectedItems.contains(logFileInfo[i].getItem().toUpperCase()))
-					filteredDatesSet.add(logFileInfo[i].getDate());
-			}
+			filteredDatesSet.addAll(Arrays.asList(catalog.getDates(selectedItems)));
 		}
 		String[] filteredDates=new String[filteredDatesSet.size()];
 		int iPos=filteredDates.length;
@@ -395,30 +386,28 @@ public class LogsTool implements SimpleTool
 					datesUI.setSelectedData(filteredDates[i],true);
 				}
 			}
-			selectedDates = new HashSet<Object>(Arrays.asList(datesUI.getMultiSelectedData()));
+			selectedDates=getSelectedDates();
 		}
 
 		// Fine, now have we selected a single date/item yet?
-		Set<LogFileInfo> files = new HashSet<LogFileInfo>();
+		List<LogCatalog.Entry> files = new LinkedList<LogCatalog.Entry>();
 
 		boolean single=false;
-		for(int i=0;i<logFileInfo.length;i++)
+		LogCatalog.Entry[] entries=catalog.getEntries(selectedDates,selectedItems);
+		for(int i=0;i<entries.length;i++)
 		{
-			LogFileInfo current=logFileInfo[i];
-			if(selectedDates.contains(current.getDate()) && selectedItems.contains(current.getItem().toUpperCase()))
+			LogFileInfo current=entries[i].getInfo();
+			if(!files.isEmpty())
 			{
-				if(!files.isEmpty())
+				LogFileInfo other=files.get(0).getInfo();
+				if(!(other.getDate().equals(current.getDate()) && other.getItem().equalsIgnoreCase(current.getItem())))
 				{
-					LogFileInfo other=files.iterator().next();
-					if(!(other.getDate().equals(current.getDate()) && other.getItem().equalsIgnoreCase(current.getItem())))
-					{
-						single=false;
-						break;
-					}
+					single=false;
+					break;
 				}
-				files.add(current);
-				single=true;
 			}
+			files.add(entries[i]);
+			single=true;
 		}
 
 		// Load and display that log (supposing it isn't already)
@@ -426,28 +415,18 @@ public class LogsTool implements SimpleTool
 		{
 			if(files.size()==1)
 			{
-				displayFile(files.iterator().next().getFile());
+				displayFile(files.get(0).getInfo().getFile());
 			}
 			else // Same item and date, two servers
 			{
-				// Sort list by date of first event
+				// Sort list by date of first event (as recorded in the catalog)
 				TreeMap<Long, File> tm = new TreeMap<Long, File>();
-				for(LogFileInfo lfi : files)
+				for(LogCatalog.Entry entry : files)
 				{
-					try
-					{
-						BufferedReader br=new BufferedReader(new InputStreamReader(new FileInputStream(lfi.getFile()),"UTF-8"));
-						String line=br.readLine();
-						Matcher m=Pattern.compile("^<e time='([0-9]+)'.*$").matcher(line);
-						if(m.matches())
-							tm.put(new Long(Long.parseLong(m.group(1))),lfi.getFile());
-						else
-							ErrorMsg.report("Unexpected content in log file "+lfi.getFile(),null);
-					}
-					catch(IOException e)
-					{
-						ErrorMsg.report("Error reading log file "+lfi.getFile(),e);
-					}
+					if(entry.getFirstTime()!=0)
+						tm.put(new Long(entry.getFirstTime()),entry.getInfo().getFile());
+					else
+						ErrorMsg.report("Unexpected content in log file "+entry.getInfo().getFile(),null);
 				}
 
 				if(tm.isEmpty()) // Due to error above
@@ -653,6 +632,8 @@ public class LogsTool implements SimpleTool
 	{
 		if(!searchButtonUI.isEnabled()) return;
 
+		// Stop the old search first so it can't add to the cleared view
+		actionCancelSearch();
 		displayFile(null);
 		tvUI.clear();
 		datesUI.clearSelection();
@@ -713,301 +694,91 @@ public class LogsTool implements SimpleTool
 
 		// OK, apply search
 		searchProgressUI.setProgress(0);
-		searchCancelled=false;
-		(new Thread(new Runnable()
+		final LoggerImp l=(LoggerImp)context.getSingle(Logger.class);
+		final LogSearch search=new LogSearch(l,positiveWords,negativeWords,
+			positivePhrases,negativePhrases,new LogSearch.Handler()
 		{
+			private int shown;
+
 			@Override
-			public void run()
+			public void found(LogSearch search,int files) throws GeneralException
 			{
-				try
-				{
-					searchChoiceUI.display("searchActive");
-					try
-					{
-						LoggerImp l=(LoggerImp)context.getSingle(Logger.class);
-
-						SortedSet<SearchResult> results = new TreeSet<SearchResult>();
-						doSearch(positiveWords,negativeWords,positivePhrases,negativePhrases,l,results);
-
-						synchronized(LogsTool.this)
-						{
-							if(searchCancelled)
-								return;
-
-							if(results.isEmpty())
-							{
-								tvUI.addXML("<error>No matching log entries found.</error>");
-							}
-							else
-							{
-								for(SearchResult sr : results)
-								{
-									tvUI.addXML(
-										"<searchresult><file date='"+sr.lfi.getDate()+"' item='"+XML.esc(sr.lfi.getItem())+"'>" +
-										"<date>"+XML.esc(l.displayDate(sr.lfi.getDate()))+"</date> "+
-										(sr.lfi.getCategory().equals("chan")
-											? "<chan>"+XML.esc(sr.lfi.getItem())+"</chan>"
-											: "<nick>"+XML.esc(sr.lfi.getItem())+"</nick>"
-											)+" <searchserver>("+XML.esc(sr.lfi.getServer())+")</searchserver></file>"+
-										sr.ss.getXML()+"</searchresult>");
-								}
-								tvUI.addXML("<line>Search complete with "+results.size()+" results.</line>");
-							}
-						}
-					}
-					finally
-					{
-						searchChoiceUI.display("searchInput");
-					}
-				}
-				catch(GeneralException ge)
+				synchronized(LogsTool.this)
 				{
-					ErrorMsg.report("Error in search",ge);
+					if(search!=currentSearch) return;
+					searchProgressUI.setRange(files);
 				}
 			}
-		},"Log search thread")).start();
-	}
 
-	/**
-	 * @param positiveWords Words that must exist
-	 * @param negativeWords Words that must not exist
-	 * @param positivePhrases Phrases that must exist
-	 * @param negativePhrases Phrases that must not exist
-	 * @param l Logger
-	 * @param results Set that receives results
-	 * @throws GeneralException
-	 */
-	private void doSearch(Set<String> positiveWords, Set<String> negativeWords,
-		String[][] positivePhrases,String[][] negativePhrases,LoggerImp l,
-		SortedSet<SearchResult> results) throws GeneralException
-	{
-		Set<File> totalFound=null;
-		for(String positiveWord : positiveWords)
-		{
-			Set<File> found=l.findWord(positiveWord);
-			if(totalFound==null)
+			@Override
+			public void result(LogSearch search,LogSearch.Result sr) throws GeneralException
 			{
-				totalFound=found;
+				synchronized(LogsTool.this)
+				{
+					if(search!=currentSearch) return;
+
+					LogFileInfo lfi=sr.getFileInfo();
+					tvUI.addXML(
+						"<searchresult><file date='"+lfi.getDate()+"' item='"+XML.esc(lfi.getItem())+"'>" +
+						"<date>"+XML.esc(l.displayDate(lfi.getDate()))+"</date> "+
+						(lfi.getCategory().equals("chan")
+							? "<chan>"+XML.esc(lfi.getItem())+"</chan>"
+							: "<nick>"+XML.esc(lfi.getItem())+"</nick>"
+							)+" <searchserver>("+XML.esc(lfi.getServer())+")</searchserver></file>"+
+						sr.getXML()+"</searchresult>");
+					searchProgressUI.setProgress(++shown);
+				}
 			}
-			else
+
+			@Override
+			public void finished(LogSearch search,int results) throws GeneralException
 			{
-				for(Iterator<File> j=totalFound.iterator();j.hasNext();)
+				synchronized(LogsTool.this)
 				{
-					File f = j.next();
-					if(!found.contains(f))
+					if(search!=currentSearch) return;
+					if(results==0)
 					{
-						j.remove();
+						tvUI.addXML("<error>No matching log entries found.</error>");
+					}
+					else
+					{
+						tvUI.addXML("<line>Search complete with "+results+" results.</line>");
 					}
 				}
 			}
-		}
-
-		// totalFound now includes all files with the positive words, let's
-		// chuck out the negative...
-		for(String negativeWord : negativeWords)
+		});
+		synchronized(this)
 		{
-			Set<File> found = l.findWord(negativeWord);
-			for(File remove : found)
-			{
-				totalFound.remove(remove);
-			}
+			currentSearch=search;
 		}
-
-		int n=0;
-		searchProgressUI.setRange(totalFound.size());
-		// Right, now we have to read each file to get summaries or check phrases
-		fileloop: for(Iterator<File> i=totalFound.iterator(); i.hasNext();)
+		(new Thread(new Runnable()
 		{
-			searchProgressUI.setProgress(n++);
-			File f=i.next();
-			boolean[] gotPhrase=new boolean[positivePhrases.length];
-			SummarySegment currentSegment=new SummarySegment(),bestSegment=null;
-			int bestScore=-1;
-			int gotPhrases=0;
-
-			try
+			@Override
+			public void run()
 			{
-				BufferedReader br=new BufferedReader(new InputStreamReader(new FileInputStream(f),"UTF-8"));
-				while(true)
+				try
 				{
-					if(searchCancelled) return;
-
-					String line=br.readLine();
-					if(line==null) break;
-					line=line.replaceAll("(^<e[^>]+>)|(</e>$)","");
-					String[] words=LoggerImp.extractWords(line);
-					if(matchPhrase(words,negativePhrases)!=-1)
+					searchChoiceUI.display("searchActive");
+					try
 					{
-						i.remove();
-						continue fileloop;
+						search.run();
 					}
-					if(gotPhrases!=gotPhrase.length)
-					{
-						int found=matchPhrase(words,positivePhrases);
-						if(found!=-1 && !gotPhrase[found])
-						{
-							gotPhrase[found]=true;
-							gotPhrases++;
-						}
-					}
-					int score=0;
-					for(int word=0;word<words.length;word++)
+					finally
 					{
-						if(positiveWords.contains(words[word]))
+						// Leave the display alone if a newer search has started
+						synchronized(LogsTool.this)
 						{
-							// Check word only contains alphanumeric plus ', or outside ASCII,
-							// so we know it won't interfere with XML or regex.
-							if(!words[word].matches("[\\x00-\\x7f&&[^a-z0-9']]"))
-							{
-								Matcher highlighter=Pattern.compile(
-									"\\b("+words[word]+")\\b",Pattern.CASE_INSENSITIVE).matcher(line);
-								StringBuffer result=new StringBuffer();
-								int pos=0;
-								outerloop: while(highlighter.find())
-								{
-									// Check we're not replacing stuff inside an xml tag
-									for(int index=highlighter.end();index<line.length();index++)
-									{
-										switch(line.charAt(index))
-										{
-										case '<' : break;
-										case '>' : continue outerloop; // This must be inside a tag
-										}
-									}
-									// OK, add text before and replace it
-									result.append(line.substring(pos,highlighter.start()));
-									result.append("<found>");
-									result.append(highlighter.group(1));
-									result.append("</found>");
-									pos=highlighter.end();
-								}
-								result.append(line.substring(pos));
-								line=result.toString();
-							}
-
-							score+=10+words[word].length();
+							if(currentSearch==null || currentSearch==search)
+								searchChoiceUI.display("searchInput");
 						}
 					}
-
-					currentSegment=currentSegment.next(line,score);
-					if(currentSegment.getScore() > bestScore)
-					{
-						bestSegment=currentSegment;
-						bestScore=currentSegment.getScore();
-					}
 				}
-				br.close();
-			}
-			catch(IOException ioe)
-			{
-				throw new GeneralException("Failed to load log file",ioe);
-			}
-
-			// Didn't find all the positive phrases
-			if(gotPhrases < gotPhrase.length)
-				continue;
-
-			results.add(new SearchResult(new LoggerImp.LogFileInfo(f),bestSegment));
-		}
-		searchProgressUI.setProgress(n);
-	}
-
-	private static class SearchResult implements Comparable<SearchResult>
-	{
-		LoggerImp.LogFileInfo lfi;
-		SummarySegment ss;
-
-		@Override
-		public boolean equals(Object obj)
-		{
-			return (obj instanceof SearchResult) &&
-				lfi.getFile().equals(((SearchResult)obj).lfi.getFile());
-		}
-
-		@Override
-		public int compareTo(SearchResult other)
-		{
-			int i=other.lfi.getDate().compareTo(lfi.getDate());
-			if(i!=0) return i;
-			i=lfi.getCategory().compareTo(other.lfi.getCategory());
-			if(i!=0) return i;
-			i=lfi.getItem().compareTo(other.lfi.getItem());
-			if(i!=0) return i;
-			i=lfi.getServer().compareTo(other.lfi.getServer());
-			return i;
-		}
-
-		public SearchResult(LogFileInfo lfi,SummarySegment ss)
-		{
-			this.lfi=lfi;
-			this.ss=ss;
-		}
-	}
-
-	private int matchPhrase(String[] words, String[][] phrases)
-	{
-		for(int phrase=0;phrase<phrases.length;phrase++)
-		{
-			for(int word=0;word<words.length-phrases[phrase].length;word++)
-			{
-				boolean ok=true;
-				for(int pos=0;pos<phrases[phrase].length;pos++)
+				catch(GeneralException ge)
 				{
-					if(!words[word+pos].equals(phrases[phrase][pos]))
-					{
-						ok=false;
-						break;
-					}
+					ErrorMsg.report("Error in search",ge);
 				}
-				if(ok)
-					return phrase;
 			}
-		}
-		return -1;
-	}
-
-	private static class SummarySegment
-	{
-		private final static int SUMMARYLINES=3;
-		private final static int MIDPOINT=SUMMARYLINES/2;
-
-		String[] lines=new String[SUMMARYLINES];
-		int[] scores=new int[SUMMARYLINES];
-
-		SummarySegment next(String line,int score)
-		{
-			SummarySegment ss=new SummarySegment();
-			for(int i=0;i<SUMMARYLINES-1;i++)
-			{
-				ss.lines[i]=lines[i+1];
-				ss.scores[i]=scores[i+1];
-			}
-			ss.lines[SUMMARYLINES-1]=line;
-			ss.scores[SUMMARYLINES-1]=score;
-			return ss;
-		}
-
-		int getScore()
-		{
-			int score=0;
-			for(int line=0;line<scores.length;line++)
-			{
-				// Bias scores towards centre
-				score+=scores[line]*(1+MIDPOINT-Math.abs(line - MIDPOINT));
-			}
-			return score;
-		}
-
-		String getXML()
-		{
-			StringBuffer sb=new StringBuffer();
-			for(int i=0;i<SUMMARYLINES;i++)
-			{
-				if(lines[i]!=null)
-					sb.append("<line>"+lines[i]+"</line>");
-			}
-			return sb.toString();
-		}
+		},"Log search thread")).start();
 	}
 
 	/**
@@ -1018,7 +789,11 @@ public class LogsTool implements SimpleTool
 	{
 		synchronized(this)
 		{
-			searchCancelled=true;
+			if(currentSearch!=null)
+			{
+				currentSearch.cancel();
+				currentSearch=null;
+			}
 		}
 	}
 
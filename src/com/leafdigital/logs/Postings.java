@@ -0,0 +1,526 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+/**
+ * Posting list for a single term: every line that contains the term, with
+ * the word positions at which it appears in that line. Lines are identified
+ * by log file ID and the byte offset of the line within that file, and are
+ * sorted in that order.
+ * <p>
+ * On disk, postings are stored as varints with file IDs, line offsets and
+ * positions each delta-encoded against the previous value.
+ */
+class Postings
+{
+	/** Postings with no lines */
+	final static Postings EMPTY=new Postings(0,new int[0],new long[0],
+		new int[1],new int[0]);
+
+	private int lines;
+	private int[] files;
+	private long[] offsets;
+	/** Index into positions of first position for each line; has lines+1 entries */
+	private int[] positionStart;
+	private int[] positions;
+
+	private Postings(int lines,int[] files,long[] offsets,int[] positionStart,
+		int[] positions)
+	{
+		this.lines=lines;
+		this.files=files;
+		this.offsets=offsets;
+		this.positionStart=positionStart;
+		this.positions=positions;
+	}
+
+	/** @return Number of lines */
+	int getLineCount()
+	{
+		return lines;
+	}
+
+	/**
+	 * @param line Line index
+	 * @return File ID of line
+	 */
+	int getFile(int line)
+	{
+		return files[line];
+	}
+
+	/**
+	 * @param line Line index
+	 * @return Byte offset of line within its file
+	 */
+	long getOffset(int line)
+	{
+		return offsets[line];
+	}
+
+	/**
+	 * @param line Line index
+	 * @return Number of times the term appears in the line
+	 */
+	int getPositionCount(int line)
+	{
+		return positionStart[line+1]-positionStart[line];
+	}
+
+	/**
+	 * @param line Line index
+	 * @param index Index of occurrence within line
+	 * @return Word position of occurrence
+	 */
+	int getPosition(int line,int index)
+	{
+		return positions[positionStart[line]+index];
+	}
+
+	/**
+	 * @param line Line index
+	 * @param position Word position
+	 * @return True if the term appears at that position in the line
+	 */
+	boolean hasPosition(int line,int position)
+	{
+		for(int i=positionStart[line];i<positionStart[line+1];i++)
+		{
+			if(positions[i]==position) return true;
+			if(positions[i]>position) return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds a line.
+	 * @param file File ID
+	 * @param offset Line offset
+	 * @return Line index, or -1 if the term does not appear in that line
+	 */
+	int findLine(int file,long offset)
+	{
+		int low=0,high=lines-1;
+		while(low<=high)
+		{
+			int mid=(low+high)>>>1;
+			int compare=compare(files[mid],offsets[mid],file,offset);
+			if(compare<0)
+				low=mid+1;
+			else if(compare>0)
+				high=mid-1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Sorted array of the IDs of files that contain this term
+	 */
+	int[] getFiles()
+	{
+		int count=0;
+		for(int i=0;i<lines;i++)
+		{
+			if(i==0 || files[i]!=files[i-1]) count++;
+		}
+		int[] result=new int[count];
+		count=0;
+		for(int i=0;i<lines;i++)
+		{
+			if(i==0 || files[i]!=files[i-1]) result[count++]=files[i];
+		}
+		return result;
+	}
+
+	private static int compare(int fileA,long offsetA,int fileB,long offsetB)
+	{
+		if(fileA!=fileB) return fileA<fileB ? -1 : 1;
+		return offsetA<offsetB ? -1 : offsetA==offsetB ? 0 : 1;
+	}
+
+	/**
+	 * Finds lines in which a phrase appears (each word immediately after the
+	 * previous one).
+	 * @param words Postings for each word of the phrase, in order
+	 * @return Sorted array of IDs of files containing at least one such line
+	 */
+	static int[] findPhraseFiles(Postings[] words)
+	{
+		int[] found=new int[16];
+		int count=0;
+		Postings first=words[0];
+		int[] other=new int[words.length];
+		for(int line=0;line<first.lines;line++)
+		{
+			int file=first.files[line];
+			if(count>0 && found[count-1]==file) continue;
+
+			// Find same line in other postings
+			boolean ok=true;
+			for(int word=1;word<words.length && ok;word++)
+			{
+				other[word]=words[word].findLine(file,first.offsets[line]);
+				ok=other[word]!=-1;
+			}
+			if(!ok) continue;
+
+			// Check positions
+			for(int i=first.positionStart[line];i<first.positionStart[line+1];i++)
+			{
+				int position=first.positions[i];
+				boolean match=true;
+				for(int word=1;word<words.length && match;word++)
+				{
+					match=words[word].hasPosition(other[word],position+word);
+				}
+				if(match)
+				{
+					if(count==found.length)
+					{
+						int[] newFound=new int[count*2];
+						System.arraycopy(found,0,newFound,0,count);
+						found=newFound;
+					}
+					found[count++]=file;
+					break;
+				}
+			}
+		}
+		int[] result=new int[count];
+		System.arraycopy(found,0,result,0,count);
+		return result;
+	}
+
+	/**
+	 * Encodes postings for storage.
+	 * @param out Buffer that receives data
+	 */
+	void encode(ByteBuilder out)
+	{
+		int fileCount=0;
+		for(int i=0;i<lines;i++)
+		{
+			if(i==0 || files[i]!=files[i-1]) fileCount++;
+		}
+		out.writeVarint(fileCount);
+
+		int lastFile=0;
+		for(int line=0;line<lines;)
+		{
+			int file=files[line];
+			int end=line+1;
+			while(end<lines && files[end]==file) end++;
+
+			out.writeVarint(file-lastFile);
+			lastFile=file;
+			out.writeVarint(end-line);
+			long lastOffset=0;
+			for(;line<end;line++)
+			{
+				out.writeVarint(offsets[line]-lastOffset);
+				lastOffset=offsets[line];
+				int start=positionStart[line],count=positionStart[line+1]-start;
+				out.writeVarint(count);
+				int lastPosition=0;
+				for(int i=0;i<count;i++)
+				{
+					out.writeVarint(positions[start+i]-lastPosition);
+					lastPosition=positions[start+i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes postings into a builder.
+	 * @param data Data buffer
+	 * @param pos Offset of postings within buffer
+	 * @param builder Builder that receives lines
+	 * @param files Only lines for files in this set are added (null = all)
+	 */
+	static void decode(byte[] data,int pos,Builder builder,FileSet files)
+	{
+		int[] cursor=new int[] { pos };
+		int fileCount=(int)readVarint(data,cursor);
+		int file=0;
+		for(int i=0;i<fileCount;i++)
+		{
+			file+=(int)readVarint(data,cursor);
+			boolean include=files==null || files.contains(file);
+			int lineCount=(int)readVarint(data,cursor);
+			long offset=0;
+			for(int line=0;line<lineCount;line++)
+			{
+				offset+=readVarint(data,cursor);
+				int count=(int)readVarint(data,cursor);
+				int position=0;
+				for(int j=0;j<count;j++)
+				{
+					position+=(int)readVarint(data,cursor);
+					if(include) builder.add(file,offset,position);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a varint.
+	 * @param data Data buffer
+	 * @param cursor Single-element array holding position; updated
+	 * @return Value
+	 */
+	static long readVarint(byte[] data,int[] cursor)
+	{
+		long value=0;
+		int shift=0;
+		while(true)
+		{
+			int b=data[cursor[0]++];
+			value|=(long)(b & 0x7f) << shift;
+			if((b & 0x80)==0) return value;
+			shift+=7;
+		}
+	}
+
+	/** Set of file IDs */
+	interface FileSet
+	{
+		/**
+		 * @param file File ID
+		 * @return True if in set
+		 */
+		boolean contains(int file);
+	}
+
+	/**
+	 * Collects occurrences (in any order) and builds sorted postings. The
+	 * order of occurrences for the same line is preserved.
+	 */
+	static class Builder
+	{
+		private int count;
+		private int[] files=new int[16];
+		private long[] offsets=new long[16];
+		private int[] positions=new int[16];
+
+		/** @return Number of occurrences added */
+		int size()
+		{
+			return count;
+		}
+
+		/**
+		 * Adds an occurrence.
+		 * @param file File ID
+		 * @param offset Line offset
+		 * @param position Word position within line
+		 */
+		void add(int file,long offset,int position)
+		{
+			if(count==files.length)
+			{
+				int[] newFiles=new int[count*2];
+				System.arraycopy(files,0,newFiles,0,count);
+				files=newFiles;
+				long[] newOffsets=new long[count*2];
+				System.arraycopy(offsets,0,newOffsets,0,count);
+				offsets=newOffsets;
+				int[] newPositions=new int[count*2];
+				System.arraycopy(positions,0,newPositions,0,count);
+				positions=newPositions;
+			}
+			files[count]=file;
+			offsets[count]=offset;
+			positions[count]=position;
+			count++;
+		}
+
+		/**
+		 * Adds all occurrences from the builder that are in a file set.
+		 * @param other Other builder
+		 * @param fileSet Set of files to include
+		 */
+		void addAll(Builder other,FileSet fileSet)
+		{
+			for(int i=0;i<other.count;i++)
+			{
+				if(fileSet.contains(other.files[i]))
+				{
+					add(other.files[i],other.offsets[i],other.positions[i]);
+				}
+			}
+		}
+
+		/**
+		 * Builds postings. The builder can still be used afterwards.
+		 * @return Sorted postings
+		 */
+		Postings build()
+		{
+			// Stable sort of occurrence indexes by file and offset
+			int[] order=new int[count];
+			boolean sorted=true;
+			for(int i=0;i<count;i++)
+			{
+				order[i]=i;
+				if(i>0 && compare(files[i-1],offsets[i-1],files[i],offsets[i])>0)
+				{
+					sorted=false;
+				}
+			}
+			if(!sorted)
+			{
+				mergeSort(order,new int[count],0,count);
+			}
+
+			int lines=0;
+			for(int i=0;i<count;i++)
+			{
+				if(i==0 || compare(files[order[i-1]],offsets[order[i-1]],
+					files[order[i]],offsets[order[i]])!=0) lines++;
+			}
+			int[] outFiles=new int[lines];
+			long[] outOffsets=new long[lines];
+			int[] outStart=new int[lines+1];
+			int[] outPositions=new int[count];
+			int line=-1;
+			for(int i=0;i<count;i++)
+			{
+				int index=order[i];
+				if(line==-1 || outFiles[line]!=files[index] || outOffsets[line]!=offsets[index])
+				{
+					line++;
+					outFiles[line]=files[index];
+					outOffsets[line]=offsets[index];
+					outStart[line]=i;
+				}
+				outPositions[i]=positions[index];
+			}
+			outStart[lines]=count;
+			return new Postings(lines,outFiles,outOffsets,outStart,outPositions);
+		}
+
+		private void mergeSort(int[] order,int[] temp,int from,int to)
+		{
+			if(to-from<2) return;
+			int mid=(from+to)>>>1;
+			mergeSort(order,temp,from,mid);
+			mergeSort(order,temp,mid,to);
+			int a=from,b=mid,out=from;
+			while(a<mid && b<to)
+			{
+				if(compare(files[order[b]],offsets[order[b]],
+					files[order[a]],offsets[order[a]])<0)
+				{
+					temp[out++]=order[b++];
+				}
+				else
+				{
+					temp[out++]=order[a++];
+				}
+			}
+			while(a<mid) temp[out++]=order[a++];
+			while(b<to) temp[out++]=order[b++];
+			System.arraycopy(temp,from,order,from,to-from);
+		}
+	}
+
+	/** Growable byte buffer with varint support */
+	static class ByteBuilder
+	{
+		private byte[] data=new byte[256];
+		private int length;
+
+		/** @return Number of bytes written */
+		int length()
+		{
+			return length;
+		}
+
+		/** @return Internal buffer (only the first length() bytes are valid) */
+		byte[] getData()
+		{
+			return data;
+		}
+
+		/** Clears buffer for reuse */
+		void clear()
+		{
+			length=0;
+		}
+
+		/**
+		 * Writes a single byte.
+		 * @param b Byte
+		 */
+		void write(int b)
+		{
+			if(length==data.length)
+			{
+				byte[] newData=new byte[length*2];
+				System.arraycopy(data,0,newData,0,length);
+				data=newData;
+			}
+			data[length++]=(byte)b;
+		}
+
+		/**
+		 * Writes bytes.
+		 * @param bytes Source array
+		 * @param offset Offset within array
+		 * @param count Number of bytes
+		 */
+		void write(byte[] bytes,int offset,int count)
+		{
+			for(int i=0;i<count;i++)
+			{
+				write(bytes[offset+i]);
+			}
+		}
+
+		/**
+		 * Writes a fixed-size 8-byte value (most significant byte first).
+		 * @param value Value
+		 */
+		void writeLong(long value)
+		{
+			for(int shift=56;shift>=0;shift-=8)
+			{
+				write((int)(value>>>shift));
+			}
+		}
+
+		/**
+		 * Writes a non-negative value as a varint (7 bits per byte, high bit
+		 * set on all but the last byte).
+		 * @param value Value
+		 */
+		void writeVarint(long value)
+		{
+			while((value & ~0x7fL)!=0)
+			{
+				write((int)((value & 0x7f) | 0x80));
+				value>>>=7;
+			}
+			write((int)value);
+		}
+	}
+}
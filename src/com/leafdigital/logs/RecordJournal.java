@@ -0,0 +1,215 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package com.leafdigital.logs;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of checksummed records, used for the log index and
+ * catalog journals. Each record has a length and checksum, so a record that
+ * was only partly written is detected when the journal is replayed and
+ * ignored along with anything after it.
+ * <p>
+ * Records are collected in memory and written out together, in a single
+ * write, when the journal is flushed (group commit). Nothing is written
+ * between flushes.
+ */
+class RecordJournal
+{
+	/** Size of buffer used when replaying */
+	private final static int BUFFERSIZE=65536;
+
+	/** Largest record accepted when replaying */
+	private final static int MAXRECORD=16*1024*1024;
+
+	private File file;
+	private int magic,version;
+
+	/** Journal being written, or null if not started */
+	private FileOutputStream out;
+
+	/** Records waiting for the next flush */
+	private ByteArrayOutputStream pendingBytes=new ByteArrayOutputStream(BUFFERSIZE);
+	private DataOutputStream pending=new DataOutputStream(pendingBytes);
+
+	/** Used to build each record before it is added to pending data */
+	private RecordBuffer recordBytes=new RecordBuffer();
+	private DataOutputStream record=new DataOutputStream(recordBytes);
+	private CRC32 crc=new CRC32();
+
+	/** Byte array stream that can calculate a checksum without copying */
+	private static class RecordBuffer extends ByteArrayOutputStream
+	{
+		/**
+		 * @param crc Checksum to update with current contents
+		 */
+		void updateChecksum(CRC32 crc)
+		{
+			crc.update(buf,0,count);
+		}
+	}
+
+	/** Receives records when the journal is replayed */
+	interface Reader
+	{
+		/**
+		 * @param in Record data
+		 * @return True to continue, false if the record isn't recognised (which
+		 *   stops the replay)
+		 * @throws IOException Error reading or applying record
+		 */
+		boolean read(DataInputStream in) throws IOException;
+	}
+
+	/**
+	 * @param file Journal file
+	 * @param magic Number identifying this kind of journal
+	 * @param version Format version; a journal with a different version is
+	 *   not replayed
+	 */
+	RecordJournal(File file,int magic,int version)
+	{
+		this.file=file;
+		this.magic=magic;
+		this.version=version;
+	}
+
+	/**
+	 * Replays the journal left by an earlier run, if any. Replay stops at
+	 * the first record that is incomplete or damaged.
+	 * @param reader Reader that receives records
+	 * @return Number of records replayed
+	 * @throws IOException Error reading journal or applying records
+	 */
+	int replay(Reader reader) throws IOException
+	{
+		if(!file.exists()) return 0;
+		DataInputStream dis=new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file),BUFFERSIZE));
+		int count=0;
+		try
+		{
+			if(dis.readInt()!=magic || dis.readInt()!=version) return 0;
+			byte[] data=new byte[256];
+			while(true)
+			{
+				int length=dis.readInt();
+				if(length<=0 || length>MAXRECORD) break;
+				if(length>data.length) data=new byte[Math.max(length,data.length*2)];
+				dis.readFully(data,0,length);
+				int check=dis.readInt();
+				crc.reset();
+				crc.update(data,0,length);
+				if((int)crc.getValue()!=check) break;
+
+				if(!reader.read(new DataInputStream(
+					new ByteArrayInputStream(data,0,length))))
+				{
+					break;
+				}
+				count++;
+			}
+		}
+		catch(EOFException e)
+		{
+			// Journal ends part-way through a record
+		}
+		finally
+		{
+			dis.close();
+		}
+		return count;
+	}
+
+	/** @return True if the journal has been started and not closed */
+	boolean isStarted()
+	{
+		return out!=null;
+	}
+
+	/**
+	 * Starts a new, empty journal, discarding the current one.
+	 * @throws IOException Error writing file
+	 */
+	void start() throws IOException
+	{
+		if(out!=null)
+		{
+			out.close();
+			out=null;
+		}
+		pendingBytes.reset();
+		out=new FileOutputStream(file);
+		pending.writeInt(magic);
+		pending.writeInt(version);
+		flush();
+	}
+
+	/**
+	 * Begins a new record. Write its data to the returned stream, then call
+	 * {@link #endRecord()}.
+	 * @return Stream for record data
+	 */
+	DataOutputStream beginRecord()
+	{
+		recordBytes.reset();
+		return record;
+	}
+
+	/**
+	 * Adds the current record to the pending data.
+	 * @throws IOException Error writing journal
+	 */
+	void endRecord() throws IOException
+	{
+		crc.reset();
+		recordBytes.updateChecksum(crc);
+		pending.writeInt(recordBytes.size());
+		recordBytes.writeTo(pending);
+		pending.writeInt((int)crc.getValue());
+	}
+
+	/**
+	 * Writes all records collected since the last flush.
+	 * @throws IOException Error writing journal
+	 */
+	void flush() throws IOException
+	{
+		if(out==null || pendingBytes.size()==0) return;
+		pendingBytes.writeTo(out);
+		pendingBytes.reset();
+	}
+
+	/**
+	 * Closes the journal and deletes it. Only call once everything in the
+	 * journal is safe elsewhere.
+	 * @throws IOException Error closing file
+	 */
+	void close() throws IOException
+	{
+		pendingBytes.reset();
+		if(out!=null)
+		{
+			out.close();
+			out=null;
+		}
+		file.delete();
+	}
+}
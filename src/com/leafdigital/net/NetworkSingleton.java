@@ -20,6 +20,7 @@ package com.leafdigital.net;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 import java.security.*;
 import java.util.*;
 
@@ -101,24 +102,8 @@ public class NetworkSingleton implements Network
 					sslContext.init(null, trustAllCerts, new SecureRandom());
 					s = sslContext.getSocketFactory().createSocket();
 
-					// Java claims to support Diffie-Hellman key exchange, but does not
-					// really, because everyone uses 2048-bit keys but Java only supports
-					// up to 1024. This causes negotiation to fail (which is stupid).
-					// Java bug 6521495. To work around it, I disable cipher suites that
-					// use DH exchange. Connection will still fail if a server ONLY
-					// supports DH, but I didn't find any in that position (yet).
-
-					// Note: this code should be removed if Oracle ever fix the Java bug.
-
-					List<String> limited = new LinkedList<String>();
-					for(String suite : ((SSLSocket)s).getEnabledCipherSuites())
-					{
-						if(!suite.contains("_DHE_"))
-						{
-							limited.add(suite);
-						}
-					}
-					((SSLSocket)s).setEnabledCipherSuites(limited.toArray(new String[limited.size()]));
+					((SSLSocket)s).setEnabledCipherSuites(
+						limitCipherSuites(((SSLSocket)s).getEnabledCipherSuites()));
 
 					s.connect(new InetSocketAddress(host,port),timeout);
 					s.setSoTimeout(0);
@@ -179,6 +164,91 @@ public class NetworkSingleton implements Network
 		}
 	}
 
+	/**
+	 * Removes cipher suites that do not work from the list.
+	 * @param suites Enabled cipher suites
+	 * @return Suites that should actually be enabled
+	 */
+	private static String[] limitCipherSuites(String[] suites)
+	{
+		// Java claims to support Diffie-Hellman key exchange, but does not
+		// really, because everyone uses 2048-bit keys but Java only supports
+		// up to 1024. This causes negotiation to fail (which is stupid).
+		// Java bug 6521495. To work around it, I disable cipher suites that
+		// use DH exchange. Connection will still fail if a server ONLY
+		// supports DH, but I didn't find any in that position (yet).
+
+		// Note: this code should be removed if Oracle ever fix the Java bug.
+
+		List<String> limited = new LinkedList<String>();
+		for(String suite : suites)
+		{
+			if(!suite.contains("_DHE_"))
+			{
+				limited.add(suite);
+			}
+		}
+		return limited.toArray(new String[limited.size()]);
+	}
+
+	@Override
+	public boolean supportsChannels()
+	{
+		NetPlugin np=(NetPlugin)context.getPlugin();
+		return np.getConnectionType()!=NetPlugin.CONNECTION_SOCKS5;
+	}
+
+	@Override
+	public SocketChannel openChannel(InetAddress address, int port)
+		throws IOException
+	{
+		if(!supportsChannels())
+		{
+			throw new IOException(
+				"Non-blocking connections are not supported via SOCKS proxy");
+		}
+		SocketChannel channel = SocketChannel.open();
+		try
+		{
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(address, port));
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	@Override
+	public SSLEngine createSSLEngine(String host, int port) throws IOException
+	{
+		try
+		{
+			SSLContext sslContext = SSLContext.getInstance("SSL");
+			sslContext.init(null, trustAllCerts, new SecureRandom());
+			SSLEngine engine = sslContext.createSSLEngine(host, port);
+			engine.setUseClientMode(true);
+			engine.setEnabledCipherSuites(
+				limitCipherSuites(engine.getEnabledCipherSuites()));
+			return engine;
+		}
+		catch(GeneralSecurityException e)
+		{
+			IOException io = new IOException("SSL not available");
+			io.initCause(e);
+			throw io;
+		}
+	}
+
+	@Override
+	public void reportLocalAddress(InetAddress local)
+	{
+		NetPlugin np=(NetPlugin)context.getPlugin();
+		np.setReportedAddress(local,false);
+	}
+
 	@Override
 	public boolean needsListenTarget()
 	{
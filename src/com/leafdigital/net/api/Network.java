@@ -20,6 +20,9 @@ package com.leafdigital.net.api;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
 
 import leafchat.core.api.Singleton;
 
@@ -65,6 +68,43 @@ public interface Network extends Singleton
 	public Socket connect(String host, int port, int timeout, int secureMode)
 		throws IOException;
 
+	/**
+	 * Checks whether connections may currently be made using non-blocking
+	 * channels. This is not possible when connecting via a proxy.
+	 * @return True if {@link #openChannel(InetAddress, int)} may be called
+	 */
+	public boolean supportsChannels();
+
+	/**
+	 * Opens a non-blocking socket channel and begins connecting it to the given
+	 * address. The caller must register the channel with a selector and call
+	 * finishConnect when it becomes connectable.
+	 * @param address Address (already looked up)
+	 * @param port Port number
+	 * @return Non-blocking channel with connection in progress
+	 * @throws IOException If the channel cannot be opened, or if channels are
+	 *   not supported with current network settings
+	 */
+	public SocketChannel openChannel(InetAddress address, int port)
+		throws IOException;
+
+	/**
+	 * Creates an SSL engine in client mode, set up with the same options that
+	 * are used for secure sockets from {@link #connect(String, int, int, int)}.
+	 * @param host Host name (used for session caching)
+	 * @param port Port number
+	 * @return New SSL engine
+	 * @throws IOException If SSL is not available
+	 */
+	public SSLEngine createSSLEngine(String host, int port) throws IOException;
+
+	/**
+	 * Reports the local address of a connection made using a channel, in the
+	 * same way that {@link #connect(String, int, int)} does for sockets.
+	 * @param local Local address of connected channel
+	 */
+	public void reportLocalAddress(InetAddress local);
+
 	/** @return True if the version of listen() with a target must be called */
 	public boolean needsListenTarget();
 
@@ -53,6 +53,168 @@ public class PreferencesImp implements Preferences,MsgOwner
 	private Map<String, PreferencesGroupImp> rootGroups =
 		new HashMap<String, PreferencesGroupImp>();
 
+	/**
+	 * Lock for all value indexes. No group is locked while this is held, so
+	 * it can be obtained while holding a group lock.
+	 */
+	private Object indexLock=new Object();
+
+	/** Names of preferences that are indexed in some group */
+	private Set<String> indexedPrefs=new HashSet<String>();
+
+	/**
+	 * Index of the values of one preference, as a tree of characters read from
+	 * the end of each (case-folded) value.
+	 */
+	private static class ValueIndex
+	{
+		private Map<Character, ValueIndex> children;
+		/** Groups whose value ends at this node */
+		private List<PreferencesGroupImp> groups;
+
+		/**
+		 * @param folded Folded value
+		 * @param group Group with that value
+		 */
+		void add(String folded,PreferencesGroupImp group)
+		{
+			ValueIndex node=this;
+			for(int i=folded.length()-1;i>=0;i--)
+			{
+				if(node.children==null)
+				{
+					node.children=new HashMap<Character, ValueIndex>();
+				}
+				ValueIndex child=node.children.get(folded.charAt(i));
+				if(child==null)
+				{
+					child=new ValueIndex();
+					node.children.put(folded.charAt(i),child);
+				}
+				node=child;
+			}
+			if(node.groups==null)
+			{
+				node.groups=new LinkedList<PreferencesGroupImp>();
+			}
+			node.groups.add(group);
+		}
+
+		/**
+		 * @param folded Folded value
+		 * @param group Group that no longer has that value
+		 */
+		void remove(String folded,PreferencesGroupImp group)
+		{
+			ValueIndex node=this;
+			for(int i=folded.length()-1;i>=0 && node!=null;i--)
+			{
+				node=node.getChild(folded.charAt(i));
+			}
+			if(node!=null && node.groups!=null)
+			{
+				node.groups.remove(group);
+			}
+		}
+
+		/**
+		 * Finds groups whose value matches the text.
+		 * @param folded Folded text
+		 * @param match PreferencesGroup.MATCH_xx constant
+		 * @param found Receives groups (in no particular order)
+		 */
+		void find(String folded,int match,Collection<PreferencesGroupImp> found)
+		{
+			ValueIndex node=this;
+			for(int i=folded.length();;)
+			{
+				// Every value on the way is a suffix of the text
+				if(match==PreferencesGroup.MATCH_SUFFIXOF)
+				{
+					node.addGroups(found,false);
+				}
+				if(i==0)
+				{
+					break;
+				}
+				i--;
+				node=node.getChild(folded.charAt(i));
+				if(node==null)
+				{
+					return;
+				}
+			}
+			if(match==PreferencesGroup.MATCH_EQUALS)
+			{
+				node.addGroups(found,false);
+			}
+			else if(match==PreferencesGroup.MATCH_ENDSWITH)
+			{
+				node.addGroups(found,true);
+			}
+		}
+
+		private ValueIndex getChild(char c)
+		{
+			return children==null ? null : children.get(c);
+		}
+
+		/**
+		 * @param found Receives groups at this node
+		 * @param all True to include all nodes below this one
+		 */
+		private void addGroups(Collection<PreferencesGroupImp> found,boolean all)
+		{
+			if(groups!=null)
+			{
+				found.addAll(groups);
+			}
+			if(all && children!=null)
+			{
+				for(ValueIndex child : children.values())
+				{
+					child.addGroups(found,true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param text Text
+	 * @return Text in the form used for indexing, which is the same for
+	 *   strings that are equal ignoring case
+	 */
+	private static String fold(String text)
+	{
+		char[] chars=text.toCharArray();
+		for(int i=0;i<chars.length;i++)
+		{
+			chars[i]=Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @param value Folded value
+	 * @param text Folded text
+	 * @param match PreferencesGroup.MATCH_xx constant
+	 * @return True if value matches text
+	 */
+	private static boolean matches(String value,String text,int match)
+	{
+		switch(match)
+		{
+		case PreferencesGroup.MATCH_EQUALS:
+			return value.equals(text);
+		case PreferencesGroup.MATCH_SUFFIXOF:
+			return text.endsWith(value);
+		case PreferencesGroup.MATCH_ENDSWITH:
+			return value.endsWith(text);
+		default:
+			throw new BugException("Unknown match type: "+match);
+		}
+	}
+
 	// Preferences implementation
 	/////////////////////////////
 
@@ -460,6 +622,9 @@ public class PreferencesImp implements Preferences,MsgOwner
 		/** Parent */
 		private PreferencesGroupImp parent;
 
+		/** Indexes of values in anonymous descendants (null if none) */
+		private Map<String, ValueIndex> indexes;
+
 		/** Group name */
 		private String groupName;
 
@@ -638,6 +803,7 @@ public class PreferencesImp implements Preferences,MsgOwner
 			if(old==null || !old.equals(value))
 			{
 				markDirty();
+				updateIndexes(name,old,value);
 				mdp.dispatchMessageHandleErrors(new PreferencesChangeMsg(this,name,old,value),false);
 			}
 			return old;
@@ -659,6 +825,7 @@ public class PreferencesImp implements Preferences,MsgOwner
 			if(old!=null)
 			{
 				markDirty();
+				updateIndexes(name,old,null);
 				mdp.dispatchMessageHandleErrors(new PreferencesChangeMsg(this,name,old,null),false);
 				return true;
 			}
@@ -708,6 +875,19 @@ public class PreferencesImp implements Preferences,MsgOwner
 		public synchronized PreferencesGroup findAnonGroup(
 			String pref, String value, boolean recursive, boolean ignoreCase)
 		{
+			if(recursive && value!=null && isIndexed(pref))
+			{
+				PreferencesGroup[] found=findAnonGroups(pref,value,MATCH_EQUALS);
+				for(int i=0;i<found.length;i++)
+				{
+					if(ignoreCase || value.equals(found[i].get(pref,null)))
+					{
+						return found[i];
+					}
+				}
+				return null;
+			}
+
 			for(int i=0; i<anon.length; i++)
 			{
 				String local = anon[i].get(pref, null);
@@ -745,6 +925,294 @@ public class PreferencesImp implements Preferences,MsgOwner
 			return findAnonGroup(pref, value, recursive, false);
 		}
 
+		@Override
+		public PreferencesGroup[] findAnonGroups(String pref, String text, int match)
+		{
+			String folded=fold(text);
+			List<PreferencesGroupImp> candidates=new LinkedList<PreferencesGroupImp>();
+			boolean indexed=false;
+			synchronized(indexLock)
+			{
+				ValueIndex index=indexes==null ? null : indexes.get(pref);
+				if(index!=null)
+				{
+					index.find(folded,match,candidates);
+					indexed=true;
+				}
+			}
+			if(!indexed)
+			{
+				for(PreferencesGroupImp child : getAnonArray())
+				{
+					child.collectSubtree(candidates,null);
+				}
+			}
+
+			// Check current values, then sort
+			List<PreferencesGroupImp> found=new LinkedList<PreferencesGroupImp>();
+			for(PreferencesGroupImp candidate : candidates)
+			{
+				String value=candidate.get(pref,null);
+				if(value!=null && matches(fold(value),folded,match))
+				{
+					found.add(candidate);
+				}
+			}
+			found=sortInTreeOrder(found);
+			return found.toArray(new PreferencesGroup[found.size()]);
+		}
+
+		@Override
+		public void addIndex(String pref)
+		{
+			List<PreferencesGroupImp> subtree=new LinkedList<PreferencesGroupImp>();
+			List<Map<String, String>> subtreeValues=new LinkedList<Map<String, String>>();
+			for(PreferencesGroupImp child : getAnonArray())
+			{
+				child.collectSubtree(subtree,subtreeValues);
+			}
+
+			synchronized(indexLock)
+			{
+				if(indexes==null)
+				{
+					indexes=new HashMap<String, ValueIndex>();
+				}
+				if(indexes.containsKey(pref))
+				{
+					return;
+				}
+				ValueIndex index=new ValueIndex();
+				Iterator<Map<String, String>> values=subtreeValues.iterator();
+				for(PreferencesGroupImp group : subtree)
+				{
+					String value=values.next().get(pref);
+					if(value!=null)
+					{
+						index.add(fold(value),group);
+					}
+				}
+				indexes.put(pref,index);
+				indexedPrefs.add(pref);
+			}
+		}
+
+		/**
+		 * @param pref Name of pref
+		 * @return True if this group has an index for the pref
+		 */
+		private boolean isIndexed(String pref)
+		{
+			synchronized(indexLock)
+			{
+				return indexes!=null && indexes.containsKey(pref);
+			}
+		}
+
+		/** @return Copy of anonymous children */
+		private synchronized PreferencesGroupImp[] getAnonArray()
+		{
+			return anon.clone();
+		}
+
+		/**
+		 * Lists this group and all its anonymous descendants.
+		 * @param groups Receives groups
+		 * @param values If not null, receives a copy of each group's values
+		 */
+		private void collectSubtree(List<PreferencesGroupImp> groups,
+			List<Map<String, String>> values)
+		{
+			PreferencesGroupImp[] children;
+			synchronized(this)
+			{
+				groups.add(this);
+				if(values!=null)
+				{
+					values.add(new HashMap<String, String>(this.values));
+				}
+				children=anon.clone();
+			}
+			for(PreferencesGroupImp child : children)
+			{
+				child.collectSubtree(groups,values);
+			}
+		}
+
+		/**
+		 * Updates ancestors' indexes after a value in this group changes.
+		 * @param name Name of pref
+		 * @param oldValue Previous value or null
+		 * @param newValue New value or null
+		 */
+		private void updateIndexes(String name,String oldValue,String newValue)
+		{
+			synchronized(indexLock)
+			{
+				if(!indexedPrefs.contains(name))
+				{
+					return;
+				}
+				for(PreferencesGroupImp child=this,ancestor=parent;
+					ancestor!=null && child.groupName==NAME_ANON;
+					child=ancestor,ancestor=ancestor.parent)
+				{
+					ValueIndex index=ancestor.indexes==null ? null : ancestor.indexes.get(name);
+					if(index!=null)
+					{
+						if(oldValue!=null)
+						{
+							index.remove(fold(oldValue),this);
+						}
+						if(newValue!=null)
+						{
+							index.add(fold(newValue),this);
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds or removes this group and its anonymous descendants in the
+		 * ancestors' indexes. Called after attaching it to a parent, or before
+		 * detaching it.
+		 * @param add True to add, false to remove
+		 */
+		private void indexSubtree(boolean add)
+		{
+			synchronized(indexLock)
+			{
+				if(indexedPrefs.isEmpty() || groupName!=NAME_ANON)
+				{
+					return;
+				}
+			}
+			List<PreferencesGroupImp> subtree=new LinkedList<PreferencesGroupImp>();
+			List<Map<String, String>> subtreeValues=new LinkedList<Map<String, String>>();
+			collectSubtree(subtree,subtreeValues);
+
+			synchronized(indexLock)
+			{
+				for(PreferencesGroupImp child=this,ancestor=parent;
+					ancestor!=null && child.groupName==NAME_ANON;
+					child=ancestor,ancestor=ancestor.parent)
+				{
+					if(ancestor.indexes==null)
+					{
+						continue;
+					}
+					for(Map.Entry<String, ValueIndex> me : ancestor.indexes.entrySet())
+					{
+						Iterator<Map<String, String>> values=subtreeValues.iterator();
+						for(PreferencesGroupImp group : subtree)
+						{
+							String value=values.next().get(me.getKey());
+							if(value==null)
+							{
+								continue;
+							}
+							if(add)
+							{
+								me.getValue().add(fold(value),group);
+							}
+							else
+							{
+								me.getValue().remove(fold(value),group);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sorts descendants into the order that findAnonGroup searches them,
+		 * leaving out any that are no longer descendants.
+		 * @param groups Groups
+		 * @return Sorted list
+		 */
+		private List<PreferencesGroupImp> sortInTreeOrder(List<PreferencesGroupImp> groups)
+		{
+			final Map<PreferencesGroupImp, int[]> paths=
+				new HashMap<PreferencesGroupImp, int[]>();
+			for(PreferencesGroupImp group : groups)
+			{
+				int[] path=getPath(group);
+				if(path!=null)
+				{
+					paths.put(group,path);
+				}
+			}
+			List<PreferencesGroupImp> result=
+				new ArrayList<PreferencesGroupImp>(paths.keySet());
+			Collections.sort(result,new Comparator<PreferencesGroupImp>()
+			{
+				@Override
+				public int compare(PreferencesGroupImp a,PreferencesGroupImp b)
+				{
+					// Parents come before their children
+					int[] pathA=paths.get(a),pathB=paths.get(b);
+					for(int i=0;i<pathA.length && i<pathB.length;i++)
+					{
+						if(pathA[i]!=pathB[i])
+						{
+							return pathA[i]-pathB[i];
+						}
+					}
+					return pathA.length-pathB.length;
+				}
+			});
+			return result;
+		}
+
+		/**
+		 * @param descendant Anonymous descendant of this group
+		 * @return Position in each anonymous array on the way from this group to
+		 *   the descendant, or null if it isn't a descendant
+		 */
+		private int[] getPath(PreferencesGroupImp descendant)
+		{
+			LinkedList<Integer> path=new LinkedList<Integer>();
+			for(PreferencesGroupImp group=descendant;group!=this;group=group.parent)
+			{
+				PreferencesGroupImp groupParent=group.parent;
+				if(groupParent==null || group.groupName!=NAME_ANON)
+				{
+					return null;
+				}
+				int position=groupParent.getAnonPosition(group);
+				if(position==-1)
+				{
+					return null;
+				}
+				path.addFirst(position);
+			}
+			int[] result=new int[path.size()];
+			int i=0;
+			for(int position : path)
+			{
+				result[i++]=position;
+			}
+			return result;
+		}
+
+		/**
+		 * @param child Child group
+		 * @return Position of child in anonymous array, or -1 if not there
+		 */
+		private synchronized int getAnonPosition(PreferencesGroupImp child)
+		{
+			for(int i=0;i<anon.length;i++)
+			{
+				if(anon[i]==child)
+				{
+					return i;
+				}
+			}
+			return -1;
+		}
+
 		private synchronized void removeAnon(PreferencesGroupImp child)
 		{
 			for(int i=0;i<anon.length;i++)
@@ -769,7 +1237,30 @@ public class PreferencesImp implements Preferences,MsgOwner
 		@Override
 		public void remove()
 		{
-			if(parent==null) return;
+			if(!detach()) return;
+
+			// Tell listeners that this group's values no longer apply
+			Map<String, String> removed;
+			synchronized(this)
+			{
+				removed=new HashMap<String, String>(values);
+			}
+			for(Map.Entry<String, String> me : removed.entrySet())
+			{
+				mdp.dispatchMessageHandleErrors(
+					new PreferencesChangeMsg(this,me.getKey(),me.getValue(),null),false);
+			}
+		}
+
+		/**
+		 * Removes this group from its parent without sending change messages.
+		 * @return True if it was removed, false if it had no parent
+		 */
+		private boolean detach()
+		{
+			if(parent==null) return false;
+
+			indexSubtree(false);
 
 			if(groupName==NAME_ANON)
 			{
@@ -783,6 +1274,7 @@ public class PreferencesImp implements Preferences,MsgOwner
 			{
 				parent=null;
 			}
+			return true;
 		}
 
 		@Override
@@ -808,7 +1300,7 @@ public class PreferencesImp implements Preferences,MsgOwner
 		@Override
 		public synchronized int addAnon(PreferencesGroup pg,int position)
 		{
-			pg.remove();
+			((PreferencesGroupImp)pg).detach();
 			((PreferencesGroupImp)pg).parent=this;
 
 			if(position<0 || position>anon.length)
@@ -818,6 +1310,7 @@ public class PreferencesImp implements Preferences,MsgOwner
 			changed[position]=(PreferencesGroupImp)pg;
 			System.arraycopy(anon,position,changed,position+1,anon.length-position);
 			anon=changed;
+			((PreferencesGroupImp)pg).indexSubtree(true);
 
 			markDirty();
 			return position;
@@ -827,6 +1320,14 @@ public class PreferencesImp implements Preferences,MsgOwner
 		public synchronized void clearAnon()
 		{
 			if(anon.length==0) return;
+			for(PreferencesGroupImp child : anon)
+			{
+				child.indexSubtree(false);
+				synchronized(child)
+				{
+					child.parent=null;
+				}
+			}
 			anon=new PreferencesGroupImp[0];
 			markDirty();
 		}
@@ -115,6 +115,36 @@ public interface PreferencesGroup
 	public PreferencesGroup findAnonGroup(String pref, String value,
 		boolean recursive, boolean ignoreCase);
 
+	/** Match type for findAnonGroups: value equals the text */
+	public final static int MATCH_EQUALS=0;
+	/** Match type for findAnonGroups: value is a suffix of the text */
+	public final static int MATCH_SUFFIXOF=1;
+	/** Match type for findAnonGroups: value ends with the text */
+	public final static int MATCH_ENDSWITH=2;
+
+	/**
+	 * Looks for all groups among anonymous children (and their anonymous
+	 * children) whose value for a preference matches the given text, ignoring
+	 * case. Uses an index if one has been added for the preference with
+	 * {@link #addIndex(String)}; otherwise searches every group.
+	 * @param pref Name of pref
+	 * @param text Text to compare with value of pref
+	 * @param match MATCH_xx constant
+	 * @return Matching groups, in the order findAnonGroup would search them
+	 */
+	public PreferencesGroup[] findAnonGroups(String pref, String text, int match);
+
+	/**
+	 * Keeps an index of a preference's values in all anonymous children (and
+	 * their anonymous children), so that {@link #findAnonGroups(String, String, int)}
+	 * and recursive {@link #findAnonGroup(String, String, boolean, boolean)}
+	 * calls for the preference don't need to search every group. Indexes are not
+	 * saved; call this each time preferences are loaded, before using the
+	 * groups. Calling it again for the same preference has no effect.
+	 * @param pref Name of pref
+	 */
+	public void addIndex(String pref);
+
 	/**
 	 * Sets value of a named program preference.
 	 * @param name Name of preference	(be sure to follow restrictions)
@@ -164,7 +194,8 @@ public interface PreferencesGroup
 	/**
 	 * Removes this group from its parent. If this is an anonymous group, other
 	 * entries in the group will be shuffled along. If the group doesn't have
-	 * a parent, nothing will happen.
+	 * a parent, nothing will happen. A {@link PreferencesChangeMsg} is sent for
+	 * each value in the group, with a null new value.
 	 */
 	public void remove();
 
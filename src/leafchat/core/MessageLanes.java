@@ -0,0 +1,263 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package leafchat.core;
+
+import java.util.LinkedList;
+
+import leafchat.core.api.Msg;
+
+/**
+ * Runs message handlers that asked not to be called on the Swing thread.
+ * Each such request has a {@link Queue}; messages in a queue are handled one
+ * at a time, in the order they were dispatched. Queues for
+ * {@link Msg#LANE_BACKGROUND} share a small pool of worker threads, while
+ * {@link Msg#LANE_DEDICATED} queues each get a thread of their own. All
+ * threads exit when they have been idle for a while.
+ */
+class MessageLanes
+{
+	/** Time a thread waits for more work before exiting */
+	private final static long IDLE_TIME=30000;
+
+	/** Number of messages a pool worker handles from one queue before moving on */
+	private final static int BATCH=64;
+
+	/** Maximum number of pool workers */
+	private final static int POOLSIZE=
+		Math.max(2,Math.min(4,Runtime.getRuntime().availableProcessors()));
+
+	/** Pool queues that have messages and are not currently being handled */
+	private LinkedList<Queue> ready=new LinkedList<Queue>();
+
+	/** Number of pool workers running, and the number waiting for work */
+	private int workers,idleWorkers;
+
+	/** Used to name threads */
+	private int threadCount;
+
+	/** Messages waiting for a single request target */
+	abstract static class Queue
+	{
+		private MessageLanes lanes;
+		private boolean dedicated;
+
+		private LinkedList<Msg> messages=new LinkedList<Msg>();
+
+		/** True if a thread is handling (or about to handle) this queue */
+		private boolean running;
+
+		/** True once the request has been removed */
+		private boolean closed;
+
+		/**
+		 * @param lanes Lanes object
+		 * @param dedicated True if this queue should have its own thread
+		 */
+		Queue(MessageLanes lanes,boolean dedicated)
+		{
+			this.lanes=lanes;
+			this.dedicated=dedicated;
+		}
+
+		/**
+		 * Called on a lane thread to handle a message.
+		 * @param m Message
+		 */
+		abstract void handle(Msg m);
+
+		/**
+		 * Adds a message to the queue.
+		 * @param m Message
+		 */
+		void add(Msg m)
+		{
+			synchronized(this)
+			{
+				if(closed)
+				{
+					return;
+				}
+				messages.addLast(m);
+				if(running)
+				{
+					notify();
+					return;
+				}
+				running=true;
+			}
+			if(dedicated)
+			{
+				lanes.startDedicated(this);
+			}
+			else
+			{
+				lanes.ready(this);
+			}
+		}
+
+		/**
+		 * Discards any waiting messages; no more will be handled.
+		 */
+		synchronized void close()
+		{
+			closed=true;
+			messages.clear();
+			notifyAll();
+		}
+
+		/**
+		 * Handles messages on a pool thread. After a batch, the queue goes back
+		 * on the ready list so that other queues get a turn.
+		 */
+		private void runBatch()
+		{
+			for(int i=0;i<BATCH;i++)
+			{
+				Msg m;
+				synchronized(this)
+				{
+					if(messages.isEmpty())
+					{
+						running=false;
+						return;
+					}
+					m=messages.removeFirst();
+				}
+				handle(m);
+			}
+			lanes.ready(this);
+		}
+
+		/**
+		 * Handles messages on a dedicated thread until idle.
+		 */
+		private void runDedicated()
+		{
+			while(true)
+			{
+				Msg m;
+				synchronized(this)
+				{
+					long until=System.currentTimeMillis()+IDLE_TIME;
+					while(messages.isEmpty())
+					{
+						long wait=until-System.currentTimeMillis();
+						if(closed || wait<=0)
+						{
+							running=false;
+							return;
+						}
+						try
+						{
+							wait(wait);
+						}
+						catch(InterruptedException e)
+						{
+						}
+					}
+					m=messages.removeFirst();
+				}
+				handle(m);
+			}
+		}
+	}
+
+	/**
+	 * Starts a thread for a dedicated queue.
+	 * @param queue Queue
+	 */
+	private void startDedicated(final Queue queue)
+	{
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				queue.runDedicated();
+			}
+		},"Message lane "+nextThreadNumber()).start();
+	}
+
+	/**
+	 * Adds a queue to the list waiting for a pool worker, starting a worker
+	 * if needed.
+	 * @param queue Queue
+	 */
+	private synchronized void ready(Queue queue)
+	{
+		ready.addLast(queue);
+		if(idleWorkers>0)
+		{
+			notify();
+		}
+		else if(workers<POOLSIZE)
+		{
+			workers++;
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runWorker();
+				}
+			},"Message worker "+(++threadCount)).start();
+		}
+	}
+
+	/** @return Number for next thread name */
+	private synchronized int nextThreadNumber()
+	{
+		return ++threadCount;
+	}
+
+	/**
+	 * Pool worker thread: handles ready queues until idle.
+	 */
+	private void runWorker()
+	{
+		while(true)
+		{
+			Queue next;
+			synchronized(this)
+			{
+				long until=System.currentTimeMillis()+IDLE_TIME;
+				while(ready.isEmpty())
+				{
+					long wait=until-System.currentTimeMillis();
+					if(wait<=0)
+					{
+						workers--;
+						return;
+					}
+					idleWorkers++;
+					try
+					{
+						wait(wait);
+					}
+					catch(InterruptedException e)
+					{
+					}
+					idleWorkers--;
+				}
+				next=ready.removeFirst();
+			}
+			next.runBatch();
+		}
+	}
+}
@@ -46,21 +46,40 @@ public class MessageManager
 
 	// Actual implementation
 
-	/** Map of message Class -> OwnerDetails */
-	private Map<Class<? extends Msg>, OwnerDetails> owners =
+	/**
+	 * Map of message Class -> OwnerDetails. The map is never changed; instead
+	 * it's replaced with a modified copy (while synchronized on ownersSynch),
+	 * so it can be read without locking.
+	 */
+	private volatile Map<Class<? extends Msg>, OwnerDetails> owners =
 		new HashMap<Class<? extends Msg>, OwnerDetails>();
 
+	/** Synchronization object for changes to owners */
+	private Object ownersSynch = new Object();
+
+	/** Threads for requests that aren't handled on the Swing thread */
+	private MessageLanes lanes = new MessageLanes();
+
 	/** Map of Class(target) -> (Map of Class(message) -> Method) */
 	private Map<Class<?>, Map<Class<? extends Msg>, Method>> classHandlerMethods =
 		new HashMap<Class<?>, Map<Class<? extends Msg>, Method>>();
 
+	/**
+	 * Map of Class(target) -> (Map of Class(actual message) -> Method that
+	 * handles it). Neither map is ever changed; they are replaced with modified
+	 * copies (while synchronized on classHandlerMethods) so that dispatch can
+	 * read them without locking.
+	 */
+	private volatile Map<Class<?>, Map<Class<? extends Msg>, Method>> invokers =
+		new HashMap<Class<?>, Map<Class<? extends Msg>, Method>>();
+
 	/** Map from Class => MessageInfo */
 	private HashMap<Class<?>, MessageInfo> messageInfo=new HashMap<Class<?>, MessageInfo>();
 
 	/** Debug method that lists current requests */
 	public void displayHandlers()
 	{
-		synchronized(owners)
+		synchronized(ownersSynch)
 		{
 			System.err.println("Message requests");
 			System.err.println("====");
@@ -70,10 +89,12 @@ public class MessageManager
 				OwnerDetails od = me.getValue();
 				System.err.println("\n"+cMessage.getName()+"\n----");
 
-				for(Iterator<?> iRequest=od.requests.iterator();iRequest.hasNext();)
+				synchronized(od)
 				{
-					RequestDetails rd=(RequestDetails)iRequest.next();
-					System.err.println(rd);
+					for(RequestDetails rd : od.requests)
+					{
+						System.err.println(rd);
+					}
 				}
 			}
 			System.err.println("====end");
@@ -95,7 +116,7 @@ public class MessageManager
 
 		registerMessageClass(msgClass);
 
-		synchronized(owners)
+		synchronized(ownersSynch)
 		{
 			if(owners.containsKey(msgClass))
 			  throw new BugException(
@@ -107,7 +128,10 @@ public class MessageManager
 
 			OwnerDetails od=new OwnerDetails(owner);
 
-			owners.put(msgClass,od);
+			Map<Class<? extends Msg>, OwnerDetails> newOwners =
+				new HashMap<Class<? extends Msg>, OwnerDetails>(owners);
+			newOwners.put(msgClass,od);
+			owners = newOwners;
 		}
 
 		owner.init(new MessageDispatchProvider(this,msgClass));
@@ -123,12 +147,15 @@ public class MessageManager
 		Class<? extends Msg> msgClass = owner.getMessageClass();
 		unregisterMessageClass(msgClass);
 
-		synchronized(owners)
+		synchronized(ownersSynch)
 		{
 			if(!owners.containsKey(msgClass))
 				throw new GeneralException(
 					"The MessageOwner for "+msgClass.getName()+" is not registered");
-			owners.remove(msgClass);
+			Map<Class<? extends Msg>, OwnerDetails> newOwners =
+				new HashMap<Class<? extends Msg>, OwnerDetails>(owners);
+			newOwners.remove(msgClass);
+			owners = newOwners;
 		}
 	}
 
@@ -229,11 +256,34 @@ public class MessageManager
 		MessageFilter mf, int priority)
 	  throws BugException
 	{
+		return requestMessages(c, target, mf, priority, Msg.LANE_SWING);
+	}
+
+	/**
+	 * Requests message notification for the given owner class.
+	 * @param c Message class
+	 * @param target Target for notifications
+	 * @param mf Filter for notifications (may be null)
+	 * @param priority Request priority
+	 * @param lane Thread that calls the target (Msg.LANE_xx constant)
+	 * @return ID of request
+	 * @throws BugException If classname doesn't exist or lane is invalid
+	 */
+	public int requestMessages(Class<? extends Msg> c, Object target,
+		MessageFilter mf, int priority, int lane)
+	  throws BugException
+	{
+		if(lane!=Msg.LANE_SWING && lane!=Msg.LANE_BACKGROUND &&
+			lane!=Msg.LANE_DEDICATED)
+		{
+			throw new BugException("Unknown message lane: "+lane);
+		}
+
 		MsgOwner mo;
 		int iRequestID;
-		Collection<RequestDetails> cRequests;
+		OwnerDetails ownerDetails;
 
-		synchronized(owners)
+		synchronized(ownersSynch)
 		{
 			OwnerDetails od=null;
 
@@ -287,17 +337,25 @@ public class MessageManager
 			od.lastId++;
 			iRequestID=od.lastId;
 			mo=od.mo;
-			cRequests=od.requests;
+			ownerDetails=od;
 		}
 
 		// See if the system is supposed to handle these messages
 		if(mo.registerTarget(target,c,mf,iRequestID,priority))
 		{
-			RequestDetails rd=new RequestDetails(target,c,mf,iRequestID, priority);
-			synchronized(cRequests)
+			final RequestDetails rd=new RequestDetails(target,c,mf,iRequestID, priority);
+			if(lane!=Msg.LANE_SWING)
 			{
-				cRequests.add(rd);
+				rd.queue=new MessageLanes.Queue(lanes, lane==Msg.LANE_DEDICATED)
+				{
+					@Override
+					void handle(Msg m)
+					{
+						dispatchMessageToTarget(m, rd);
+					}
+				};
 			}
+			ownerDetails.add(rd);
 		}
 
 		return iRequestID;
@@ -321,9 +379,104 @@ public class MessageManager
 					i.remove();
 				}
 			}
+
+			Map<Class<?>, Map<Class<? extends Msg>, Method>> newInvokers =
+				new HashMap<Class<?>, Map<Class<? extends Msg>, Method>>();
+			for(Map.Entry<Class<?>, Map<Class<? extends Msg>, Method>> me :
+				invokers.entrySet())
+			{
+				if(me.getKey().getClassLoader()==pcl)
+				{
+					continue;
+				}
+				Map<Class<? extends Msg>, Method> resolved =
+					new HashMap<Class<? extends Msg>, Method>();
+				for(Map.Entry<Class<? extends Msg>, Method> resolvedEntry :
+					me.getValue().entrySet())
+				{
+					if(resolvedEntry.getKey().getClassLoader()!=pcl)
+					{
+						resolved.put(resolvedEntry.getKey(), resolvedEntry.getValue());
+					}
+				}
+				newInvokers.put(me.getKey(), resolved);
+			}
+			invokers = newInvokers;
 		}
 	}
 
+	/**
+	 * Obtains (from cache or by working it out) the method that handles a
+	 * given message class in a given target class. Does not lock unless the
+	 * method has not been used before.
+	 * @param c Target class
+	 * @param msgClass Actual class of message
+	 * @return Most specific msg method for that message
+	 * @throws BugException If there is no suitable method, or any errors in
+	 *   the class
+	 */
+	private Method getInvoker(Class<?> c, Class<? extends Msg> msgClass)
+		throws BugException
+	{
+		Map<Class<? extends Msg>, Method> resolved = invokers.get(c);
+		if(resolved!=null)
+		{
+			Method handler = resolved.get(msgClass);
+			if(handler!=null)
+			{
+				return handler;
+			}
+		}
+
+		// Find handler for message or its nearest superclass/interface
+		Map<Class<? extends Msg>, Method> mHandlers = getHandlerMethods(c);
+		Class<? extends Msg> cHandledMessage = msgClass;
+		Method handler;
+		while(true)
+		{
+			handler = mHandlers.get(cHandledMessage);
+			if(handler!=null)
+			{
+				break;
+			}
+
+			// Stop when we get to the message root
+			if(cHandledMessage==Msg.class)
+			{
+				throw new BugException("Object class "+c.getName()+
+					" cannot handle requested messages "+msgClass.getName());
+			}
+
+			cHandledMessage = ReflectionUtils.getSuperclassOrInterface(
+				cHandledMessage).asSubclass(Msg.class);
+		}
+
+		// Skip access checks on each call
+		try
+		{
+			handler.setAccessible(true);
+		}
+		catch(SecurityException e)
+		{
+		}
+
+		synchronized(classHandlerMethods)
+		{
+			Map<Class<?>, Map<Class<? extends Msg>, Method>> newInvokers =
+				new HashMap<Class<?>, Map<Class<? extends Msg>, Method>>(invokers);
+			Map<Class<? extends Msg>, Method> newResolved =
+				new HashMap<Class<? extends Msg>, Method>();
+			if(newInvokers.containsKey(c))
+			{
+				newResolved.putAll(newInvokers.get(c));
+			}
+			newResolved.put(msgClass, handler);
+			newInvokers.put(c, newResolved);
+			invokers = newInvokers;
+		}
+		return handler;
+	}
+
 	/**
 	 * Obtains (from cache or by working it out) a map of message handler methods in
 	 * the given class.
@@ -389,45 +542,32 @@ public class MessageManager
 	public void unrequestMessages(Class<? extends Msg> c, Object target, int requestId)
 	{
 		MsgOwner owner;
-		Collection<RequestDetails> requests;
+		OwnerDetails ownerDetails;
 
-		// Find owner
-		synchronized(owners)
+		// Find owner (the map is never changed, so no need to synchronize)
+		Map<Class<? extends Msg>, OwnerDetails> currentOwners = owners;
+		OwnerDetails details=null;
+		Class<? extends Msg> realMessageClass=c;
+		while(true)
 		{
-			OwnerDetails details=null;
-			Class<? extends Msg> realMessageClass=c;
-			while(true)
+			details = currentOwners.get(realMessageClass);
+			if(details!=null)
 			{
-				details = owners.get(realMessageClass);
-				if(details!=null)
-				{
-					break;
-				}
-				if(realMessageClass == Msg.class)
-				{
-					break;
-				}
-				realMessageClass = realMessageClass.getSuperclass().asSubclass(Msg.class);
+				break;
 			}
-			if(details==null) return; // Ignore if owner no longer exists
-
-			owner = details.mo;
-			requests = details.requests;
-		}
-
-		// Check if request is stored in our list and, if so, remove it from that
-		synchronized(requests)
-		{
-			for(Iterator<RequestDetails> i=requests.iterator(); i.hasNext();)
+			if(realMessageClass == Msg.class)
 			{
-				RequestDetails rd = i.next();
-				if(rd.requestId==requestId && rd.target==target)
-				{
-					i.remove();
-					break;
-				}
+				break;
 			}
+			realMessageClass = realMessageClass.getSuperclass().asSubclass(Msg.class);
 		}
+		if(details==null) return; // Ignore if owner no longer exists
+
+		owner = details.mo;
+		ownerDetails = details;
+
+		// Check if request is stored in our list and, if so, remove it from that
+		ownerDetails.remove(target, requestId);
 
 		// Tell the owner it's been removed
 		owner.unregisterTarget(target,requestId);
@@ -449,15 +589,11 @@ public class MessageManager
 		boolean immediate)
 		throws BugException
 	{
-		MsgOwner mo;
-		synchronized(owners)
-		{
-			OwnerDetails od=owners.get(c);
-			if(od==null)
-				throw new BugException(
-					"No registered MessageOwner provides the message "+c.getName());
-			mo=od.mo;
-		}
+		OwnerDetails od=owners.get(c);
+		if(od==null)
+			throw new BugException(
+				"No registered MessageOwner provides the message "+c.getName());
+		MsgOwner mo=od.mo;
 		if(mo.allowExternalDispatch(m))
 		{
 			dispatch(c,m, immediate);
@@ -501,47 +637,54 @@ public class MessageManager
 
 			synchronized(pendingEvents)
 			{
-				// Put event into list. Event goes at the end, except that if
+				// Put event into queue. Event goes at the end, except that if
 				// there are any existing events that are sequenced to happen after
-				// it, these are pulled out and put afterwards.
-				LinkedList<PendingEvent> after=new LinkedList<PendingEvent>();
-				for(Iterator<PendingEvent> i=pendingEvents.iterator();i.hasNext();)
-				{
-					PendingEvent other=i.next();
-					if(event.m.sequenceBefore(other.m))
-					{
-						i.remove();
-						after.add(other);
-					}
-				}
+				// it, these are moved to go afterwards.
 				pendingEvents.add(event);
-				pendingEvents.addAll(after);
+				queueStats.maxDepth=Math.max(queueStats.maxDepth,pendingEvents.size());
 
 				if(pendingEvents.size()==1)
 				{
-					SwingUtilities.invokeLater(new Runnable()
-					{
-						@Override
-						public void run()
-						{
-							flush();
-						}
-					});
+					scheduleFlush();
 				}
 			}
 		}
 	}
 
+	/**
+	 * Arranges for {@link #flushSlice()} to run on the Swing thread.
+	 */
+	private void scheduleFlush()
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				flushSlice();
+			}
+		});
+	}
+
 	/** Event information on queue */
-	class PendingEvent
+	static class PendingEvent
 	{
 		Class<? extends Msg> messageClass;
 		Msg m;
 
+		/** Sequence details (as at time of queueing) */
+		String sequenceName;
+		int sequenceNumber;
+
+		/** Order in which event was added to queue */
+		long added;
+
 		public PendingEvent(Class<? extends Msg> messageClass,Msg m)
 		{
 			this.messageClass=messageClass;
 			this.m=m;
+			this.sequenceName=m.getSequenceName();
+			this.sequenceNumber=m.getSequenceNumber();
 		}
 	}
 
@@ -556,18 +699,152 @@ public class MessageManager
 			synchronized(pendingEvents)
 			{
 				if(pendingEvents.isEmpty()) break;
-				first=pendingEvents.removeFirst();
+				first=pendingEvents.poll();
 			}
+			dispatchPending(first);
+		}
+	}
 
-			try
+	/**
+	 * Runs through pending events until the list is empty or the flush budget
+	 * has been used up. In the latter case, another slice is scheduled so that
+	 * Swing can paint and handle input in between.
+	 */
+	private void flushSlice()
+	{
+		long budget=flushBudget*1000000L;
+		long start=System.nanoTime();
+		int count=0;
+		while(true)
+		{
+			boolean outOfTime=budget>0 && count>0 && System.nanoTime()-start>=budget;
+			PendingEvent first;
+			synchronized(pendingEvents)
 			{
-				internalDispatch(first.messageClass,first.m);
+				if(pendingEvents.isEmpty())
+				{
+					queueStats.recordSlice(count,System.nanoTime()-start,false);
+					return;
+				}
+				if(outOfTime)
+				{
+					queueStats.recordSlice(count,System.nanoTime()-start,true);
+					break;
+				}
+				first=pendingEvents.poll();
 			}
-			catch(Throwable t)
+			dispatchPending(first);
+			count++;
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Dispatches an event from the queue, reporting any errors.
+	 * @param event Event
+	 */
+	private void dispatchPending(PendingEvent event)
+	{
+		try
+		{
+			internalDispatch(event.messageClass,event.m);
+		}
+		catch(Throwable t)
+		{
+			ErrorMsg.report(
+				"Error during dispatch of "+event.m,t);
+		}
+	}
+
+	/**
+	 * Sets the maximum time that will be spent dispatching queued events before
+	 * giving other Swing events a chance to run. (The time may be exceeded
+	 * if a single event takes longer.)
+	 * @param milliseconds Time in milliseconds, or 0 to dispatch all queued
+	 *   events in one go
+	 */
+	public void setFlushBudget(int milliseconds)
+	{
+		flushBudget=milliseconds;
+	}
+
+	/** @return Current statistics about the pending event queue */
+	public QueueStats getQueueStats()
+	{
+		synchronized(pendingEvents)
+		{
+			QueueStats stats=new QueueStats(queueStats);
+			stats.depth=pendingEvents.size();
+			return stats;
+		}
+	}
+
+	/** Statistics about the pending event queue */
+	public static class QueueStats
+	{
+		private int depth,maxDepth;
+		private long slices,overBudgetSlices,events;
+		private int lastSliceEvents;
+		private long lastSliceTime,maxSliceTime;
+
+		QueueStats()
+		{
+		}
+
+		QueueStats(QueueStats other)
+		{
+			maxDepth=other.maxDepth;
+			slices=other.slices;
+			overBudgetSlices=other.overBudgetSlices;
+			events=other.events;
+			lastSliceEvents=other.lastSliceEvents;
+			lastSliceTime=other.lastSliceTime;
+			maxSliceTime=other.maxSliceTime;
+		}
+
+		/**
+		 * Records details of a completed slice.
+		 * @param count Number of events dispatched
+		 * @param time Time taken in nanoseconds
+		 * @param overBudget True if the slice stopped with events still waiting
+		 */
+		void recordSlice(int count,long time,boolean overBudget)
+		{
+			slices++;
+			if(overBudget)
 			{
-				ErrorMsg.report(
-					"Error during dispatch of "+first.m,t);
+				overBudgetSlices++;
 			}
+			events+=count;
+			lastSliceEvents=count;
+			lastSliceTime=time;
+			maxSliceTime=Math.max(maxSliceTime,time);
+		}
+
+		/** @return Number of events waiting (when stats were obtained) */
+		public int getDepth() { return depth; }
+		/** @return Largest number of events that have been waiting at once */
+		public int getMaxDepth() { return maxDepth; }
+		/** @return Number of slices that have run */
+		public long getSlices() { return slices; }
+		/** @return Number of slices that ran out of time with events still waiting */
+		public long getOverBudgetSlices() { return overBudgetSlices; }
+		/** @return Total events dispatched in slices */
+		public long getEvents() { return events; }
+		/** @return Number of events dispatched in the most recent slice */
+		public int getLastSliceEvents() { return lastSliceEvents; }
+		/** @return Duration of the most recent slice in nanoseconds */
+		public long getLastSliceTime() { return lastSliceTime; }
+		/** @return Duration of the longest slice in nanoseconds */
+		public long getMaxSliceTime() { return maxSliceTime; }
+
+		@Override
+		public String toString()
+		{
+			return "depth "+depth+" (max "+maxDepth+"), "+slices+" slices ("+
+				overBudgetSlices+" over budget), "+events+" events, last slice "+
+				lastSliceEvents+" events in "+(lastSliceTime/1000)+"us (max "+
+				(maxSliceTime/1000)+"us)";
 		}
 	}
 
@@ -594,8 +871,16 @@ public class MessageManager
 		});
 	}
 
-	private LinkedList<PendingEvent> pendingEvents =
-		new LinkedList<PendingEvent>();
+	private PendingEventQueue pendingEvents=new PendingEventQueue();
+
+	/** Default for flushBudget */
+	private final static int DEFAULT_FLUSH_BUDGET=50;
+
+	/** Maximum time (ms) spent dispatching queued events at once; 0 = no limit */
+	private volatile int flushBudget=DEFAULT_FLUSH_BUDGET;
+
+	/** Queue statistics (synchronize on pendingEvents) */
+	private QueueStats queueStats=new QueueStats();
 
 	/**
 	 * Handles actual message dispatch.
@@ -609,33 +894,21 @@ public class MessageManager
 			throw new BugException(
 				"Message "+m+" is not of the claimed type "+c.getName());
 
-		// Find owner
-		MsgOwner owner;
-		Collection<RequestDetails> requests;
-		synchronized(owners)
+		// Find owner (no locking; the map is replaced, not changed)
+		OwnerDetails ownerDetails = owners.get(c);
+		if(ownerDetails==null)
 		{
-			OwnerDetails details = owners.get(c);
-			if(details==null)
-			{
-				throw new BugException(
-					"No registered MessageOwner provides the message "+c.getName());
-			}
-
-			owner = details.mo;
-			requests = details.requests;
+			throw new BugException(
+				"No registered MessageOwner provides the message "+c.getName());
 		}
+		MsgOwner owner = ownerDetails.mo;
 
 		// Allow owner chance to do its own dispatch
 		owner.manualDispatch(m);
 
-		// Get list of targets for system dispatch
-		RequestDetails[] ard;
-		synchronized(requests)
-		{
-			// Doing just this is safer, so we don't stay synchronized while
-			// processing messages
-			ard=requests.toArray(new RequestDetails[0]);
-		}
+		// Get list of targets for system dispatch (only those that might accept
+		// the message, if indexed). This array must not be modified.
+		RequestDetails[] ard=ownerDetails.getTargets(m);
 
 		// Dispatch to all targets
 		for (int iTarget= 0; iTarget < ard.length; iTarget++)
@@ -646,7 +919,14 @@ public class MessageManager
 					(rd.msgClass==null || rd.msgClass.isAssignableFrom(m.getClass())) &&
 					(rd.mf==null || rd.mf.accept(m)))
 			{
-				dispatchMessageToTarget(m,rd);
+				if(rd.queue!=null)
+				{
+					rd.queue.add(m);
+				}
+				else
+				{
+					dispatchMessageToTarget(m,rd);
+				}
 			}
 		}
 	}
@@ -672,29 +952,8 @@ public class MessageManager
 	{
 		try
 		{
-			Map<?, ?> mHandlers = getHandlerMethods(rd.target.getClass());
-			Class<? extends Msg> cHandledMessage = m.getClass();
-			while(true)
-			{
-				// See if there's a handler for this
-				Method mHandler=(Method)mHandlers.get(cHandledMessage);
-				if(mHandler!=null)
-				{
-					// OK, good we have a handler
-					mHandler.invoke(rd.target,new Object[]{m});
-					break;
-				}
-
-				// Stop when we get to the message root
-				if(cHandledMessage==Msg.class)
-				{
-					throw new BugException("Object class "+rd.target.getClass().getName()+
-						" cannot handle requested messages "+m.getClass().getName());
-				}
-
-				cHandledMessage = ReflectionUtils.getSuperclassOrInterface(
-					cHandledMessage).asSubclass(Msg.class);
-			}
+			Method mHandler = getInvoker(rd.target.getClass(), m.getClass());
+			mHandler.invoke(rd.target,new Object[]{m});
 		}
 		catch(Throwable t)
 		{
@@ -737,7 +996,158 @@ public class MessageManager
 
 		MsgOwner mo;
 		int lastId = 0;
+
+		/** All requests, in dispatch order (synchronize on this object) */
 		Set<RequestDetails> requests = new TreeSet<RequestDetails>();
+
+		/**
+		 * Current requests for dispatch. This is rebuilt whenever requests
+		 * change and is never modified afterwards, so dispatch can use it
+		 * without locking or copying.
+		 */
+		private volatile Snapshot snapshot = new Snapshot();
+
+		/** Immutable copy of the requests, arranged for dispatch */
+		private static class Snapshot
+		{
+			/** Requests that can't be looked up through an index, in dispatch order */
+			RequestDetails[] unindexed = new RequestDetails[0];
+
+			/** Indexes used by any request */
+			FilterIndex[] indexes = new FilterIndex[0];
+
+			/** Map from key -> requests in dispatch order, for each index */
+			List<Map<Object, RequestDetails[]>> keys =
+				new ArrayList<Map<Object, RequestDetails[]>>();
+		}
+
+		/**
+		 * Adds a request.
+		 * @param rd Request
+		 */
+		synchronized void add(RequestDetails rd)
+		{
+			requests.add(rd);
+			updateSnapshot();
+		}
+
+		/**
+		 * Removes a request, if present.
+		 * @param target Request target
+		 * @param requestId Request ID
+		 */
+		synchronized void remove(Object target, int requestId)
+		{
+			for(Iterator<RequestDetails> i=requests.iterator(); i.hasNext();)
+			{
+				RequestDetails rd = i.next();
+				if(rd.requestId==requestId && rd.target==target)
+				{
+					i.remove();
+					updateSnapshot();
+					if(rd.queue!=null)
+					{
+						rd.queue.close();
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Rebuilds the dispatch snapshot from the current requests. Must be
+		 * called while synchronized.
+		 */
+		private void updateSnapshot()
+		{
+			List<RequestDetails> unindexed = new ArrayList<RequestDetails>();
+			Map<FilterIndex, Map<Object, List<RequestDetails>>> indexed =
+				new HashMap<FilterIndex, Map<Object, List<RequestDetails>>>();
+			for(RequestDetails rd : requests)
+			{
+				if(rd.index==null)
+				{
+					unindexed.add(rd);
+					continue;
+				}
+				Map<Object, List<RequestDetails>> keys = indexed.get(rd.index);
+				if(keys==null)
+				{
+					keys = new HashMap<Object, List<RequestDetails>>();
+					indexed.put(rd.index, keys);
+				}
+				List<RequestDetails> matching = keys.get(rd.indexKey);
+				if(matching==null)
+				{
+					matching = new ArrayList<RequestDetails>(1);
+					keys.put(rd.indexKey, matching);
+				}
+				matching.add(rd);
+			}
+
+			Snapshot updated = new Snapshot();
+			updated.unindexed = unindexed.toArray(new RequestDetails[unindexed.size()]);
+			updated.indexes = indexed.keySet().toArray(new FilterIndex[indexed.size()]);
+			for(FilterIndex index : updated.indexes)
+			{
+				Map<Object, RequestDetails[]> keys = new HashMap<Object, RequestDetails[]>();
+				for(Map.Entry<Object, List<RequestDetails>> me :
+					indexed.get(index).entrySet())
+				{
+					List<RequestDetails> matching = me.getValue();
+					keys.put(me.getKey(),
+						matching.toArray(new RequestDetails[matching.size()]));
+				}
+				updated.keys.add(keys);
+			}
+			snapshot = updated;
+		}
+
+		/**
+		 * Obtains the requests that might accept a message. Requests from
+		 * indexes are only included if the message has the right key; all
+		 * unindexed requests are included. Does not lock.
+		 * @param m Message
+		 * @return Requests in dispatch order; the array may be shared and must
+		 *   not be modified
+		 */
+		RequestDetails[] getTargets(Msg m)
+		{
+			Snapshot current = snapshot;
+			RequestDetails[] targets = current.unindexed;
+			boolean merged = false;
+			for(int i=0; i<current.indexes.length; i++)
+			{
+				Object key = current.indexes[i].getKey(m);
+				if(key==null)
+				{
+					continue;
+				}
+				RequestDetails[] matching = current.keys.get(i).get(key);
+				if(matching==null)
+				{
+					continue;
+				}
+				if(targets.length==0)
+				{
+					// Use the shared array as-is if it's the only one
+					targets = matching;
+					continue;
+				}
+				RequestDetails[] combined =
+					new RequestDetails[targets.length + matching.length];
+				System.arraycopy(targets, 0, combined, 0, targets.length);
+				System.arraycopy(matching, 0, combined, targets.length, matching.length);
+				targets = combined;
+				merged = true;
+			}
+			if(merged)
+			{
+				// Put requests from different lists back into priority order
+				Arrays.sort(targets);
+			}
+			return targets;
+		}
 	}
 
 	static class RequestDetails implements Comparable<RequestDetails>
@@ -748,6 +1158,13 @@ public class MessageManager
 		int requestId;
 		int priority;
 
+		/** Index and key for filter, or null if filter isn't indexed */
+		FilterIndex index;
+		Object indexKey;
+
+		/** Queue for requests not handled on the Swing thread, otherwise null */
+		MessageLanes.Queue queue;
+
 		RequestDetails(Object oTarget, Class<? extends Msg> cMessage,
 			MessageFilter mf,int iRequestID, int iPriority)
 		{
@@ -756,6 +1173,20 @@ public class MessageManager
 			this.mf=mf;
 			this.requestId=iRequestID;
 			this.priority=iPriority;
+
+			if(mf instanceof IndexedFilter)
+			{
+				IndexedFilter filter=(IndexedFilter)mf;
+				index=filter.getIndex();
+				if(index!=null)
+				{
+					indexKey=filter.getIndexKey();
+					if(indexKey==null)
+					{
+						index=null;
+					}
+				}
+			}
 		}
 
 		@Override
@@ -0,0 +1,196 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package leafchat.core;
+
+import java.util.*;
+
+import leafchat.core.MessageManager.PendingEvent;
+
+/**
+ * Queue of events waiting for dispatch. Events come out in the order they
+ * were added, except that when an event is added to a sequence, any events
+ * already waiting with a later number in that sequence are moved to come
+ * straight after it.
+ * <p>
+ * Each sequence keeps its own events in sequence order, so adding an event
+ * takes O(log n) time instead of a scan of the whole queue. An event's
+ * place in the overall queue is the later of the time it was added and the
+ * time the last event from its sequence that has already come out was added.
+ * <p>
+ * Not synchronized.
+ */
+class PendingEventQueue
+{
+	/** Counter used to record the order events are added */
+	private long added=0;
+
+	/** Number of events in queue */
+	private int size=0;
+
+	/** Events that are not in a sequence, in the order they were added */
+	private LinkedList<PendingEvent> unsequenced=new LinkedList<PendingEvent>();
+
+	/** Map from sequence name -> sequence, for sequences with events waiting */
+	private Map<String, Sequence> sequences=new HashMap<String, Sequence>();
+
+	/** Sequences with events waiting, ordered by their first event */
+	private TreeSet<Sequence> active=new TreeSet<Sequence>();
+
+	/** Orders events within a sequence */
+	private final static Comparator<PendingEvent> SEQUENCE_ORDER =
+		new Comparator<PendingEvent>()
+	{
+		@Override
+		public int compare(PendingEvent a, PendingEvent b)
+		{
+			if(a.sequenceNumber!=b.sequenceNumber)
+			{
+				return a.sequenceNumber < b.sequenceNumber ? -1 : 1;
+			}
+			return a.added < b.added ? -1 : a.added==b.added ? 0 : 1;
+		}
+	};
+
+	/** Events waiting in a single sequence */
+	private static class Sequence implements Comparable<Sequence>
+	{
+		private String name;
+
+		/** Events in sequence order */
+		private PriorityQueue<PendingEvent> events =
+			new PriorityQueue<PendingEvent>(11, SEQUENCE_ORDER);
+
+		/** Add order of the latest-added event that has already been removed */
+		private long removed=-1;
+
+		/** Position of the first event in the overall queue */
+		private long position;
+
+		/** First event (cached so that ordering doesn't change within the set) */
+		private PendingEvent first;
+
+		Sequence(String name)
+		{
+			this.name=name;
+		}
+
+		/**
+		 * Updates the cached first event and position. Must not be called
+		 * while this sequence is in the active set.
+		 */
+		void updateFirst()
+		{
+			first=events.peek();
+			position=Math.max(first.added, removed);
+		}
+
+		@Override
+		public int compareTo(Sequence other)
+		{
+			if(other==this)
+			{
+				return 0;
+			}
+			if(position!=other.position)
+			{
+				return position < other.position ? -1 : 1;
+			}
+			return SEQUENCE_ORDER.compare(first, other.first);
+		}
+	}
+
+	/** @return True if there are no events */
+	boolean isEmpty()
+	{
+		return size==0;
+	}
+
+	/** @return Number of events in queue */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Adds an event to the queue.
+	 * @param event Event
+	 */
+	void add(PendingEvent event)
+	{
+		event.added=added++;
+		size++;
+		if(event.sequenceName==null)
+		{
+			unsequenced.addLast(event);
+			return;
+		}
+
+		Sequence sequence=sequences.get(event.sequenceName);
+		if(sequence==null)
+		{
+			sequence=new Sequence(event.sequenceName);
+			sequences.put(event.sequenceName, sequence);
+		}
+		else
+		{
+			active.remove(sequence);
+		}
+		sequence.events.add(event);
+		sequence.updateFirst();
+		active.add(sequence);
+	}
+
+	/**
+	 * Removes the next event from the queue.
+	 * @return Event, or null if queue is empty
+	 */
+	PendingEvent poll()
+	{
+		if(size==0)
+		{
+			return null;
+		}
+		size--;
+
+		if(!active.isEmpty())
+		{
+			Sequence sequence=active.first();
+			if(unsequenced.isEmpty() ||
+				sequence.position < unsequenced.getFirst().added)
+			{
+				active.remove(sequence);
+				PendingEvent event=sequence.events.poll();
+				sequence.removed=Math.max(sequence.removed, event.added);
+				if(sequence.events.isEmpty())
+				{
+					// Any later event in this sequence will be added after this one
+					// anyway, so there's no need to remember it
+					sequences.remove(sequence.name);
+				}
+				else
+				{
+					sequence.updateFirst();
+					active.add(sequence);
+				}
+				return event;
+			}
+		}
+		return unsequenced.removeFirst();
+	}
+}
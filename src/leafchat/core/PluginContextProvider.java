@@ -236,9 +236,17 @@ public class PluginContextProvider implements PluginContext
 	@Override
 	public int requestMessages(Class<? extends Msg> msgClass, Object oTarget,
 		MessageFilter mf, int iPriority)
+	{
+		return requestMessages(msgClass,oTarget,mf,iPriority,Msg.LANE_SWING);
+	}
+
+	@Override
+	public int requestMessages(Class<? extends Msg> msgClass, Object oTarget,
+		MessageFilter mf, int iPriority, int lane)
 	{
 		log("Requesting messages: "+msgClass.getName());
-		int iRequestID=MessageManager.get().requestMessages(msgClass,oTarget,mf, iPriority);
+		int iRequestID=MessageManager.get().requestMessages(msgClass,oTarget,mf,
+			iPriority,lane);
 		synchronized(messageRequests)
 		{
 			MessageRequest mr=new MessageRequest();
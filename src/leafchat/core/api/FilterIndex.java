@@ -0,0 +1,69 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package leafchat.core.api;
+
+/**
+ * A type of key that {@link IndexedFilter}s can be indexed by. Each index
+ * should be a single shared instance (usually a static field), as indexes are
+ * compared by identity.
+ */
+public abstract class FilterIndex
+{
+	private String name;
+
+	/**
+	 * @param name Name for debugging
+	 */
+	protected FilterIndex(String name)
+	{
+		this.name=name;
+	}
+
+	/**
+	 * Obtains the key for a message.
+	 * @param m Message
+	 * @return Key value, or null if this message can't match any filter in the
+	 *   index
+	 */
+	public abstract Object getKey(Msg m);
+
+	@Override
+	public String toString()
+	{
+		return "[FilterIndex "+name+"]";
+	}
+
+	/**
+	 * Converts a string to a form that can be used as a key where matching is
+	 * not case-sensitive. Two strings give the same result exactly when
+	 * String.equalsIgnoreCase would return true.
+	 * @param s String (may be null)
+	 * @return Key string, or null if the string was null
+	 */
+	public static String caseInsensitiveKey(String s)
+	{
+		if(s==null) return null;
+		char[] chars=s.toCharArray();
+		for(int i=0;i<chars.length;i++)
+		{
+			chars[i]=Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package leafchat.core.api;
+
+/**
+ * A message filter that only accepts messages which have one particular value
+ * for some key, such as the server or channel. The message system uses this
+ * to find matching requests through a hash lookup, rather than calling
+ * {@link #accept(Msg)} on every request.
+ * <p>
+ * If {@link #accept(Msg)} returns true for a message, then
+ * {@link FilterIndex#getKey(Msg)} for that message must equal
+ * {@link #getIndexKey()}. The accept method is still called for messages that
+ * match the key, so it can apply further conditions. Subclasses of indexed
+ * filters may therefore narrow what is accepted but must not widen it.
+ */
+public interface IndexedFilter extends MessageFilter
+{
+	/**
+	 * @return Index that this filter belongs to, or null if this particular
+	 *   filter can't be indexed (e.g. because it uses wildcards)
+	 */
+	public FilterIndex getIndex();
+
+	/**
+	 * @return Key value within the index; not used if getIndex returns null
+	 */
+	public Object getIndexKey();
+}
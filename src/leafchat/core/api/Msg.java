@@ -110,6 +110,26 @@ public abstract class Msg
 	 */
 	public final static int PRIORITY_FIRST = 14000;
 
+	/**
+	 * Lane constant:
+	 * Handler is called on the Swing thread (default)
+	 */
+	public final static int LANE_SWING = 0;
+	/**
+	 * Lane constant:
+	 * Handler is called on a shared pool of background threads. Messages for
+	 * the same request are handled one at a time, in dispatch order, but
+	 * possibly after the Swing-thread handlers have finished; background
+	 * handlers should treat the message as read-only and cannot stop it
+	 */
+	public final static int LANE_BACKGROUND = 1;
+	/**
+	 * Lane constant:
+	 * As {@link #LANE_BACKGROUND}, but the request gets a thread of its own
+	 * rather than sharing the pool
+	 */
+	public final static int LANE_DEDICATED = 2;
+
 	private String sequenceName=null;
 	private int sequenceNumber;
 
@@ -139,6 +159,16 @@ public abstract class Msg
 		this.sequenceName=relative.sequenceName;
 		this.sequenceNumber=relative.sequenceNumber;
 	}
+	/** @return Sequence name, or null if message is not in a sequence */
+	public String getSequenceName()
+	{
+		return sequenceName;
+	}
+	/** @return Position in sequence (meaningless if not in a sequence) */
+	public int getSequenceNumber()
+	{
+		return sequenceNumber;
+	}
 	/**
 	 * Checks whether this message ought to run before the message under
 	 * consideration.
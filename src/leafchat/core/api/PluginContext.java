@@ -55,6 +55,21 @@ public interface PluginContext
 	public int requestMessages(Class<? extends Msg> message,
 	  Object target,MessageFilter mf, int priority);
 
+	/**
+	 * Requests messages of a particular type, to be handled on a thread other
+	 * than the Swing thread. Use this only for handlers that don't touch the
+	 * user interface and don't need to stop or change the message; the target
+	 * must be thread-safe.
+	 * @param message Message class
+	 * @param target Target that wants messages
+	 * @param mf Filter for messages (may be null)
+	 * @param priority Priority for message (MessageTarget.PRIORITY_xxx)
+	 * @param lane Thread for handler (Msg.LANE_xxx)
+	 * @return ID of request, used in unrequest.
+	 */
+	public int requestMessages(Class<? extends Msg> message,
+	  Object target,MessageFilter mf, int priority, int lane);
+
 	/**
 	 * Requests messages of a particular type, with no filter.
 	 * @param message Message class
@@ -0,0 +1,639 @@
+/*
+This file is part of leafdigital leafChat.
+
+leafChat is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+leafChat is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with leafChat. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2012 Samuel Marshall.
+*/
+package leafchat.core.api;
+
+import java.nio.CharBuffer;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import util.xml.XMLException;
+
+/**
+ * Scans the small XML fragments used for lines of text (in windows and logs)
+ * without building a DOM. The fragment may contain text and any number of
+ * elements at top level. Call {@link #reset(String)} and then {@link #next()}
+ * repeatedly until it returns {@link #END}.
+ * <p>
+ * Text is returned in runs; a run ends at any markup, so each run matches
+ * one Text node in the equivalent DOM. Entities are decoded and each
+ * character of a run can be mapped back to its position in the source string.
+ * Attributes are checked but not reported; comments and processing
+ * instructions are skipped. Line endings are not normalised.
+ * <p>
+ * A scanner can be reused for any number of strings, but is not
+ * thread-safe.
+ */
+public class XMLTextScanner
+{
+	/** Returned from {@link #next()} at end of string */
+	public final static int END=0;
+	/** Returned from {@link #next()} for a start tag (or empty-element tag) */
+	public final static int START_ELEMENT=1;
+	/** Returned from {@link #next()} for an end tag (or after an empty-element tag) */
+	public final static int END_ELEMENT=2;
+	/** Returned from {@link #next()} for a run of text */
+	public final static int TEXT=3;
+
+	/** Number of element names cached to avoid creating strings */
+	private final static int NAMECACHE=16;
+
+	private String xml;
+	private int pos,length;
+
+	/** Open elements */
+	private String[] stack=new String[8];
+	private int depth;
+
+	/** Current element name */
+	private String name;
+
+	/** True if the last start tag was an empty-element tag */
+	private boolean pendingEnd;
+
+	/** Current text run */
+	private char[] text=new char[64];
+	/** Source position of each character in current text run, plus end */
+	private int[] positions=new int[65];
+	private int textLength;
+	private boolean cdata;
+
+	private String[] names=new String[NAMECACHE];
+	private int nextName;
+
+	/**
+	 * Starts scanning a new string.
+	 * @param xml XML fragment
+	 */
+	public void reset(String xml)
+	{
+		this.xml=xml;
+		pos=0;
+		length=xml.length();
+		depth=0;
+		name=null;
+		pendingEnd=false;
+		textLength=0;
+	}
+
+	/**
+	 * Moves to the next item.
+	 * @return {@link #START_ELEMENT}, {@link #END_ELEMENT}, {@link #TEXT} or
+	 *   {@link #END}
+	 * @throws XMLException If the string is not well-formed
+	 */
+	public int next() throws XMLException
+	{
+		if(pendingEnd)
+		{
+			pendingEnd=false;
+			depth--;
+			return END_ELEMENT;
+		}
+		while(true)
+		{
+			if(pos>=length)
+			{
+				if(depth>0)
+				{
+					throw new XMLException("Unclosed element: "+stack[depth-1]);
+				}
+				return END;
+			}
+			if(xml.charAt(pos)!='<')
+			{
+				readText();
+				return TEXT;
+			}
+			if(xml.startsWith("<!--",pos))
+			{
+				pos=skipPast("-->",pos+4);
+			}
+			else if(xml.startsWith("<?",pos))
+			{
+				pos=skipPast("?>",pos+2);
+			}
+			else if(xml.startsWith("<![CDATA[",pos))
+			{
+				readCDATA();
+				return TEXT;
+			}
+			else if(xml.startsWith("</",pos))
+			{
+				readEndTag();
+				return END_ELEMENT;
+			}
+			else
+			{
+				readStartTag();
+				return START_ELEMENT;
+			}
+		}
+	}
+
+	/**
+	 * @return Name of element, after {@link #START_ELEMENT} or
+	 *   {@link #END_ELEMENT}
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return Number of elements open; this includes the current element after
+	 *   {@link #START_ELEMENT} but not after {@link #END_ELEMENT}
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @param level Level from 0 (outermost) to {@link #getDepth()}-1
+	 * @return Name of open element at that level
+	 */
+	public String getOpenElement(int level)
+	{
+		return stack[level];
+	}
+
+	/**
+	 * Obtains the buffer holding the current text run. The buffer is reused
+	 * and may be longer than the text.
+	 * @return Buffer
+	 */
+	public char[] getText()
+	{
+		return text;
+	}
+
+	/** @return Number of characters in current text run */
+	public int getTextLength()
+	{
+		return textLength;
+	}
+
+	/** @return Current text run as a new string */
+	public String getTextString()
+	{
+		return new String(text,0,textLength);
+	}
+
+	/**
+	 * Obtains the position in the source string of a character in the
+	 * current text run. Characters that came from an entity all map to its
+	 * '&amp;'.
+	 * @param index Index within text run, or {@link #getTextLength()} for the
+	 *   position just after the run
+	 * @return Position in source string
+	 */
+	public int getSourcePosition(int index)
+	{
+		return positions[index];
+	}
+
+	/** @return True if the current text run is a CDATA section */
+	public boolean isCDATA()
+	{
+		return cdata;
+	}
+
+	/**
+	 * Scans a fragment and encloses text that matches a pattern in an
+	 * element. Text in CDATA sections, or anywhere inside one of the skipped
+	 * elements, is not matched.
+	 * @param xml XML fragment
+	 * @param m Matcher for text to enclose
+	 * @param tag Name of element to enclose matches in
+	 * @param skip Names of elements whose content isn't matched, or null
+	 * @return Fragment with matches enclosed, or null if nothing matched
+	 * @throws XMLException If the string is not well-formed
+	 */
+	public String wrapMatches(String xml,Matcher m,String tag,Set<String> skip)
+		throws XMLException
+	{
+		StringBuffer result=null;
+		int pos=0,skipDepth=0;
+		reset(xml);
+		int type;
+		while((type=next())!=END)
+		{
+			if(type==START_ELEMENT)
+			{
+				if(skipDepth==0 && skip!=null && skip.contains(name))
+				{
+					skipDepth=depth;
+				}
+			}
+			else if(type==END_ELEMENT)
+			{
+				if(depth<skipDepth)
+				{
+					skipDepth=0;
+				}
+			}
+			else if(skipDepth==0 && !cdata)
+			{
+				m.reset(CharBuffer.wrap(text,0,textLength));
+				while(m.find())
+				{
+					int start=positions[m.start()],end=positions[m.end()];
+					if(result==null)
+					{
+						result=new StringBuffer();
+					}
+					result.append(xml,pos,start);
+					result.append('<').append(tag).append('>');
+					result.append(xml,start,end);
+					result.append("</").append(tag).append('>');
+					pos=end;
+				}
+			}
+		}
+		if(result==null)
+		{
+			return null;
+		}
+		result.append(xml,pos,xml.length());
+		return result.toString();
+	}
+
+	/**
+	 * Reads ordinary text up to the next markup.
+	 * @throws XMLException If there is an invalid entity or character
+	 */
+	private void readText() throws XMLException
+	{
+		textLength=0;
+		cdata=false;
+		int start=pos;
+		while(pos<length)
+		{
+			char c=xml.charAt(pos);
+			if(c=='<')
+			{
+				break;
+			}
+			if(c=='&')
+			{
+				int entity=pos;
+				int value=readEntity();
+				if(value>0xffff)
+				{
+					char[] pair=Character.toChars(value);
+					addText(pair[0],entity);
+					addText(pair[1],entity);
+				}
+				else
+				{
+					addText((char)value,entity);
+				}
+			}
+			else
+			{
+				if(c=='>' && pos-2>=start && xml.startsWith("]]",pos-2))
+				{
+					throw new XMLException("Unexpected ]]> in text");
+				}
+				checkChar(c);
+				addText(c,pos++);
+			}
+		}
+		positions[textLength]=pos;
+	}
+
+	/**
+	 * Reads a CDATA section.
+	 * @throws XMLException If it isn't terminated
+	 */
+	private void readCDATA() throws XMLException
+	{
+		textLength=0;
+		cdata=true;
+		int start=pos+9,end=xml.indexOf("]]>",start);
+		if(end==-1)
+		{
+			throw new XMLException("Unterminated CDATA section");
+		}
+		for(pos=start;pos<end;pos++)
+		{
+			char c=xml.charAt(pos);
+			checkChar(c);
+			addText(c,pos);
+		}
+		positions[textLength]=end;
+		pos=end+3;
+	}
+
+	/**
+	 * Reads an entity or character reference at the current position.
+	 * @return Character value
+	 * @throws XMLException If it isn't valid
+	 */
+	private int readEntity() throws XMLException
+	{
+		int end=xml.indexOf(';',pos+1);
+		if(end==-1 || end-pos>12)
+		{
+			throw new XMLException("Unterminated entity reference");
+		}
+		int value;
+		if(xml.charAt(pos+1)=='#')
+		{
+			try
+			{
+				if(end>pos+2 && xml.charAt(pos+2)=='x')
+				{
+					value=Integer.parseInt(xml.substring(pos+3,end),16);
+				}
+				else
+				{
+					value=Integer.parseInt(xml.substring(pos+2,end));
+				}
+			}
+			catch(NumberFormatException e)
+			{
+				throw new XMLException("Invalid character reference: "+xml.substring(pos,end+1));
+			}
+			if(value<0 || value>Character.MAX_CODE_POINT ||
+				(value>=Character.MIN_SURROGATE && value<=Character.MAX_SURROGATE))
+			{
+				throw new XMLException("Invalid character reference: "+xml.substring(pos,end+1));
+			}
+			if(value<=0xffff)
+			{
+				checkChar((char)value);
+			}
+		}
+		else if(xml.startsWith("amp",pos+1) && end==pos+4)
+		{
+			value='&';
+		}
+		else if(xml.startsWith("lt",pos+1) && end==pos+3)
+		{
+			value='<';
+		}
+		else if(xml.startsWith("gt",pos+1) && end==pos+3)
+		{
+			value='>';
+		}
+		else if(xml.startsWith("quot",pos+1) && end==pos+5)
+		{
+			value='"';
+		}
+		else if(xml.startsWith("apos",pos+1) && end==pos+5)
+		{
+			value='\'';
+		}
+		else
+		{
+			throw new XMLException("Unknown entity: "+xml.substring(pos,end+1));
+		}
+		pos=end+1;
+		return value;
+	}
+
+	/**
+	 * Reads a start tag (or empty-element tag), checking its attributes.
+	 * @throws XMLException If the tag isn't valid
+	 */
+	private void readStartTag() throws XMLException
+	{
+		pos++;
+		name=readName();
+		while(true)
+		{
+			boolean space=skipSpace();
+			if(pos>=length)
+			{
+				throw new XMLException("Unterminated tag: "+name);
+			}
+			char c=xml.charAt(pos);
+			if(c=='>')
+			{
+				pos++;
+				break;
+			}
+			if(c=='/')
+			{
+				if(pos+1>=length || xml.charAt(pos+1)!='>')
+				{
+					throw new XMLException("Invalid tag: "+name);
+				}
+				pos+=2;
+				pendingEnd=true;
+				break;
+			}
+			if(!space)
+			{
+				throw new XMLException("Missing space in tag: "+name);
+			}
+
+			// Attribute
+			readName();
+			skipSpace();
+			if(pos>=length || xml.charAt(pos)!='=')
+			{
+				throw new XMLException("Missing attribute value in tag: "+name);
+			}
+			pos++;
+			skipSpace();
+			char quote=pos<length ? xml.charAt(pos) : 0;
+			if(quote!='"' && quote!='\'')
+			{
+				throw new XMLException("Unquoted attribute value in tag: "+name);
+			}
+			pos++;
+			while(true)
+			{
+				if(pos>=length)
+				{
+					throw new XMLException("Unterminated attribute value in tag: "+name);
+				}
+				c=xml.charAt(pos);
+				if(c==quote)
+				{
+					pos++;
+					break;
+				}
+				if(c=='<')
+				{
+					throw new XMLException("Invalid < in attribute value in tag: "+name);
+				}
+				if(c=='&')
+				{
+					readEntity();
+				}
+				else
+				{
+					checkChar(c);
+					pos++;
+				}
+			}
+		}
+
+		if(depth==stack.length)
+		{
+			String[] newStack=new String[depth*2];
+			System.arraycopy(stack,0,newStack,0,depth);
+			stack=newStack;
+		}
+		stack[depth++]=name;
+	}
+
+	/**
+	 * Reads an end tag.
+	 * @throws XMLException If it doesn't match the open element
+	 */
+	private void readEndTag() throws XMLException
+	{
+		pos+=2;
+		name=readName();
+		skipSpace();
+		if(pos>=length || xml.charAt(pos)!='>')
+		{
+			throw new XMLException("Unterminated end tag: "+name);
+		}
+		pos++;
+		if(depth==0 || !stack[depth-1].equals(name))
+		{
+			throw new XMLException("Unexpected end tag: "+name);
+		}
+		depth--;
+	}
+
+	/**
+	 * Reads an element or attribute name.
+	 * @return Name
+	 * @throws XMLException If there isn't a name at the current position
+	 */
+	private String readName() throws XMLException
+	{
+		int start=pos;
+		while(pos<length)
+		{
+			char c=xml.charAt(pos);
+			if(Character.isLetterOrDigit(c) || c=='_' || c==':' || c=='-' || c=='.' ||
+				c>=0x80)
+			{
+				pos++;
+			}
+			else
+			{
+				break;
+			}
+		}
+		if(pos==start || !(Character.isLetter(xml.charAt(start)) ||
+			xml.charAt(start)=='_' || xml.charAt(start)==':'))
+		{
+			throw new XMLException("Invalid name at position "+start);
+		}
+
+		// Reuse a recent name if possible
+		int nameLength=pos-start;
+		for(int i=0;i<NAMECACHE;i++)
+		{
+			String cached=names[i];
+			if(cached==null)
+			{
+				break;
+			}
+			if(cached.length()==nameLength && xml.regionMatches(start,cached,0,nameLength))
+			{
+				return cached;
+			}
+		}
+		String result=xml.substring(start,pos);
+		names[nextName]=result;
+		nextName=(nextName+1)%NAMECACHE;
+		return result;
+	}
+
+	/**
+	 * Skips whitespace.
+	 * @return True if there was any
+	 */
+	private boolean skipSpace()
+	{
+		int start=pos;
+		while(pos<length)
+		{
+			char c=xml.charAt(pos);
+			if(c==' ' || c=='\t' || c=='\n' || c=='\r')
+			{
+				pos++;
+			}
+			else
+			{
+				break;
+			}
+		}
+		return pos!=start;
+	}
+
+	/**
+	 * Finds the end of a comment or processing instruction.
+	 * @param terminator Terminating string
+	 * @param from Position to search from
+	 * @return Position after terminator
+	 * @throws XMLException If it isn't terminated
+	 */
+	private int skipPast(String terminator,int from) throws XMLException
+	{
+		int end=xml.indexOf(terminator,from);
+		if(end==-1)
+		{
+			throw new XMLException("Expected "+terminator);
+		}
+		return end+terminator.length();
+	}
+
+	/**
+	 * Checks that a character is allowed in XML.
+	 * @param c Character
+	 * @throws XMLException If not
+	 */
+	private static void checkChar(char c) throws XMLException
+	{
+		if((c<0x20 && c!='\t' && c!='\n' && c!='\r') || c==0xfffe || c==0xffff)
+		{
+			throw new XMLException("Invalid character: "+(int)c);
+		}
+	}
+
+	/**
+	 * Adds a character to the current text run.
+	 * @param c Character
+	 * @param position Source position
+	 */
+	private void addText(char c,int position)
+	{
+		if(textLength+1>=positions.length)
+		{
+			char[] newText=new char[text.length*2];
+			System.arraycopy(text,0,newText,0,textLength);
+			text=newText;
+			int[] newPositions=new int[newText.length+1];
+			System.arraycopy(positions,0,newPositions,0,textLength);
+			positions=newPositions;
+		}
+		text[textLength]=c;
+		positions[textLength++]=position;
+	}
+}